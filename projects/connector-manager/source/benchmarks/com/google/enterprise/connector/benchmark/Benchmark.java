@@ -0,0 +1,72 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.benchmark;
+
+/**
+ * A single microbenchmark run by the {@link BenchmarkRunner}.
+ * The runner calls {@link #setUp} once, then calls {@link #run}
+ * repeatedly during the warmup and measurement iterations, then
+ * calls {@link #tearDown} once.
+ *
+ * @since 3.4
+ */
+public abstract class Benchmark {
+  private final String name;
+
+  /**
+   * @param name the name of the benchmark, used to identify its
+   *        results between runs
+   */
+  protected Benchmark(String name) {
+    this.name = name;
+  }
+
+  /** Returns the name of the benchmark. */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Prepares the inputs for the benchmark.  This is not timed.
+   *
+   * @throws Exception if the benchmark could not be set up
+   */
+  public void setUp() throws Exception {
+  }
+
+  /**
+   * Performs one operation of the benchmark.  The returned value
+   * is consumed by the runner, so that the work done cannot be
+   * optimized away.
+   *
+   * @return the number of bytes, or characters for text inputs,
+   *         processed by the operation
+   * @throws Exception if the operation fails
+   */
+  public abstract long run() throws Exception;
+
+  /**
+   * Releases any resources held by the benchmark.  This is not timed.
+   *
+   * @throws Exception if the benchmark could not be torn down
+   */
+  public void tearDown() throws Exception {
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,440 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.enterprise.connector.common.AbstractCommandLineApp;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the microbenchmarks for the feed hot path, and writes the results
+ * as JSON so that they can be compared between runs.
+ *
+ * <pre>
+ * usage: BenchmarkRunner [-?] [-v] [-w count] [-i count] [-t millis]
+ *                        [-f regex] [-o file] [-b file] [-r percent]
+ *        -?, --help        Display this help.
+ *        -v, --version     Display version.
+ *        -w, --warmup      Number of warmup iterations (default 5).
+ *        -i, --iterations  Number of measurement iterations (default 10).
+ *        -t, --time        Length of each iteration, in milliseconds
+ *                          (default 1000).
+ *        -f, --filter      Only run benchmarks whose names match the regex.
+ *        -o, --output      File to write the results to.
+ *        -b, --baseline    Results of an earlier run to compare against.
+ *        -r, --regression  Slowdown from the baseline, in percent, that
+ *                          is reported as a regression (default 25).
+ * </pre>
+ * <p>
+ * Runs are compared by the median of their measurement iterations,
+ * which is less affected by outliers than the mean.  A slowdown is
+ * only reported as a regression if it is also more than twice the
+ * noise of the two runs, which is the larger of their relative
+ * standard deviations.  Slowdowns above the threshold but within the
+ * noise are reported as noisy, and do not fail the run.
+ *
+ * @since 3.4
+ */
+public class BenchmarkRunner extends AbstractCommandLineApp {
+  private static final int DEFAULT_WARMUP_ITERATIONS = 5;
+  private static final int DEFAULT_ITERATIONS = 10;
+  private static final long DEFAULT_ITERATION_MILLIS = 1000L;
+  private static final double DEFAULT_REGRESSION_PERCENT = 25.0;
+
+  /**
+   * Consumes the values returned by the benchmarks, so that the JIT
+   * cannot eliminate the work they do.
+   */
+  private static volatile long sink;
+
+  private int warmupIterations = DEFAULT_WARMUP_ITERATIONS;
+  private int iterations = DEFAULT_ITERATIONS;
+  private long iterationMillis = DEFAULT_ITERATION_MILLIS;
+  private double regressionPercent = DEFAULT_REGRESSION_PERCENT;
+  private int regressionCount = 0;
+
+  /** The measurements of one iteration of a benchmark. */
+  private static class Sample {
+    final long operations;
+    final long bytes;
+    final long elapsedNanos;
+
+    Sample(long operations, long bytes, long elapsedNanos) {
+      this.operations = operations;
+      this.bytes = bytes;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    double getOperationsPerSecond() {
+      return operations * 1e9 / elapsedNanos;
+    }
+  }
+
+  /** The median and noise of a benchmark in an earlier run. */
+  private static class Baseline {
+    final double median;
+    final double noisePercent;
+
+    Baseline(double median, double noisePercent) {
+      this.median = median;
+      this.noisePercent = noisePercent;
+    }
+  }
+
+  /** All of the measurements of a benchmark. */
+  private static class Result {
+    final String name;
+    final List<Sample> samples;
+
+    Result(String name, List<Sample> samples) {
+      this.name = name;
+      this.samples = samples;
+    }
+
+    double getMean() {
+      double sum = 0;
+      for (Sample sample : samples) {
+        sum += sample.getOperationsPerSecond();
+      }
+      return sum / samples.size();
+    }
+
+    double getMedian() {
+      double[] values = new double[samples.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = samples.get(i).getOperationsPerSecond();
+      }
+      Arrays.sort(values);
+      int middle = values.length / 2;
+      return (values.length % 2 == 1)
+          ? values[middle] : (values[middle - 1] + values[middle]) / 2;
+    }
+
+    /** Returns the standard deviation as a percentage of the mean. */
+    double getNoisePercent() {
+      return 100 * getStandardDeviation() / getMean();
+    }
+
+    double getStandardDeviation() {
+      if (samples.size() < 2) {
+        return 0;
+      }
+      double mean = getMean();
+      double sum = 0;
+      for (Sample sample : samples) {
+        double delta = sample.getOperationsPerSecond() - mean;
+        sum += delta * delta;
+      }
+      return Math.sqrt(sum / (samples.size() - 1));
+    }
+
+    double getMin() {
+      double min = Double.MAX_VALUE;
+      for (Sample sample : samples) {
+        min = Math.min(min, sample.getOperationsPerSecond());
+      }
+      return min;
+    }
+
+    double getMax() {
+      double max = 0;
+      for (Sample sample : samples) {
+        max = Math.max(max, sample.getOperationsPerSecond());
+      }
+      return max;
+    }
+
+    double getNanosPerOperation() {
+      long operations = 0;
+      long nanos = 0;
+      for (Sample sample : samples) {
+        operations += sample.operations;
+        nanos += sample.elapsedNanos;
+      }
+      return (double) nanos / operations;
+    }
+
+    double getBytesPerSecond() {
+      long bytes = 0;
+      long nanos = 0;
+      for (Sample sample : samples) {
+        bytes += sample.bytes;
+        nanos += sample.elapsedNanos;
+      }
+      return bytes * 1e9 / nanos;
+    }
+
+    JSONObject toJson() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("name", name);
+      json.put("iterations", samples.size());
+      json.put("opsPerSecond", getMean());
+      json.put("opsPerSecondMedian", getMedian());
+      json.put("opsPerSecondStdDev", getStandardDeviation());
+      json.put("opsPerSecondMin", getMin());
+      json.put("opsPerSecondMax", getMax());
+      json.put("nanosPerOp", getNanosPerOperation());
+      json.put("bytesPerSecond", getBytesPerSecond());
+      JSONArray array = new JSONArray();
+      for (Sample sample : samples) {
+        array.put(sample.getOperationsPerSecond());
+      }
+      json.put("samples", array);
+      return json;
+    }
+  }
+
+  @Override
+  public String getName() {
+    return "BenchmarkRunner";
+  }
+
+  @Override
+  public String getDescription() {
+    return "Runs the Connector Manager microbenchmarks.";
+  }
+
+  @Override
+  public String getCommandLineSyntax() {
+    return super.getCommandLineSyntax() + "[-w count] [-i count] [-t millis] "
+        + "[-f regex] [-o file] [-b file] [-r percent]";
+  }
+
+  @Override
+  public Options getOptions() {
+    Options options = super.getOptions();
+    options.addOption(newOption("w", "warmup", "count",
+        "Number of warmup iterations (default "
+        + DEFAULT_WARMUP_ITERATIONS + ")."));
+    options.addOption(newOption("i", "iterations", "count",
+        "Number of measurement iterations (default "
+        + DEFAULT_ITERATIONS + ")."));
+    options.addOption(newOption("t", "time", "millis",
+        "Length of each iteration, in milliseconds (default "
+        + DEFAULT_ITERATION_MILLIS + ")."));
+    options.addOption(newOption("f", "filter", "regex",
+        "Only run benchmarks whose names match the regex."));
+    options.addOption(newOption("o", "output", "file",
+        "File to write the results to."));
+    options.addOption(newOption("b", "baseline", "file",
+        "Results of an earlier run to compare against."));
+    options.addOption(newOption("r", "regression", "percent",
+        "Slowdown from the baseline, in percent, that is reported as a "
+        + "regression (default " + DEFAULT_REGRESSION_PERCENT + ")."));
+    return options;
+  }
+
+  private static Option newOption(String opt, String longOpt, String argName,
+      String description) {
+    Option option = new Option(opt, longOpt, true, description);
+    option.setArgName(argName);
+    return option;
+  }
+
+  @Override
+  protected String getUsageFooter() {
+    StringBuilder builder = new StringBuilder(NL);
+    builder.append(getName());
+    builder.append(" runs each benchmark for a number of warmup iterations, ");
+    builder.append("which are discarded, followed by a number of ");
+    builder.append("measurement iterations.  The results are written as ");
+    builder.append("JSON.  If a baseline file from an earlier run is ");
+    builder.append("given, benchmarks whose median has slowed down by ");
+    builder.append("more than the regression threshold, and by more than ");
+    builder.append("twice the noise of the two runs, are reported, and ");
+    builder.append("the exit status is non-zero.");
+    return builder.toString();
+  }
+
+  /** Returns all of the benchmarks. */
+  private static List<Benchmark> getBenchmarks() {
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    benchmarks.addAll(FeedBenchmarks.getBenchmarks());
+    benchmarks.addAll(SnapshotBenchmarks.getBenchmarks());
+    benchmarks.addAll(RecoveryBenchmarks.getBenchmarks());
+    return benchmarks;
+  }
+
+  @Override
+  public void run(CommandLine commandLine) throws Exception {
+    setLoggingLevels();
+    warmupIterations = Integer.parseInt(
+        commandLine.getOptionValue("warmup", "" + warmupIterations));
+    iterations = Integer.parseInt(
+        commandLine.getOptionValue("iterations", "" + iterations));
+    iterationMillis = Long.parseLong(
+        commandLine.getOptionValue("time", "" + iterationMillis));
+    regressionPercent = Double.parseDouble(
+        commandLine.getOptionValue("regression", "" + regressionPercent));
+    if (warmupIterations < 0 || iterations < 1 || iterationMillis < 1) {
+      printUsageAndExit(-1);
+    }
+    Pattern filter =
+        Pattern.compile(commandLine.getOptionValue("filter", ".*"));
+
+    Map<String, Baseline> baseline = null;
+    if (commandLine.hasOption("baseline")) {
+      baseline = readBaseline(new File(commandLine.getOptionValue("baseline")));
+    }
+
+    JSONArray results = new JSONArray();
+    for (Benchmark benchmark : getBenchmarks()) {
+      if (!filter.matcher(benchmark.getName()).find()) {
+        continue;
+      }
+      Result result = measure(benchmark);
+      JSONObject json = result.toJson();
+      StringBuilder line = new StringBuilder(String.format(
+          "%-36s %14.1f ops/s +- %5.1f%% %10.1f MB/s",
+          result.name, result.getMedian(), result.getNoisePercent(),
+          result.getBytesPerSecond() / (1024 * 1024)));
+      if (baseline != null && baseline.containsKey(result.name)) {
+        Baseline base = baseline.get(result.name);
+        double change =
+            100 * (result.getMedian() - base.median) / base.median;
+        double noise =
+            Math.max(result.getNoisePercent(), base.noisePercent);
+        json.put("baselineOpsPerSecond", base.median);
+        json.put("changePercent", change);
+        json.put("noisePercent", noise);
+        line.append(String.format(" %+7.1f%%", change));
+        if (change < -regressionPercent) {
+          if (change < -2 * noise) {
+            json.put("regression", true);
+            line.append(" REGRESSION");
+            regressionCount++;
+          } else {
+            line.append(" NOISY");
+          }
+        }
+      }
+      System.out.println(line);
+      results.put(json);
+    }
+
+    JSONObject json = new JSONObject();
+    json.put("timestamp", System.currentTimeMillis());
+    json.put("javaVersion", System.getProperty("java.version"));
+    json.put("javaVmName", System.getProperty("java.vm.name"));
+    json.put("osName", System.getProperty("os.name"));
+    json.put("osArch", System.getProperty("os.arch"));
+    json.put("availableProcessors",
+             Runtime.getRuntime().availableProcessors());
+    json.put("warmupIterations", warmupIterations);
+    json.put("iterations", iterations);
+    json.put("iterationMillis", iterationMillis);
+    json.put("benchmarks", results);
+    String output = json.toString(2);
+    if (commandLine.hasOption("output")) {
+      File file = new File(commandLine.getOptionValue("output"));
+      if (file.getParentFile() != null) {
+        file.getParentFile().mkdirs();
+      }
+      Files.write(output, file, Charsets.UTF_8);
+      System.out.println("Results written to " + file);
+    } else {
+      System.out.println(output);
+    }
+    if (regressionCount > 0) {
+      System.out.println(regressionCount + " benchmark(s) regressed by more "
+          + "than " + regressionPercent + "%.");
+    }
+  }
+
+  /**
+   * Runs the warmup iterations of a benchmark, discarding them, and
+   * then the measurement iterations.
+   */
+  private Result measure(Benchmark benchmark) throws Exception {
+    List<Sample> samples = new ArrayList<Sample>(iterations);
+    benchmark.setUp();
+    try {
+      for (int i = 0; i < warmupIterations; i++) {
+        runIteration(benchmark);
+      }
+      for (int i = 0; i < iterations; i++) {
+        samples.add(runIteration(benchmark));
+      }
+    } finally {
+      benchmark.tearDown();
+    }
+    return new Result(benchmark.getName(), samples);
+  }
+
+  /**
+   * Runs the benchmark repeatedly until the iteration time has elapsed.
+   */
+  private Sample runIteration(Benchmark benchmark) throws Exception {
+    long operations = 0;
+    long bytes = 0;
+    long start = System.nanoTime();
+    long deadline = start + iterationMillis * 1000000L;
+    long now;
+    do {
+      bytes += benchmark.run();
+      operations++;
+      now = System.nanoTime();
+    } while (now - deadline < 0);
+    sink += bytes;
+    return new Sample(operations, bytes, now - start);
+  }
+
+  /**
+   * Reads the median operations per second and the noise of each
+   * benchmark from the results of an earlier run.  Results written
+   * before the median was recorded are compared by their mean.
+   */
+  private static Map<String, Baseline> readBaseline(File file)
+      throws IOException, JSONException {
+    JSONArray benchmarks = new JSONObject(Files.toString(file, Charsets.UTF_8))
+        .getJSONArray("benchmarks");
+    Map<String, Baseline> baseline = new HashMap<String, Baseline>();
+    for (int i = 0; i < benchmarks.length(); i++) {
+      JSONObject benchmark = benchmarks.getJSONObject(i);
+      double mean = benchmark.getDouble("opsPerSecond");
+      baseline.put(benchmark.getString("name"), new Baseline(
+          benchmark.optDouble("opsPerSecondMedian", mean),
+          100 * benchmark.optDouble("opsPerSecondStdDev", 0) / mean));
+    }
+    return baseline;
+  }
+
+  /** Returns the number of benchmarks that regressed from the baseline. */
+  public int getRegressionCount() {
+    return regressionCount;
+  }
+
+  public static void main(String[] args) throws Exception {
+    BenchmarkRunner app = new BenchmarkRunner();
+    app.run(app.parseArgs(args));
+    System.exit((app.getRegressionCount() > 0) ? 1 : 0);
+  }
+}
@@ -0,0 +1,345 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.connector.common.CompressedFilterInputStream;
+import com.google.enterprise.connector.manager.Context;
+import com.google.enterprise.connector.pusher.FeedConnection;
+import com.google.enterprise.connector.pusher.FeedData;
+import com.google.enterprise.connector.pusher.XmlFeed;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.SpiConstants.FeedType;
+import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.spi.XmlUtils;
+import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
+import com.google.enterprise.connector.util.Base64FilterInputStream;
+import com.google.enterprise.connector.util.filter.AddPropertyFilter;
+import com.google.enterprise.connector.util.filter.CopyPropertyFilter;
+import com.google.enterprise.connector.util.filter.DeletePropertyFilter;
+import com.google.enterprise.connector.util.filter.DocumentFilterChain;
+import com.google.enterprise.connector.util.filter.DocumentFilterFactory;
+import com.google.enterprise.connector.util.filter.ModifyPropertyFilter;
+import com.google.enterprise.connector.util.filter.MovePropertyFilter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmarks for the code that builds and encodes feeds.
+ *
+ * @since 3.4
+ */
+public class FeedBenchmarks {
+  /** The size of the document content, in bytes. */
+  private static final int CONTENT_SIZE = 64 * 1024;
+
+  /** The number of distinct inputs cycled through by each benchmark. */
+  private static final int INPUT_COUNT = 100;
+
+  private FeedBenchmarks() {
+  }
+
+  /** Returns all of the feed benchmarks. */
+  public static List<Benchmark> getBenchmarks() {
+    return ImmutableList.<Benchmark>of(
+        new AddRecordBenchmark(),
+        new Base64Benchmark(),
+        new CompressedBenchmark(),
+        new XmlAppendAttrValueBenchmark(),
+        new FormatDateBenchmark(),
+        new ParseDateBenchmark(),
+        new FilterChainBenchmark());
+  }
+
+  /** Reads the stream to the end, returning the number of bytes read. */
+  private static long drain(InputStream in, byte[] buffer)
+      throws IOException {
+    long total = 0;
+    try {
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        total += count;
+      }
+    } finally {
+      in.close();
+    }
+    return total;
+  }
+
+  /** A {@link FeedConnection} that is never used to send feeds. */
+  private static class NullFeedConnection implements FeedConnection {
+    @Override
+    public String sendData(FeedData feedData) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isBacklogged() {
+      return false;
+    }
+
+    @Override
+    public String getContentEncodings() {
+      return "base64binary";
+    }
+
+    @Override
+    public boolean supportsInheritedAcls() {
+      return true;
+    }
+  }
+
+  /**
+   * Adds content feed records to an {@link XmlFeed}, starting a new
+   * feed whenever the current one fills up.
+   */
+  static class AddRecordBenchmark extends Benchmark {
+    private final List<Map<String, List<Value>>> metadata =
+        new ArrayList<Map<String, List<Value>>>();
+    private FileSizeLimitInfo fileSizeLimit;
+    private byte[] content;
+    private XmlFeed feed;
+    private int next;
+
+    AddRecordBenchmark() {
+      super("XmlFeed.addRecord");
+    }
+
+    @Override
+    public void setUp() throws IOException {
+      Context.getInstance().setContentUrlPrefix("http://localhost/content");
+      SyntheticDocuments generator = new SyntheticDocuments();
+      for (int i = 0; i < INPUT_COUNT; i++) {
+        metadata.add(generator.metadata("doc" + i, 10));
+      }
+      content = generator.content(CONTENT_SIZE);
+      fileSizeLimit = new FileSizeLimitInfo();
+      fileSizeLimit.setMaxDocumentSize(2 * CONTENT_SIZE);
+      fileSizeLimit.setMaxFeedSize(16 * 1024 * 1024);
+      fileSizeLimit.setMaxFeedMemory(16 * 1024 * 1024);
+      feed = newFeed();
+    }
+
+    private XmlFeed newFeed() throws IOException {
+      return new XmlFeed("benchmark", FeedType.CONTENT, fileSizeLimit, null,
+                         new NullFeedConnection());
+    }
+
+    @Override
+    public long run() throws Exception {
+      Document document = SyntheticDocuments.newDocument(
+          metadata.get(next++ % INPUT_COUNT), content);
+      feed.addRecord(document);
+      if (feed.isFull()) {
+        tearDown();
+        feed = newFeed();
+      }
+      return content.length;
+    }
+
+    @Override
+    public void tearDown() throws IOException {
+      feed.close();
+      feed.release();
+    }
+  }
+
+  /** Base64 encodes incompressible content. */
+  static class Base64Benchmark extends Benchmark {
+    private final byte[] buffer = new byte[8192];
+    private byte[] content;
+
+    Base64Benchmark() {
+      super("Base64FilterInputStream");
+    }
+
+    @Override
+    public void setUp() {
+      content = new SyntheticDocuments().randomBytes(CONTENT_SIZE);
+    }
+
+    @Override
+    public long run() throws IOException {
+      drain(new Base64FilterInputStream(new ByteArrayInputStream(content)),
+            buffer);
+      return content.length;
+    }
+  }
+
+  /** Compresses text content. */
+  static class CompressedBenchmark extends Benchmark {
+    private final byte[] buffer = new byte[8192];
+    private byte[] content;
+
+    CompressedBenchmark() {
+      super("CompressedFilterInputStream");
+    }
+
+    @Override
+    public void setUp() {
+      content = new SyntheticDocuments().content(CONTENT_SIZE);
+    }
+
+    @Override
+    public long run() throws IOException {
+      drain(new CompressedFilterInputStream(
+          new ByteArrayInputStream(content), buffer.length), buffer);
+      return content.length;
+    }
+  }
+
+  /** Escapes attribute values that include XML special characters. */
+  static class XmlAppendAttrValueBenchmark extends Benchmark {
+    private final StringBuilder builder = new StringBuilder();
+    private final List<String> values = new ArrayList<String>();
+    private int next;
+
+    XmlAppendAttrValueBenchmark() {
+      super("XmlUtils.xmlAppendAttrValue");
+    }
+
+    @Override
+    public void setUp() {
+      SyntheticDocuments generator = new SyntheticDocuments();
+      for (int i = 0; i < INPUT_COUNT; i++) {
+        values.add(generator.text(10));
+      }
+    }
+
+    @Override
+    public long run() throws IOException {
+      String value = values.get(next++ % INPUT_COUNT);
+      builder.setLength(0);
+      XmlUtils.xmlAppendAttrValue(value, builder);
+      return value.length();
+    }
+  }
+
+  /** Formats dates in each of the formats used in feeds. */
+  static class FormatDateBenchmark extends Benchmark {
+    private final List<Calendar> calendars = new ArrayList<Calendar>();
+    private int next;
+
+    FormatDateBenchmark() {
+      super("Value.formatDates");
+    }
+
+    @Override
+    public void setUp() {
+      SyntheticDocuments generator = new SyntheticDocuments();
+      for (int i = 0; i < INPUT_COUNT; i++) {
+        calendars.add(generator.calendar());
+      }
+    }
+
+    @Override
+    public long run() {
+      Calendar calendar = calendars.get(next++ % INPUT_COUNT);
+      return Value.calendarToFeedXml(calendar).length()
+          + Value.calendarToRfc822(calendar).length()
+          + Value.calendarToIso8601(calendar).length();
+    }
+  }
+
+  /** Parses ISO 8601 dates. */
+  static class ParseDateBenchmark extends Benchmark {
+    private final List<String> dates = new ArrayList<String>();
+    private int next;
+
+    ParseDateBenchmark() {
+      super("Value.iso8601ToCalendar");
+    }
+
+    @Override
+    public void setUp() {
+      SyntheticDocuments generator = new SyntheticDocuments();
+      for (int i = 0; i < INPUT_COUNT; i++) {
+        dates.add(Value.calendarToIso8601(generator.calendar()));
+      }
+    }
+
+    @Override
+    public long run() throws Exception {
+      String date = dates.get(next++ % INPUT_COUNT);
+      Value.iso8601ToCalendar(date);
+      return date.length();
+    }
+  }
+
+  /**
+   * Looks up every property of a document through a chain of
+   * the standard document filters.
+   */
+  static class FilterChainBenchmark extends Benchmark {
+    private final List<Map<String, List<Value>>> metadata =
+        new ArrayList<Map<String, List<Value>>>();
+    private DocumentFilterChain chain;
+    private int next;
+
+    FilterChainBenchmark() {
+      super("DocumentFilterChain.findProperty");
+    }
+
+    @Override
+    public void setUp() {
+      SyntheticDocuments generator = new SyntheticDocuments();
+      for (int i = 0; i < INPUT_COUNT; i++) {
+        metadata.add(generator.metadata("doc" + i, 20));
+      }
+
+      AddPropertyFilter add = new AddPropertyFilter();
+      add.setPropertyName("property0");
+      add.setPropertyValue("added");
+      CopyPropertyFilter copy = new CopyPropertyFilter();
+      copy.setPropertyNameMap(ImmutableMap.of("property1", "copied"));
+      MovePropertyFilter move = new MovePropertyFilter();
+      move.setPropertyNameMap(ImmutableMap.of("property2", "moved"));
+      DeletePropertyFilter delete = new DeletePropertyFilter();
+      delete.setPropertyName("property3");
+      ModifyPropertyFilter modify = new ModifyPropertyFilter();
+      modify.setPropertyName("property4");
+      modify.setPattern("[aeiou]");
+      modify.setReplacement("_");
+      chain = new DocumentFilterChain(ImmutableList.<DocumentFilterFactory>of(
+          add, copy, move, delete, modify));
+    }
+
+    @Override
+    public long run() throws Exception {
+      Document document = chain.newDocumentFilter(
+          SyntheticDocuments.newDocument(
+              metadata.get(next++ % INPUT_COUNT), null));
+      long length = 0;
+      for (String name : document.getPropertyNames()) {
+        Property property = document.findProperty(name);
+        if (property != null) {
+          Value value;
+          while ((value = property.nextValue()) != null) {
+            length += value.toString().length();
+          }
+        }
+      }
+      return length;
+    }
+  }
+}
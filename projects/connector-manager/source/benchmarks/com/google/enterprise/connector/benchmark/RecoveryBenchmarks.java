@@ -0,0 +1,189 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.util.diffing.Change;
+import com.google.enterprise.connector.util.diffing.ChangeSource;
+import com.google.enterprise.connector.util.diffing.CheckpointAndChangeQueue;
+import com.google.enterprise.connector.util.diffing.DiffingConnectorCheckpoint;
+import com.google.enterprise.connector.util.diffing.DocumentHandle;
+import com.google.enterprise.connector.util.diffing.DocumentHandleFactory;
+import com.google.enterprise.connector.util.diffing.MonitorCheckpoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks for the JSON written to the recovery files of a
+ * {@link CheckpointAndChangeQueue}.
+ *
+ * @since 3.4
+ */
+public class RecoveryBenchmarks {
+  /** The number of changes in the queue. */
+  private static final int CHANGE_COUNT = 500;
+
+  private RecoveryBenchmarks() {
+  }
+
+  /** Returns all of the recovery benchmarks. */
+  public static List<Benchmark> getBenchmarks() {
+    return ImmutableList.<Benchmark>of(
+        new ChangeBenchmark(),
+        new RecoveryBenchmark());
+  }
+
+  /** A {@link DocumentHandle} whose string form is its document ID. */
+  private static class SimpleHandle implements DocumentHandle {
+    private final String documentId;
+
+    SimpleHandle(String documentId) {
+      this.documentId = documentId;
+    }
+
+    @Override
+    public String getDocumentId() {
+      return documentId;
+    }
+
+    @Override
+    public Document getDocument() {
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return documentId;
+    }
+  }
+
+  private static class SimpleHandleFactory implements DocumentHandleFactory {
+    @Override
+    public DocumentHandle fromString(String stringForm) {
+      return new SimpleHandle(stringForm);
+    }
+  }
+
+  /** Returns changes with generated document IDs. */
+  private static List<Change> getChanges() {
+    SyntheticDocuments generator = new SyntheticDocuments();
+    List<Change> changes = new ArrayList<Change>();
+    for (int i = 0; i < CHANGE_COUNT; i++) {
+      changes.add(new Change(Change.FactoryType.CLIENT,
+          new SimpleHandle("/repository/"
+              + generator.text(4).replace(' ', '/') + "/" + i),
+          new MonitorCheckpoint("monitor" + (i % 4), i, 1000L * i, i)));
+    }
+    return changes;
+  }
+
+  /** Writes the string forms of the changes. */
+  static class ChangeBenchmark extends Benchmark {
+    private List<Change> changes;
+
+    ChangeBenchmark() {
+      super("Change.toString");
+    }
+
+    @Override
+    public void setUp() {
+      changes = getChanges();
+    }
+
+    @Override
+    public long run() {
+      long length = 0;
+      for (Change change : changes) {
+        length += change.toString().length();
+      }
+      return length;
+    }
+  }
+
+  /**
+   * Starts a queue from a recovery file, which reads the recovery file
+   * and writes a new one.
+   */
+  static class RecoveryBenchmark extends Benchmark {
+    private File persistDir;
+    private CheckpointAndChangeQueue queue;
+    private String checkpoint;
+
+    RecoveryBenchmark() {
+      super("CheckpointAndChangeQueue.start");
+    }
+
+    @Override
+    public void setUp() throws Exception {
+      persistDir = Files.createTempDir();
+      queue = new CheckpointAndChangeQueue(
+          new ChangeSource() {
+            @Override
+            public Change getNextChange() {
+              return null;
+            }
+          },
+          persistDir, new SimpleHandleFactory(), new SimpleHandleFactory());
+      queue.setMaximumQueueSize(CHANGE_COUNT);
+
+      // Write a recovery file in the original format, which the first
+      // run replaces with a journal.
+      DiffingConnectorCheckpoint last = DiffingConnectorCheckpoint.newFirst();
+      checkpoint = last.toString();
+      StringBuilder builder = new StringBuilder("{\"MON\":{},\"Q\":[");
+      String separator = "";
+      for (Change change : getChanges()) {
+        last = last.next();
+        builder.append(separator).append("{\"chg\":").append(change)
+            .append(",\"cp\":").append(last).append('}');
+        separator = ",";
+      }
+      builder.append("]}SENTINAL");
+      Files.write(builder.toString(), new File(persistDir, "recovery.1_1"),
+          Charsets.UTF_8);
+    }
+
+    @Override
+    public long run() throws Exception {
+      queue.start(checkpoint);
+      long length = 0;
+      File[] files = persistDir.listFiles();
+      if (files == null) {
+        throw new IOException("Failed to list " + persistDir);
+      }
+      for (File file : files) {
+        length += file.length();
+      }
+      return length;
+    }
+
+    @Override
+    public void tearDown() {
+      File[] files = persistDir.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          file.delete();
+        }
+      }
+      persistDir.delete();
+    }
+  }
+}
@@ -0,0 +1,196 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.connector.util.diffing.DocumentHandle;
+import com.google.enterprise.connector.util.diffing.DocumentSnapshot;
+import com.google.enterprise.connector.util.diffing.DocumentSnapshotFactory;
+import com.google.enterprise.connector.util.diffing.SnapshotReader;
+import com.google.enterprise.connector.util.diffing.SnapshotStore;
+import com.google.enterprise.connector.util.diffing.SnapshotWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks for writing and reading the snapshots kept by the
+ * diffing connectors.
+ *
+ * @since 3.4
+ */
+public class SnapshotBenchmarks {
+  /** The number of records in each snapshot. */
+  private static final int RECORD_COUNT = 1000;
+
+  private SnapshotBenchmarks() {
+  }
+
+  /** Returns all of the snapshot benchmarks. */
+  public static List<Benchmark> getBenchmarks() {
+    return ImmutableList.<Benchmark>of(
+        new WriterBenchmark(),
+        new ReaderBenchmark());
+  }
+
+  /**
+   * A {@link DocumentSnapshot} holding a document ID and a checksum,
+   * serialized as the two separated by a tab.
+   */
+  private static class SimpleSnapshot implements DocumentSnapshot {
+    private final String documentId;
+    private final String checksum;
+
+    SimpleSnapshot(String documentId, String checksum) {
+      this.documentId = documentId;
+      this.checksum = checksum;
+    }
+
+    @Override
+    public String getDocumentId() {
+      return documentId;
+    }
+
+    @Override
+    public DocumentHandle getUpdate(DocumentSnapshot onGsa) {
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return documentId + "\t" + checksum;
+    }
+  }
+
+  private static class SimpleSnapshotFactory
+      implements DocumentSnapshotFactory {
+    @Override
+    public DocumentSnapshot fromString(String stringForm) {
+      int tab = stringForm.lastIndexOf('\t');
+      if (tab < 0) {
+        throw new IllegalArgumentException(stringForm);
+      }
+      return new SimpleSnapshot(stringForm.substring(0, tab),
+                                stringForm.substring(tab + 1));
+    }
+  }
+
+  /** Base class that generates the records and manages the snapshot file. */
+  private abstract static class AbstractSnapshotBenchmark extends Benchmark {
+    protected final List<DocumentSnapshot> records =
+        new ArrayList<DocumentSnapshot>();
+    protected File file;
+
+    AbstractSnapshotBenchmark(String name) {
+      super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+      SyntheticDocuments generator = new SyntheticDocuments();
+      for (int i = 0; i < RECORD_COUNT; i++) {
+        records.add(new SimpleSnapshot(
+            "/repository/" + generator.text(4).replace(' ', '/') + "/" + i,
+            Long.toHexString(i * 0x9E3779B97F4A7C15L)));
+      }
+      file = File.createTempFile("snap.", ".txt");
+      file.deleteOnExit();
+    }
+
+    /**
+     * Writes all of the records to the snapshot file, syncing them
+     * using the default policy of the {@link SnapshotStore}.
+     */
+    protected void writeSnapshot() throws Exception {
+      FileOutputStream os = new FileOutputStream(file);
+      SnapshotWriter writer = new SnapshotWriter(
+          new BufferedWriter(new OutputStreamWriter(os, Charsets.UTF_8)),
+          os.getFD(), file.getAbsolutePath(),
+          SnapshotStore.DEFAULT_SYNC_RECORDS,
+          SnapshotStore.DEFAULT_SYNC_MILLIS);
+      try {
+        for (DocumentSnapshot record : records) {
+          writer.write(record);
+        }
+      } finally {
+        writer.close();
+      }
+    }
+
+    @Override
+    public void tearDown() {
+      file.delete();
+    }
+  }
+
+  /** Writes a complete snapshot. */
+  static class WriterBenchmark extends AbstractSnapshotBenchmark {
+    WriterBenchmark() {
+      super("SnapshotWriter.write");
+    }
+
+    @Override
+    public long run() throws Exception {
+      writeSnapshot();
+      return file.length();
+    }
+  }
+
+  /** Reads a complete snapshot. */
+  static class ReaderBenchmark extends AbstractSnapshotBenchmark {
+    private final DocumentSnapshotFactory factory =
+        new SimpleSnapshotFactory();
+
+    ReaderBenchmark() {
+      super("SnapshotReader.read");
+    }
+
+    @Override
+    public void setUp() throws Exception {
+      super.setUp();
+      writeSnapshot();
+    }
+
+    @Override
+    public long run() throws Exception {
+      SnapshotReader reader = new SnapshotReader(
+          new BufferedReader(new InputStreamReader(
+              new FileInputStream(file), Charsets.UTF_8)),
+          file.getAbsolutePath(), 1, factory);
+      try {
+        int count = 0;
+        while (reader.read() != null) {
+          count++;
+        }
+        if (count != RECORD_COUNT) {
+          throw new IOException("Read " + count + " records from "
+              + file + ", expected " + RECORD_COUNT);
+        }
+      } finally {
+        reader.close();
+      }
+      return file.length();
+    }
+  }
+}
@@ -0,0 +1,155 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.SimpleDocument;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.Value;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Generates synthetic documents and inputs for the benchmarks.  The
+ * inputs are derived from a fixed seed, so that every run of the
+ * benchmarks processes the same data.
+ *
+ * @since 3.4
+ */
+public class SyntheticDocuments {
+  private static final String WORDS[] = {
+      "connector", "manager", "traversal", "feed", "document", "acl",
+      "snapshot", "checkpoint", "repository", "schedule", "batch",
+      "<markup>", "\"quoted\"", "A&B", "caf\u00e9", "na\u00efve",
+      "\u65e5\u672c\u8a9e", "tab\there", "line\nbreak", "'single'" };
+
+  private final Random random;
+
+  /** Creates a generator using the default seed. */
+  public SyntheticDocuments() {
+    this(20140101L);
+  }
+
+  /**
+   * Creates a generator using the supplied seed.
+   *
+   * @param seed seed for the pseudo-random content
+   */
+  public SyntheticDocuments(long seed) {
+    this.random = new Random(seed);
+  }
+
+  /**
+   * Returns a string of {@code count} space separated words, including
+   * characters that must be escaped in XML.
+   */
+  public String text(int count) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        builder.append(' ');
+      }
+      builder.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Returns {@code size} bytes of compressible text content.
+   */
+  public byte[] content(int size) {
+    byte[] content = new byte[size];
+    byte[] text = text(Math.max(1, size / 5)).getBytes(Charsets.UTF_8);
+    for (int i = 0; i < size; i++) {
+      content[i] = text[i % text.length];
+    }
+    return content;
+  }
+
+  /**
+   * Returns {@code size} bytes of incompressible random content.
+   */
+  public byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * Returns a calendar within a few years of 2014, in a random time zone.
+   */
+  public Calendar calendar() {
+    String[] ids = TimeZone.getAvailableIDs();
+    TimeZone zone = TimeZone.getTimeZone(ids[random.nextInt(ids.length)]);
+    Calendar calendar = Calendar.getInstance(zone);
+    calendar.setTimeInMillis(1388534400000L
+        + (long) (random.nextDouble() * 3 * 365 * 24 * 60 * 60 * 1000L));
+    return calendar;
+  }
+
+  /**
+   * Returns the properties of a document, excluding its content.
+   *
+   * @param docid the document ID
+   * @param metadataCount the number of metadata properties to add
+   */
+  public Map<String, List<Value>> metadata(String docid, int metadataCount) {
+    Map<String, List<Value>> props = new HashMap<String, List<Value>>();
+    props.put(SpiConstants.PROPNAME_DOCID, values(docid));
+    props.put(SpiConstants.PROPNAME_MIMETYPE, values("text/plain"));
+    props.put(SpiConstants.PROPNAME_DISPLAYURL,
+        values("http://repository.example.com/docs/" + docid));
+    props.put(SpiConstants.PROPNAME_TITLE, values(text(6)));
+    props.put(SpiConstants.PROPNAME_LASTMODIFIED,
+        Collections.singletonList(Value.getDateValue(calendar())));
+    List<Value> groups = new ArrayList<Value>();
+    for (int i = 0; i < 3; i++) {
+      groups.add(Value.getPrincipalValue("group" + random.nextInt(100)));
+    }
+    props.put(SpiConstants.PROPNAME_ACLGROUPS, groups);
+    for (int i = 0; i < metadataCount; i++) {
+      props.put("property" + i, values(text(1 + random.nextInt(8))));
+    }
+    return props;
+  }
+
+  /**
+   * Returns a new {@link Document} with the supplied metadata and
+   * content.  Binary values can only be read once, so a new document
+   * must be created each time one is fed.
+   */
+  public static Document newDocument(Map<String, List<Value>> metadata,
+      byte[] content) {
+    Map<String, List<Value>> props =
+        new HashMap<String, List<Value>>(metadata);
+    if (content != null) {
+      props.put(SpiConstants.PROPNAME_CONTENT,
+          Collections.singletonList(Value.getBinaryValue(content)));
+    }
+    return new SimpleDocument(props);
+  }
+
+  private static List<Value> values(String value) {
+    return Collections.singletonList(Value.getStringValue(value));
+  }
+}
@@ -26,6 +26,10 @@ public class CompressedFilterInputStream extends FilterInputStream {
   private final Deflater deflater;
   private final byte[] inputBuff;
   private final byte[] oneByte = new byte[1];
+  private long deflateNanos;
+  private long bytesRead;
+  private long bytesWritten;
+  private boolean closed;
 
   /**
    * Given some InputStream, create an InputStream that compresses the
@@ -75,7 +79,9 @@ public class CompressedFilterInputStream extends FilterInputStream {
         }
       }
       // Write compressed data to the output.
+      long start = System.nanoTime();
       rtn = deflater.deflate(b, off, len);
+      deflateNanos += System.nanoTime() - start;
     } while ((rtn == 0) && !deflater.finished());
     return (rtn > 0) ? rtn : -1;
   }
@@ -100,9 +106,35 @@ public class CompressedFilterInputStream extends FilterInputStream {
     return bytesRead;
   }
 
+  /**
+   * Returns the number of uncompressed bytes read so far.
+   */
+  public long getBytesRead() {
+    return closed ? bytesRead : deflater.getBytesRead();
+  }
+
+  /**
+   * Returns the number of compressed bytes returned so far.
+   */
+  public long getBytesWritten() {
+    return closed ? bytesWritten : deflater.getBytesWritten();
+  }
+
+  /**
+   * Returns the time spent compressing so far, in nanoseconds.
+   */
+  public long getDeflateNanos() {
+    return deflateNanos;
+  }
+
   @Override
   public void close() throws IOException {
-    deflater.end();
+    if (!closed) {
+      bytesRead = deflater.getBytesRead();
+      bytesWritten = deflater.getBytesWritten();
+      closed = true;
+      deflater.end();
+    }
     super.close();
   }
 
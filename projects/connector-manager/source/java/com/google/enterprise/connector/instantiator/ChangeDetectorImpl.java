@@ -14,12 +14,15 @@
 
 package com.google.enterprise.connector.instantiator;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.persist.ConnectorStamps;
 import com.google.enterprise.connector.persist.PersistentStore;
 import com.google.enterprise.connector.persist.Stamp;
 import com.google.enterprise.connector.persist.StoreContext;
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
 
 import java.util.Iterator;
 import java.util.SortedSet;
@@ -29,14 +32,30 @@ import java.util.TreeSet;
  * Checks for changes in a persistent store. Intended to be run both
  * manually to handle local servlet changes, and periodically to check
  * for remote connector manager changes.
+ * <p>
+ * If the store supplies a {@link PersistentStore#getInventoryStamp
+ * stamp for the inventory}, the inventory is only read when that stamp
+ * changes, or when the resync interval has elapsed since it was last
+ * read in full.
  *
  * @see com.google.enterprise.connector.persist.PersistentStore
  * @see ChangeListener
  */
 // TODO: Change StoreContext to String and x.getConnectorName() to x.
 class ChangeDetectorImpl implements ChangeDetector {
+  /** The default time between full reads of the inventory, in seconds. */
+  static final long DEFAULT_RESYNC_INTERVAL = 60 * 60L;
+
   private final PersistentStore store;
   private final ChangeListener listener;
+  private final long resyncIntervalMillis;
+  private final Clock clock;
+
+  /** The inventory last read from the store, and its stamp. */
+  private ImmutableMap<StoreContext, ConnectorStamps> persistentInventory =
+      null;
+  private Stamp persistentInventoryStamp = null;
+  private long persistentInventoryTime;
 
   /** The stamps from the previous run. */
   private ImmutableMap<StoreContext, ConnectorStamps> inMemoryInventory =
@@ -53,8 +72,30 @@ class ChangeDetectorImpl implements ChangeDetector {
    * @param listener the change listener to notify of changes
    */
   ChangeDetectorImpl(PersistentStore store, ChangeListener listener) {
+    this(store, listener, DEFAULT_RESYNC_INTERVAL);
+  }
+
+  /**
+   * Constructs the detector.
+   *
+   * @param store the persistent store to look for changes in
+   * @param listener the change listener to notify of changes
+   * @param resyncInterval the maximum time, in seconds, between full
+   *        reads of the inventory; values {@code <= 0} imply that the
+   *        inventory is read in full every time
+   */
+  ChangeDetectorImpl(PersistentStore store, ChangeListener listener,
+      long resyncInterval) {
+    this(store, listener, resyncInterval, SystemClock.INSTANCE);
+  }
+
+  @VisibleForTesting
+  ChangeDetectorImpl(PersistentStore store, ChangeListener listener,
+      long resyncInterval, Clock clock) {
     this.store = store;
     this.listener = listener;
+    this.resyncIntervalMillis = resyncInterval * 1000L;
+    this.clock = clock;
   }
 
   @Override
@@ -62,7 +103,7 @@ class ChangeDetectorImpl implements ChangeDetector {
     NDC.push("Change");
     try {
       ImmutableMap<StoreContext, ConnectorStamps> persistentInventory =
-          store.getInventory();
+          getPersistentInventory();
       SortedSet<StoreContext> persistentInstances =
           new TreeSet<StoreContext>(persistentInventory.keySet());
 
@@ -80,6 +121,27 @@ class ChangeDetectorImpl implements ChangeDetector {
     }
   }
 
+  /**
+   * Gets the inventory of the persistent store.  The inventory is read
+   * from the store only if it may have changed since it was last read.
+   *
+   * @return the inventory of the persistent store
+   */
+  private ImmutableMap<StoreContext, ConnectorStamps> getPersistentInventory() {
+    // Get the stamp before the inventory, so that a change made while
+    // the inventory is read is found next time.
+    Stamp stamp = store.getInventoryStamp();
+    long now = clock.getTimeMillis();
+    if (stamp == null || persistentInventory == null
+        || compareStamps(persistentInventoryStamp, stamp) != 0
+        || now - persistentInventoryTime >= resyncIntervalMillis) {
+      persistentInventory = store.getInventory();
+      persistentInventoryStamp = stamp;
+      persistentInventoryTime = now;
+    }
+    return persistentInventory;
+  }
+
   /**
    * Gets the next element of an {@code Iterator} iterator, or
    * {@code null} if there are no more elements.
@@ -0,0 +1,654 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.instantiator;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.manager.Context;
+import com.google.enterprise.connector.manager.ContextService;
+import com.google.enterprise.connector.persist.PersistentStore;
+import com.google.enterprise.connector.persist.StoreContext;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A write-behind journal for connector checkpoints.  Each checkpoint is
+ * appended to a local, append-only log and forced to disk, with concurrent
+ * writers sharing a single fsync.  The checkpoints are then copied to the
+ * {@link PersistentStore} by a background thread.  If several checkpoints
+ * for the same connector are waiting, only the latest is stored.
+ * <p>
+ * When the journal is opened, any checkpoints in the log that never
+ * reached the {@code PersistentStore} are replayed to it.  Once all the
+ * checkpoints have been stored, the log is truncated.
+ * <p>
+ * Removals of checkpoints are journaled too, but they are written through
+ * to the {@code PersistentStore} before returning, since they trigger a
+ * retraversal of the repository.
+ * <p>
+ * If no journal file is configured, or the journal cannot be written,
+ * checkpoints are written directly to the {@code PersistentStore}.
+ * The journal is local to one Connector Manager, so it must not be used
+ * with a {@code PersistentStore} that is shared by several of them.
+ *
+ * @since 3.4
+ */
+public class CheckpointJournal implements ContextService {
+  private static final Logger LOGGER =
+      Logger.getLogger(CheckpointJournal.class.getName());
+
+  /** The default journal size that triggers truncation, in bytes. */
+  public static final long DEFAULT_COMPACT_BYTES = 1024 * 1024L;
+
+  /** How long to wait before retrying failed store writes. */
+  private static final long RETRY_DELAY_MILLIS = 5 * 1000L;
+
+  /** Records larger than this are assumed to be corrupt. */
+  private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+  /* Journal record types. */
+  private static final byte STORE = 1;
+  private static final byte REMOVE = 2;
+  private static final byte APPLIED = 3;
+
+  private final PersistentStore store;
+  private final String journalPath;
+  private final long compactBytes;
+
+  /** A journaled checkpoint, or a removal if state is null. */
+  private static class Entry {
+    final StoreContext context;
+    final long sequence;
+    final String state;
+
+    Entry(StoreContext context, long sequence, String state) {
+      this.context = context;
+      this.sequence = sequence;
+      this.state = state;
+    }
+  }
+
+  /** Guards the journal file and the pending checkpoints. */
+  private final Object appendLock = new Object();
+
+  /* The following are guarded by appendLock. */
+  private boolean opened = false;
+  private boolean failed = false;
+  private boolean closed = false;
+  private File file;
+  private FileOutputStream out;
+  private long lastSequence = 0L;
+  private boolean drainScheduled = false;
+  private final Map<StoreContext, Entry> pending =
+      new HashMap<StoreContext, Entry>();
+
+  /** Serializes fsyncs, so that concurrent writers share them. */
+  private final Object syncLock = new Object();
+  private volatile long syncedSequence = 0L;  // Written under syncLock.
+
+  /** Serializes writes to the PersistentStore. */
+  private final Object storeLock = new Object();
+
+  /** The lazily constructed executor that copies checkpoints to the store. */
+  private ScheduledExecutorService writer;  // Guarded by this.
+  private boolean isShutdown = false;  // Guarded by this.
+
+  private final Runnable drainTask = new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    };
+
+  /**
+   * Constructs a {@code CheckpointJournal}.
+   *
+   * @param store the {@link PersistentStore} that holds the checkpoints
+   * @param journalPath the journal file.  A relative path is resolved
+   *        against the Connector Manager's common directory.  If
+   *        {@code null} or empty, checkpoints are not journaled.
+   */
+  public CheckpointJournal(PersistentStore store, String journalPath) {
+    this(store, journalPath, DEFAULT_COMPACT_BYTES);
+  }
+
+  @VisibleForTesting
+  CheckpointJournal(PersistentStore store, String journalPath,
+      long compactBytes) {
+    this.store = store;
+    this.journalPath = journalPath;
+    this.compactBytes = compactBytes;
+  }
+
+  /** Returns {@code true} if checkpoints are being journaled. */
+  public boolean isEnabled() {
+    if (Strings.isNullOrEmpty(journalPath)) {
+      return false;
+    }
+    synchronized (appendLock) {
+      return open();
+    }
+  }
+
+  @Override
+  public void start() {
+    if (isEnabled()) {
+      // Replay any checkpoints that never reached the store.
+      flush();
+    }
+  }
+
+  @Override
+  public void stop(boolean force) {
+    if (!force) {
+      flush();
+    }
+    synchronized (this) {
+      isShutdown = true;
+      if (writer != null) {
+        if (force) {
+          writer.shutdownNow();
+        } else {
+          writer.shutdown();
+        }
+      }
+    }
+    synchronized (appendLock) {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Failed to close checkpoint journal", e);
+        }
+        out = null;
+      }
+      closed = true;
+    }
+  }
+
+  @Override
+  public synchronized boolean isRunning() {
+    return !isShutdown;
+  }
+
+  @Override
+  public String getName() {
+    return CheckpointJournal.class.getName();
+  }
+
+  /**
+   * Returns the connector's traversal state, including any checkpoint
+   * that has not yet been copied to the {@link PersistentStore}.
+   *
+   * @param context a {@link StoreContext}
+   * @return the checkpoint, or {@code null} if none is stored
+   */
+  public String getConnectorState(StoreContext context) {
+    if (!Strings.isNullOrEmpty(journalPath)) {
+      synchronized (appendLock) {
+        open();
+        Entry entry = pending.get(context);
+        if (entry != null) {
+          return entry.state;
+        }
+      }
+    }
+    return store.getConnectorState(context);
+  }
+
+  /**
+   * Journals the connector's traversal state, to be copied to the
+   * {@link PersistentStore} later.  When this returns, the checkpoint
+   * is on disk.
+   *
+   * @param context a {@link StoreContext}
+   * @param state the checkpoint, or {@code null} to remove it
+   */
+  public void storeConnectorState(StoreContext context, String state) {
+    if (state == null) {
+      removeConnectorState(context);
+      return;
+    }
+    Entry entry = journal(context, state);
+    if (entry == null) {
+      writeThrough(context, state);
+    } else {
+      scheduleDrain(0L);
+    }
+  }
+
+  /**
+   * Removes the connector's traversal state, discarding any checkpoint
+   * that has not yet been copied to the {@link PersistentStore}.
+   *
+   * @param context a {@link StoreContext}
+   */
+  public void removeConnectorState(StoreContext context) {
+    Entry entry = journal(context, null);
+    if (entry == null) {
+      writeThrough(context, null);
+    } else {
+      try {
+        apply(entry);
+      } catch (RuntimeException e) {
+        scheduleDrain(RETRY_DELAY_MILLIS);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Copies all of the pending checkpoints to the {@link PersistentStore}.
+   *
+   * @return {@code true} if all of the checkpoints were stored
+   */
+  @VisibleForTesting
+  boolean flush() {
+    boolean success = true;
+    List<Entry> entries;
+    synchronized (appendLock) {
+      entries = new ArrayList<Entry>(pending.values());
+    }
+    for (Entry entry : entries) {
+      try {
+        apply(entry);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Failed to store checkpoint for connector "
+            + entry.context.getConnectorName(), e);
+        success = false;
+      }
+    }
+    if (success) {
+      compact();
+    }
+    return success;
+  }
+
+  /** Returns the number of checkpoints waiting to be stored. */
+  @VisibleForTesting
+  int getPendingCount() {
+    synchronized (appendLock) {
+      return pending.size();
+    }
+  }
+
+  /** Runs in the background to copy the pending checkpoints to the store. */
+  private void drain() {
+    synchronized (appendLock) {
+      drainScheduled = false;
+    }
+    if (!flush()) {
+      scheduleDrain(RETRY_DELAY_MILLIS);
+    }
+  }
+
+  private void scheduleDrain(long delayMillis) {
+    synchronized (appendLock) {
+      if (drainScheduled) {
+        return;
+      }
+      drainScheduled = true;
+    }
+    try {
+      getWriter().schedule(drainTask, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // We are shutting down.  The journal will be replayed at startup.
+      synchronized (appendLock) {
+        drainScheduled = false;
+      }
+    }
+  }
+
+  private synchronized ScheduledExecutorService getWriter() {
+    if (isShutdown) {
+      throw new RejectedExecutionException(
+          "CheckpointJournal has been shut down.");
+    }
+    if (writer == null) {
+      writer = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("CheckpointJournal")
+          .build());
+    }
+    return writer;
+  }
+
+  /**
+   * Appends a checkpoint to the journal, makes it the pending checkpoint
+   * for the connector, and forces it to disk.
+   *
+   * @return the pending entry, or {@code null} if the journal is not
+   *         available
+   */
+  private Entry journal(StoreContext context, String state) {
+    if (Strings.isNullOrEmpty(journalPath)) {
+      return null;
+    }
+    Entry entry;
+    synchronized (appendLock) {
+      if (!open() || closed) {
+        return null;
+      }
+      try {
+        entry = new Entry(context, append(state == null ? REMOVE : STORE,
+            context, state, 0L), state);
+      } catch (IOException e) {
+        fail(e);
+        return null;
+      }
+      // Other threads must see this checkpoint, rather than the stored one,
+      // even before it is synced.  The store is not written until it is.
+      pending.put(context, entry);
+    }
+    try {
+      sync(entry.sequence);
+    } catch (IOException e) {
+      synchronized (appendLock) {
+        fail(e);
+      }
+      // The pending entry will not be stored until the journal is synced,
+      // so write it directly instead.
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Writes a checkpoint directly to the {@link PersistentStore}, superseding
+   * any pending checkpoint for the connector.
+   */
+  private void writeThrough(StoreContext context, String state) {
+    synchronized (storeLock) {
+      synchronized (appendLock) {
+        pending.remove(context);
+      }
+      if (state == null) {
+        store.removeConnectorState(context);
+      } else {
+        store.storeConnectorState(context, state);
+      }
+    }
+  }
+
+  /**
+   * Copies a pending checkpoint to the {@link PersistentStore}, unless
+   * it has been superseded, and records that in the journal.
+   */
+  private void apply(Entry entry) {
+    try {
+      sync(entry.sequence);
+    } catch (IOException e) {
+      synchronized (appendLock) {
+        fail(e);
+      }
+    }
+    synchronized (storeLock) {
+      synchronized (appendLock) {
+        if (pending.get(entry.context) != entry) {
+          return;  // Superseded by a later checkpoint.
+        }
+      }
+      if (entry.state == null) {
+        store.removeConnectorState(entry.context);
+      } else {
+        store.storeConnectorState(entry.context, entry.state);
+      }
+      synchronized (appendLock) {
+        if (pending.get(entry.context) == entry) {
+          pending.remove(entry.context);
+        }
+        if (out != null) {
+          try {
+            // There is no need to sync this.  If it is lost, the checkpoint
+            // is simply stored again.
+            append(APPLIED, entry.context, null, entry.sequence);
+          } catch (IOException e) {
+            fail(e);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Forces the journal to disk, if the record with the supplied sequence
+   * number is not already there.  Threads that arrive while a sync is in
+   * progress share the next one.
+   */
+  private void sync(long sequence) throws IOException {
+    synchronized (syncLock) {
+      if (syncedSequence >= sequence) {
+        return;
+      }
+      long target;
+      FileOutputStream os;
+      synchronized (appendLock) {
+        target = lastSequence;
+        os = out;
+      }
+      if (os == null) {
+        throw new IOException("Checkpoint journal is closed");
+      }
+      os.getChannel().force(false);
+      syncedSequence = target;
+    }
+  }
+
+  /** Truncates the journal if it is large and nothing is pending. */
+  private void compact() {
+    synchronized (appendLock) {
+      if (out == null || !pending.isEmpty()) {
+        return;
+      }
+      try {
+        if (out.getChannel().size() > compactBytes) {
+          LOGGER.fine("Truncating checkpoint journal " + file);
+          out.getChannel().truncate(0L);
+        }
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+  }
+
+  /** Stops journaling after an I/O error.  Must hold appendLock. */
+  private void fail(IOException e) {
+    LOGGER.log(Level.SEVERE, "Checkpoint journal " + file + " failed."
+        + " Writing checkpoints directly to the store.", e);
+    failed = true;
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException ignored) {
+      }
+      out = null;
+    }
+  }
+
+  /**
+   * Appends a record to the journal.  Must hold appendLock.
+   *
+   * @return the sequence number of the record
+   */
+  private long append(byte type, StoreContext context, String state,
+      long appliedSequence) throws IOException {
+    if (out == null) {
+      throw new IOException("Checkpoint journal is closed");
+    }
+    long sequence = lastSequence + 1;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream payload = new DataOutputStream(bytes);
+    payload.writeByte(type);
+    payload.writeLong(sequence);
+    payload.writeUTF(context.getConnectorName());
+    payload.writeUTF(context.getTypeName());
+    if (type == STORE) {
+      byte[] stateBytes = state.getBytes(Charsets.UTF_8);
+      payload.writeInt(stateBytes.length);
+      payload.write(stateBytes);
+    } else if (type == APPLIED) {
+      payload.writeLong(appliedSequence);
+    }
+    payload.flush();
+
+    byte[] record = bytes.toByteArray();
+    ByteArrayOutputStream framed = new ByteArrayOutputStream(record.length + 8);
+    DataOutputStream frame = new DataOutputStream(framed);
+    frame.writeInt(record.length);
+    frame.write(record);
+    frame.writeInt(checksum(record));
+    frame.flush();
+
+    // A single write, so that a crash leaves at most one torn record.
+    out.write(framed.toByteArray());
+    lastSequence = sequence;
+    return sequence;
+  }
+
+  private static int checksum(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Opens the journal, if it is not already open, recovering any
+   * checkpoints that were not stored.  Must hold appendLock.
+   *
+   * @return {@code true} if the journal is available
+   */
+  private boolean open() {
+    if (!opened) {
+      opened = true;
+      file = new File(journalPath);
+      if (!file.isAbsolute()) {
+        file = new File(Context.getInstance().getCommonDirPath(), journalPath);
+      }
+      try {
+        recover();
+        out = new FileOutputStream(file, true);
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+    return !failed;
+  }
+
+  /**
+   * Reads the journal, truncating any torn or corrupt tail, and queues
+   * the checkpoints that were not stored.  Must hold appendLock.
+   */
+  private void recover() throws IOException {
+    if (!file.exists()) {
+      File parent = file.getAbsoluteFile().getParentFile();
+      if (parent != null) {
+        parent.mkdirs();
+      }
+      return;
+    }
+
+    Map<StoreContext, Entry> latest = new HashMap<StoreContext, Entry>();
+    Map<StoreContext, Long> applied = new HashMap<StoreContext, Long>();
+    long goodLength = 0L;
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)));
+    try {
+      while (true) {
+        byte[] record;
+        try {
+          int length = in.readInt();
+          if (length <= 0 || length > MAX_RECORD_BYTES) {
+            break;
+          }
+          record = new byte[length];
+          in.readFully(record);
+          if (in.readInt() != checksum(record)) {
+            break;
+          }
+        } catch (EOFException e) {
+          break;
+        }
+        DataInputStream payload =
+            new DataInputStream(new ByteArrayInputStream(record));
+        byte type = payload.readByte();
+        long sequence = payload.readLong();
+        StoreContext context =
+            new StoreContext(payload.readUTF(), payload.readUTF());
+        if (type == STORE) {
+          byte[] stateBytes = new byte[payload.readInt()];
+          payload.readFully(stateBytes);
+          latest.put(context, new Entry(context, sequence,
+              new String(stateBytes, Charsets.UTF_8)));
+        } else if (type == REMOVE) {
+          latest.put(context, new Entry(context, sequence, null));
+        } else if (type == APPLIED) {
+          applied.put(context, payload.readLong());
+        } else {
+          break;
+        }
+        lastSequence = Math.max(lastSequence, sequence);
+        goodLength += record.length + 8;
+      }
+    } finally {
+      in.close();
+    }
+
+    if (goodLength < file.length()) {
+      LOGGER.warning("Discarding " + (file.length() - goodLength)
+          + " bytes of incomplete records from checkpoint journal " + file);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(goodLength);
+      } finally {
+        raf.close();
+      }
+    }
+    // Nothing can be waiting to sync while the journal is being opened.
+    syncedSequence = lastSequence;
+
+    for (Entry entry : latest.values()) {
+      Long appliedSequence = applied.get(entry.context);
+      if (appliedSequence == null || appliedSequence < entry.sequence) {
+        LOGGER.info("Recovering checkpoint for connector "
+            + entry.context.getConnectorName() + " from journal " + file);
+        pending.put(entry.context, entry);
+      }
+    }
+  }
+}
@@ -51,6 +51,7 @@ final class InstanceInfo {
       Logger.getLogger(InstanceInfo.class.getName());
 
   private static PersistentStore store;
+  private static CheckpointJournal journal;
 
   private final TypeInfo typeInfo;
   private final File connectorDir;
@@ -147,6 +148,17 @@ final class InstanceInfo {
     InstanceInfo.store = store;
   }
 
+  /**
+   * Sets the {@link CheckpointJournal} used to write traversal state.
+   * If {@code null}, traversal state is written directly to the
+   * {@link PersistentStore}.
+   *
+   * @since 3.4
+   */
+  public static void setCheckpointJournal(CheckpointJournal journal) {
+    InstanceInfo.journal = journal;
+  }
+
   /**
    * @return the connector
    */
@@ -379,7 +391,11 @@ final class InstanceInfo {
    * Remove this Connector Instance's persistent store state.
    */
   public void removeConnector() {
-    store.removeConnectorState(storeContext);
+    if (journal == null) {
+      store.removeConnectorState(storeContext);
+    } else {
+      journal.removeConnectorState(storeContext);
+    }
     store.removeConnectorSchedule(storeContext);
     store.removeConnectorConfiguration(storeContext);
   }
@@ -443,7 +459,9 @@ final class InstanceInfo {
    * @throws IllegalStateException if state store is disabled for this connector
    */
   public void setConnectorState(String connectorState) {
-    if (connectorState == null) {
+    if (journal != null) {
+      journal.storeConnectorState(storeContext, connectorState);
+    } else if (connectorState == null) {
       store.removeConnectorState(storeContext);
     } else {
       store.storeConnectorState(storeContext, connectorState);
@@ -457,6 +475,9 @@ final class InstanceInfo {
    * @throws IllegalStateException if state store is disabled for this connector
    */
   public String getConnectorState() {
+    if (journal != null) {
+      return journal.getConnectorState(storeContext);
+    }
     return store.getConnectorState(storeContext);
   }
 
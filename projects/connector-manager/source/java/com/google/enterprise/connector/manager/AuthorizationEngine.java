@@ -0,0 +1,555 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.manager;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.instantiator.ThreadPool;
+import com.google.enterprise.connector.logging.NDC;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
+import com.google.enterprise.connector.spi.AuthorizationResponse.Status;
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the authorization queries of a request against the connectors
+ * in parallel.  Each query is a list of docids to be authorized by one
+ * connector for one identity.  Queries that do not complete within the
+ * configured timeout are canceled, and their documents are answered
+ * with {@link Status#INDETERMINATE INDETERMINATE}, so that a slow
+ * repository cannot stall the whole request.
+ * <p>
+ * The {@code PERMIT} and {@code DENY} decisions returned by the
+ * connectors may be cached for a configurable time, keyed by the connector
+ * name, the identity, and the docid.  The cache is disabled by default,
+ * because a decision that changes in the repository is answered from
+ * the cache until it expires.  Documents omitted from a connector's
+ * response, which are denied, are cached as {@code DENY}.
+ * {@code INDETERMINATE} decisions are never cached.  Cached decisions are
+ * never returned after they expire.  The cache does not hold passwords,
+ * only their salted SHA-256 hashes.
+ */
+public class AuthorizationEngine implements ContextService {
+  private static final Logger LOGGER =
+      Logger.getLogger(AuthorizationEngine.class.getName());
+
+  /** The default number of authorization threads. */
+  public static final int DEFAULT_THREADS = 8;
+
+  /** The default timeout for authorization requests, in milliseconds. */
+  public static final long DEFAULT_TIMEOUT_MILLIS = 5000L;
+
+  /**
+   * The default maximum number of cached decisions, which disables
+   * the cache.
+   */
+  public static final int DEFAULT_CACHE_SIZE = 0;
+
+  /** The default lifetime of cached decisions, in seconds. */
+  public static final int DEFAULT_CACHE_TTL_SECONDS = 60;
+
+  /** Idle authorization threads are allowed to die after this many seconds. */
+  private static final long KEEP_ALIVE_SECONDS = 60L;
+
+  /** The maximum number of concurrent authorization threads. */
+  private final int threads;
+
+  /** The time allowed for each request to complete, in milliseconds. */
+  private final long timeoutMillis;
+
+  /** The cached decisions, or {@code null} if caching is disabled. */
+  private final Cache<DecisionKey, Status> cache;
+
+  /** The random salt for the password hashes in the cache keys. */
+  private final byte[] salt;
+
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final AtomicLong cacheMisses = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+
+  /** The lazily constructed executor that runs the queries. */
+  private ThreadPoolExecutor executor;
+
+  /** Flag indicating shutdown was called.  Don't accept more queries. */
+  private boolean isShutdown = false;
+
+  /**
+   * Creates an {@code AuthorizationEngine} with the default number of
+   * threads, timeout, and cache configuration.
+   */
+  public AuthorizationEngine() {
+    this(DEFAULT_THREADS, DEFAULT_TIMEOUT_MILLIS, DEFAULT_CACHE_SIZE,
+         DEFAULT_CACHE_TTL_SECONDS);
+  }
+
+  /**
+   * Creates an {@code AuthorizationEngine}.
+   *
+   * @param threads the maximum number of connector queries that may
+   *        run concurrently
+   * @param timeoutMillis the time allowed for each request, in milliseconds
+   * @param cacheSize the maximum number of cached decisions; if zero,
+   *        decisions are not cached
+   * @param cacheTtlSeconds the lifetime of cached decisions, in seconds;
+   *        if zero, decisions are not cached
+   */
+  public AuthorizationEngine(int threads, long timeoutMillis, int cacheSize,
+      int cacheTtlSeconds) {
+    this(threads, timeoutMillis, cacheSize,
+         TimeUnit.SECONDS.toMillis(cacheTtlSeconds), SystemClock.INSTANCE);
+  }
+
+  @VisibleForTesting
+  AuthorizationEngine(int threads, long timeoutMillis, int cacheSize,
+      long cacheTtlMillis, final Clock clock) {
+    Preconditions.checkArgument(threads > 0,
+        "threads must be positive: %s", threads);
+    Preconditions.checkArgument(timeoutMillis > 0,
+        "timeoutMillis must be positive: %s", timeoutMillis);
+    this.threads = threads;
+    this.timeoutMillis = timeoutMillis;
+    if (cacheSize > 0 && cacheTtlMillis > 0) {
+      this.cache = CacheBuilder.newBuilder()
+          .maximumSize(cacheSize)
+          .expireAfterWrite(cacheTtlMillis, TimeUnit.MILLISECONDS)
+          .ticker(new Ticker() {
+              @Override
+              public long read() {
+                return TimeUnit.MILLISECONDS.toNanos(clock.getTimeMillis());
+              }
+            })
+          .build();
+      this.salt = new byte[16];
+      new SecureRandom().nextBytes(salt);
+    } else {
+      this.cache = null;
+      this.salt = null;
+    }
+  }
+
+  /**
+   * A list of docids to be authorized by one connector for one identity.
+   */
+  public static class Query {
+    private final String connectorName;
+    private final AuthenticationIdentity identity;
+    private final List<String> docids;
+
+    /**
+     * Creates a {@code Query}.
+     *
+     * @param connectorName the name of the connector that authorizes
+     *        the documents
+     * @param identity the identity to authorize
+     * @param docids the docids of the documents to authorize
+     */
+    public Query(String connectorName, AuthenticationIdentity identity,
+        List<String> docids) {
+      this.connectorName = connectorName;
+      this.identity = identity;
+      this.docids = docids;
+    }
+
+    public String getConnectorName() {
+      return connectorName;
+    }
+
+    public AuthenticationIdentity getIdentity() {
+      return identity;
+    }
+
+    public List<String> getDocids() {
+      return docids;
+    }
+  }
+
+  /**
+   * Authorizes the documents in each of the queries, running the queries
+   * in parallel.  The queries are given the configured timeout, in total,
+   * to complete.
+   *
+   * @param manager the {@link Manager} that routes each query to its
+   *        connector
+   * @param queries the authorization queries
+   * @return a list with the responses for each query, in the same order
+   *         as {@code queries}; an element is {@code null} if the connector
+   *         did not return a response for the query.  The documents of a
+   *         query that timed out are {@code INDETERMINATE}.
+   */
+  public List<Collection<AuthorizationResponse>> authorizeDocids(
+      Manager manager, List<Query> queries) {
+    long deadline = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    List<List<AuthorizationResponse>> cachedResponses =
+        new ArrayList<List<AuthorizationResponse>>(queries.size());
+    List<List<String>> uncachedDocids =
+        new ArrayList<List<String>>(queries.size());
+    List<Future<Collection<AuthorizationResponse>>> futures =
+        new ArrayList<Future<Collection<AuthorizationResponse>>>(
+            queries.size());
+
+    // Look up the cached decisions, and start the queries for the rest.
+    String context = NDC.peek();
+    for (Query query : queries) {
+      List<AuthorizationResponse> cached =
+          new ArrayList<AuthorizationResponse>();
+      List<String> uncached = new ArrayList<String>();
+      byte[] passwordHash = hashPassword(query.getIdentity());
+      for (String docid : query.getDocids()) {
+        Status status = (cache == null) ? null : cache.getIfPresent(
+            new DecisionKey(query.getConnectorName(), query.getIdentity(),
+                            passwordHash, docid));
+        if (status == null) {
+          uncached.add(docid);
+        } else {
+          cached.add(new AuthorizationResponse(status, docid));
+        }
+      }
+      cacheHits.addAndGet(cached.size());
+      cacheMisses.addAndGet(uncached.size());
+      cachedResponses.add(cached);
+      uncachedDocids.add(uncached);
+      futures.add(uncached.isEmpty() ? null : submit(
+          new QueryTask(manager, query, uncached, context)));
+    }
+
+    // Gather the results, waiting no later than the deadline.
+    List<Collection<AuthorizationResponse>> results =
+        new ArrayList<Collection<AuthorizationResponse>>(queries.size());
+    for (int i = 0; i < queries.size(); i++) {
+      Query query = queries.get(i);
+      List<AuthorizationResponse> responses = cachedResponses.get(i);
+      Future<Collection<AuthorizationResponse>> future = futures.get(i);
+      if (future != null) {
+        Collection<AuthorizationResponse> answers = getAnswers(query, future,
+            uncachedDocids.get(i), deadline);
+        if (answers == null) {
+          // Treat a missing response as before: the connector has not
+          // answered for any of the documents.
+          responses = null;
+        } else {
+          responses.addAll(answers);
+        }
+      }
+      results.add(responses);
+    }
+    return results;
+  }
+
+  /**
+   * Waits until the deadline for the connector's answers to a query.
+   *
+   * @return the connector's answers, {@code INDETERMINATE} answers if the
+   *         query timed out, or {@code null} if the query failed
+   */
+  private Collection<AuthorizationResponse> getAnswers(Query query,
+      Future<Collection<AuthorizationResponse>> future, List<String> docids,
+      long deadline) {
+    try {
+      Collection<AuthorizationResponse> answers =
+          future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      if (answers != null) {
+        cacheDecisions(query, docids, answers);
+      }
+      return answers;
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      timeouts.incrementAndGet();
+      LOGGER.warning("Authorization timed out for connector "
+          + query.getConnectorName() + ": " + query.getIdentity()
+          + " after " + timeoutMillis + " ms.");
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOGGER.log(Level.WARNING, "Authorization failed for connector "
+          + query.getConnectorName() + ": " + query.getIdentity(),
+          e.getCause());
+      return null;
+    }
+    List<AuthorizationResponse> indeterminate =
+        new ArrayList<AuthorizationResponse>(docids.size());
+    for (String docid : docids) {
+      indeterminate.add(
+          new AuthorizationResponse(Status.INDETERMINATE, docid));
+    }
+    return indeterminate;
+  }
+
+  /**
+   * Caches the {@code PERMIT} and {@code DENY} decisions, and {@code DENY}
+   * for the documents that the connector did not answer.
+   */
+  private void cacheDecisions(Query query, List<String> docids,
+      Collection<AuthorizationResponse> answers) {
+    if (cache == null) {
+      return;
+    }
+    byte[] passwordHash = hashPassword(query.getIdentity());
+    Set<String> unanswered = new HashSet<String>(docids);
+    for (AuthorizationResponse answer : answers) {
+      if (unanswered.remove(answer.getDocid())
+          && answer.getStatus() != Status.INDETERMINATE) {
+        cache.put(new DecisionKey(query.getConnectorName(),
+            query.getIdentity(), passwordHash, answer.getDocid()),
+            answer.getStatus());
+      }
+    }
+    for (String docid : unanswered) {
+      cache.put(new DecisionKey(query.getConnectorName(), query.getIdentity(),
+          passwordHash, docid), Status.DENY);
+    }
+  }
+
+  /**
+   * Returns the salted SHA-256 hash of the identity's password, so that
+   * the cache keys do not hold the password itself.
+   *
+   * @return the hash, or {@code null} if the password is {@code null}
+   *         or caching is disabled
+   */
+  private byte[] hashPassword(AuthenticationIdentity identity) {
+    String password = identity.getPassword();
+    if (cache == null || password == null) {
+      return null;
+    }
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(salt);
+      return digest.digest(password.getBytes(Charsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256.
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Submits a query to the executor.  If the engine has been shut down,
+   * the query is run in the calling thread.
+   */
+  private Future<Collection<AuthorizationResponse>> submit(QueryTask task) {
+    try {
+      return getExecutor().submit(task);
+    } catch (RejectedExecutionException e) {
+      LOGGER.fine("AuthorizationEngine is shut down, "
+          + "running the query in the request thread.");
+      FutureTask<Collection<AuthorizationResponse>> future =
+          new FutureTask<Collection<AuthorizationResponse>>(task);
+      future.run();
+      return future;
+    }
+  }
+
+  /**
+   * Returns the executor, creating it if necessary.
+   *
+   * @throws RejectedExecutionException if the {@code AuthorizationEngine}
+   *         has been shut down
+   */
+  private synchronized ThreadPoolExecutor getExecutor() {
+    if (isShutdown) {
+      throw new RejectedExecutionException(
+          "AuthorizationEngine has been shut down.");
+    }
+    if (executor == null) {
+      executor = new ThreadPoolExecutor(threads, threads,
+          KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder().setNameFormat("Authorization-%d")
+              .setDaemon(true).build());
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
+  }
+
+  /**
+   * Runs one query through the {@link Manager}, in the logging context
+   * of the request.
+   */
+  private static class QueryTask
+      implements Callable<Collection<AuthorizationResponse>> {
+    private final Manager manager;
+    private final Query query;
+    private final List<String> docids;
+    private final String context;
+
+    QueryTask(Manager manager, Query query, List<String> docids,
+        String context) {
+      this.manager = manager;
+      this.query = query;
+      this.docids = docids;
+      this.context = context;
+    }
+
+    @Override
+    public Collection<AuthorizationResponse> call() {
+      int depth = NDC.getDepth();
+      NDC.push(context);
+      NDC.pushAppend(query.getIdentity().getUsername());
+      NDC.pushAppend(query.getConnectorName());
+      try {
+        return manager.authorizeDocids(query.getConnectorName(), docids,
+            query.getIdentity());
+      } finally {
+        while (NDC.getDepth() > depth) {
+          NDC.pop();
+        }
+      }
+    }
+  }
+
+  /** The cache key for a decision. */
+  private static class DecisionKey {
+    private final String connectorName;
+    private final String username;
+    private final String domain;
+    private final byte[] passwordHash;
+    private final String docid;
+
+    DecisionKey(String connectorName, AuthenticationIdentity identity,
+        byte[] passwordHash, String docid) {
+      this.connectorName = connectorName;
+      this.username = identity.getUsername();
+      this.domain = identity.getDomain();
+      this.passwordHash = passwordHash;
+      this.docid = docid;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof DecisionKey)) {
+        return false;
+      }
+      DecisionKey other = (DecisionKey) obj;
+      return Objects.equal(docid, other.docid)
+          && Objects.equal(connectorName, other.connectorName)
+          && Objects.equal(username, other.username)
+          && Objects.equal(domain, other.domain)
+          && Arrays.equals(passwordHash, other.passwordHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(connectorName, username, domain, docid)
+          * 31 + Arrays.hashCode(passwordHash);
+    }
+  }
+
+  /** Returns the number of decisions found in the cache. */
+  public long getCacheHits() {
+    return cacheHits.get();
+  }
+
+  /** Returns the number of decisions not found in the cache. */
+  public long getCacheMisses() {
+    return cacheMisses.get();
+  }
+
+  /** Returns the number of queries that timed out. */
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  /** Discards all the cached decisions. */
+  public void invalidateCache() {
+    if (cache != null) {
+      cache.invalidateAll();
+    }
+  }
+
+  @Override
+  public synchronized void start() {
+    // The executor is lazily constructed on the first query.  An engine
+    // that was stopped creates a new executor after a restart.
+    if (isShutdown) {
+      isShutdown = false;
+      executor = null;
+    }
+  }
+
+  @Override
+  public void stop(boolean force) {
+    ThreadPoolExecutor toStop;
+    synchronized (this) {
+      isShutdown = true;
+      toStop = executor;
+    }
+    if (toStop == null) {
+      return;
+    }
+    if (force) {
+      toStop.shutdownNow();
+    } else {
+      toStop.shutdown();
+    }
+    try {
+      if (!toStop.awaitTermination(ThreadPool.DEFAULT_SHUTDOWN_TIMEOUT_MILLIS,
+          TimeUnit.MILLISECONDS)) {
+        LOGGER.warning("Timed out waiting for authorization queries.");
+      }
+    } catch (InterruptedException e) {
+      LOGGER.log(Level.FINE, "Interrupted waiting for authorization queries.",
+          e);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public synchronized boolean isRunning() {
+    return !isShutdown;
+  }
+
+  @Override
+  public String getName() {
+    return AuthorizationEngine.class.getName();
+  }
+
+  @Override
+  public String toString() {
+    return "AuthorizationEngine: threads = " + threads + ", timeoutMillis = "
+        + timeoutMillis + ", cacheHits = " + cacheHits.get()
+        + ", cacheMisses = " + cacheMisses.get() + ", timeouts = "
+        + timeouts.get();
+  }
+}
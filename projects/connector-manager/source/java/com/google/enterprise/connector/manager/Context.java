@@ -206,6 +206,13 @@ public class Context {
       + " For example:\n"
       + "   feed.document.size.limit=31457280\n"
       + "\n"
+      + " The 'feed.memory.size' property sets the maximum number of bytes\n"
+      + " of each feed file held in memory while the feed is built and sent.\n"
+      + " The remainder of a larger feed file is spilled to a temporary file\n"
+      + " in the java.io.tmpdir directory.  The default value is 1MB.\n"
+      + " For example:\n"
+      + "   feed.memory.size=1048576\n"
+      + "\n"
       + " The 'feed.contenturl.prefix' property is used for contentUrl generation.\n"
       + " The prefix should include protocol, host and port, web app,\n"
       + " and servlet to point back at this Connector Manager instance.\n"
@@ -259,6 +266,28 @@ public class Context {
       + " How often to check for feed backlog (in seconds).\n"
       + "   feed.backlog.interval=120\n"
       + "\n"
+      + " The 'feed.connect.timeout' and 'feed.read.timeout' properties set\n"
+      + " the number of seconds to wait when opening a feed connection to the\n"
+      + " GSA, and when waiting for the GSA to respond to a feed.  A value of\n"
+      + " zero means wait forever.\n"
+      + "   feed.connect.timeout=60\n"
+      + "   feed.read.timeout=300\n"
+      + "\n"
+      + " The 'feed.retry.count' property sets the number of times a feed is\n"
+      + " retried if it fails with an I/O error or an 'Internal Error'\n"
+      + " response from the GSA.  Retries are made after an exponentially\n"
+      + " increasing delay.  Set this to 0 to disable retries.\n"
+      + "   feed.retry.count=3\n"
+      + "\n"
+      + " The 'feed.sender.*' properties control the pool of threads shared\n"
+      + " by all connector instances to send feeds to the GSA.  The\n"
+      + " 'feed.sender.threads' property sets the number of feeds that may\n"
+      + " be sent to the GSA concurrently.  If the number of feeds waiting\n"
+      + " to be sent exceeds 'feed.sender.backlog', traversals are paused\n"
+      + " until the outstanding feeds have been sent.\n"
+      + "   feed.sender.threads=4\n"
+      + "   feed.sender.backlog=10\n"
+      + "\n"
       + " The 'traversal.batch.size' property defines the optimal number\n"
       + " of items to return in each repository traversal batch.  The batch\n"
       + " size represents the size of the roll-back that occurs during a\n"
@@ -303,6 +332,43 @@ public class Context {
       + " detection interval is 15 minutes (900 seconds).\n"
       + " config.change.detect.interval=900\n"
       + "\n"
+      + " The 'config.change.resync.interval' property specifies the maximum\n"
+      + " time (in seconds) between full reads of the connector inventory when\n"
+      + " looking for configuration changes.  In between, the inventory is only\n"
+      + " read if the configuration store reports that something has changed.\n"
+      + " Values <= 0 imply that the inventory is always read in full.  The\n"
+      + " default configuration change resync interval is 1 hour (3600 seconds).\n"
+      + " config.change.resync.interval=3600\n"
+      + "\n"
+      + " The 'authorization.*' properties control how authorization\n"
+      + " requests from the GSA are run.  The queries for each connector\n"
+      + " are run concurrently on a pool of 'authorization.threads' threads.\n"
+      + " Connectors that do not answer within 'authorization.timeout'\n"
+      + " milliseconds return INDETERMINATE for their documents.  Up to\n"
+      + " 'authorization.cache.size' PERMIT and DENY decisions are cached for\n"
+      + " 'authorization.cache.ttl' seconds.  A cache size or time to live\n"
+      + " of 0 disables the cache.  The cache is disabled by default, because\n"
+      + " a cached decision is used until it expires, even if the document's\n"
+      + " ACL has changed in the meantime.  To enable the cache, set\n"
+      + " authorization.cache.size to a positive value, for example 10000.\n"
+      + "   authorization.threads=8\n"
+      + "   authorization.timeout=5000\n"
+      + "   authorization.cache.size=0\n"
+      + "   authorization.cache.ttl=60\n"
+      + "\n"
+      + " The 'checkpoint.journal.file' property specifies the file used to\n"
+      + " journal traversal checkpoints before they are copied, in the\n"
+      + " background, to the persistent store.  A relative path is resolved\n"
+      + " against the Connector Manager's WEB-INF directory.  An empty value,\n"
+      + " the default, writes checkpoints directly to the persistent store.\n"
+      + " The journal is local to this Connector Manager, so it must not be\n"
+      + " used with a persistent store that is shared with other Connector\n"
+      + " Managers, which could be overwritten with old checkpoints when the\n"
+      + " journal is replayed.  Checkpoints in the journal are copied to the\n"
+      + " persistent store when the Connector Manager stops, so stop it before\n"
+      + " migrating the persistent store.\n"
+      + "   checkpoint.journal.file=checkpoints.journal\n"
+      + "\n"
       + "The 'jdbc.datasource.*' properties specify JDBC configuration\n"
       + "required to access external databases.  By default, the\n"
       + "Connector Manager uses an embedded H2 database to store\n"
@@ -371,6 +437,7 @@ public class Context {
   private TraversalScheduler traversalScheduler = null;
   private TraversalContext traversalContext = null;
   private SpringInstantiator instantiator = null;
+  private AuthorizationEngine authorizationEngine = null;
 
   private String standaloneContextLocation;
   private String standaloneContextBaseDir;
@@ -762,6 +829,22 @@ public class Context {
     return instantiator;
   }
 
+  /**
+   * Gets the singleton {@link AuthorizationEngine}.  It is a
+   * {@link ContextService}, so it is started and stopped with the
+   * other services.
+   *
+   * @return the AuthorizationEngine
+   */
+  public synchronized AuthorizationEngine getAuthorizationEngine() {
+    if (authorizationEngine != null) {
+      return authorizationEngine;
+    }
+    authorizationEngine = (AuthorizationEngine)
+        getRequiredBean("AuthorizationEngine", AuthorizationEngine.class);
+    return authorizationEngine;
+  }
+
   /**
    * Gets the singleton TraversalContext.
    *
@@ -840,7 +923,8 @@ public class Context {
   public synchronized void shutdown(boolean force) {
     if (started) {
       LOGGER.info("Shutdown initiated...");
-      stopServices(force);
+      // Stop the traversals before the services they use, such as the
+      // FeedSender.
       if (null != traversalScheduler) {
         traversalScheduler.shutdown();
         traversalScheduler = null;
@@ -850,6 +934,7 @@ public class Context {
             ThreadPool.DEFAULT_SHUTDOWN_TIMEOUT_MILLIS);
         instantiator = null;
       }
+      stopServices(force);
       closeDatabases();
       started = false;
     }
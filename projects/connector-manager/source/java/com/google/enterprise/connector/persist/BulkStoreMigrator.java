@@ -0,0 +1,468 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.persist;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.instantiator.Configuration;
+import com.google.enterprise.connector.scheduler.Schedule;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies connectors from one persistent store to another using a pool
+ * of worker threads, and then verifies the copy.
+ * <p>
+ * The source inventory is read once, and the connectors to copy are
+ * divided into batches, which the workers copy concurrently.  As each
+ * batch is finished, the names of its connectors are appended to an
+ * optional progress file, so that an interrupted migration may be
+ * resumed without copying those connectors again.  Once every batch is
+ * copied, a verification pass compares a digest of each field in the
+ * source with the same field in the destination.
+ * <p>
+ * Existing fields in the destination store are not overwritten unless
+ * the migration is forced, as with {@link StoreMigrator}.
+ *
+ * @since 3.4
+ */
+public class BulkStoreMigrator {
+  private static final Logger LOGGER =
+      Logger.getLogger(BulkStoreMigrator.class.getName());
+
+  /** The default number of worker threads. */
+  public static final int DEFAULT_THREADS = 4;
+
+  /** The default number of connectors in a batch. */
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  private final PersistentStore sourceStore;
+  private final PersistentStore destStore;
+  private Collection<String> connectorNames = null;
+  private boolean force = false;
+  private int threads = DEFAULT_THREADS;
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private File progressFile = null;
+
+  private volatile boolean cancelled = false;
+  private final AtomicInteger migratedCount = new AtomicInteger();
+  private int resumedCount = 0;
+  private boolean progressTorn = false;
+
+  /* Guarded by this. */
+  private Writer progress;
+
+  /**
+   * Constructs a migrator.
+   *
+   * @param sourceStore source {@link PersistentStore}
+   * @param destStore destination {@link PersistentStore}
+   */
+  public BulkStoreMigrator(PersistentStore sourceStore,
+      PersistentStore destStore) {
+    Preconditions.checkNotNull(sourceStore);
+    Preconditions.checkNotNull(destStore);
+    this.sourceStore = sourceStore;
+    this.destStore = destStore;
+  }
+
+  /**
+   * Sets the names of the connectors to migrate.
+   *
+   * @param connectorNames a Collection of connector names, or {@code null}
+   *        to migrate all of the connectors
+   */
+  public void setConnectorNames(Collection<String> connectorNames) {
+    this.connectorNames = connectorNames;
+  }
+
+  /**
+   * Sets whether existing fields in the destination store are overwritten.
+   *
+   * @param force if {@code true} overwrite existing data in the
+   *        destination store
+   */
+  public void setForce(boolean force) {
+    this.force = force;
+  }
+
+  /**
+   * Sets the number of worker threads.
+   *
+   * @param threads a positive number of threads
+   */
+  public void setThreads(int threads) {
+    Preconditions.checkArgument(threads > 0,
+        "threads must be positive: %s", threads);
+    this.threads = threads;
+  }
+
+  /**
+   * Sets the number of connectors copied in each batch.  Progress is
+   * recorded after each batch.
+   *
+   * @param batchSize a positive number of connectors
+   */
+  public void setBatchSize(int batchSize) {
+    Preconditions.checkArgument(batchSize > 0,
+        "batchSize must be positive: %s", batchSize);
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Sets the file used to record the connectors that have been copied.
+   * If the file exists, the connectors listed in it are not copied again.
+   *
+   * @param progressFile a File, or {@code null} to not record progress
+   */
+  public void setProgressFile(File progressFile) {
+    this.progressFile = progressFile;
+  }
+
+  /**
+   * Stops the migration after the batches that are being copied are
+   * finished.  The migration may be resumed later using the same
+   * progress file.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /** Returns the number of connectors copied by {@link #migrate}. */
+  public int getMigratedCount() {
+    return migratedCount.get();
+  }
+
+  /**
+   * Returns the number of connectors that {@link #migrate} skipped,
+   * because the progress file said they had already been copied.
+   */
+  public int getResumedCount() {
+    return resumedCount;
+  }
+
+  /**
+   * Copies the connectors from the source store to the destination
+   * store, and then verifies the copy.
+   *
+   * @return a list of the fields that differ between the two stores;
+   *         empty if the migration was complete and correct
+   * @throws IOException if the progress file could not be read or written
+   * @throws InterruptedException if the migration was interrupted or
+   *         {@link #cancel cancelled}
+   * @throws ExecutionException if a batch failed
+   */
+  public List<String> migrate()
+      throws IOException, InterruptedException, ExecutionException {
+    cancelled = false;
+    List<StoreContext> contexts = getContexts();
+    Set<String> done = readProgress();
+    List<StoreContext> pending = new ArrayList<StoreContext>();
+    for (StoreContext context : contexts) {
+      if (!done.contains(context.getConnectorName())) {
+        pending.add(context);
+      }
+    }
+    resumedCount = contexts.size() - pending.size();
+    if (resumedCount > 0) {
+      LOGGER.info("Resuming migration: " + resumedCount
+          + " connectors were already migrated.");
+    }
+    LOGGER.info("Migrating " + pending.size() + " connectors from "
+        + sourceStore.getClass().getName() + " to "
+        + destStore.getClass().getName());
+
+    if (progressFile != null) {
+      progress = new OutputStreamWriter(
+          new FileOutputStream(progressFile, true), Charsets.UTF_8);
+      if (progressTorn) {
+        // End the torn line, so that it is not joined to the next name.
+        progress.write('\n');
+      }
+    }
+    try {
+      runBatches(pending, new BatchTask() {
+          @Override
+          public List<String> run(List<StoreContext> batch) throws IOException {
+            for (StoreContext context : batch) {
+              StoreMigrator.migrateConnector(
+                  sourceStore, destStore, context, force);
+            }
+            recordProgress(batch);
+            migratedCount.addAndGet(batch.size());
+            return Collections.emptyList();
+          }
+        });
+    } finally {
+      synchronized (this) {
+        if (progress != null) {
+          progress.close();
+          progress = null;
+        }
+      }
+    }
+    return verify(contexts);
+  }
+
+  /**
+   * Compares a digest of each field of the connectors in the source
+   * store with the same field in the destination store.
+   *
+   * @return a list of the fields that differ between the two stores;
+   *         empty if they are the same
+   * @throws InterruptedException if the verification was interrupted
+   *         or {@link #cancel cancelled}
+   * @throws ExecutionException if a batch failed
+   */
+  public List<String> verify()
+      throws InterruptedException, ExecutionException {
+    cancelled = false;
+    return verify(getContexts());
+  }
+
+  private List<String> verify(List<StoreContext> contexts)
+      throws InterruptedException, ExecutionException {
+    List<String> mismatches = runBatches(contexts, new BatchTask() {
+        @Override
+        public List<String> run(List<StoreContext> batch) {
+          List<String> mismatches = new ArrayList<String>();
+          for (StoreContext context : batch) {
+            verify(context, mismatches);
+          }
+          return mismatches;
+        }
+      });
+    if (mismatches.isEmpty()) {
+      LOGGER.info("Verified " + contexts.size() + " connectors.");
+    } else {
+      LOGGER.warning("Verification found " + mismatches.size()
+          + " differences: " + mismatches);
+    }
+    return mismatches;
+  }
+
+  /** Returns the connectors in the source store to migrate, in order. */
+  private List<StoreContext> getContexts() {
+    List<StoreContext> contexts = new ArrayList<StoreContext>();
+    for (StoreContext context : sourceStore.getInventory().keySet()) {
+      if (connectorNames == null
+          || connectorNames.contains(context.getConnectorName())) {
+        contexts.add(context);
+      }
+    }
+    Collections.sort(contexts);
+    return contexts;
+  }
+
+  /** A unit of work performed on a batch of connectors. */
+  private interface BatchTask {
+    List<String> run(List<StoreContext> batch) throws IOException;
+  }
+
+  /**
+   * Runs a task on each batch of the connectors, using the worker threads.
+   *
+   * @return the results of all the batches
+   * @throws InterruptedException if the task was interrupted or
+   *         {@link #cancel cancelled}
+   * @throws ExecutionException if the task failed on a batch
+   */
+  private List<String> runBatches(List<StoreContext> contexts,
+      final BatchTask task) throws InterruptedException, ExecutionException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat("BulkStoreMigrator-%d")
+        .build());
+    try {
+      List<Future<List<String>>> futures =
+          new ArrayList<Future<List<String>>>();
+      for (int i = 0; i < contexts.size(); i += batchSize) {
+        final List<StoreContext> batch = ImmutableList.copyOf(
+            contexts.subList(i, Math.min(i + batchSize, contexts.size())));
+        futures.add(executor.submit(new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws IOException {
+              if (cancelled || Thread.currentThread().isInterrupted()) {
+                return null;
+              }
+              return task.run(batch);
+            }
+          }));
+      }
+
+      List<String> results = new ArrayList<String>();
+      ExecutionException failure = null;
+      boolean incomplete = false;
+      for (Future<List<String>> future : futures) {
+        try {
+          List<String> result = future.get();
+          if (result == null) {
+            incomplete = true;
+          } else {
+            results.addAll(result);
+          }
+        } catch (ExecutionException e) {
+          LOGGER.log(Level.WARNING, "Migration batch failed", e.getCause());
+          if (failure == null) {
+            failure = e;
+          }
+          // Let the other batches finish, but start no more.
+          cancelled = true;
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      if (incomplete) {
+        throw new InterruptedException("Migration was cancelled");
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Compares the digests of the fields of one connector. */
+  private void verify(StoreContext context, List<String> mismatches) {
+    compare(context, "configuration",
+        digest(sourceStore.getConnectorConfiguration(context)),
+        digest(destStore.getConnectorConfiguration(context)), mismatches);
+    compare(context, "traversal schedule",
+        digest(sourceStore.getConnectorSchedule(context)),
+        digest(destStore.getConnectorSchedule(context)), mismatches);
+    compare(context, "traversal state",
+        digest(sourceStore.getConnectorState(context)),
+        digest(destStore.getConnectorState(context)), mismatches);
+  }
+
+  private static void compare(StoreContext context, String objectType,
+      byte[] sourceDigest, byte[] destDigest, List<String> mismatches) {
+    if (!Arrays.equals(sourceDigest, destDigest)) {
+      mismatches.add(context.getConnectorName() + " " + objectType);
+    }
+  }
+
+  /** Returns a digest of a configuration, or {@code null}. */
+  private static byte[] digest(Configuration config) {
+    if (config == null) {
+      return null;
+    }
+    StringBuilder builder = new StringBuilder();
+    builder.append(config.getTypeName()).append('\n');
+    if (config.getMap() != null) {
+      // Sort the properties, so that their order does not matter.
+      for (Map.Entry<String, String> entry
+               : new TreeMap<String, String>(config.getMap()).entrySet()) {
+        builder.append(entry.getKey()).append('=').append(entry.getValue())
+            .append('\n');
+      }
+    }
+    builder.append(config.getXml());
+    return digest(builder.toString());
+  }
+
+  /** Returns a digest of a schedule, or {@code null}. */
+  private static byte[] digest(Schedule schedule) {
+    return (schedule == null) ? null : digest(schedule.toString());
+  }
+
+  /** Returns a digest of a string, or {@code null}. */
+  private static byte[] digest(String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      return MessageDigest.getInstance("SHA-1")
+          .digest(value.getBytes(Charsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-1.
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Reads the names of the connectors that have already been copied.
+   * A last line without a newline was torn by a crash, and is ignored.
+   */
+  private Set<String> readProgress() throws IOException {
+    progressTorn = false;
+    Set<String> done = new HashSet<String>();
+    if (progressFile != null && progressFile.exists()) {
+      Reader reader = new InputStreamReader(
+          new FileInputStream(progressFile), Charsets.UTF_8);
+      String contents;
+      try {
+        contents = CharStreams.toString(reader);
+      } finally {
+        reader.close();
+      }
+      int start = 0;
+      int end;
+      while ((end = contents.indexOf('\n', start)) >= 0) {
+        if (end > start) {
+          done.add(contents.substring(start, end));
+        }
+        start = end + 1;
+      }
+      progressTorn = (start < contents.length());
+    }
+    return done;
+  }
+
+  /**
+   * Records that the connectors in a batch have been copied.
+   */
+  private synchronized void recordProgress(List<StoreContext> batch)
+      throws IOException {
+    if (progress != null) {
+      StringBuilder builder = new StringBuilder();
+      for (StoreContext context : batch) {
+        builder.append(context.getConnectorName()).append('\n');
+      }
+      progress.write(builder.toString());
+      progress.flush();
+    }
+  }
+}
@@ -78,6 +78,16 @@ public class FileStore implements PersistentStore {
     return mapBuilder.build();
   }
 
+  /**
+   * Returns {@code null}, because there is no cheaper way to detect
+   * changes to the store files than to look at all of them, as
+   * {@link #getInventory} does.
+   */
+  @Override
+  public Stamp getInventoryStamp() {
+    return null;
+  }
+
   // Find the subdirectories.
   static FileFilter CONNECTOR_TYPE_FILTER = new FileFilter() {
     public boolean accept(File file) {
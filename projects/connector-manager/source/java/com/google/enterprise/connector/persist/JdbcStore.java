@@ -24,13 +24,17 @@ import com.google.enterprise.connector.scheduler.Schedule;
 import com.google.enterprise.connector.spi.DatabaseResourceBundle;
 import com.google.enterprise.connector.util.database.DatabaseResourceBundleManager;
 import com.google.enterprise.connector.util.database.JdbcDatabase;
+import com.google.enterprise.connector.util.database.PreparedStatementCache;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.text.MessageFormat;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Level;
@@ -63,11 +67,28 @@ public class JdbcStore implements PersistentStore {
 
   private JdbcDatabase database = null;
 
+  /* PreparedStatements for each pooled Connection. */
+  private PreparedStatementCache statementCache = null;
+
+  /* The number of inventory rows to fetch from the database at once. */
+  private static final int INVENTORY_FETCH_SIZE = 1000;
+
+  /* The most recently read inventory. */
+  private volatile Inventory inventory = null;
+
+  /* The connector type names, by connector name. Guarded by inventoryLock. */
+  private Map<String, ConnectorTypeName> typeNames =
+      new HashMap<String, ConnectorTypeName>();
+  private final Object inventoryLock = new Object();
+
   /* Cached SQL Resources */
   private String inventoryStampsQuery;
   private String inventoryTypesQuery;
+  private String inventoryStampQuery;
   private String getValueQuery;
-  private String setValueQuery;
+  private String getValuesQuery;
+  private String updateValueQuery;
+  private String insertValueQuery;
   private String connectorNameColumn;
   private String modifyStampColumn;
   private String propertyNameColumn;
@@ -80,6 +101,8 @@ public class JdbcStore implements PersistentStore {
     if (database == null) {
       throw new IllegalStateException("Must set JdbcDatabase");
     }
+    statementCache =
+        new PreparedStatementCache(database.getConnectionPool());
 
     // Locate our SQL DatabaseResourceBundle.
     DatabaseResourceBundleManager mgr = new DatabaseResourceBundleManager();
@@ -101,11 +124,13 @@ public class JdbcStore implements PersistentStore {
     }
 
     // Cache some SQL resources.
-    // TODO: These queries should really be PreparedStatements.
     inventoryStampsQuery = getResource("getinventory.stamps.query");
     inventoryTypesQuery = getResource("getinventory.types.query");
+    inventoryStampQuery = getResource("getinventory.stamp.query");
     getValueQuery = getResource("getvalue.query");
-    setValueQuery = getResource("setvalue.query");
+    getValuesQuery = getResource("getvalues.query");
+    updateValueQuery = getResource("updatevalue.query");
+    insertValueQuery = getResource("insertvalue.query");
 
     connectorNameColumn = getResource("column.connector_name");
     modifyStampColumn = getResource("column.modify_stamp");
@@ -128,6 +153,11 @@ public class JdbcStore implements PersistentStore {
     return database;
   }
 
+  @VisibleForTesting
+  PreparedStatementCache getStatementCache() {
+    return statementCache;
+  }
+
   /* Sets the ClassLoader that will be used to locate SQL Resources. */
   @VisibleForTesting
   void setResourceClassLoader(ClassLoader classLoader) {
@@ -157,91 +187,250 @@ public class JdbcStore implements PersistentStore {
   }
 
   /**
-   * Gets the version stamps of all persistent objects.  Reads the entire
-   * connector instance table and extracts the MODIFY_STAMPS for all peristed
-   * data.
+   * Gets the version stamps of all persistent objects.  Reads the
+   * MODIFY_STAMPS for all persisted data, but not the data itself.
+   * <p>
+   * The inventory is cached, together with the {@link #getInventoryStamp
+   * inventory stamp} at the time it was read.  If the inventory stamp has
+   * not changed, the cached inventory is returned, so that callers share
+   * it.  Otherwise a single query reads the stamps, and the connector
+   * types are read again only if they might have changed.
    *
    * @return an immutable map containing the version stamps; may be
    * empty but not {@code null}
    */
   @Override
   public ImmutableMap<StoreContext, ConnectorStamps> getInventory() {
-    ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder =
-        new ImmutableMap.Builder<StoreContext, ConnectorStamps>();
+    Stamp stamp = getInventoryStamp();
+    Inventory cached = inventory;
+    if (isCurrent(cached, stamp)) {
+      return cached.snapshot;
+    }
+    synchronized (inventoryLock) {
+      // Another thread may have read the inventory while we waited.
+      cached = inventory;
+      if (isCurrent(cached, stamp)) {
+        return cached.snapshot;
+      }
+      try {
+        init();
+        ImmutableMap<StoreContext, ConnectorStamps> snapshot = readInventory();
+        if (stamp != null) {
+          inventory = new Inventory(stamp, snapshot);
+        }
+        return snapshot;
+      } catch (SQLException e) {
+        LOGGER.log(Level.WARNING, "Failed to retrieve Connector Inventory", e);
+        return ImmutableMap.of();
+      }
+    }
+  }
+
+  /** Returns {@code true} if the cached inventory is at the given stamp. */
+  private static boolean isCurrent(Inventory cached, Stamp stamp) {
+    return cached != null && stamp != null
+        && cached.stamp.compareTo(stamp) == 0;
+  }
+
+  /** Reads the inventory from the database.  Guarded by inventoryLock. */
+  private ImmutableMap<StoreContext, ConnectorStamps> readInventory()
+      throws SQLException {
+    Connection connection = database.getConnectionPool().getConnection();
     try {
-      init();
-      Connection connection = database.getConnectionPool().getConnection();
+      // Collect the Stamps for the various interesting properties.
+      Map<String, Map<String, JdbcStamp>> stampAlbum =
+          new LinkedHashMap<String, Map<String, JdbcStamp>>();
+      PreparedStatement statement =
+          statementCache.prepareStatement(connection, inventoryStampsQuery);
+      statement.setFetchSize(INVENTORY_FETCH_SIZE);
+      ResultSet resultSet = statement.executeQuery();
       try {
-        // TODO: We should consider using a PreparedStatement - however this
-        // is non-trivial when using connection pools.  Try using
-        // MapMaker.makeComputingMap() to map connections to PreparedStatements.
-        Map<String, Map<String, JdbcStamp>> stampAlbum =
-            new HashMap<String, Map<String, JdbcStamp>>();
-
-        // Collect the Stamps for the various interesting properties.
-        Statement statement = connection.createStatement(
-            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-        try {
-          ResultSet resultSet = statement.executeQuery(inventoryStampsQuery);
-          while (resultSet.next()) {
-            String connectorName = resultSet.getString(connectorNameColumn);
-            Map<String, JdbcStamp> stamps = stampAlbum.get(connectorName);
-            if (stamps == null) {
-              stamps = new HashMap<String, JdbcStamp>();
-              stampAlbum.put(connectorName, stamps);
-            }
-            stamps.put(resultSet.getString(propertyNameColumn),
-                       new JdbcStamp(resultSet.getLong(modifyStampColumn)));
+        while (resultSet.next()) {
+          long modifyStamp = resultSet.getLong(1);
+          String connectorName = resultSet.getString(2);
+          Map<String, JdbcStamp> stamps = stampAlbum.get(connectorName);
+          if (stamps == null) {
+            stamps = new HashMap<String, JdbcStamp>();
+            stampAlbum.put(connectorName, stamps);
+          }
+          stamps.put(resultSet.getString(3), new JdbcStamp(modifyStamp));
+        }
+      } finally {
+        resultSet.close();
+      }
+
+      // Read the connector types again only if a type has been added or
+      // changed.  (Connectors with no Type have been deleted.)
+      boolean typesChanged = false;
+      for (Map.Entry<String, Map<String, JdbcStamp>> entry
+               : stampAlbum.entrySet()) {
+        JdbcStamp typeStamp = entry.getValue().get(TYPE);
+        if (typeStamp != null) {
+          ConnectorTypeName type = typeNames.get(entry.getKey());
+          if (type == null || type.version != typeStamp.version) {
+            typesChanged = true;
+            break;
           }
-        } finally {
-          statement.close();
         }
+      }
+      if (typesChanged) {
+        readTypeNames(connection, stampAlbum);
+      }
+
+      // Construct a StoreContext for each connector+type, and build an
+      // inventory of that connector's stamps.
+      ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder =
+          new ImmutableMap.Builder<StoreContext, ConnectorStamps>();
+      for (Map.Entry<String, Map<String, JdbcStamp>> entry
+               : stampAlbum.entrySet()) {
+        String connectorName = entry.getKey();
+        Map<String, JdbcStamp> stamps = entry.getValue();
+        ConnectorTypeName type = typeNames.get(connectorName);
+        if (stamps.get(TYPE) == null || type == null) {
+          continue;
+        }
+        StoreContext storeContext = new StoreContext(connectorName, type.name);
+        JdbcStamp mapStamp = stamps.get(MAP);
+        JdbcStamp xmlStamp = stamps.get(XML);
+        JdbcStamp configStamp = new JdbcStamp(
+            ((mapStamp == null) ? 0L : mapStamp.version) +
+            ((xmlStamp == null) ? 0L : xmlStamp.version));
+        ConnectorStamps connectorStamps = new ConnectorStamps(
+            stamps.get(STATE), configStamp, stamps.get(SCHEDULE));
+        mapBuilder.put(storeContext, connectorStamps);
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("Found connector: name = " + connectorName
+                      + "  type = " + storeContext.getTypeName()
+                      + "  stamps = " + connectorStamps);
+        }
+      }
+      return mapBuilder.build();
+    } catch (SQLException e) {
+      statementCache.invalidate(connection);
+      throw e;
+    } finally {
+      database.getConnectionPool().releaseConnection(connection);
+    }
+  }
 
-        // Find all connectors with non-null Type, construct a StoreContext
-        // for the connector+type, and build an inventory of that connector's
-        // stamps from the previous query.
-        // (Connectors with no Type have been deleted.)
-        statement = connection.createStatement(
-            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+  /**
+   * Reads the type names of all the connectors, and remembers them with
+   * the version of their TYPE property.  Guarded by inventoryLock.
+   */
+  private void readTypeNames(Connection connection,
+      Map<String, Map<String, JdbcStamp>> stampAlbum) throws SQLException {
+    Map<String, ConnectorTypeName> names =
+        new HashMap<String, ConnectorTypeName>();
+    PreparedStatement statement =
+        statementCache.prepareStatement(connection, inventoryTypesQuery);
+    statement.setString(1, TYPE);
+    statement.setFetchSize(INVENTORY_FETCH_SIZE);
+    ResultSet resultSet = statement.executeQuery();
+    try {
+      while (resultSet.next()) {
+        String connectorName = resultSet.getString(1);
+        Map<String, JdbcStamp> stamps = stampAlbum.get(connectorName);
+        JdbcStamp typeStamp = (stamps == null) ? null : stamps.get(TYPE);
+        if (typeStamp != null) {
+          names.put(connectorName, new ConnectorTypeName(
+              resultSet.getString(2), typeStamp.version));
+        }
+      }
+    } finally {
+      resultSet.close();
+    }
+    typeNames = names;
+  }
+
+  /** A connector type name, and the version of its TYPE property. */
+  private static class ConnectorTypeName {
+    final String name;
+    final long version;
+
+    ConnectorTypeName(String name, long version) {
+      this.name = name;
+      this.version = version;
+    }
+  }
+
+  /** An inventory snapshot, and the inventory stamp when it was read. */
+  private static class Inventory {
+    final Stamp stamp;
+    final ImmutableMap<StoreContext, ConnectorStamps> snapshot;
+
+    Inventory(Stamp stamp,
+        ImmutableMap<StoreContext, ConnectorStamps> snapshot) {
+      this.stamp = stamp;
+      this.snapshot = snapshot;
+    }
+  }
+
+  /**
+   * Gets a version stamp for the inventory as a whole.  Each write to
+   * the connector instance table either inserts a row or bumps the
+   * MODIFY_STAMP of a row, so the number of rows and the sum of the
+   * MODIFY_STAMPS together change whenever the inventory changes.
+   *
+   * @return a version stamp for the inventory, or {@code null} if the
+   *         stamp could not be read
+   */
+  @Override
+  public Stamp getInventoryStamp() {
+    try {
+      init();
+      Connection connection = database.getConnectionPool().getConnection();
+      try {
+        PreparedStatement statement =
+            statementCache.prepareStatement(connection, inventoryStampQuery);
+        ResultSet resultSet = statement.executeQuery();
         try {
-          Object[] params = { quoteValue(TYPE) };
-          String query = MessageFormat.format(inventoryTypesQuery, params);
-          ResultSet resultSet = statement.executeQuery(query);
-          while (resultSet.next()) {
-            String connectorName = resultSet.getString(connectorNameColumn);
-            StoreContext storeContext = new StoreContext(connectorName,
-                resultSet.getString(propertyValueColumn));
-            Map<String, JdbcStamp> stamps = stampAlbum.get(connectorName);
-            ConnectorStamps connectorStamps;
-            if (stamps == null) {
-              connectorStamps = new ConnectorStamps(null, null, null);
-            } else {
-              JdbcStamp mapStamp = stamps.get(MAP);
-              JdbcStamp xmlStamp = stamps.get(XML);
-              JdbcStamp configStamp = new JdbcStamp(
-                  ((mapStamp == null) ? 0L : mapStamp.version) +
-                  ((xmlStamp == null) ? 0L : xmlStamp.version));
-              connectorStamps = new ConnectorStamps(
-                  stamps.get(STATE), configStamp, stamps.get(SCHEDULE));
-            }
-            mapBuilder.put(storeContext, connectorStamps);
-            if (LOGGER.isLoggable(Level.FINE)) {
-              LOGGER.fine("Found connector: name = " + connectorName
-                          + "  type = " + storeContext.getTypeName()
-                          + "  stamps = " + connectorStamps);
-            }
+          if (resultSet.next()) {
+            return new InventoryStamp(resultSet.getLong(1),
+                                      resultSet.getLong(2));
           }
         } finally {
-          statement.close();
+          resultSet.close();
         }
+      } catch (SQLException e) {
+        statementCache.invalidate(connection);
+        throw e;
       } finally {
         database.getConnectionPool().releaseConnection(connection);
       }
     } catch (SQLException e) {
-      LOGGER.log(Level.WARNING, "Failed to retrieve Connector Inventory", e);
+      LOGGER.log(Level.WARNING, "Failed to retrieve Connector Inventory stamp",
+                 e);
+    }
+    return null;
+  }
+
+  /**
+   * A version stamp for the whole inventory, based upon the number of
+   * rows and the sum of the MODIFY_STAMP database fields.
+   */
+  private static class InventoryStamp implements Stamp {
+    final long rows;
+    final long sum;
+
+    InventoryStamp(long rows, long sum) {
+      this.rows = rows;
+      this.sum = sum;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int compareTo(Stamp other) {
+      InventoryStamp stamp = (InventoryStamp) other;
+      if (sum != stamp.sum) {
+        return (sum < stamp.sum) ? -1 : 1;
+      }
+      return (rows < stamp.rows) ? -1 : ((rows == stamp.rows) ? 0 : 1);
+    }
+
+    @Override
+    public String toString() {
+      return rows + "/" + sum;
     }
-      // Finally, construct the inventory.
-    return mapBuilder.build();
   }
 
   /**
@@ -343,9 +532,10 @@ public class JdbcStore implements PersistentStore {
    */
   @Override
   public Configuration getConnectorConfiguration(StoreContext context) {
-    String config = getField(context, MAP);
-    String configXml = getField(context, XML);
-    String type = getField(context, TYPE);
+    Map<String, String> fields = getFields(context);
+    String config = fields.get(MAP);
+    String configXml = fields.get(XML);
+    String type = fields.get(TYPE);
     if (type == null && config == null && configXml == null) {
       return null;
     }
@@ -384,9 +574,11 @@ public class JdbcStore implements PersistentStore {
       configXml = configuration.getXml();
       type = configuration.getTypeName();
     }
-    setField(context, TYPE, type);
-    setField(context, XML, configXml);
-    setField(context, MAP, configMap);
+    Map<String, String> fields = new LinkedHashMap<String, String>();
+    fields.put(TYPE, type);
+    fields.put(XML, configXml);
+    fields.put(MAP, configMap);
+    setFields(context, fields);
   }
 
   /**
@@ -408,22 +600,6 @@ public class JdbcStore implements PersistentStore {
     Preconditions.checkNotNull(context, "StoreContext may not be null.");
   }
 
-  /**
-   * Quotes the supplied value using single qoutes.  MessageFormat
-   * considers embedded single-quotes special, and doesn't do
-   * substitutions within them.  Unfortunately, this is exactly
-   * where we want to use substitutions: in SQL queries like:
-   * {@code ... WHERE ( connector_name='{0}' ...}.
-   * <p>
-   * One solution is to add the quote characters to the value being
-   * substituted in (the purpose of this method).  Another solution would
-   * be to avoid MessageFormat, possibly trying PreparedStatement syntax.
-   */
-  // TODO: Use PreparedStatements.
-  private String quoteValue(String value) {
-    return "'" + value.replace("'", "''") + "'";
-  }
-
   /**
    * Retrieve a database field value.
    *
@@ -437,18 +613,21 @@ public class JdbcStore implements PersistentStore {
       init();
       Connection connection = database.getConnectionPool().getConnection();
       try {
-        Object[] params =
-            { quoteValue(context.getConnectorName()), quoteValue(fieldName) };
-        String query = MessageFormat.format(getValueQuery, params);
-        Statement stmt = connection.createStatement();
+        PreparedStatement stmt =
+            statementCache.prepareStatement(connection, getValueQuery);
+        stmt.setString(1, context.getConnectorName());
+        stmt.setString(2, fieldName);
+        ResultSet rs = stmt.executeQuery();
         try {
-          ResultSet rs = stmt.executeQuery(query);
           if (rs.next()) {
             return rs.getString(propertyValueColumn);
           }
         } finally {
-          stmt.close();
+          rs.close();
         }
+      } catch (SQLException e) {
+        statementCache.invalidate(connection);
+        throw e;
       } finally {
         database.getConnectionPool().releaseConnection(connection);
       }
@@ -459,6 +638,58 @@ public class JdbcStore implements PersistentStore {
     return null;
   }
 
+  /**
+   * Retrieve all of the database field values for a connector.
+   *
+   * @param context a StoreContext
+   * @return a map of field names to values, which is empty if none
+   *         are stored
+   */
+  private Map<String, String> getFields(StoreContext context) {
+    testStoreContext(context);
+    Map<String, String> fields = new HashMap<String, String>();
+    try {
+      init();
+      Connection connection = database.getConnectionPool().getConnection();
+      try {
+        readFields(connection, context.getConnectorName(), fields);
+      } catch (SQLException e) {
+        statementCache.invalidate(connection);
+        throw e;
+      } finally {
+        database.getConnectionPool().releaseConnection(connection);
+      }
+    } catch (SQLException e) {
+      LOGGER.log(Level.WARNING, "Failed to retrieve fields for connector "
+          + context.getConnectorName(), e);
+      fields.clear();
+    }
+    return fields;
+  }
+
+  /**
+   * Reads all of the database field values for a connector.
+   *
+   * @param connection a database Connection
+   * @param connectorName the name of the connector
+   * @param fields a map to which the field names and values are added
+   */
+  private void readFields(Connection connection, String connectorName,
+      Map<String, String> fields) throws SQLException {
+    PreparedStatement stmt =
+        statementCache.prepareStatement(connection, getValuesQuery);
+    stmt.setString(1, connectorName);
+    ResultSet rs = stmt.executeQuery();
+    try {
+      while (rs.next()) {
+        fields.put(rs.getString(propertyNameColumn),
+                   rs.getString(propertyValueColumn));
+      }
+    } finally {
+      rs.close();
+    }
+  }
+
   /**
    * Update a database field value.
    *
@@ -468,6 +699,21 @@ public class JdbcStore implements PersistentStore {
    */
   private void setField(StoreContext context,
                         String fieldName, String fieldValue) {
+    Map<String, String> fields = new HashMap<String, String>();
+    fields.put(fieldName, fieldValue);
+    setFields(context, fields);
+  }
+
+  /**
+   * Update several database field values in a single transaction.
+   * The existing fields are updated in one batch, and then any fields
+   * that were not already stored are inserted in a second batch.
+   *
+   * @param context a StoreContext
+   * @param fields a map of field names to values; the values may be
+   *        {@code null}
+   */
+  private void setFields(StoreContext context, Map<String, String> fields) {
     testStoreContext(context);
     Connection connection = null;
     boolean originalAutoCommit = true;
@@ -477,43 +723,10 @@ public class JdbcStore implements PersistentStore {
       try {
         originalAutoCommit = connection.getAutoCommit();
         connection.setAutoCommit(false);
-
-        Object[] params =
-            { quoteValue(context.getConnectorName()), quoteValue(fieldName) };
-        String query = MessageFormat.format(setValueQuery, params);
-        Statement stmt = connection.createStatement(
-            ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
-        try {
-          ResultSet rs = stmt.executeQuery(query);
-          if (rs.next()) {
-            // This connector property exists, update the property value.
-            if (fieldValue == null) {
-              rs.updateNull(propertyValueColumn);
-            } else {
-              rs.updateString(propertyValueColumn, fieldValue);
-            }
-            // Bump the ModifyStamp, so others may know the value has changed.
-            rs.updateInt(modifyStampColumn, rs.getInt(modifyStampColumn) + 1);
-            rs.updateRow();
-          } else {
-            // This connector property does not exist, insert it with new value.
-            rs.moveToInsertRow();
-            rs.updateInt(modifyStampColumn, 1); // Bootstrap the ModifyStamp
-            rs.updateString(connectorNameColumn, context.getConnectorName());
-            rs.updateString(propertyNameColumn, fieldName);
-            if (fieldValue == null) {
-              rs.updateNull(propertyValueColumn);
-            } else {
-              rs.updateString(propertyValueColumn, fieldValue);
-            }
-            rs.insertRow();
-          }
-          connection.commit();
-          rs.close();
-        } finally {
-          stmt.close();
-        }
+        writeFields(connection, context.getConnectorName(), fields);
+        connection.commit();
       } catch (SQLException e) {
+        statementCache.invalidate(connection);
         try {
           connection.rollback();
         } catch (SQLException ignored) {}
@@ -525,8 +738,72 @@ public class JdbcStore implements PersistentStore {
         database.getConnectionPool().releaseConnection(connection);
       }
     } catch (SQLException e) {
-      LOGGER.log(Level.WARNING, "Failed to store " + fieldName
+      LOGGER.log(Level.WARNING, "Failed to store " + fields.keySet()
           + " for connector " + context.getConnectorName(), e);
     }
   }
+
+  /**
+   * Writes the database field values for a connector.
+   *
+   * @param connection a database Connection
+   * @param connectorName the name of the connector
+   * @param fields a map of field names to values
+   */
+  private void writeFields(Connection connection, String connectorName,
+      Map<String, String> fields) throws SQLException {
+    // Update the existing fields, bumping their ModifyStamps.
+    List<String> names = new ArrayList<String>(fields.keySet());
+    PreparedStatement update =
+        statementCache.prepareStatement(connection, updateValueQuery);
+    for (String name : names) {
+      setValue(update, 1, fields.get(name));
+      update.setString(2, connectorName);
+      update.setString(3, name);
+      update.addBatch();
+    }
+    int[] counts = update.executeBatch();
+
+    // Some drivers do not report the number of rows updated in a batch.
+    // In that case, look to see which fields are already stored.
+    List<String> missing = new ArrayList<String>();
+    boolean unknown = (counts.length != names.size());
+    for (int i = 0; i < counts.length && !unknown; i++) {
+      if (counts[i] == 0) {
+        missing.add(names.get(i));
+      } else if (counts[i] < 0) {
+        unknown = true;
+      }
+    }
+    if (unknown) {
+      Map<String, String> stored = new HashMap<String, String>();
+      readFields(connection, connectorName, stored);
+      missing.clear();
+      missing.addAll(names);
+      missing.removeAll(stored.keySet());
+    }
+
+    // Insert the fields that do not yet exist.
+    if (!missing.isEmpty()) {
+      PreparedStatement insert =
+          statementCache.prepareStatement(connection, insertValueQuery);
+      for (String name : missing) {
+        insert.setString(1, connectorName);
+        insert.setString(2, name);
+        setValue(insert, 3, fields.get(name));
+        insert.addBatch();
+      }
+      insert.executeBatch();
+    }
+  }
+
+  /** Sets a possibly {@code null} String parameter. */
+  private static void setValue(PreparedStatement stmt, int index,
+      String value) throws SQLException {
+    if (value == null) {
+      stmt.setNull(index, Types.VARCHAR);
+    } else {
+      stmt.setString(index, value);
+    }
+  }
 }
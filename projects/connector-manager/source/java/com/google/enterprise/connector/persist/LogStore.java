@@ -0,0 +1,804 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.persist;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.connector.common.PropertiesException;
+import com.google.enterprise.connector.common.PropertiesUtils;
+import com.google.enterprise.connector.instantiator.Configuration;
+import com.google.enterprise.connector.manager.Context;
+import com.google.enterprise.connector.scheduler.Schedule;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Manage persistence for schedule and state and configuration
+ * for a named connector. The persistent store for these data items
+ * is a single append-only log file, with an in-memory index of the
+ * current values.
+ * <p>
+ * Each write appends one checksummed record holding all of the fields
+ * that it changes, so multi-field updates, such as a configuration,
+ * are atomic.  Version stamps are taken from a sequence number that
+ * increases with every write.  On startup, a torn or corrupt record at
+ * the end of the log, left by a crash, is discarded.  When the log
+ * grows to more than twice the size of the live data, it is compacted
+ * by writing the live data to a new log that replaces the old one.
+ *
+ * @since 3.4
+ */
+public class LogStore implements PersistentStore {
+
+  private static final Logger LOGGER =
+      Logger.getLogger(LogStore.class.getName());
+
+  /** The default minimum size of the log before it is compacted. */
+  public static final long DEFAULT_COMPACT_BYTES = 1024 * 1024L;
+
+  /** Records larger than this are treated as corrupt. */
+  private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+  /* Record types. */
+  private static final byte FIELDS = 1;
+  private static final byte SEQUENCE = 2;
+
+  /* Field numbers. */
+  private static final int STATE = 0;
+  private static final int SCHEDULE = 1;
+  private static final int MAP = 2;
+  private static final int XML = 3;
+  private static final int FIELD_COUNT = 4;
+
+  /** The current fields of a connector instance. */
+  private static class Entry {
+    final String[] values = new String[FIELD_COUNT];
+    final long[] stamps = new long[FIELD_COUNT];
+
+    /** The size of this entry when written as a single record. */
+    int size;
+
+    boolean isEmpty() {
+      for (String value : values) {
+        if (value != null) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private String logPath;
+  private boolean forceWrites = false;
+  private long compactBytes = DEFAULT_COMPACT_BYTES;
+
+  /* Guarded by this. */
+  private final Map<StoreContext, Entry> index =
+      new HashMap<StoreContext, Entry>();
+  private File file;
+  private FileOutputStream out;
+  private boolean opened = false;
+  private boolean failed = false;
+  private long sequence = 0L;
+  private long logBytes = 0L;
+  private long liveBytes = 0L;
+
+  /**
+   * Sets the path of the log file.  A relative path is resolved against
+   * the Connector Manager's {@code WEB-INF} directory.
+   *
+   * @param logPath the path of the log file
+   */
+  public void setLogFile(String logPath) {
+    this.logPath = logPath;
+  }
+
+  /**
+   * Sets whether each write is forced to disk before it returns.  By
+   * default, writes are left to the operating system to flush, which is
+   * much faster, but recent writes may be lost if the machine crashes.
+   *
+   * @param forceWrites if {@code true}, force each write to disk
+   */
+  public void setForceWrites(boolean forceWrites) {
+    this.forceWrites = forceWrites;
+  }
+
+  /**
+   * Sets the minimum size of the log before it is compacted.
+   *
+   * @param compactBytes a size in bytes
+   */
+  public void setCompactBytes(long compactBytes) {
+    this.compactBytes = compactBytes;
+  }
+
+  /**
+   * Returns {@code true} if no log file has been configured, or if the
+   * log could not be read or written.
+   *
+   * @return {@code true} if this PersistentStore is disabled, {@code false}
+   * otherwise.
+   */
+  @Override
+  public synchronized boolean isDisabled() {
+    return Strings.isNullOrEmpty(logPath) || failed;
+  }
+
+  /**
+   * Gets the version stamps of all persistent objects.
+   *
+   * @return an immutable map containing the version stamps; may be
+   * empty but not {@code null}
+   */
+  @Override
+  public synchronized ImmutableMap<StoreContext, ConnectorStamps>
+      getInventory() {
+    ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder =
+        new ImmutableMap.Builder<StoreContext, ConnectorStamps>();
+    if (open()) {
+      for (Map.Entry<StoreContext, Entry> mapEntry : index.entrySet()) {
+        Entry entry = mapEntry.getValue();
+        mapBuilder.put(mapEntry.getKey(), new ConnectorStamps(
+            getStamp(entry, STATE), getStamp(entry, MAP, XML),
+            getStamp(entry, SCHEDULE)));
+      }
+    }
+    return mapBuilder.build();
+  }
+
+  /**
+   * Returns a stamp based upon the sequence number of the last write.
+   */
+  @Override
+  public synchronized Stamp getInventoryStamp() {
+    return open() ? new LogStamp(sequence) : null;
+  }
+
+  /**
+   * Returns the latest stamp of the present fields, or {@code null}
+   * if none of the fields are present.
+   */
+  private static Stamp getStamp(Entry entry, int... fields) {
+    long version = 0L;
+    boolean present = false;
+    for (int field : fields) {
+      if (entry.values[field] != null) {
+        present = true;
+        version = Math.max(version, entry.stamps[field]);
+      }
+    }
+    return present ? new LogStamp(version) : null;
+  }
+
+  /**
+   * A version stamp based upon the sequence number of a write.
+   */
+  private static class LogStamp implements Stamp {
+    final long version;
+
+    LogStamp(long version) {
+      this.version = version;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int compareTo(Stamp other) {
+      long otherVersion = ((LogStamp) other).version;
+      return (version < otherVersion)
+          ? -1 : ((version == otherVersion) ? 0 : 1);
+    }
+
+    @Override
+    public String toString() {
+      return Long.toString(version);
+    }
+  }
+
+  /**
+   * Retrieves connector schedule.
+   *
+   * @param context a StoreContext
+   * @return connectorSchedule schedule of the corresponding connector.
+   */
+  @Override
+  public Schedule getConnectorSchedule(StoreContext context) {
+    return Schedule.of(getField(context, SCHEDULE));
+  }
+
+  /**
+   * Stores connector schedule.
+   *
+   * @param context a StoreContext
+   * @param connectorSchedule schedule of the corresponding connector.
+   */
+  @Override
+  public void storeConnectorSchedule(StoreContext context,
+      Schedule connectorSchedule) {
+    String schedule = (connectorSchedule == null)
+        ? null : connectorSchedule.toString();
+    write(context, new int[] { SCHEDULE }, new String[] { schedule });
+  }
+
+  /**
+   * Remove a connector schedule.
+   *
+   * @param context a StoreContext
+   */
+  @Override
+  public void removeConnectorSchedule(StoreContext context) {
+    storeConnectorSchedule(context, null);
+  }
+
+  /**
+   * Gets the stored state of a named connector.
+   *
+   * @param context a StoreContext
+   * @return the state, or null if no state has been stored for this connector.
+   */
+  @Override
+  public String getConnectorState(StoreContext context) {
+    return getField(context, STATE);
+  }
+
+  /**
+   * Stores connector state.
+   *
+   * @param context a StoreContext
+   * @param connectorState state of the corresponding connector
+   */
+  @Override
+  public void storeConnectorState(StoreContext context, String connectorState) {
+    write(context, new int[] { STATE }, new String[] { connectorState });
+  }
+
+  /**
+   * Remove connector state.
+   *
+   * @param context a StoreContext
+   */
+  @Override
+  public void removeConnectorState(StoreContext context) {
+    storeConnectorState(context, null);
+  }
+
+  /**
+   * Gets the stored configuration of a named connector.
+   *
+   * @param context a StoreContext
+   * @return the configuration map, or null if no configuration
+   *         has been stored for this connector.
+   */
+  @Override
+  public Configuration getConnectorConfiguration(StoreContext context) {
+    String config;
+    String configXml;
+    synchronized (this) {
+      config = getField(context, MAP);
+      configXml = getField(context, XML);
+    }
+    if (config == null && configXml == null) {
+      return null;
+    }
+    try {
+      Properties props = PropertiesUtils.loadFromString(config);
+      return new Configuration(context.getTypeName(),
+          PropertiesUtils.toMap(props), configXml);
+    } catch (PropertiesException e) {
+      LOGGER.log(Level.WARNING, "Failed to read connector configuration for "
+                 + context.getConnectorName(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Stores the configuration of a named connector.  The properties and
+   * the XML are written together in a single record.
+   *
+   * @param context a StoreContext
+   * @param configuration map to store
+   */
+  @Override
+  public void storeConnectorConfiguration(StoreContext context,
+      Configuration configuration) {
+    testStoreContext(context);
+    String configMap = null;
+    String configXml = null;
+    if (configuration != null) {
+      if (configuration.getMap() != null) {
+        Properties properties =
+            PropertiesUtils.fromMap(configuration.getMap());
+        try {
+          configMap = PropertiesUtils.storeToString(properties,
+              "Configuration for Connector " + context.getConnectorName());
+        } catch (PropertiesException e) {
+          LOGGER.log(Level.WARNING, "Failed to store connector configuration"
+              + " for " + context.getConnectorName(), e);
+          return;
+        }
+      }
+      configXml = configuration.getXml();
+    }
+    write(context, new int[] { MAP, XML },
+          new String[] { configMap, configXml });
+  }
+
+  /**
+   * Remove a stored connector configuration.
+   *
+   * @param context a StoreContext
+   */
+  @Override
+  public void removeConnectorConfiguration(StoreContext context) {
+    storeConnectorConfiguration(context, null);
+  }
+
+  /**
+   * Test the StoreContext to make sure it is sane.
+   *
+   * @param context a StoreContext
+   */
+  private static void testStoreContext(StoreContext context) {
+    Preconditions.checkNotNull(context, "StoreContext may not be null.");
+  }
+
+  /**
+   * Retrieves a field value from the index.
+   *
+   * @param context a StoreContext
+   * @param field the field number
+   * @return String value of the field, or {@code null} if not stored
+   */
+  private synchronized String getField(StoreContext context, int field) {
+    testStoreContext(context);
+    if (!open()) {
+      return null;
+    }
+    Entry entry = index.get(context);
+    return (entry == null) ? null : entry.values[field];
+  }
+
+  /**
+   * Appends a record holding new values for some fields of a connector
+   * to the log, and then updates the index.  If the record cannot be
+   * written, neither the log nor the index is changed.
+   *
+   * @param context a StoreContext
+   * @param fields the field numbers
+   * @param values the new values of the fields; the values may be
+   *        {@code null}
+   */
+  private synchronized void write(StoreContext context, int[] fields,
+      String[] values) {
+    testStoreContext(context);
+    if (!open()) {
+      LOGGER.warning("Failed to store connector " + context.getConnectorName()
+          + ": the store " + logPath + " is not available");
+      return;
+    }
+    long stamp = sequence + 1;
+    long[] stamps = new long[fields.length];
+    byte[][] bytes = new byte[fields.length][];
+    for (int i = 0; i < fields.length; i++) {
+      stamps[i] = stamp;
+      bytes[i] = (values[i] == null)
+          ? null : values[i].getBytes(Charsets.UTF_8);
+    }
+    try {
+      append(out, encode(context, fields, stamps, bytes));
+      if (forceWrites) {
+        out.getChannel().force(false);
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to store connector "
+          + context.getConnectorName() + " in " + file, e);
+      discardTail();
+      return;
+    }
+    sequence = stamp;
+
+    Entry entry = index.get(context);
+    if (entry == null) {
+      entry = new Entry();
+      index.put(context, entry);
+    } else {
+      liveBytes -= entry.size;
+    }
+    for (int i = 0; i < fields.length; i++) {
+      entry.values[fields[i]] = values[i];
+      entry.stamps[fields[i]] = stamp;
+    }
+    if (entry.isEmpty()) {
+      index.remove(context);
+    } else {
+      entry.size = sizeOf(context, entry);
+      liveBytes += entry.size;
+    }
+
+    if (logBytes > compactBytes && logBytes > 2 * liveBytes) {
+      compact();
+    }
+  }
+
+  /**
+   * Truncates the log to its last good length after a failed write, so
+   * that a partial record does not hide the records written after it.
+   * If that fails too, the store is disabled.
+   */
+  private void discardTail() {
+    try {
+      out.getChannel().truncate(logBytes);
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /** Disables the store after an I/O error. */
+  private void fail(IOException e) {
+    LOGGER.log(Level.SEVERE, "Persistent store " + file + " failed.", e);
+    failed = true;
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException ignored) {
+      }
+      out = null;
+    }
+  }
+
+  /**
+   * Rewrites the log with only the current values, and replaces the old
+   * log with it.  The new log is forced to disk before the old log is
+   * replaced.  If the new log cannot be written, the old one is kept.
+   */
+  @VisibleForTesting
+  synchronized void compact() {
+    if (!open()) {
+      return;
+    }
+    File compactFile = getCompactFile();
+    long newBytes = 0L;
+    try {
+      FileOutputStream compactOut = new FileOutputStream(compactFile);
+      try {
+        newBytes += append(compactOut, encodeSequence(sequence));
+        for (Map.Entry<StoreContext, Entry> mapEntry : index.entrySet()) {
+          newBytes += append(compactOut,
+              encode(mapEntry.getKey(), mapEntry.getValue()));
+        }
+        compactOut.getChannel().force(true);
+      } finally {
+        compactOut.close();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to compact " + file, e);
+      compactFile.delete();
+      return;
+    }
+
+    try {
+      out.close();
+    } catch (IOException ignored) {
+    }
+    out = null;
+    if (!compactFile.renameTo(file)) {
+      // Some platforms will not rename over an existing file.  If we
+      // crash between these two steps, the compacted log is recovered.
+      if (!file.delete() || !compactFile.renameTo(file)) {
+        fail(new IOException("Unable to rename " + compactFile + " to "
+                             + file));
+        return;
+      }
+    }
+    LOGGER.fine("Compacted " + file + " from " + logBytes + " to " + newBytes
+                + " bytes");
+    logBytes = newBytes;
+    try {
+      out = new FileOutputStream(file, true);
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Closes the log.  The log is opened again if the store is used.
+   */
+  public synchronized void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to close " + file, e);
+      }
+      out = null;
+    }
+    index.clear();
+    opened = false;
+  }
+
+  @VisibleForTesting
+  synchronized File getLogFile() {
+    return file;
+  }
+
+  private File getCompactFile() {
+    return new File(file.getPath() + ".compact");
+  }
+
+  /**
+   * Opens the log, if it is not already open, reading it into the index.
+   * Must hold the lock on this.
+   *
+   * @return {@code true} if the log is available
+   */
+  private boolean open() {
+    if (!opened) {
+      if (Strings.isNullOrEmpty(logPath)) {
+        return false;
+      }
+      opened = true;
+      file = new File(logPath);
+      if (!file.isAbsolute()) {
+        file = new File(Context.getInstance().getCommonDirPath(), logPath);
+      }
+      try {
+        recover();
+        out = new FileOutputStream(file, true);
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+    return !failed;
+  }
+
+  /**
+   * Reads the log into the index, truncating any torn or corrupt tail.
+   * Must hold the lock on this.
+   */
+  private void recover() throws IOException {
+    index.clear();
+    sequence = 0L;
+    logBytes = 0L;
+    liveBytes = 0L;
+
+    // Finish or discard an interrupted compaction.
+    File compactFile = getCompactFile();
+    if (compactFile.exists()) {
+      if (file.exists()) {
+        compactFile.delete();
+      } else if (!compactFile.renameTo(file)) {
+        throw new IOException("Unable to rename " + compactFile + " to "
+                              + file);
+      }
+    }
+    if (!file.exists()) {
+      File parent = file.getAbsoluteFile().getParentFile();
+      if (parent != null) {
+        parent.mkdirs();
+      }
+      return;
+    }
+
+    long goodLength = 0L;
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)));
+    try {
+      while (true) {
+        byte[] record;
+        try {
+          int length = in.readInt();
+          if (length <= 0 || length > MAX_RECORD_BYTES) {
+            break;
+          }
+          record = new byte[length];
+          in.readFully(record);
+          if (in.readInt() != checksum(record)) {
+            break;
+          }
+        } catch (EOFException e) {
+          break;
+        }
+        if (!replay(record)) {
+          break;
+        }
+        goodLength += record.length + 8;
+      }
+    } finally {
+      in.close();
+    }
+
+    if (goodLength < file.length()) {
+      LOGGER.warning("Discarding " + (file.length() - goodLength)
+          + " bytes of incomplete records from persistent store " + file);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(goodLength);
+      } finally {
+        raf.close();
+      }
+    }
+    logBytes = goodLength;
+    for (Map.Entry<StoreContext, Entry> mapEntry : index.entrySet()) {
+      mapEntry.getValue().size = sizeOf(mapEntry.getKey(), mapEntry.getValue());
+      liveBytes += mapEntry.getValue().size;
+    }
+  }
+
+  /**
+   * Applies a record read from the log to the index.
+   *
+   * @return {@code true} if the record was understood
+   */
+  private boolean replay(byte[] record) throws IOException {
+    DataInputStream payload =
+        new DataInputStream(new ByteArrayInputStream(record));
+    byte type = payload.readByte();
+    if (type == SEQUENCE) {
+      sequence = Math.max(sequence, payload.readLong());
+      return true;
+    } else if (type != FIELDS) {
+      return false;
+    }
+    StoreContext context =
+        new StoreContext(payload.readUTF(), payload.readUTF());
+    Entry entry = index.get(context);
+    if (entry == null) {
+      entry = new Entry();
+    }
+    int count = payload.readByte();
+    for (int i = 0; i < count; i++) {
+      int field = payload.readByte();
+      if (field < 0 || field >= FIELD_COUNT) {
+        return false;
+      }
+      long stamp = payload.readLong();
+      String value = null;
+      if (payload.readBoolean()) {
+        byte[] bytes = new byte[payload.readInt()];
+        payload.readFully(bytes);
+        value = new String(bytes, Charsets.UTF_8);
+      }
+      entry.values[field] = value;
+      entry.stamps[field] = stamp;
+      sequence = Math.max(sequence, stamp);
+    }
+    if (entry.isEmpty()) {
+      index.remove(context);
+    } else {
+      index.put(context, entry);
+    }
+    return true;
+  }
+
+  /** Encodes all of the present fields of an entry as a record. */
+  private static byte[] encode(StoreContext context, Entry entry)
+      throws IOException {
+    int count = 0;
+    for (String value : entry.values) {
+      if (value != null) {
+        count++;
+      }
+    }
+    int[] fields = new int[count];
+    long[] stamps = new long[count];
+    byte[][] bytes = new byte[count][];
+    int i = 0;
+    for (int field = 0; field < FIELD_COUNT; field++) {
+      if (entry.values[field] != null) {
+        fields[i] = field;
+        stamps[i] = entry.stamps[field];
+        bytes[i] = entry.values[field].getBytes(Charsets.UTF_8);
+        i++;
+      }
+    }
+    return encode(context, fields, stamps, bytes);
+  }
+
+  /**
+   * Encodes some of the fields of a connector as a record.  A
+   * {@code null} value removes the field.
+   */
+  private static byte[] encode(StoreContext context, int[] fields,
+      long[] stamps, byte[][] values) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream payload = new DataOutputStream(bytes);
+    payload.writeByte(FIELDS);
+    payload.writeUTF(context.getConnectorName());
+    payload.writeUTF(context.getTypeName());
+    payload.writeByte(fields.length);
+    for (int i = 0; i < fields.length; i++) {
+      payload.writeByte(fields[i]);
+      payload.writeLong(stamps[i]);
+      payload.writeBoolean(values[i] != null);
+      if (values[i] != null) {
+        payload.writeInt(values[i].length);
+        payload.write(values[i]);
+      }
+    }
+    payload.flush();
+    return bytes.toByteArray();
+  }
+
+  /** Encodes a record holding the sequence number. */
+  private static byte[] encodeSequence(long sequence) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream payload = new DataOutputStream(bytes);
+    payload.writeByte(SEQUENCE);
+    payload.writeLong(sequence);
+    payload.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Returns the approximate size of an entry when written as a single
+   * record, including the framing.  Multi-byte characters are counted
+   * as one byte, which is close enough for deciding when to compact.
+   */
+  private static int sizeOf(StoreContext context, Entry entry) {
+    int size = 8 + 1 + 2 + context.getConnectorName().length()
+        + 2 + context.getTypeName().length() + 1;
+    for (String value : entry.values) {
+      if (value != null) {
+        size += 1 + 8 + 1 + 4 + value.length();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Appends a framed record to a log.  The record is written in a single
+   * write, so that a crash leaves at most one torn record.
+   *
+   * @return the number of bytes written
+   */
+  private long append(FileOutputStream os, byte[] record) throws IOException {
+    ByteArrayOutputStream framed = new ByteArrayOutputStream(record.length + 8);
+    DataOutputStream frame = new DataOutputStream(framed);
+    frame.writeInt(record.length);
+    frame.write(record);
+    frame.writeInt(checksum(record));
+    frame.flush();
+    os.write(framed.toByteArray());
+    if (os == out) {
+      logBytes += framed.size();
+    }
+    return framed.size();
+  }
+
+  private static int checksum(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return (int) crc.getValue();
+  }
+}
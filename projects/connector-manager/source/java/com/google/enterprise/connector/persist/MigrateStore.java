@@ -27,11 +27,14 @@ import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,12 +43,18 @@ import java.util.logging.Logger;
  * to another.
  *
  * <pre>
- * usage: MigrateStore [-?] [-v] [-c connector_name] [-l] [source_name] [dest_name]
+ * usage: MigrateStore [-?] [-v] [-c connector_name] [-l] [-t threads]
+ *                     [-b batch_size] [-p progress_file]
+ *                     [source_name] [dest_name]
  *        -?, --help        Display this help.
  *        -v, --version     Display version.
  *        -c, --connector   Connector(s) to migrage (default is all connectors).
  *        -l, --list        List available PersistentStores.
  *        -f, --force       Overwrite existing data in destination PersistentStore.
+ *        -t, --threads     Number of connectors to migrate concurrently.
+ *        -b, --batch_size  Number of connectors migrated in each batch.
+ *        -p, --progress    File recording the migrated connectors, used to
+ *                          resume an interrupted migration.
  *        source_name       Name of source PeristentStore (e.g. FilePersistentStore)
  *        dest_name         Name of destination PeristentStore (e.g. JdbcPersistentStore)
  * </pre>
@@ -70,7 +79,8 @@ public class MigrateStore extends AbstractCommandLineApp {
   @Override
   public String getCommandLineSyntax() {
     return super.getCommandLineSyntax()
-        + "[-l] [-f] [-c connector] [source_name] [dest_name]";
+        + "[-l] [-f] [-c connector] [-t threads] [-b batch_size] "
+        + "[-p progress_file] [source_name] [dest_name]";
   }
 
   @Override
@@ -82,6 +92,18 @@ public class MigrateStore extends AbstractCommandLineApp {
     Option o = new Option("c", "connector_name", true, "Connector to migrate.");
     o.setArgName("connector_name");
     options.addOption(o);
+    o = new Option("t", "threads", true,
+        "Number of connectors to migrate concurrently.");
+    o.setArgName("threads");
+    options.addOption(o);
+    o = new Option("b", "batch_size", true,
+        "Number of connectors migrated in each batch.");
+    o.setArgName("batch_size");
+    options.addOption(o);
+    o = new Option("p", "progress", true,
+        "File recording the migrated connectors.");
+    o.setArgName("progress_file");
+    options.addOption(o);
     return options;
   }
 
@@ -102,6 +124,11 @@ public class MigrateStore extends AbstractCommandLineApp {
     builder.append("If configuration data for a connector already exists ");
     builder.append("in the destination store, it will not be overwritten ");
     builder.append("unless forced to do so by using the --force option.");
+    builder.append(NL).append(NL);
+    builder.append("Connectors are migrated in batches by several threads, ");
+    builder.append("and the copy is verified afterwards.  If a progress ");
+    builder.append("file is specified, an interrupted migration may be ");
+    builder.append("resumed by running it again with the same progress file.");
     return builder.toString();
   }
 
@@ -127,6 +154,10 @@ public class MigrateStore extends AbstractCommandLineApp {
       if ((args.length == 1) || (args.length > 2)) {
         printUsageAndExit(-1);
       }
+      int threads = getPositiveOption(commandLine, "threads",
+          BulkStoreMigrator.DEFAULT_THREADS);
+      int batchSize = getPositiveOption(commandLine, "batch_size",
+          BulkStoreMigrator.DEFAULT_BATCH_SIZE);
       if (args.length == 2) {
         sourceName = args[0];
         destName = args[1];
@@ -171,8 +202,34 @@ public class MigrateStore extends AbstractCommandLineApp {
         // Adjust the logging levels so that StoreMigrator messages are logged
         // to the Console.
         Logger.getLogger(StoreMigrator.class.getName()).setLevel(Level.INFO);
-        StoreMigrator.migrate(sourceStore, destStore, connectors,
-            commandLine.hasOption("force"));
+        Logger.getLogger(BulkStoreMigrator.class.getName())
+            .setLevel(Level.INFO);
+        BulkStoreMigrator migrator =
+            new BulkStoreMigrator(sourceStore, destStore);
+        migrator.setConnectorNames(connectors);
+        migrator.setForce(commandLine.hasOption("force"));
+        migrator.setThreads(threads);
+        migrator.setBatchSize(batchSize);
+        if (commandLine.hasOption("progress")) {
+          migrator.setProgressFile(
+              new File(commandLine.getOptionValue("progress")));
+        }
+        try {
+          List<String> mismatches = migrator.migrate();
+          if (!mismatches.isEmpty()) {
+            System.err.println("Verification failed.  These objects differ"
+                + " between the source and destination PersistentStores:");
+            for (String mismatch : mismatches) {
+              System.err.println("    " + mismatch);
+            }
+          }
+        } catch (InterruptedException e) {
+          System.err.println("Migration did not finish: " + e.getMessage());
+          return;
+        } catch (ExecutionException e) {
+          System.err.println("Migration failed: " + e.getCause());
+          return;
+        }
         StoreMigrator.checkMissing(destStore, connectors);
       }
     } finally {
@@ -180,6 +237,35 @@ public class MigrateStore extends AbstractCommandLineApp {
     }
   }
 
+  /**
+   * Returns the value of an option that must be a positive integer.  If
+   * the value is not a positive integer, prints the usage and exits.
+   *
+   * @param commandLine the parsed command line
+   * @param option the long name of the option
+   * @param defaultValue the value if the option is not specified
+   * @return the value of the option
+   */
+  private int getPositiveOption(CommandLine commandLine, String option,
+      int defaultValue) {
+    if (!commandLine.hasOption(option)) {
+      return defaultValue;
+    }
+    String value = commandLine.getOptionValue(option);
+    try {
+      int number = Integer.parseInt(value);
+      if (number > 0) {
+        return number;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through to print the usage.
+    }
+    System.err.println("The " + option
+        + " option must be a positive integer: " + value);
+    printUsageAndExit(-1);
+    return defaultValue;
+  }
+
   /**
    * Prints out a list of available PersistentStores.
    */
@@ -46,6 +46,18 @@ public interface PersistentStore {
    */
   ImmutableMap<StoreContext, ConnectorStamps> getInventory();
 
+  /**
+   * Gets a version stamp for the inventory as a whole.  The stamp is
+   * cheaper to get than the inventory, and changes whenever any of the
+   * version stamps in the inventory change, so that callers may skip
+   * reading the inventory when nothing has changed.
+   *
+   * @return a version stamp for the inventory, or {@code null} if this
+   *         store cannot supply one
+   * @since 3.4
+   */
+  Stamp getInventoryStamp();
+
   String getConnectorState(StoreContext context);
   void storeConnectorState(StoreContext context, String checkpoint);
   void removeConnectorState(StoreContext context);
@@ -79,31 +79,46 @@ public class StoreMigrator {
           !connectorNames.contains(context.getConnectorName())) {
         continue;
       }
-      // This double assignment ensures that we check the same
-      // object type that we're storing.
-      Configuration config = destStore.getConnectorConfiguration(context);
-      if (force || config == null) {
-        config = sourceStore.getConnectorConfiguration(context);
-        if (config != null) {
-          logMigration(sourceStore, destStore, context, "configuration");
-          destStore.storeConnectorConfiguration(context, config);
-        }
+      migrateConnector(sourceStore, destStore, context, force);
+    }
+  }
+
+  /**
+   * Migrates the data of one connector from the {@code sourceStore} to
+   * the {@code destStore}.
+   *
+   * @param sourceStore source {@link PersistentStore}
+   * @param destStore destination {@link PersistentStore}
+   * @param context the {@link StoreContext} of the connector to migrate
+   * @param force if {@code true} overwrite existing data in the
+   *        {@code destStore}.
+   */
+  static void migrateConnector(PersistentStore sourceStore,
+      PersistentStore destStore, StoreContext context, boolean force) {
+    // This double assignment ensures that we check the same
+    // object type that we're storing.
+    Configuration config = destStore.getConnectorConfiguration(context);
+    if (force || config == null) {
+      config = sourceStore.getConnectorConfiguration(context);
+      if (config != null) {
+        logMigration(sourceStore, destStore, context, "configuration");
+        destStore.storeConnectorConfiguration(context, config);
       }
-      Schedule sched = destStore.getConnectorSchedule(context);
-      if (force || sched == null) {
-        sched = sourceStore.getConnectorSchedule(context);
-        if (sched != null) {
-          logMigration(sourceStore, destStore, context, "traversal schedule");
-          destStore.storeConnectorSchedule(context, sched);
-        }
+    }
+    Schedule sched = destStore.getConnectorSchedule(context);
+    if (force || sched == null) {
+      sched = sourceStore.getConnectorSchedule(context);
+      if (sched != null) {
+        logMigration(sourceStore, destStore, context, "traversal schedule");
+        destStore.storeConnectorSchedule(context, sched);
       }
-      String state = destStore.getConnectorState(context);
-      if (force || state == null) {
-        state = sourceStore.getConnectorState(context);
-        if (state != null) {
-          logMigration(sourceStore, destStore, context, "traversal state");
-          destStore.storeConnectorState(context, state);
-        }
+    }
+    String state = destStore.getConnectorState(context);
+    if (force || state == null) {
+      state = sourceStore.getConnectorState(context);
+      if (state != null) {
+        logMigration(sourceStore, destStore, context, "traversal state");
+        destStore.storeConnectorState(context, state);
       }
     }
   }
@@ -0,0 +1,264 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.common.CompressedFilterInputStream;
+import com.google.enterprise.connector.spi.SpiConstants.ContentEncoding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Chooses whether to compress the content of each feed record.
+ * Compressing content that is tiny, or that is already compressed,
+ * costs CPU time and may even make the feed larger.  Content is sent
+ * uncompressed if:
+ * <ul>
+ * <li>its MIME type is a known compressed format, such as zip, jpeg,
+ *     or an Office Open XML document;</li>
+ * <li>it is smaller than a minimum size; or</li>
+ * <li>a trial compression of its first block does not shrink it by
+ *     a minimum ratio.</li>
+ * </ul>
+ * <p>
+ * The selector also keeps counters of the number of bytes saved by
+ * compression, and the time spent compressing.
+ */
+class ContentEncodingSelector {
+  /** Content smaller than this is not worth compressing. */
+  static final int DEFAULT_MIN_SIZE = 1024;
+
+  /** Content that does not compress better than this is sent as is. */
+  static final double DEFAULT_MAX_RATIO = 0.9;
+
+  /** The size of the block used for the trial compression. */
+  static final int TRIAL_SIZE = 32 * 1024;
+
+  /** MIME types of content that is already compressed. */
+  private static final Set<String> COMPRESSED_MIMETYPES = ImmutableSet.of(
+      "application/zip",
+      "application/x-zip-compressed",
+      "application/gzip",
+      "application/x-gzip",
+      "application/x-bzip2",
+      "application/x-xz",
+      "application/x-7z-compressed",
+      "application/x-rar-compressed",
+      "application/java-archive",
+      "application/epub+zip",
+      "application/vnd.ms-cab-compressed",
+      "image/jpeg",
+      "image/pjpeg",
+      "image/png",
+      "image/gif",
+      "image/webp",
+      "image/jp2",
+      "audio/mpeg",
+      "audio/mp4",
+      "audio/ogg",
+      "audio/aac");
+
+  /**
+   * MIME type prefixes of content that is already compressed: video,
+   * the zip-based Office Open XML and OpenDocument formats.
+   */
+  private static final List<String> COMPRESSED_MIMETYPE_PREFIXES =
+      ImmutableList.of(
+          "video/",
+          "application/vnd.openxmlformats-officedocument.",
+          "application/vnd.ms-word.document.macroenabled.",
+          "application/vnd.ms-excel.sheet.macroenabled.",
+          "application/vnd.ms-powerpoint.presentation.macroenabled.",
+          "application/vnd.oasis.opendocument.");
+
+  private final int minSize;
+  private final double maxRatio;
+
+  private final AtomicLong compressedRecords = new AtomicLong();
+  private final AtomicLong uncompressedRecords = new AtomicLong();
+  private final AtomicLong bytesSaved = new AtomicLong();
+  private final AtomicLong compressionNanos = new AtomicLong();
+
+  /**
+   * Creates a {@code ContentEncodingSelector} with the default
+   * minimum size and compression ratio.
+   */
+  ContentEncodingSelector() {
+    this(DEFAULT_MIN_SIZE, DEFAULT_MAX_RATIO);
+  }
+
+  /**
+   * Creates a {@code ContentEncodingSelector}.
+   *
+   * @param minSize content smaller than this many bytes is not compressed
+   * @param maxRatio content is not compressed unless a trial compression
+   *        of its first block is smaller than this fraction of the original
+   */
+  ContentEncodingSelector(int minSize, double maxRatio) {
+    this.minSize = minSize;
+    this.maxRatio = maxRatio;
+  }
+
+  /**
+   * Returns {@code true} if the supplied MIME type is a known compressed
+   * format.
+   *
+   * @param mimetype a MIME type, possibly with parameters; may be
+   *        {@code null}
+   */
+  static boolean isCompressedMimeType(String mimetype) {
+    if (mimetype == null) {
+      return false;
+    }
+    int semicolon = mimetype.indexOf(';');
+    if (semicolon >= 0) {
+      mimetype = mimetype.substring(0, semicolon);
+    }
+    mimetype = mimetype.trim().toLowerCase();
+    if (COMPRESSED_MIMETYPES.contains(mimetype)
+        || mimetype.endsWith("+zip")) {
+      return true;
+    }
+    for (String prefix : COMPRESSED_MIMETYPE_PREFIXES) {
+      if (mimetype.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Chooses the encoding for the content in the supplied stream.  Up to
+   * {@link #TRIAL_SIZE} bytes are read from the stream, and pushed back
+   * so they may be read again.
+   *
+   * @param mimetype the MIME type of the content; may be {@code null}
+   * @param content the content, which must have room to push back
+   *        {@code TRIAL_SIZE} bytes; may be {@code null}
+   * @return either {@link ContentEncoding#BASE64COMPRESSED}
+   *         or {@link ContentEncoding#BASE64BINARY}
+   * @throws IOException if the content could not be read
+   */
+  ContentEncoding select(String mimetype, PushbackInputStream content)
+      throws IOException {
+    if (content == null || isCompressedMimeType(mimetype)) {
+      return uncompressed();
+    }
+
+    byte[] trial = new byte[TRIAL_SIZE];
+    int length = 0;
+    int bytesRead;
+    while (length < trial.length
+        && (bytesRead = content.read(trial, length, trial.length - length))
+            != -1) {
+      length += bytesRead;
+    }
+    content.unread(trial, 0, length);
+
+    // If the content ended within the first block, and it is small,
+    // it is not worth compressing.
+    if (length < minSize) {
+      return uncompressed();
+    }
+
+    long start = System.nanoTime();
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setInput(trial, 0, length);
+      deflater.finish();
+      // Incompressible data may grow slightly.
+      byte[] output = new byte[length + (length / 8) + 64];
+      int compressed = 0;
+      while (!deflater.finished() && compressed < output.length) {
+        compressed += deflater.deflate(output, compressed,
+                                       output.length - compressed);
+      }
+      if (!deflater.finished() || compressed > length * maxRatio) {
+        return uncompressed();
+      }
+    } finally {
+      deflater.end();
+      compressionNanos.addAndGet(System.nanoTime() - start);
+    }
+    compressedRecords.incrementAndGet();
+    return ContentEncoding.BASE64COMPRESSED;
+  }
+
+  private ContentEncoding uncompressed() {
+    uncompressedRecords.incrementAndGet();
+    return ContentEncoding.BASE64BINARY;
+  }
+
+  /**
+   * Returns a compressing stream for the supplied content that adds
+   * its results to the counters when it is closed.
+   *
+   * @param content the content to compress
+   * @param bufferSize size in bytes of I/O buffer used
+   */
+  InputStream newCompressedStream(InputStream content, int bufferSize) {
+    return new CompressedFilterInputStream(content, bufferSize) {
+      private boolean counted = false;
+
+      @Override
+      public void close() throws IOException {
+        super.close();
+        if (!counted) {
+          counted = true;
+          bytesSaved.addAndGet(getBytesRead() - getBytesWritten());
+          compressionNanos.addAndGet(getDeflateNanos());
+        }
+      }
+    };
+  }
+
+  /** Returns the number of records chosen to be compressed. */
+  long getCompressedRecords() {
+    return compressedRecords.get();
+  }
+
+  /** Returns the number of records chosen not to be compressed. */
+  long getUncompressedRecords() {
+    return uncompressedRecords.get();
+  }
+
+  /** Returns the number of bytes saved by compressing content. */
+  long getBytesSaved() {
+    return bytesSaved.get();
+  }
+
+  /**
+   * Returns the time spent compressing content, including the trial
+   * compressions, in nanoseconds.
+   */
+  long getCompressionNanos() {
+    return compressionNanos.get();
+  }
+
+  @Override
+  public String toString() {
+    return "ContentEncodingSelector: compressedRecords = "
+        + compressedRecords.get() + ", uncompressedRecords = "
+        + uncompressedRecords.get() + ", bytesSaved = " + bytesSaved.get()
+        + ", compressionMillis = " + (compressionNanos.get() / 1000000L);
+  }
+}
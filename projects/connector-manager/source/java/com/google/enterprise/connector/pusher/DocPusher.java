@@ -28,15 +28,17 @@ import com.google.enterprise.connector.util.filter.DocumentFilterFactory;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.Iterator;
+import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -84,17 +86,30 @@ public class DocPusher implements Pusher {
   private final String connectorName;
 
   /**
-   * ExcecutorService that submits a Feed to the GSA in a separate thread.
+   * FeedSender that submits a Feed to the GSA in a separate thread.
    * This allows us to overlap I/O reading content from the Repository
    * in the traversal thread, and submitting content to the GSA in
-   * a submitFeed thread.
+   * a FeedSender thread.  The FeedSender is normally shared by all
+   * DocPushers.
    */
-  private final ExecutorService feedSender;
+  private final FeedSender feedSender;
 
   /**
-   * This is the list of outstanding asynchronous feed submissions.
+   * If true, this DocPusher created its own private FeedSender, and
+   * is responsible for shutting it down.
    */
-  private final LinkedList<FutureTask<String>> submissions;
+  private final boolean ownsFeedSender;
+
+  /**
+   * This is the queue of outstanding asynchronous feed submissions.
+   */
+  private final Queue<FeedSubmission> submissions;
+
+  /**
+   * Flag indicating this DocPusher has been flushed or canceled,
+   * and will not accept any more documents.
+   */
+  private volatile boolean isShutdown = false;
 
   /**
    * This is used to build up a multi-record feed.  Documents are added to the
@@ -104,6 +119,13 @@ public class DocPusher implements Pusher {
    */
   private XmlFeed xmlFeed = null;
 
+  /**
+   * Chooses whether to compress the content of the documents in the
+   * feeds of this DocPusher.
+   */
+  private ContentEncodingSelector contentEncodingSelector =
+      new ContentEncodingSelector();
+
   /**
    * This field is used to construct a feed record in parallel to the main feed
    * InputStream construction.  It is only used if the feed logging level is set
@@ -132,14 +154,50 @@ public class DocPusher implements Pusher {
   public DocPusher(FeedConnection feedConnection, String connectorName,
                    FileSizeLimitInfo fileSizeLimitInfo,
                    DocumentFilterFactory documentFilterFactory) {
+    this(feedConnection, connectorName, fileSizeLimitInfo,
+         documentFilterFactory,
+         new FeedSender(1, FeedSender.DEFAULT_MAX_BACKLOG), true);
+  }
+
+  /**
+   * Creates a {@code DocPusher} object from the specified
+   * {@code feedConnection} and {@code connectorName}, that submits
+   * its feeds using the supplied shared {@link FeedSender}.
+   *
+   * @param feedConnection a FeedConnection
+   * @param connectorName The connector name that is the source of the feed
+   * @param fileSizeLimitInfo FileSizeLimitInfo constraints on document content
+   *        and feed size.
+   * @param documentFilterFactory a {@link DocumentFilterFactory} that creates
+   *        document processing filters.
+   * @param feedSender a {@link FeedSender} used to send the feeds
+   */
+  public DocPusher(FeedConnection feedConnection, String connectorName,
+                   FileSizeLimitInfo fileSizeLimitInfo,
+                   DocumentFilterFactory documentFilterFactory,
+                   FeedSender feedSender) {
+    this(feedConnection, connectorName, fileSizeLimitInfo,
+         documentFilterFactory, feedSender, false);
+  }
+
+  private DocPusher(FeedConnection feedConnection, String connectorName,
+                    FileSizeLimitInfo fileSizeLimitInfo,
+                    DocumentFilterFactory documentFilterFactory,
+                    FeedSender feedSender, boolean ownsFeedSender) {
     this.feedConnection = feedConnection;
     this.connectorName = connectorName;
     this.fileSizeLimit = fileSizeLimitInfo;
     this.documentFilterFactory = documentFilterFactory;
 
     // Initialize background feed submission.
-    this.submissions = new LinkedList<FutureTask<String>>();
-    this.feedSender = Executors.newSingleThreadExecutor();
+    this.submissions = new ConcurrentLinkedQueue<FeedSubmission>();
+    this.feedSender = feedSender;
+    this.ownsFeedSender = ownsFeedSender;
+  }
+
+  @VisibleForTesting
+  void setContentEncodingSelector(ContentEncodingSelector selector) {
+    contentEncodingSelector = selector;
   }
 
   /**
@@ -187,7 +245,7 @@ public class DocPusher implements Pusher {
   @Override
   public PusherStatus take(Document document)
       throws PushException, FeedException, RepositoryException {
-    if (feedSender.isShutdown()) {
+    if (isShutdown) {
       return PusherStatus.DISABLED;
     }
     checkSubmissions();
@@ -300,23 +358,46 @@ public class DocPusher implements Pusher {
   @Override
   public void flush() throws PushException, FeedException, RepositoryException {
     checkSubmissions();
-    if (!feedSender.isShutdown()) {
+    if (!isShutdown) {
       if (xmlFeed != null) {
         LOGGER.fine("Flushing accumulated feed to GSA");
         submitFeed();
       }
-      feedSender.shutdown();
+      isShutdown = true;
+      if (ownsFeedSender) {
+        feedSender.shutdown();
+      }
     }
-    while (!feedSender.isTerminated()) {
+    while (checkSubmissions() > 0) {
       try {
-        feedSender.awaitTermination(10, TimeUnit.SECONDS);
+        awaitSubmission(10, TimeUnit.SECONDS);
       } catch (InterruptedException ie) {
         if (checkSubmissions() > 0) {
           throw new FeedException("Interrupted while waiting for feeds.");
         }
       }
     }
-    checkSubmissions();
+  }
+
+  /**
+   * Waits for the oldest outstanding feed submission to complete.
+   * Any failure of the submission is left for {@link #checkSubmissions}
+   * to report.
+   */
+  private void awaitSubmission(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    FeedSubmission submission = submissions.peek();
+    if (submission != null) {
+      try {
+        submission.future.get(timeout, unit);
+      } catch (ExecutionException ee) {
+        // Reported by checkSubmissions.
+      } catch (CancellationException ce) {
+        // Reported by checkSubmissions.
+      } catch (TimeoutException te) {
+        // Keep waiting.
+      }
+    }
   }
 
   /**
@@ -327,20 +408,28 @@ public class DocPusher implements Pusher {
     // Discard any feed under construction.
     if (xmlFeed != null) {
       LOGGER.fine("Discarding accumulated feed for " + connectorName);
+      xmlFeed.release();
       xmlFeed = null;
     }
     if (feedLog != null) {
       feedLog = null;
     }
     // Cancel any feeds under asynchronous submission.
-    feedSender.shutdownNow();
+    isShutdown = true;
+    for (FeedSubmission submission : submissions) {
+      submission.future.cancel(true);
+      submission.discard();
+    }
+    if (ownsFeedSender) {
+      feedSender.shutdownNow();
+    }
   }
 
   @Override
   public PusherStatus getPusherStatus()
       throws PushException, FeedException, RepositoryException {
     // Is Pusher shutdown?
-    if (feedSender.isShutdown()) {
+    if (isShutdown) {
       return PusherStatus.DISABLED;
     }
 
@@ -350,9 +439,10 @@ public class DocPusher implements Pusher {
       return PusherStatus.LOW_MEMORY;
     }
 
-    // If the number of feeds waiting to be sent has backed up,
-    // tell the Traverser to finish this batch.
-    if (checkSubmissions() > 10) {
+    // If the number of feeds waiting to be sent by all the connectors
+    // has backed up, tell the Traverser to finish this batch.
+    checkSubmissions();
+    if (feedSender.isBacklogged()) {
       return PusherStatus.LOCAL_FEED_BACKLOG;
     } else if (feedConnection.isBacklogged()) {
       return PusherStatus.GSA_FEED_BACKLOG;
@@ -371,35 +461,35 @@ public class DocPusher implements Pusher {
   @VisibleForTesting
   int checkSubmissions()
       throws PushException, FeedException, RepositoryException {
-    int count = 0;  // Count of outstanding items in the list.
-    synchronized(submissions) {
-      ListIterator<FutureTask<String>> iter = submissions.listIterator();
-      while (iter.hasNext()) {
-        FutureTask<String> future = iter.next();
-        if (future.isDone()) {
-          iter.remove();
-          try {
-            gsaResponse = future.get();
-          } catch (InterruptedException ie) {
-            // Shouldn't happen if isDone.
-          } catch (ExecutionException ee) {
-            Throwable cause = ee.getCause();
-            if (cause == null) {
-              cause = ee;
-            }
-            if (cause instanceof PushException) {
-              throw (PushException) cause;
-            } else if (cause instanceof FeedException) {
-              throw (FeedException) cause;
-            } else if (cause instanceof RepositoryException) {
-              throw (RepositoryException) cause;
-            } else {
-              throw new FeedException("Error submitting feed", cause);
-            }
+    int count = 0;  // Count of outstanding items in the queue.
+    Iterator<FeedSubmission> iter = submissions.iterator();
+    while (iter.hasNext()) {
+      Future<String> future = iter.next().future;
+      if (future.isDone()) {
+        iter.remove();
+        try {
+          gsaResponse = future.get();
+        } catch (InterruptedException ie) {
+          // Shouldn't happen if isDone.
+        } catch (CancellationException ce) {
+          // The feed was discarded by cancel().
+        } catch (ExecutionException ee) {
+          Throwable cause = ee.getCause();
+          if (cause == null) {
+            cause = ee;
+          }
+          if (cause instanceof PushException) {
+            throw (PushException) cause;
+          } else if (cause instanceof FeedException) {
+            throw (FeedException) cause;
+          } else if (cause instanceof RepositoryException) {
+            throw (RepositoryException) cause;
+          } else {
+            throw new FeedException("Error submitting feed", cause);
           }
-        } else {
-          count++;
         }
+      } else {
+        count++;
       }
     }
     return count;
@@ -411,7 +501,10 @@ public class DocPusher implements Pusher {
    * @return true if free memory is running low.
    */
   private boolean lowMemory() {
-    long threshold = ((fileSizeLimit.maxFeedSize() + fileSizeLimit.maxDocumentSize()) * 4) / 3;
+    // Only the in-memory head of a feed uses heap, the rest is spilled.
+    long feedMemory = Math.min(fileSizeLimit.maxFeedSize(),
+                               fileSizeLimit.maxFeedMemory());
+    long threshold = ((feedMemory + fileSizeLimit.maxDocumentSize()) * 4) / 3;
     Runtime rt = Runtime.getRuntime();
     if ((rt.maxMemory() - (rt.totalMemory() - rt.freeMemory())) < threshold) {
       rt.gc();
@@ -445,7 +538,7 @@ public class DocPusher implements Pusher {
       try {
         // Allocate XmlFeed of the target size.
         xmlFeed = new XmlFeed(connectorName, feedType, fileSizeLimit, feedLog,
-            feedConnection);
+            feedConnection, contentEncodingSelector);
       } catch (OutOfMemoryError me) {
         // We shouldn't even have gotten this far under a low memory condition.
         // However, try to allocate a tiny feed buffer.  It should fill up on
@@ -459,7 +552,7 @@ public class DocPusher implements Pusher {
         newLimit.setMaxDocumentSize(fileSizeLimit.maxDocumentSize());
         try {
           xmlFeed = new XmlFeed(connectorName, feedType, newLimit, feedLog,
-              feedConnection);
+              feedConnection, contentEncodingSelector);
         } catch (OutOfMemoryError oome) {
           throw new OutOfMemoryError(
                "Unable to allocate feed buffer for connector " + connectorName);
@@ -499,34 +592,61 @@ public class DocPusher implements Pusher {
     try {
       feed.close();
     } catch (IOException ioe) {
+      feed.release();
       throw new PushException("Error closing feed", ioe);
     }
 
+    FeedSubmission submission = new FeedSubmission(feed, logMessage);
     try {
       // Send the feed to the GSA in a separate thread.
-      FutureTask<String> future = new FutureTask<String> (
-          new Callable<String>() {
-            public String call()
-                throws PushException, FeedException, RepositoryException {
-              try {
-                NDC.push("Feed " + feed.getDataSource());
-                return submitFeed(feed, logMessage);
-              } finally {
-                NDC.remove();
-              }
-            }
-          }
-        );
-      feedSender.execute(future);
-      // Add the future to list of outstanding submissions.
-      synchronized(submissions) {
-        submissions.add(future);
-      }
+      submission.future = feedSender.submit(submission);
+      // Add the submission to queue of outstanding submissions.
+      submissions.add(submission);
     } catch (RejectedExecutionException ree) {
+      feed.release();
       throw new FeedException("Asynchronous feed was rejected. ", ree);
     }
   }
 
+  /**
+   * An asynchronous submission of a feed to the GSA.  The feed is
+   * released once it has been sent, or if the submission is discarded
+   * before it starts.
+   */
+  private class FeedSubmission implements Callable<String> {
+    private final XmlFeed feed;
+    private final String logMessage;
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    volatile Future<String> future;
+
+    FeedSubmission(XmlFeed feed, String logMessage) {
+      this.feed = feed;
+      this.logMessage = logMessage;
+    }
+
+    @Override
+    public String call()
+        throws PushException, FeedException, RepositoryException {
+      if (!claimed.compareAndSet(false, true)) {
+        throw new CancellationException("Feed was discarded.");
+      }
+      try {
+        NDC.push("Feed " + feed.getDataSource());
+        return submitFeed(feed, logMessage);
+      } finally {
+        feed.release();
+        NDC.remove();
+      }
+    }
+
+    /** Releases the feed, if it has not started to be sent. */
+    void discard() {
+      if (claimed.compareAndSet(false, true)) {
+        feed.release();
+      }
+    }
+  }
+
   /**
    * Takes the supplied XmlFeed and sends that feed to the GSA.
    *
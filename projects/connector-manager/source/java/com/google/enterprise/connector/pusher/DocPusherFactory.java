@@ -16,6 +16,7 @@ package com.google.enterprise.connector.pusher;
 
 import com.google.enterprise.connector.instantiator.DocumentFilterFactoryFactory;
 import com.google.enterprise.connector.instantiator.DocumentFilterFactoryFactoryImpl;
+import com.google.enterprise.connector.manager.ContextService;
 import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
 
 import java.util.logging.Logger;
@@ -23,10 +24,14 @@ import java.util.logging.Logger;
 /**
  * Factory that creates {@link DocPusher} instances that feed
  * {@link FeedConnection}.
+ * <p>
+ * If the factory is not given a {@link FeedSender}, it creates its own,
+ * and stops it when the factory is stopped as a {@link ContextService}.
+ * A {@code FeedSender} that is given to the factory is not stopped by it.
  */
 // TODO: Support multiple sinks where different connector instances
 // might feed different sinks.
-public class DocPusherFactory implements PusherFactory {
+public class DocPusherFactory implements PusherFactory, ContextService {
 
   private static final Logger LOGGER =
       Logger.getLogger(DocPusherFactory.class.getName());
@@ -52,6 +57,15 @@ public class DocPusherFactory implements PusherFactory {
    */
   private final DocumentFilterFactoryFactory documentFilterFactoryFactory;
 
+  /**
+   * The {@link FeedSender} shared by all the {@link DocPusher} instances
+   * created by this factory.
+   */
+  private final FeedSender feedSender;
+
+  /** {@code true} if the {@link #feedSender} was created by this factory. */
+  private final boolean ownsFeedSender;
+
   /**
    * Creates a {@code DocPusherFactory} object from the specified
    * {@code feedConnection}.  This constructor is Used by the tests.
@@ -67,7 +81,8 @@ public class DocPusherFactory implements PusherFactory {
    * Creates a {@code DocPusherFactory} object from the specified
    * {@code feedConnection}.  The supplied {@link FileSizeLimitInfo} specifies
    * constraints as to the size of a Document's content and the size of
-   * generated Feed files.
+   * generated Feed files.  The factory creates its own {@link FeedSender},
+   * which it stops when it is {@link #stop stopped}.
    *
    * @param feedConnection a {@link FeedConnection} sink for documents.
    * @param fileSizeLimit {@link FileSizeLimitInfo} constraints on document
@@ -78,18 +93,77 @@ public class DocPusherFactory implements PusherFactory {
   public DocPusherFactory(FeedConnection feedConnection,
       FileSizeLimitInfo fileSizeLimit,
       DocumentFilterFactoryFactory documentFilterFactoryFactory) {
+    this(feedConnection, fileSizeLimit, documentFilterFactoryFactory,
+         new FeedSender(), true);
+  }
+
+  /**
+   * Creates a {@code DocPusherFactory} object from the specified
+   * {@code feedConnection}.  The supplied {@link FileSizeLimitInfo} specifies
+   * constraints as to the size of a Document's content and the size of
+   * generated Feed files.  The supplied {@link FeedSender} is shared by
+   * all the {@link DocPusher} instances created by this factory.
+   *
+   * @param feedConnection a {@link FeedConnection} sink for documents.
+   * @param fileSizeLimit {@link FileSizeLimitInfo} constraints on document
+   *        content and feed size.
+   * @param documentFilterFactoryFactory a {@link DocumentFilterFactoryFactory}
+   *        that will be used to create document processing filters.
+   * @param feedSender a {@link FeedSender} that sends the generated feeds.
+   *        It is not stopped by this factory.
+   */
+  public DocPusherFactory(FeedConnection feedConnection,
+      FileSizeLimitInfo fileSizeLimit,
+      DocumentFilterFactoryFactory documentFilterFactoryFactory,
+      FeedSender feedSender) {
+    this(feedConnection, fileSizeLimit, documentFilterFactoryFactory,
+         feedSender, false);
+  }
+
+  private DocPusherFactory(FeedConnection feedConnection,
+      FileSizeLimitInfo fileSizeLimit,
+      DocumentFilterFactoryFactory documentFilterFactoryFactory,
+      FeedSender feedSender, boolean ownsFeedSender) {
     this.feedConnection = feedConnection;
     this.fileSizeLimit = fileSizeLimit;
     this.documentFilterFactoryFactory = documentFilterFactoryFactory;
+    this.feedSender = feedSender;
+    this.ownsFeedSender = ownsFeedSender;
 
     LOGGER.config(feedConnection.toString());
     LOGGER.config(fileSizeLimit.toString());
     LOGGER.config(documentFilterFactoryFactory.toString());
+    LOGGER.config(feedSender.toString());
   }
 
   @Override
   public Pusher newPusher(String dataSource) {
     return new DocPusher(feedConnection, dataSource, fileSizeLimit,
-        documentFilterFactoryFactory.getDocumentFilterFactory(dataSource));
+        documentFilterFactoryFactory.getDocumentFilterFactory(dataSource),
+        feedSender);
+  }
+
+  @Override
+  public void start() {
+    if (ownsFeedSender) {
+      feedSender.start();
+    }
+  }
+
+  @Override
+  public void stop(boolean force) {
+    if (ownsFeedSender) {
+      feedSender.stop(force);
+    }
+  }
+
+  @Override
+  public boolean isRunning() {
+    return feedSender.isRunning();
+  }
+
+  @Override
+  public String getName() {
+    return DocPusherFactory.class.getName();
   }
 }
@@ -0,0 +1,362 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link OutputStream} that accumulates data in memory up to a fixed
+ * threshold, then spills any additional data to a temporary file.  This
+ * bounds the amount of heap used by a feed under construction, regardless
+ * of the configured feed file size.
+ * <p>
+ * Like {@link ByteArrayOutputStream}, the data may be written out again
+ * any number of times with {@link #writeTo(OutputStream)}, and may be
+ * truncated with {@link #reset(int)}.  Once the data is no longer needed,
+ * {@link #release()} must be called to delete the temporary file.
+ */
+public class FeedBuffer extends OutputStream {
+  private static final Logger LOGGER =
+      Logger.getLogger(FeedBuffer.class.getName());
+
+  /** The initial size of the in-memory buffer. */
+  private static final int INITIAL_BUFFER_SIZE = 32 * 1024;
+
+  /** The size of the buffer used for writes to the spill file. */
+  private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+
+  /** The maximum number of bytes held in memory. */
+  private final int memoryLimit;
+
+  /** The in-memory head of the data. */
+  private byte[] buf;
+
+  /** The number of valid bytes in {@code buf}. */
+  private int count;
+
+  /** The temporary file holding the data beyond the in-memory head. */
+  private File spillFile;
+
+  /** The open spill file, or {@code null} if there is none. */
+  private RandomAccessFile spill;
+
+  /** The number of bytes written to the spill file. */
+  private long spillLength;
+
+  /** Data destined for the spill file, but not yet written to it. */
+  private byte[] spillBuf;
+
+  /** The number of valid bytes in {@code spillBuf}. */
+  private int spillCount;
+
+  /**
+   * Creates a {@code FeedBuffer} that holds up to {@code memoryLimit}
+   * bytes in memory.
+   *
+   * @param memoryLimit the maximum number of bytes held in memory
+   */
+  public FeedBuffer(int memoryLimit) {
+    Preconditions.checkArgument(memoryLimit > 0,
+        "memoryLimit must be positive: %s", memoryLimit);
+    this.memoryLimit = memoryLimit;
+    this.buf = new byte[Math.min(memoryLimit, INITIAL_BUFFER_SIZE)];
+  }
+
+  /**
+   * Returns the current size of the data.
+   */
+  public synchronized int size() {
+    return (int) (count + spillLength + spillCount);
+  }
+
+  /**
+   * Returns the spill file, or {@code null} if no data has been spilled
+   * to disk.
+   */
+  @VisibleForTesting
+  synchronized File getSpillFile() {
+    return spillFile;
+  }
+
+  @Override
+  public synchronized void write(int b) throws IOException {
+    if (ensureMemory(1) > 0) {
+      buf[count++] = (byte) b;
+    } else {
+      if (spillCount == spillBuf.length) {
+        flushSpill();
+      }
+      spillBuf[spillCount++] = (byte) b;
+    }
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len)
+      throws IOException {
+    if ((off < 0) || (len < 0) || (off > b.length - len)) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      int room = ensureMemory(len);
+      if (room > 0) {
+        int bytes = Math.min(len, room);
+        System.arraycopy(b, off, buf, count, bytes);
+        count += bytes;
+        off += bytes;
+        len -= bytes;
+      } else {
+        if (len > spillBuf.length - spillCount) {
+          flushSpill();
+        }
+        if (len >= spillBuf.length) {
+          spill.seek(spillLength);
+          spill.write(b, off, len);
+          spillLength += len;
+        } else {
+          System.arraycopy(b, off, spillBuf, spillCount, len);
+          spillCount += len;
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Reads the complete contents of the supplied InputStream
+   * directly into this buffer.  This avoids the data copy that would
+   * occur if using {@code InputStream.read(byte[], int, int)}, followed
+   * by {@code write(byte[], int, int)}.
+   *
+   * @param in the InputStream from which to read the data.
+   * @throws IOException if an I/O error occurs.
+   */
+  public synchronized void readFrom(InputStream in) throws IOException {
+    int bytes;
+    do {
+      int room = ensureMemory(INITIAL_BUFFER_SIZE);
+      if (room > 0) {
+        bytes = in.read(buf, count, room);
+        if (bytes > 0) {
+          count += bytes;
+        }
+      } else {
+        if (spillCount == spillBuf.length) {
+          flushSpill();
+        }
+        bytes = in.read(spillBuf, spillCount, spillBuf.length - spillCount);
+        if (bytes > 0) {
+          spillCount += bytes;
+        }
+      }
+    } while (bytes != -1);
+  }
+
+  /**
+   * Makes room in memory for up to {@code len} more bytes, growing the
+   * in-memory buffer up to the memory limit, and opening the spill file
+   * once the memory limit is reached.
+   *
+   * @return the number of bytes that may be written to {@code buf};
+   *         zero if further data must be written to the spill file
+   */
+  private int ensureMemory(int len) throws IOException {
+    if (spill != null) {
+      return 0;
+    }
+    if (count + len > buf.length && buf.length < memoryLimit) {
+      long newSize = Math.max(2L * buf.length, (long) count + len);
+      byte[] newbuf = new byte[(int) Math.min(newSize, memoryLimit)];
+      System.arraycopy(buf, 0, newbuf, 0, count);
+      buf = newbuf;
+    }
+    int room = buf.length - count;
+    if (room == 0) {
+      openSpill();
+    }
+    return room;
+  }
+
+  /** Creates the spill file. */
+  private void openSpill() throws IOException {
+    spillFile = File.createTempFile("feed", ".xml");
+    try {
+      spill = new RandomAccessFile(spillFile, "rw");
+    } catch (IOException e) {
+      deleteSpillFile();
+      throw e;
+    }
+    spillBuf = new byte[SPILL_BUFFER_SIZE];
+    spillLength = 0L;
+    spillCount = 0;
+    if (LOGGER.isLoggable(Level.FINEST)) {
+      LOGGER.finest("Spilling feed data beyond " + count + " bytes to "
+                    + spillFile);
+    }
+  }
+
+  /** Writes any buffered spill data to the spill file. */
+  private void flushSpill() throws IOException {
+    if (spillCount > 0) {
+      spill.seek(spillLength);
+      spill.write(spillBuf, 0, spillCount);
+      spillLength += spillCount;
+      spillCount = 0;
+    }
+  }
+
+  /**
+   * Resets the size of this buffer to the specified {@code size},
+   * effectively discarding any data that may have been written past
+   * that point.
+   * <p>
+   * This method may be used to reduce the size of the data stored,
+   * but not to increase it.  In other words, the specified {@code size}
+   * cannot be greater than the current size.
+   *
+   * @param size new data size.
+   */
+  public synchronized void reset(int size) {
+    if (size < 0 || size > size()) {
+      throw new IllegalArgumentException(
+          "New size must not be negative or greater than the current size.");
+    }
+    if (size <= count) {
+      count = size;
+      spillLength = 0L;
+      spillCount = 0;
+    } else if (size <= count + spillLength) {
+      spillLength = size - count;
+      spillCount = 0;
+    } else {
+      spillCount = (int) (size - count - spillLength);
+    }
+  }
+
+  /**
+   * Discards all the data in this buffer.
+   */
+  public synchronized void reset() {
+    reset(0);
+  }
+
+  /**
+   * Writes the complete contents of this buffer to the specified
+   * output stream.
+   *
+   * @param out the output stream to which to write the data.
+   * @throws IOException if an I/O error occurs.
+   */
+  public synchronized void writeTo(OutputStream out) throws IOException {
+    out.write(buf, 0, count);
+    if (spill != null) {
+      flushSpill();
+      spill.seek(0L);
+      byte[] buffer = spillBuf;
+      long remaining = spillLength;
+      while (remaining > 0) {
+        int bytes = spill.read(buffer, 0,
+                               (int) Math.min(buffer.length, remaining));
+        if (bytes == -1) {
+          throw new IOException("Unexpected end of feed spill file "
+                                + spillFile);
+        }
+        out.write(buffer, 0, bytes);
+        remaining -= bytes;
+      }
+    }
+  }
+
+  /**
+   * Returns a copy of the contents of this buffer.  This is intended
+   * for testing, since the copy will be the full size of the data.
+   */
+  public synchronized byte[] toByteArray() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(size());
+    writeTo(out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns the contents of this buffer as a string, decoding the bytes
+   * using the named charset.  This is intended for testing, since the
+   * string will be the full size of the data.
+   */
+  public synchronized String toString(String charsetName)
+      throws UnsupportedEncodingException {
+    try {
+      return new String(toByteArray(), charsetName);
+    } catch (UnsupportedEncodingException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to read feed spill file", e);
+    }
+  }
+
+  /**
+   * Returns the contents of this buffer as a string, decoding the bytes
+   * using the platform default charset.
+   */
+  @Override
+  public synchronized String toString() {
+    try {
+      return new String(toByteArray());
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to read feed spill file", e);
+    }
+  }
+
+  /**
+   * Releases the resources held by this buffer, deleting the spill file,
+   * if any.  The data in this buffer is discarded.
+   */
+  public synchronized void release() {
+    buf = new byte[0];
+    count = 0;
+    spillLength = 0L;
+    spillCount = 0;
+    spillBuf = null;
+    if (spill != null) {
+      try {
+        spill.close();
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to close feed spill file "
+                   + spillFile, e);
+      }
+      spill = null;
+    }
+    deleteSpillFile();
+  }
+
+  private void deleteSpillFile() {
+    if (spillFile != null) {
+      if (!spillFile.delete() && spillFile.exists()) {
+        LOGGER.warning("Failed to delete feed spill file " + spillFile);
+        spillFile.deleteOnExit();
+      }
+      spillFile = null;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Random;
+
+/**
+ * Policy that determines whether, and how soon, a failed feed submission
+ * should be retried.  Sending the same feed file to the GSA more than once
+ * is harmless, so feeds that fail with a transient I/O error or an
+ * {@link GsaFeedConnection#INTERNAL_ERROR_RESPONSE} are retried after
+ * an exponentially increasing delay, capped at a maximum delay.  A random
+ * jitter is applied to each delay, so that many connector instances that
+ * fail at the same time do not all retry at the same time.
+ */
+public class FeedRetryPolicy {
+  /** The default number of times to retry a failed feed. */
+  public static final int DEFAULT_MAX_RETRIES = 3;
+
+  /** The default delay before the first retry, in milliseconds. */
+  public static final long DEFAULT_INITIAL_DELAY_MILLIS = 1000L;
+
+  /** The default maximum delay between retries, in milliseconds. */
+  public static final long DEFAULT_MAX_DELAY_MILLIS = 30 * 1000L;
+
+  /** A policy that never retries. */
+  public static final FeedRetryPolicy NO_RETRIES =
+      new FeedRetryPolicy(0, 0L, 0L);
+
+  private final int maxRetries;
+  private final long initialDelayMillis;
+  private final long maxDelayMillis;
+  private final Random random = new Random();
+
+  /**
+   * Creates a {@code FeedRetryPolicy} with the default values.
+   */
+  public FeedRetryPolicy() {
+    this(DEFAULT_MAX_RETRIES, DEFAULT_INITIAL_DELAY_MILLIS,
+         DEFAULT_MAX_DELAY_MILLIS);
+  }
+
+  /**
+   * Creates a {@code FeedRetryPolicy}.
+   *
+   * @param maxRetries the maximum number of times a failed feed is retried
+   * @param initialDelayMillis the delay before the first retry,
+   *        in milliseconds
+   * @param maxDelayMillis the maximum delay between retries,
+   *        in milliseconds
+   */
+  public FeedRetryPolicy(int maxRetries, long initialDelayMillis,
+      long maxDelayMillis) {
+    Preconditions.checkArgument(maxRetries >= 0,
+        "maxRetries must not be negative: %s", maxRetries);
+    Preconditions.checkArgument(initialDelayMillis >= 0,
+        "initialDelayMillis must not be negative: %s", initialDelayMillis);
+    this.maxRetries = maxRetries;
+    this.initialDelayMillis = initialDelayMillis;
+    this.maxDelayMillis = Math.max(initialDelayMillis, maxDelayMillis);
+  }
+
+  /** Returns the maximum number of times a failed feed is retried. */
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * Returns {@code true} if a feed that received the supplied response
+   * from the GSA should be retried.
+   *
+   * @param response the response from the GSA
+   */
+  public boolean isRetryable(String response) {
+    return GsaFeedConnection.INTERNAL_ERROR_RESPONSE.equals(response);
+  }
+
+  /**
+   * Returns the number of milliseconds to wait before the supplied retry.
+   * The nominal delay doubles with every retry, up to the maximum delay.
+   * The returned delay is chosen at random from the upper half of the
+   * nominal delay.
+   *
+   * @param retry the retry number, starting at 1
+   */
+  public long getDelayMillis(int retry) {
+    long delay = initialDelayMillis;
+    for (int i = 1; i < retry && delay < maxDelayMillis; i++) {
+      delay *= 2;
+    }
+    delay = Math.min(delay, maxDelayMillis);
+    long half = delay / 2;
+    return half + (long) (random.nextDouble() * (delay - half));
+  }
+
+  /**
+   * Waits before a retry.
+   *
+   * @param retry the retry number, starting at 1
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void waitForRetry(int retry) throws InterruptedException {
+    long delay = getDelayMillis(retry);
+    if (delay > 0) {
+      Thread.sleep(delay);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "FeedRetryPolicy: maxRetries = " + maxRetries
+        + ", initialDelayMillis = " + initialDelayMillis
+        + ", maxDelayMillis = " + maxDelayMillis;
+  }
+}
@@ -0,0 +1,290 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.instantiator.ThreadPool;
+import com.google.enterprise.connector.manager.ContextService;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of feed sender threads shared by all the {@link DocPusher}
+ * instances created by the Connector Manager.  Feeds built by the
+ * traversal threads are submitted here, so that several feeds may be
+ * sent to the GSA concurrently, without creating and destroying a
+ * thread for every traversal batch.
+ * <p>
+ * The {@code FeedSender} also tracks the number of feeds that have been
+ * submitted, but not yet sent, across all connector instances.  If that
+ * number exceeds the configured maximum backlog, {@link #isBacklogged()}
+ * returns {@code true}, and the {@code DocPusher}s will report a
+ * {@link Pusher.PusherStatus#LOCAL_FEED_BACKLOG} to the traversals.
+ */
+public class FeedSender implements ContextService {
+  private static final Logger LOGGER =
+      Logger.getLogger(FeedSender.class.getName());
+
+  /** The default number of feed sender threads. */
+  public static final int DEFAULT_SENDER_THREADS = 4;
+
+  /** The default maximum number of outstanding feeds. */
+  public static final int DEFAULT_MAX_BACKLOG = 10;
+
+  /** Idle sender threads are allowed to die after this many seconds. */
+  private static final long KEEP_ALIVE_SECONDS = 60L;
+
+  /** The maximum number of concurrent feed sender threads. */
+  private final int senderThreads;
+
+  /** The maximum number of feeds waiting to be sent before backlogging. */
+  private final int maxBacklog;
+
+  /** The number of feeds submitted, but not yet completed. */
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  /** The lazily constructed executor that runs the feed submissions. */
+  private ThreadPoolExecutor executor;
+
+  /** Flag indicating shutdown was called.  Don't accept more feeds. */
+  private boolean isShutdown = false;
+
+  /**
+   * Creates a {@code FeedSender} with the default number of sender
+   * threads and the default maximum backlog.
+   */
+  public FeedSender() {
+    this(DEFAULT_SENDER_THREADS, DEFAULT_MAX_BACKLOG);
+  }
+
+  /**
+   * Creates a {@code FeedSender}.
+   *
+   * @param senderThreads the maximum number of feeds that may be sent
+   *        to the GSA concurrently
+   * @param maxBacklog the maximum number of feeds that may be waiting
+   *        to be sent before {@link #isBacklogged()} returns {@code true}
+   */
+  public FeedSender(int senderThreads, int maxBacklog) {
+    Preconditions.checkArgument(senderThreads > 0,
+        "senderThreads must be positive: %s", senderThreads);
+    this.senderThreads = senderThreads;
+    this.maxBacklog = maxBacklog;
+  }
+
+  /** Returns the maximum number of concurrent feed sender threads. */
+  public int getSenderThreads() {
+    return senderThreads;
+  }
+
+  /** Returns the maximum number of outstanding feeds before backlogging. */
+  public int getMaxBacklog() {
+    return maxBacklog;
+  }
+
+  /**
+   * Returns the number of feeds that have been submitted, but have not
+   * yet completed, for all connector instances.
+   */
+  public int getOutstandingFeeds() {
+    return outstanding.get();
+  }
+
+  /**
+   * Returns {@code true} if the number of outstanding feeds exceeds
+   * the configured maximum backlog.
+   */
+  public boolean isBacklogged() {
+    return outstanding.get() > maxBacklog;
+  }
+
+  /**
+   * Submits a feed for asynchronous transmission.
+   *
+   * @param feedTask a {@link Callable} that sends a feed and returns
+   *        the response from the GSA
+   * @return a {@link Future} representing the pending feed submission
+   * @throws RejectedExecutionException if the {@code FeedSender} has
+   *         been shut down
+   */
+  public Future<String> submit(Callable<String> feedTask) {
+    FeedTask future = new FeedTask(feedTask);
+    outstanding.incrementAndGet();
+    try {
+      getExecutor().execute(future);
+    } catch (RejectedExecutionException e) {
+      outstanding.decrementAndGet();
+      throw e;
+    }
+    return future;
+  }
+
+  /**
+   * Returns the executor, creating it if necessary.
+   *
+   * @throws RejectedExecutionException if the {@code FeedSender} has
+   *         been shut down
+   */
+  private synchronized ThreadPoolExecutor getExecutor() {
+    if (isShutdown) {
+      throw new RejectedExecutionException("FeedSender has been shut down.");
+    }
+    if (executor == null) {
+      executor = new ThreadPoolExecutor(senderThreads, senderThreads,
+          KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder().setNameFormat("FeedSender-%d").build());
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
+  }
+
+  /**
+   * Shuts down the {@code FeedSender}.  Feeds that have already been
+   * submitted will still be sent, but no new feeds will be accepted.
+   * This method does not wait for the outstanding feeds to be sent.
+   */
+  public void shutdown() {
+    shutdown(false);
+  }
+
+  /**
+   * Shuts down the {@code FeedSender}, interrupting any feeds being sent.
+   * This method does not wait for the sender threads to terminate.
+   */
+  public void shutdownNow() {
+    shutdown(true);
+  }
+
+  /**
+   * Shuts down the executor, if it was ever started.
+   *
+   * @param force if {@code true}, interrupt the feeds being sent
+   * @return the executor that was shut down, or {@code null} if there
+   *         was none
+   */
+  private synchronized ThreadPoolExecutor shutdown(boolean force) {
+    isShutdown = true;
+    if (executor != null) {
+      if (force) {
+        // Cancel the feeds that never started, so no one waits on them.
+        for (Runnable task : executor.shutdownNow()) {
+          ((Future<?>) task).cancel(false);
+        }
+      } else {
+        executor.shutdown();
+      }
+    }
+    return executor;
+  }
+
+  /**
+   * Starts the {@code FeedSender}.  A {@code FeedSender} that was stopped
+   * accepts feeds again, and creates a new executor for them.
+   */
+  @Override
+  public synchronized void start() {
+    // The executor is lazily constructed on the first submission.
+    if (isShutdown) {
+      isShutdown = false;
+      executor = null;
+    }
+  }
+
+  @Override
+  public void stop(boolean force) {
+    ThreadPoolExecutor toStop = shutdown(force);
+    if (toStop == null) {
+      return;
+    }
+    try {
+      if (!toStop.awaitTermination(ThreadPool.DEFAULT_SHUTDOWN_TIMEOUT_MILLIS,
+          TimeUnit.MILLISECONDS)) {
+        LOGGER.warning("Timed out waiting for feeds to be sent.");
+      }
+    } catch (InterruptedException e) {
+      LOGGER.log(Level.FINE, "Interrupted waiting for feeds to be sent.", e);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public synchronized boolean isRunning() {
+    return !isShutdown;
+  }
+
+  @Override
+  public String getName() {
+    return FeedSender.class.getName();
+  }
+
+  /**
+   * A feed submission that is no longer counted as outstanding once it
+   * completes or is canceled.  The count is released before the result
+   * is made available, so anyone waiting on the result sees the updated
+   * count.
+   */
+  private class FeedTask extends FutureTask<String> {
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    FeedTask(Callable<String> callable) {
+      super(callable);
+    }
+
+    private void release() {
+      if (released.compareAndSet(false, true)) {
+        outstanding.decrementAndGet();
+      }
+    }
+
+    @Override
+    protected void set(String response) {
+      release();
+      super.set(response);
+    }
+
+    @Override
+    protected void setException(Throwable t) {
+      release();
+      super.setException(t);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean canceled = super.cancel(mayInterruptIfRunning);
+      if (canceled) {
+        release();
+      }
+      return canceled;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "FeedSender: senderThreads = " + senderThreads
+        + ", maxBacklog = " + maxBacklog;
+  }
+}
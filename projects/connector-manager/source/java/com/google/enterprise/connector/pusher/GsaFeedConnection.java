@@ -115,6 +115,15 @@ public class GsaFeedConnection implements FeedConnection {
   /** Whether HTTPS connections validate the server certificate. */
   private boolean validateCertificate = true;
 
+  /** Connect timeout, in milliseconds.  Zero means wait forever. */
+  private int connectTimeoutMillis = 60 * 1000;
+
+  /** Read timeout, in milliseconds.  Zero means wait forever. */
+  private int readTimeoutMillis = 5 * 60 * 1000;
+
+  /** Determines whether and when to retry failed feeds. */
+  private FeedRetryPolicy retryPolicy = new FeedRetryPolicy();
+
   public GsaFeedConnection(String protocol, String host, int port,
       int securePort) throws MalformedURLException {
     if (Strings.isNullOrEmpty(protocol)) {
@@ -193,6 +202,43 @@ public class GsaFeedConnection implements FeedConnection {
     return validateCertificate;
   }
 
+  /**
+   * Sets the timeout used when opening a connection to the GSA.
+   *
+   * @param seconds the connect timeout in seconds; zero means no timeout
+   */
+  public void setConnectTimeout(int seconds) {
+    this.connectTimeoutMillis = seconds * 1000;
+  }
+
+  /**
+   * Sets the timeout used when waiting for the GSA to respond.
+   *
+   * @param seconds the read timeout in seconds; zero means no timeout
+   */
+  public void setReadTimeout(int seconds) {
+    this.readTimeoutMillis = seconds * 1000;
+  }
+
+  /**
+   * Sets the {@link FeedRetryPolicy} used to retry failed feeds.
+   */
+  public void setRetryPolicy(FeedRetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy;
+  }
+
+  /** Opens a connection to the supplied URL, configured with our options. */
+  private HttpURLConnection openConnection(URL url)
+      throws IOException, GeneralSecurityException {
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    if (conn instanceof HttpsURLConnection && !validateCertificate) {
+      SslUtil.setTrustingHttpsOptions((HttpsURLConnection) conn);
+    }
+    conn.setConnectTimeout(connectTimeoutMillis);
+    conn.setReadTimeout(readTimeoutMillis);
+    return conn;
+  }
+
   private static final void controlHeader(StringBuilder builder,
         String name, String mimetype) {
     builder.append("--").append(BOUNDARY).append(CRLF);
@@ -206,7 +252,7 @@ public class GsaFeedConnection implements FeedConnection {
   public String sendData(FeedData feedData)
       throws FeedException {
     try {
-      String response = sendFeedData((XmlFeed)feedData);
+      String response = sendFeedDataWithRetries((XmlFeed) feedData);
       gotFeedError = !response.equalsIgnoreCase(SUCCESS_RESPONSE);
       return response;
     } catch (FeedException fe) {
@@ -215,6 +261,39 @@ public class GsaFeedConnection implements FeedConnection {
     }
   }
 
+  /**
+   * Sends the feed, retrying transient failures as allowed by the
+   * {@link FeedRetryPolicy}.  I/O errors and {@code Internal Error}
+   * responses are considered transient.
+   */
+  private String sendFeedDataWithRetries(XmlFeed feed) throws FeedException {
+    FeedRetryPolicy policy = retryPolicy;
+    for (int retry = 1; ; retry++) {
+      boolean mayRetry = retry <= policy.getMaxRetries();
+      try {
+        String response = sendFeedData(feed);
+        if (!mayRetry || !policy.isRetryable(response)) {
+          return response;
+        }
+        LOGGER.warning("Feed for " + feed.getDataSource() + " returned "
+            + response + ": retry " + retry + " of "
+            + policy.getMaxRetries());
+      } catch (FeedException fe) {
+        if (!mayRetry || !(fe.getCause() instanceof IOException)) {
+          throw fe;
+        }
+        LOGGER.log(Level.WARNING, "Feed for " + feed.getDataSource()
+            + " failed: retry " + retry + " of " + policy.getMaxRetries(), fe);
+      }
+      try {
+        policy.waitForRetry(retry);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new FeedException("Interrupted while waiting to retry feed.");
+      }
+    }
+  }
+
   private String sendFeedData(XmlFeed feed)
       throws FeedException {
     String feedType = feed.getFeedType().toLegacyString();
@@ -239,12 +318,11 @@ public class GsaFeedConnection implements FeedConnection {
       suffix = buf.toString().getBytes(Charsets.UTF_8);
 
       LOGGER.finest("Opening feed connection to " + feedUrl);
+      URL url;
       synchronized (this) {
-        uc = (HttpURLConnection) feedUrl.openConnection();
-      }
-      if (uc instanceof HttpsURLConnection && !validateCertificate) {
-        SslUtil.setTrustingHttpsOptions((HttpsURLConnection) uc);
+        url = feedUrl;
       }
+      uc = openConnection(url);
       uc.setDoInput(true);
       uc.setDoOutput(true);
       uc.setFixedLengthStreamingMode(prefix.length + feed.size()
@@ -294,6 +372,8 @@ public class GsaFeedConnection implements FeedConnection {
       }
     } finally {
       BufferedReader br = null;
+      // The connection may only be reused if the response is fully read.
+      boolean reusable = false;
       try {
         LOGGER.finest("Waiting for response from feed connection.");
         InputStream inputStream = uc.getInputStream();
@@ -302,6 +382,7 @@ public class GsaFeedConnection implements FeedConnection {
         while ((line = br.readLine()) != null) {
           buf.append(line);
         }
+        reusable = !isThrowing;
       } catch (IOException ioe) {
         if (!isThrowing) {
           throw new FeedException(ioe);
@@ -314,8 +395,11 @@ public class GsaFeedConnection implements FeedConnection {
         } catch (IOException e) {
           LOGGER.log(Level.SEVERE,
                      "IOException while closing after post: continuing", e);
+          reusable = false;
         }
-        if (uc != null) {
+        // Closing the fully read response returns the connection to the
+        // keep-alive cache.  Otherwise, discard the connection.
+        if (!reusable) {
           uc.disconnect();
         }
         if (LOGGER.isLoggable(Level.FINEST)) {
@@ -455,14 +539,12 @@ public class GsaFeedConnection implements FeedConnection {
     BufferedReader br = null;
     String str = null;
     StringBuilder buf = new StringBuilder();
+    boolean reusable = false;
     try {
       if (LOGGER.isLoggable(Level.FINEST)) {
         LOGGER.finest("Opening " + name + " connection to " + url);
       }
-      conn = (HttpURLConnection)url.openConnection();
-      if (conn instanceof HttpsURLConnection && !validateCertificate) {
-        SslUtil.setTrustingHttpsOptions((HttpsURLConnection) conn);
-      }
+      conn = openConnection(url);
       conn.connect();
       int responseCode = conn.getResponseCode();
       if (responseCode == HttpURLConnection.HTTP_OK) {
@@ -471,6 +553,7 @@ public class GsaFeedConnection implements FeedConnection {
         while ((str = br.readLine()) != null) {
           buf.append(str);
         }
+        reusable = true;
         str = buf.toString().trim();
         if (LOGGER.isLoggable(Level.FINEST)) {
           LOGGER.finest("Received " + name + ": " + str);
@@ -495,8 +578,11 @@ public class GsaFeedConnection implements FeedConnection {
       } catch (IOException e) {
         LOGGER.warning("Error after reading response for " + name + ": "
                        + e.getMessage());
+        reusable = false;
       } finally {
-        if (conn != null) {
+        // A fully read response leaves the connection in the keep-alive
+        // cache for reuse.
+        if (conn != null && !reusable) {
           conn.disconnect();
         }
       }
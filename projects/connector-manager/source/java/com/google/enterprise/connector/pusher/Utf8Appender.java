@@ -0,0 +1,175 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An {@link Appendable} that encodes characters as UTF-8 directly into
+ * an {@link OutputStream}, by way of a reusable scratch buffer.  This
+ * allows feed records to be built with the {@code XmlUtils} append
+ * methods without first building each record as a {@code String}, then
+ * copying it into a new {@code byte[]}.
+ * <p>
+ * The bytes are identical to those produced by
+ * {@code String.getBytes(Charsets.UTF_8)}: a surrogate pair is encoded
+ * as a single four-byte sequence, even if its halves are appended
+ * separately, and an unpaired surrogate is replaced with {@code '?'}.
+ * <p>
+ * The appended characters may also be copied to a log.
+ * <p>
+ * This class is not thread-safe.
+ */
+class Utf8Appender implements Appendable {
+  /** The size of the scratch buffer. */
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  /** The replacement for unpaired surrogates. */
+  private static final byte REPLACEMENT = (byte) '?';
+
+  private final OutputStream out;
+
+  /** The encoded bytes not yet written to {@code out}. */
+  private final byte[] buf = new byte[BUFFER_SIZE];
+
+  /** The number of valid bytes in {@code buf}. */
+  private int count;
+
+  /** A high surrogate waiting for its low surrogate, or zero. */
+  private char highSurrogate;
+
+  /** Receives a copy of the appended characters, if not {@code null}. */
+  private StringBuilder log;
+
+  /**
+   * Creates a {@code Utf8Appender} that writes to the supplied stream.
+   *
+   * @param out the stream to which the encoded bytes are written
+   */
+  Utf8Appender(OutputStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Sets the log that receives a copy of subsequently appended characters.
+   *
+   * @param log a {@code StringBuilder}, or {@code null} for no log
+   */
+  void setLog(StringBuilder log) {
+    this.log = log;
+  }
+
+  @Override
+  public Utf8Appender append(CharSequence csq) throws IOException {
+    if (csq == null) {
+      csq = "null";
+    }
+    return append(csq, 0, csq.length());
+  }
+
+  @Override
+  public Utf8Appender append(CharSequence csq, int start, int end)
+      throws IOException {
+    if (csq == null) {
+      csq = "null";
+    }
+    if (log != null) {
+      log.append(csq, start, end);
+    }
+    for (int i = start; i < end; i++) {
+      encode(csq.charAt(i));
+    }
+    return this;
+  }
+
+  @Override
+  public Utf8Appender append(char c) throws IOException {
+    if (log != null) {
+      log.append(c);
+    }
+    encode(c);
+    return this;
+  }
+
+  /** Encodes a single character into the buffer. */
+  private void encode(char c) throws IOException {
+    // Room for a replaced high surrogate, followed by a 3-byte sequence.
+    if (count > buf.length - 4) {
+      writeBuffer();
+    }
+    if (highSurrogate != 0) {
+      char high = highSurrogate;
+      highSurrogate = 0;
+      if (Character.isLowSurrogate(c)) {
+        int codePoint = Character.toCodePoint(high, c);
+        buf[count++] = (byte) (0xF0 | (codePoint >> 18));
+        buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        buf[count++] = (byte) (0x80 | (codePoint & 0x3F));
+        return;
+      }
+      buf[count++] = REPLACEMENT;
+    }
+    if (c < 0x80) {
+      buf[count++] = (byte) c;
+    } else if (c < 0x800) {
+      buf[count++] = (byte) (0xC0 | (c >> 6));
+      buf[count++] = (byte) (0x80 | (c & 0x3F));
+    } else if (Character.isHighSurrogate(c)) {
+      highSurrogate = c;
+    } else if (Character.isLowSurrogate(c)) {
+      buf[count++] = REPLACEMENT;
+    } else {
+      buf[count++] = (byte) (0xE0 | (c >> 12));
+      buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      buf[count++] = (byte) (0x80 | (c & 0x3F));
+    }
+  }
+
+  /** Writes the contents of the buffer to the stream. */
+  private void writeBuffer() throws IOException {
+    if (count > 0) {
+      out.write(buf, 0, count);
+      count = 0;
+    }
+  }
+
+  /**
+   * Writes all the appended characters to the stream.  A trailing
+   * unpaired high surrogate is replaced with {@code '?'}.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  void flush() throws IOException {
+    if (highSurrogate != 0) {
+      highSurrogate = 0;
+      if (count == buf.length) {
+        writeBuffer();
+      }
+      buf[count++] = REPLACEMENT;
+    }
+    writeBuffer();
+  }
+
+  /**
+   * Discards any appended characters that have not yet been written
+   * to the stream.
+   */
+  void discard() {
+    count = 0;
+    highSurrogate = 0;
+  }
+}
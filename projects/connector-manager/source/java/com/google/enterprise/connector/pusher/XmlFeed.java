@@ -21,7 +21,6 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.common.AlternateContentFilterInputStream;
 import com.google.enterprise.connector.common.BigEmptyDocumentFilterInputStream;
-import com.google.enterprise.connector.common.CompressedFilterInputStream;
 import com.google.enterprise.connector.manager.Context;
 import com.google.enterprise.connector.servlet.ServletUtil;
 import com.google.enterprise.connector.spi.Document;
@@ -46,21 +45,28 @@ import com.google.enterprise.connector.util.UniqueIdGenerator;
 import com.google.enterprise.connector.util.UuidGenerator;
 import com.google.enterprise.connector.util.filter.DocumentFilterFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Set;
+import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Class to generate XML Feed for a document from the Document and send it
- * to GSA.
+ * to GSA.  Only the head of the feed is held in memory; the rest is spilled
+ * to a temporary file, so {@link #release()} must be called once the feed
+ * has been sent or discarded.
+ * <p>
+ * Records are encoded directly into the feed as they are generated.
+ * A feed is built by a single thread, and is then handed off to be sent,
+ * so the methods that build the feed are not synchronized.
  */
-public class XmlFeed extends ByteArrayOutputStream implements FeedData {
+public class XmlFeed extends FeedBuffer implements FeedData {
   private static final Logger LOGGER =
       Logger.getLogger(XmlFeed.class.getName());
 
@@ -95,6 +101,9 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   /** Encoding method to use for Document content. */
   private final ContentEncoding contentEncoding;
 
+  /** Chooses whether to compress the content of each Document. */
+  private final ContentEncodingSelector contentEncodingSelector;
+
   private static UniqueIdGenerator uniqueIdGenerator = new UuidGenerator();
 
   private static DocumentFilterFactory stripAclDocumentFilter =
@@ -107,6 +116,12 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   private boolean isClosed;
   private int recordCount;
 
+  /** Encodes the records into this feed. */
+  private final Utf8Appender writer = new Utf8Appender(this);
+
+  /** The feed log for the record being built, reused for each record. */
+  private final StringBuilder recordLog;
+
   @SuppressWarnings("deprecation")
   public static final Set<String> propertySkipSet = ImmutableSet.<String>of(
       // TODO: What about displayurl, ispublic, searchurl? Should we
@@ -174,15 +189,31 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   public XmlFeed(String dataSource, FeedType feedType, 
       FileSizeLimitInfo fileSizeLimit, Appendable feedLogBuilder,
       FeedConnection feedConnection) throws IOException {
-    super((int) fileSizeLimit.maxFeedSize());
+    this(dataSource, feedType, fileSizeLimit, feedLogBuilder, feedConnection,
+         new ContentEncodingSelector());
+  }
+
+  /**
+   * Creates an {@code XmlFeed} that uses the supplied
+   * {@link ContentEncodingSelector} to choose whether to compress the
+   * content of each document, if the GSA supports compressed content.
+   */
+  XmlFeed(String dataSource, FeedType feedType,
+      FileSizeLimitInfo fileSizeLimit, Appendable feedLogBuilder,
+      FeedConnection feedConnection,
+      ContentEncodingSelector contentEncodingSelector) throws IOException {
+    super((int) Math.min(fileSizeLimit.maxFeedSize(),
+                         fileSizeLimit.maxFeedMemory()));
     this.maxFeedSize = (int) fileSizeLimit.maxFeedSize();
     this.dataSource = dataSource;
     this.feedType = feedType;
     this.fileSizeLimit = fileSizeLimit;
     this.feedLogBuilder = feedLogBuilder;
+    this.recordLog = (feedLogBuilder == null) ? null : new StringBuilder();
     this.recordCount = 0;
     this.isClosed = false;
     this.feedId = uniqueIdGenerator.uniqueId();
+    this.contentEncodingSelector = contentEncodingSelector;
 
     // Configure the dynamic ACL transformation filters for the documents.
     this.urlConstructor = new UrlConstructor(dataSource, feedType);
@@ -236,25 +267,39 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   /**
    * Set the count of records in this feed.
    */
-  public synchronized void setRecordCount(int count) {
+  public void setRecordCount(int count) {
     recordCount = count;
   }
 
   /**
    * Return the count of records in this feed.
    */
-  public synchronized int getRecordCount() {
+  public int getRecordCount() {
     return recordCount;
   }
 
   /**
-   * Add the XML record for a given document to the Feed.
+   * Add the XML record for a given document to the Feed.  If the record
+   * cannot be added, any part of it already written is removed from the
+   * feed.
    */
-  public synchronized void addRecord(Document document)
+  public void addRecord(Document document)
       throws RepositoryException, IOException {
-    // Apply any ACL transformations to the document.
-    // Build an XML feed record for the document.
-    xmlWrapRecord(aclTransformFilter.newDocumentFilter(document));
+    int resetPoint = size();
+    int resetCount = recordCount;
+    boolean added = false;
+    try {
+      // Apply any ACL transformations to the document.
+      // Build an XML feed record for the document.
+      xmlWrapRecord(aclTransformFilter.newDocumentFilter(document));
+      added = true;
+    } finally {
+      if (!added) {
+        writer.discard();
+        reset(resetPoint);
+        recordCount = resetCount;
+      }
+    }
   }
 
   /*
@@ -276,57 +321,11 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   }
 
   /*
-   * ByteArrayOutputStream (and related) Interface.
+   * OutputStream Interface.
    */
 
-  /**
-   * Resets the size of this ByteArrayOutputStream to the
-   * specified {@code size}, effectively discarding any
-   * data that may have been written passed that point.
-   * Like {@code reset()}, this method retains the previously
-   * allocated buffer.
-   * <p>
-   * This method may be used to reduce the size of the data stored,
-   * but not to increase it.  In other words, the specified {@code size}
-   * cannot be greater than the current size.
-   *
-   * @param size new data size.
-   */
-  public synchronized void reset(int size) {
-    if (size < 0 || size > count) {
-      throw new IllegalArgumentException(
-          "New size must not be negative or greater than the current size.");
-    }
-    count = size;
-  }
-
-  /**
-   * Reads the complete contents of the supplied InputStream
-   * directly into buffer of this ByteArrayOutputStream.
-   * This avoids the data copy that would occur if using
-   * {@code InputStream.read(byte[], int, int)}, followed by
-   * {@code ByteArrayOutputStream.write(byte[], int, int)}.
-   *
-   * @param in the InputStream from which to read the data.
-   * @throws IOException if an I/O error occurs.
-   */
-  public synchronized void readFrom(InputStream in) throws IOException {
-    int bytes = 0;
-    do {
-      count += bytes;
-      if (count >= buf.length) {
-        // Need to grow buffer.
-        int incr = Math.min(buf.length, 8 * 1024 * 1024);
-        byte[] newbuf = new byte[buf.length + incr];
-        System.arraycopy(buf, 0, newbuf, 0, buf.length);
-        buf = newbuf;
-      }
-      bytes = in.read(buf, count, buf.length - count);
-    } while (bytes != -1);
-  }
-
   @Override
-  public synchronized void close() throws IOException {
+  public void close() throws IOException {
     if (!isClosed) {
       isClosed = true;
       String suffix = xmlFeedSuffix();
@@ -377,9 +376,6 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
 
   /*
    * Generate the record tag for the xml data.
-   *
-   * @throws IOException only from Appendable, and that can't really
-   *         happen when using StringBuilder.
    */
   private void xmlWrapRecord(Document document)
       throws RepositoryException, IOException {
@@ -409,10 +405,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   }
 
   /*
-   * Generate the record tag for the xml data.
-   *
-   * @throws IOException only from Appendable, and that can't really
-   *         happen when using StringBuilder.
+   * Generate the record tag for the xml data, writing it to the feed.
    */
   private void xmlWrapDocumentRecord(Document document)
       throws RepositoryException, IOException {
@@ -420,16 +413,16 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
     boolean metadataAllowed = (feedType != FeedType.CONTENTURL);
     boolean contentAllowed = (feedType == FeedType.CONTENT);
 
-    StringBuilder prefix = new StringBuilder();
-    prefix.append("<").append(XML_RECORD);
+    Appendable buf = startRecord();
+    buf.append("<").append(XML_RECORD);
 
     String searchUrl =
         urlConstructor.getRecordUrl(document, DocumentType.RECORD);
-    XmlUtils.xmlAppendAttr(XML_URL, searchUrl, prefix);
+    XmlUtils.xmlAppendAttr(XML_URL, searchUrl, buf);
 
     String displayUrl = DocUtils.getOptionalString(document,
         SpiConstants.PROPNAME_DISPLAYURL);
-    XmlUtils.xmlAppendAttr(XML_DISPLAY_URL, displayUrl, prefix);
+    XmlUtils.xmlAppendAttr(XML_DISPLAY_URL, displayUrl, buf);
 
     ActionType actionType = null;
     String action = DocUtils.getOptionalString(document,
@@ -438,9 +431,9 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
       // Compare to legal action types.
       actionType = ActionType.findActionType(action);
       if (actionType == ActionType.ADD) {
-        XmlUtils.xmlAppendAttr(XML_ACTION, actionType.toString(), prefix);
+        XmlUtils.xmlAppendAttr(XML_ACTION, actionType.toString(), buf);
       } else if (actionType == ActionType.DELETE) {
-        XmlUtils.xmlAppendAttr(XML_ACTION, actionType.toString(), prefix);
+        XmlUtils.xmlAppendAttr(XML_ACTION, actionType.toString(), buf);
         aclRecordAllowed = false;
         metadataAllowed = false;
         contentAllowed = false;
@@ -452,34 +445,34 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
 
     boolean lock = DocUtils.getOptionalBoolean(document, SpiConstants.PROPNAME_LOCK, false);
     if (lock) {
-      XmlUtils.xmlAppendAttr(XML_LOCK, Value.getBooleanValue(true).toString(), prefix);
+      XmlUtils.xmlAppendAttr(XML_LOCK, Value.getBooleanValue(true).toString(), buf);
     }
 
     boolean crawlImmediately = DocUtils.getOptionalBoolean(
         document, SpiConstants.PROPNAME_CRAWL_IMMEDIATELY, false);
     if (crawlImmediately) {
       XmlUtils.xmlAppendAttr(XML_CRAWL_IMMEDIATELY,
-          Value.getBooleanValue(true).toString(), prefix);
+          Value.getBooleanValue(true).toString(), buf);
     }
 
     boolean crawlOnce = DocUtils.getOptionalBoolean(
         document, SpiConstants.PROPNAME_CRAWL_ONCE, false);
     if (crawlOnce) {
       XmlUtils.xmlAppendAttr(
-          XML_CRAWL_ONCE, Value.getBooleanValue(true).toString(), prefix);
+          XML_CRAWL_ONCE, Value.getBooleanValue(true).toString(), buf);
     }
 
     // Do not validate the values, just send them in the feed.
     String pagerank =
         DocUtils.getOptionalString(document, SpiConstants.PROPNAME_PAGERANK);
-    XmlUtils.xmlAppendAttr(XML_PAGERANK, pagerank, prefix);
+    XmlUtils.xmlAppendAttr(XML_PAGERANK, pagerank, buf);
 
     String mimetype =
         DocUtils.getOptionalString(document, SpiConstants.PROPNAME_MIMETYPE);
     if (mimetype == null) {
       mimetype = SpiConstants.DEFAULT_MIMETYPE;
     }
-    XmlUtils.xmlAppendAttr(XML_MIMETYPE, mimetype, prefix);
+    XmlUtils.xmlAppendAttr(XML_MIMETYPE, mimetype, buf);
 
     try {
       String lastModified = DocUtils.getCalendarAndThrow(document,
@@ -488,7 +481,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
         LOGGER.log(Level.FINEST, "Document does not contain "
             + SpiConstants.PROPNAME_LASTMODIFIED);
       } else {
-        XmlUtils.xmlAppendAttr(XML_LAST_MODIFIED, lastModified, prefix);
+        XmlUtils.xmlAppendAttr(XML_LAST_MODIFIED, lastModified, buf);
       }
     } catch (IllegalArgumentException e) {
       LOGGER.log(Level.WARNING, "Swallowing exception while getting "
@@ -525,27 +518,27 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
             new Object[] { SpiConstants.PROPNAME_ISPUBLIC, isPublic,
                 SpiConstants.PROPNAME_AUTHMETHOD, property, attribute });
       }
-      XmlUtils.xmlAppendAttr(XML_AUTHMETHOD, attribute, prefix);
+      XmlUtils.xmlAppendAttr(XML_AUTHMETHOD, attribute, buf);
     } catch (IllegalArgumentException e) {
       // TODO(wiarlawd): I left this here, but I don't see how this
       // can happen. See ValueImplTest.
       LOGGER.log(Level.WARNING, "The authmethod attribute will not be set", e);
     }
 
-    prefix.append(">\n");
+    buf.append(">\n");
 
     if (aclRecordAllowed && DocUtils.hasAclProperties(document)) {
-      xmlWrapAclRecord(prefix, document);
+      xmlWrapAclRecord(buf, document);
       // Prevent ACLs from showing up in metadata.
       document = stripAclDocumentFilter.newDocumentFilter(document);
     }
     if (metadataAllowed) {
-      xmlWrapMetadata(prefix, document);
+      xmlWrapMetadata(buf, document);
     }
 
-    StringBuilder suffix = new StringBuilder();
     ContentEncoding documentContentEncoding = null;
     ContentEncoding alternateEncoding = null;
+    InputStream content = null;
     if (contentAllowed) {
       // Determine the content encoding to specify.
       String documentContentEncodingStr = DocUtils.getOptionalString(
@@ -562,53 +555,59 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
           throw new RepositoryDocumentException(message);
         }
       }
-      alternateEncoding = (documentContentEncoding == null) 
-          ? contentEncoding : documentContentEncoding;
+      content = DocUtils.getOptionalStream(document,
+          SpiConstants.PROPNAME_CONTENT);
+      if (documentContentEncoding != null) {
+        alternateEncoding = documentContentEncoding;
+      } else if (contentEncoding == ContentEncoding.BASE64COMPRESSED) {
+        // Don't compress tiny content or already compressed data.
+        PushbackInputStream pushback = (content == null) ? null
+            : new PushbackInputStream(content,
+                ContentEncodingSelector.TRIAL_SIZE);
+        content = pushback;
+        try {
+          alternateEncoding =
+              contentEncodingSelector.select(mimetype, pushback);
+        } catch (IOException e) {
+          pushback.close();
+          throw e;
+        }
+      } else {
+        alternateEncoding = contentEncoding;
+      }
 
       // If including document content, wrap it with <content> tags.
-      prefix.append("<");
-      prefix.append(XML_CONTENT);
+      buf.append("<");
+      buf.append(XML_CONTENT);
       XmlUtils.xmlAppendAttr(XML_ENCODING,
-          alternateEncoding.toString(), prefix);
-      prefix.append(">\n");
+          alternateEncoding.toString(), buf);
+      buf.append(">\n");
 
-      suffix.append('\n');
-      XmlUtils.xmlAppendEndTag(XML_CONTENT, suffix);
-    }
-
-    write(prefix.toString().getBytes(XML_DEFAULT_CHARSET));
-
-    if (contentAllowed) {
-      InputStream contentStream = getContentStream(
+      // The content is read directly into the feed, after the prefix.
+      writer.flush();
+      InputStream contentStream = getContentStream(content,
           document, documentContentEncoding, alternateEncoding);
       try {
         readFrom(contentStream);
       } finally {
         contentStream.close();
       }
-    }
-
-    XmlUtils.xmlAppendEndTag(XML_RECORD, suffix);
-    write(suffix.toString().getBytes(XML_DEFAULT_CHARSET));
-
-    if (feedLogBuilder != null) {
-      try {
-        feedLogBuilder.append(prefix);
-        if (contentAllowed) {
-          feedLogBuilder.append("...content...");
-        }
-        feedLogBuilder.append(suffix);
-      } catch (IOException e) {
-        // This won't happen with StringBuffer or StringBuilder.
-        LOGGER.log(Level.WARNING, "Exception while constructing feed log:", e);
+      if (recordLog != null) {
+        recordLog.append("...content...");
       }
+
+      buf.append('\n');
+      XmlUtils.xmlAppendEndTag(XML_CONTENT, buf);
     }
+
+    XmlUtils.xmlAppendEndTag(XML_RECORD, buf);
+    endRecord();
   }
 
   /*
    * Generate the record tag for the ACL xml data, appending to {@code aclBuff}.
    */
-  private void xmlWrapAclRecord(StringBuilder aclBuff, Document acl)
+  private void xmlWrapAclRecord(Appendable aclBuff, Document acl)
       throws IOException, RepositoryException {
     aclBuff.append("<").append(XML_ACL);
     String docType = DocUtils.getOptionalString(acl,
@@ -638,18 +637,37 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   }
 
   /*
-   * Generate the record tag for the ACL xml data.
+   * Generate the record tag for the ACL xml data, writing it to the feed.
    */
   private void xmlWrapAclRecord(Document acl) throws IOException,
       RepositoryException {
-    StringBuilder aclBuff = new StringBuilder();
-    xmlWrapAclRecord(aclBuff, acl);
+    xmlWrapAclRecord(startRecord(), acl);
+    endRecord();
+  }
 
-    write(aclBuff.toString().getBytes(XML_DEFAULT_CHARSET));
+  /**
+   * Starts a new record, returning the {@code Appendable} that writes
+   * the record to the feed, and to the record log.
+   */
+  private Appendable startRecord() {
+    writer.discard();
+    if (recordLog != null) {
+      recordLog.setLength(0);
+      writer.setLog(recordLog);
+    }
+    return writer;
+  }
 
-    if (feedLogBuilder != null) {
+  /**
+   * Finishes a record, writing the remainder of it to the feed, and
+   * adding it to the feed log.
+   */
+  private void endRecord() throws IOException {
+    writer.flush();
+    if (recordLog != null) {
+      writer.setLog(null);
       try {
-        feedLogBuilder.append(aclBuff);
+        feedLogBuilder.append(recordLog);
       } catch (IOException e) {
         // This won't happen with StringBuffer or StringBuilder.
         LOGGER.log(Level.WARNING, "Exception while constructing feed log:", e);
@@ -660,7 +678,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   /*
    * Generate the ACL principal XML data.
    */
-  private void getPrincipalXml(Document acl, StringBuilder buff)
+  private void getPrincipalXml(Document acl, Appendable buff)
       throws IOException, RepositoryException {
     Property property;
 
@@ -688,7 +706,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   /*
    * Wrap the ACL principal info as XML data.
    */
-  private static void wrapAclPrincipal(StringBuilder buff, Property property,
+  private static void wrapAclPrincipal(Appendable buff, Property property,
       AclScope scope, AclAccess access)
       throws RepositoryException, IOException {
     ValueImpl value;
@@ -757,16 +775,15 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   }
 
   /**
-   * Wrap the metadata and append it to the string buffer. Empty metadata
+   * Wrap the metadata and append it to the feed. Empty metadata
    * properties are not appended.
    *
-   * @param buf string buffer
+   * @param buf the feed record
    * @param document Document
    * @throws RepositoryException if error reading Property from Document
-   * @throws IOException only from Appendable, and that can't really
-   *         happen when using StringBuilder.
+   * @throws IOException if an I/O error occurs writing the feed
    */
-  private void xmlWrapMetadata(StringBuilder buf, Document document)
+  private void xmlWrapMetadata(Appendable buf, Document document)
       throws RepositoryException, IOException {
     boolean overwriteAcls = DocUtils.getOptionalBoolean(document,
         SpiConstants.PROPNAME_OVERWRITEACLS, true);
@@ -785,7 +802,9 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
       // Sort property names so that metadata is written in a canonical form.
       // The GSA's metadata change detection logic depends on the metadata to be
       // in the same order each time in order to prevent reindexing.
-      propertyNames = new TreeSet<String>(propertyNames);
+      if (!isSorted(propertyNames)) {
+        propertyNames = new TreeSet<String>(propertyNames);
+      }
       for (String name : propertyNames) {
         if (propertySkipSet.contains(name)) {
           if (LOGGER.isLoggable(Level.FINEST)) {
@@ -803,17 +822,36 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   }
 
   /**
-   * Wrap a single Property and append to string buffer. Does nothing if the
+   * Returns {@code true} if the property names are iterated in their
+   * natural order, so that they do not need to be sorted.
+   */
+  @VisibleForTesting
+  static boolean isSorted(Set<String> propertyNames) {
+    if (propertyNames instanceof SortedSet
+        && ((SortedSet<String>) propertyNames).comparator() == null) {
+      return true;
+    }
+    String previous = null;
+    for (String name : propertyNames) {
+      if (previous != null && previous.compareTo(name) > 0) {
+        return false;
+      }
+      previous = name;
+    }
+    return true;
+  }
+
+  /**
+   * Wrap a single Property and append to the feed. Does nothing if the
    * Property's value is null or zero-length.
    *
-   * @param buf string builder
+   * @param buf the feed record
    * @param name the property's name
    * @param property Property
    * @throws RepositoryException if error reading Property from Document
-   * @throws IOException only from Appendable, and that can't really
-   *         happen when using StringBuilder.
+   * @throws IOException if an I/O error occurs writing the feed
    */
-  private static void wrapOneProperty(StringBuilder buf, String name,
+  private static void wrapOneProperty(Appendable buf, String name,
       Property property) throws RepositoryException, IOException {
     ValueImpl value = null;
     while ((value = (ValueImpl) property.nextValue()) != null) {
@@ -854,16 +892,14 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   /**
    * Return an InputStream for the Document's content.
    */
-  private InputStream getContentStream(Document document,
+  private InputStream getContentStream(InputStream content, Document document,
       ContentEncoding documentContentEncoding,
       ContentEncoding alternateEncoding) throws RepositoryException {
-    InputStream contentStream;
       InputStream original = new BigEmptyDocumentFilterInputStream(
-          DocUtils.getOptionalStream(document, SpiConstants.PROPNAME_CONTENT),
-          fileSizeLimit.maxDocumentSize());
+          content, fileSizeLimit.maxDocumentSize());
       InputStream encodedContentStream;
       if (documentContentEncoding == null) {
-        encodedContentStream = getEncodedStream(contentEncoding, 
+        encodedContentStream = getEncodedStream(alternateEncoding, 
             original, (Context.getInstance().getTeedFeedFile() != null),
             1024 * 1024);
       } else {
@@ -882,15 +918,15 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
 
   /**
    * Wrap the content stream with the suitable encoding (either
-   * Base64 or Base64Compressed, based upon GSA encoding support.
+   * Base64 or Base64Compressed, based upon GSA encoding support
+   * and the {@link ContentEncodingSelector}).
    */
-  // TODO: Don't compress tiny content or already compressed data
-  // (based on mimetype).  This is harder than it sounds.
   private InputStream getEncodedStream(ContentEncoding contentEncoding,
       InputStream content, boolean wrapLines, int ioBufferSize) {
     if (contentEncoding == ContentEncoding.BASE64COMPRESSED) {
       return new Base64FilterInputStream(
-          new CompressedFilterInputStream(content, ioBufferSize), wrapLines);
+          contentEncodingSelector.newCompressedStream(content, ioBufferSize),
+          wrapLines);
     } else {
       return new Base64FilterInputStream(content, wrapLines);
     }
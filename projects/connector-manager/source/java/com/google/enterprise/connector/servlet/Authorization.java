@@ -15,6 +15,7 @@
 
 package com.google.enterprise.connector.servlet;
 
+import com.google.enterprise.connector.manager.Context;
 import com.google.enterprise.connector.manager.Manager;
 
 import java.io.PrintWriter;
@@ -28,7 +29,8 @@ public class Authorization extends ConnectorManagerServlet {
   @Override
   protected void processDoPost(
       String xmlBody, Manager manager, PrintWriter out) {
-    AuthorizationHandler authorizationHandler = new AuthorizationHandler(xmlBody, manager, out);
+    AuthorizationHandler authorizationHandler = new AuthorizationHandler(
+        xmlBody, manager, Context.getInstance().getAuthorizationEngine(), out);
     authorizationHandler.handleDoPost();
   }
 }
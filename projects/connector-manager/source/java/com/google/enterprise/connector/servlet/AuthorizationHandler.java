@@ -15,6 +15,8 @@
 package com.google.enterprise.connector.servlet;
 
 import com.google.enterprise.connector.logging.NDC;
+import com.google.enterprise.connector.manager.AuthorizationEngine;
+import com.google.enterprise.connector.manager.AuthorizationEngine.Query;
 import com.google.enterprise.connector.manager.Manager;
 import com.google.enterprise.connector.servlet.AuthorizationParser.ConnectorQueries;
 import com.google.enterprise.connector.servlet.AuthorizationParser.QueryResources;
@@ -45,14 +47,17 @@ public class AuthorizationHandler {
 
   String xmlBody;
   Manager manager;
+  AuthorizationEngine engine;
   PrintWriter out;
   ConnectorMessageCode status;
 
   Map<AuthorizationResource, AuthorizationResponse.Status> results;
 
-  AuthorizationHandler(String xmlBody, Manager manager, PrintWriter out) {
+  AuthorizationHandler(String xmlBody, Manager manager,
+      AuthorizationEngine engine, PrintWriter out) {
     this.xmlBody = xmlBody;
     this.manager = manager;
+    this.engine = engine;
     this.out = out;
     results = new HashMap<AuthorizationResource, AuthorizationResponse.Status>();
   }
@@ -62,9 +67,9 @@ public class AuthorizationHandler {
    * predictable order.
    */
   static AuthorizationHandler makeAuthorizationHandlerForTest(String xmlBody,
-      Manager manager, PrintWriter out) {
+      Manager manager, AuthorizationEngine engine, PrintWriter out) {
     AuthorizationHandler authorizationHandler = new AuthorizationHandler(
-        xmlBody, manager, out);
+        xmlBody, manager, engine, out);
     authorizationHandler.results =
         new TreeMap<AuthorizationResource, AuthorizationResponse.Status>();
     return authorizationHandler;
@@ -132,35 +137,29 @@ public class AuthorizationHandler {
   }
 
   private void computeResultSet(AuthorizationParser authorizationParser) {
+    // Gather the queries for all the identities, and run them together.
+    List<Query> queries = new ArrayList<Query>();
+    List<QueryResources> resources = new ArrayList<QueryResources>();
     for (AuthenticationIdentity identity: authorizationParser.getIdentities()) {
-      NDC.pushAppend(identity.getUsername());
-      try {
-        ConnectorQueries queries =
-            authorizationParser.getConnectorQueriesForIdentity(identity);
-        runManagerQueries(identity, queries);
-      } finally {
-        NDC.pop();
-      }
-    }
-  }
-
-  private void runManagerQueries(AuthenticationIdentity identity,
-      ConnectorQueries urlsByConnector) {
-    for (String connectorName : urlsByConnector.getConnectors()) {
-      NDC.pushAppend(connectorName);
-      try {
+      ConnectorQueries urlsByConnector =
+          authorizationParser.getConnectorQueriesForIdentity(identity);
+      for (String connectorName : urlsByConnector.getConnectors()) {
         // TODO [bmj]: It is conceivable that multiple URLs (resources) could
         // map to the same repository document (docid).  We should handle the
         // duplicates, somehow?
-        QueryResources urlsByDocid = urlsByConnector.getQueryResources(connectorName);
-        List<String> docidList = new ArrayList<String>(urlsByDocid.getDocids());
-        Collection<AuthorizationResponse> answerSet =
-            manager.authorizeDocids(connectorName, docidList, identity);
-        if (answerSet != null) {
-          accumulateQueryResults(answerSet, urlsByDocid);
-        }
-      } finally {
-        NDC.pop();
+        QueryResources urlsByDocid =
+            urlsByConnector.getQueryResources(connectorName);
+        queries.add(new Query(connectorName, identity,
+            new ArrayList<String>(urlsByDocid.getDocids())));
+        resources.add(urlsByDocid);
+      }
+    }
+    List<Collection<AuthorizationResponse>> answerSets =
+        engine.authorizeDocids(manager, queries);
+    for (int i = 0; i < queries.size(); i++) {
+      Collection<AuthorizationResponse> answerSet = answerSets.get(i);
+      if (answerSet != null) {
+        accumulateQueryResults(answerSet, resources.get(i));
       }
     }
   }
@@ -25,6 +25,7 @@ import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
  * Wrapper class for all data items from a repository. Connector implementors
@@ -214,30 +215,72 @@ public abstract class Value {
   @Override
   public abstract String toString();
 
-  private static final Calendar CALENDAR = Calendar.getInstance();
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_MILLIS =
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_SECS =
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_MINS =
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mmZ");
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_DATE =
-      new SimpleDateFormat("yyyy-MM-dd");
-  private static final SimpleDateFormat RFC822_DATE_FORMAT =
-      new SimpleDateFormat("EEE', 'dd' 'MMM' 'yyyy' 'HH:mm:ss Z",
-          Locale.ENGLISH);
-
-  static {
-    ISO8601_DATE_FORMAT_MILLIS.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_MILLIS.setLenient(true);
-    ISO8601_DATE_FORMAT_SECS.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_SECS.setLenient(true);
-    ISO8601_DATE_FORMAT_MINS.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_MINS.setLenient(true);
-    ISO8601_DATE_FORMAT_DATE.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_DATE.setLenient(true);
-    RFC822_DATE_FORMAT.setCalendar(CALENDAR);
-    RFC822_DATE_FORMAT.setLenient(true);
+  /**
+   * The locale of the ISO 8601 date formats, which is the default locale
+   * when this class is initialized.
+   */
+  private static final Locale FORMAT_LOCALE = Locale.getDefault();
+
+  /** The time zone used to format date values for the feed. */
+  private static volatile TimeZone feedTimeZone = TimeZone.getDefault();
+
+  /** Matches the UTC offset produced by the Z pattern letter. */
+  private static final Pattern UTC_OFFSET = Pattern.compile("\\+0000$");
+
+  /** Matches the ISO 8601 UTC time zone marker. */
+  private static final Pattern UTC_MARKER = Pattern.compile("Z$");
+
+  /**
+   * The date formats used by the current thread. {@code SimpleDateFormat}
+   * is not thread-safe, so rather than share a single set of formats
+   * under a global lock, each thread has its own.
+   */
+  private static final ThreadLocal<DateFormats> DATE_FORMATS =
+      new ThreadLocal<DateFormats>() {
+        @Override
+        protected DateFormats initialValue() {
+          return new DateFormats();
+        }
+      };
+
+  /**
+   * A set of date formats that share a single {@code Calendar}, and so
+   * a single time zone.
+   */
+  private static class DateFormats {
+    private final Calendar calendar = Calendar.getInstance(FORMAT_LOCALE);
+    private TimeZone timeZone = calendar.getTimeZone();
+    private final SimpleDateFormat iso8601Millis =
+        newFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ", FORMAT_LOCALE);
+    private final SimpleDateFormat iso8601Secs =
+        newFormat("yyyy-MM-dd'T'HH:mm:ssZ", FORMAT_LOCALE);
+    private final SimpleDateFormat iso8601Mins =
+        newFormat("yyyy-MM-dd'T'HH:mmZ", FORMAT_LOCALE);
+    private final SimpleDateFormat iso8601Date =
+        newFormat("yyyy-MM-dd", FORMAT_LOCALE);
+    private final SimpleDateFormat rfc822 =
+        newFormat("EEE', 'dd' 'MMM' 'yyyy' 'HH:mm:ss Z", Locale.ENGLISH);
+
+    private SimpleDateFormat newFormat(String pattern, Locale locale) {
+      SimpleDateFormat format = new SimpleDateFormat(pattern, locale);
+      format.setCalendar(calendar);
+      format.setLenient(true);
+      return format;
+    }
+
+    /** Sets the time zone of the formats, if it has changed. */
+    private DateFormats withTimeZone(TimeZone timeZone) {
+      if (this.timeZone != timeZone) {
+        this.timeZone = timeZone;
+        calendar.setTimeZone(timeZone);
+      }
+      return this;
+    }
+  }
+
+  /** Returns the current thread's date formats in the feed time zone. */
+  private static DateFormats getDateFormats() {
+    return DATE_FORMATS.get().withTimeZone(feedTimeZone);
   }
 
   /**
@@ -250,7 +293,7 @@ public abstract class Value {
    * @see TimeZone#getDefault
    * @since 2.4.4
    */
-  public static synchronized void setFeedTimeZone(String id) {
+  public static void setFeedTimeZone(String id) {
     TimeZone tz;
     if (id == null || id.length() == 0) {
       id = "default"; // For the log message.
@@ -259,7 +302,7 @@ public abstract class Value {
       tz = TimeZone.getTimeZone(id);
     }
     LOGGER.config("Setting feed time zone to " + id + " = " + tz.getID());
-    CALENDAR.setTimeZone(tz);
+    feedTimeZone = tz;
   }
 
   /**
@@ -267,8 +310,8 @@ public abstract class Value {
    *
    * @since 2.4.4
    */
-  static synchronized String getFeedTimeZone() {
-    return CALENDAR.getTimeZone().getID();
+  static String getFeedTimeZone() {
+    return feedTimeZone.getID();
   }
 
   /**
@@ -281,9 +324,9 @@ public abstract class Value {
    * @param calendar a {@code Calendar}
    * @return a String in ISO-8601 date format
    */
-  public static synchronized String calendarToFeedXml(Calendar calendar) {
+  public static String calendarToFeedXml(Calendar calendar) {
     Date date = calendar.getTime();
-    return ISO8601_DATE_FORMAT_DATE.format(date);
+    return getDateFormats().iso8601Date.format(date);
   }
 
   /**
@@ -294,12 +337,13 @@ public abstract class Value {
    * @param calendar a {@code Calendar}
    * @return a String in RFC 822 format
    */
-  public static synchronized String calendarToRfc822(Calendar calendar) {
+  public static String calendarToRfc822(Calendar calendar) {
     Date date = calendar.getTime();
     // Fix UTC time zone marker. The SimpleDateFormat Z pattern letter
     // always produces an offset string, e.g., "-0800" or "+000". For
     // UTC, the use of "GMT" (RFC 822) or "Z" (ISO 8601) is preferred.
-    return RFC822_DATE_FORMAT.format(date).replaceFirst("\\+0000$", "GMT");
+    return UTC_OFFSET.matcher(getDateFormats().rfc822.format(date))
+        .replaceFirst("GMT");
   }
 
   /**
@@ -310,35 +354,36 @@ public abstract class Value {
    * @param calendar a {@code Calendar}
    * @return a String in ISO-8601 format
    */
-  public static synchronized String calendarToIso8601(Calendar calendar) {
+  public static String calendarToIso8601(Calendar calendar) {
     Date date = calendar.getTime();
+    DateFormats formats = getDateFormats();
     String isoString;
     if (calendar.isSet(Calendar.MILLISECOND)) {
-      isoString = ISO8601_DATE_FORMAT_MILLIS.format(date);
+      isoString = formats.iso8601Millis.format(date);
     } else if (calendar.isSet(Calendar.SECOND)) {
-      isoString = ISO8601_DATE_FORMAT_SECS.format(date);
+      isoString = formats.iso8601Secs.format(date);
     } else if (calendar.isSet(Calendar.MINUTE)) {
-      isoString = ISO8601_DATE_FORMAT_MINS.format(date);
+      isoString = formats.iso8601Mins.format(date);
     } else {
-      isoString = ISO8601_DATE_FORMAT_DATE.format(date);
+      isoString = formats.iso8601Date.format(date);
     }
     // Fix UTC time zone marker.
-    return isoString.replaceFirst("\\+0000$", "Z");
+    return UTC_OFFSET.matcher(isoString).replaceFirst("Z");
   }
 
-  private static synchronized Date iso8601ToDate(String s)
-      throws ParseException {
+  private static Date iso8601ToDate(String s) throws ParseException {
+    DateFormats formats = getDateFormats();
     Date date = null;
     try {
-      date = ISO8601_DATE_FORMAT_MILLIS.parse(s);
+      date = formats.iso8601Millis.parse(s);
     } catch (ParseException e1) {
       try {
-        date = ISO8601_DATE_FORMAT_SECS.parse(s);
+        date = formats.iso8601Secs.parse(s);
       } catch (ParseException e2) {
         try {
-          date = ISO8601_DATE_FORMAT_MINS.parse(s);
+          date = formats.iso8601Mins.parse(s);
         } catch (ParseException e3) {
-          date = ISO8601_DATE_FORMAT_DATE.parse(s);
+          date = formats.iso8601Date.parse(s);
         }
       }
     }
@@ -355,11 +400,12 @@ public abstract class Value {
    * @return a Calendar object
    * @throws ParseException if the the String can not be parsed
    */
-  public static synchronized Calendar iso8601ToCalendar(String dateString)
+  public static Calendar iso8601ToCalendar(String dateString)
       throws ParseException {
     // Fix UTC time zone marker. For parsing, the Z pattern letter
     // does not accept "Z" for UTC.
-    Date date = iso8601ToDate(dateString.replaceFirst("Z$", "+0000"));
+    Date date =
+        iso8601ToDate(UTC_MARKER.matcher(dateString).replaceFirst("+0000"));
     Calendar calendar = Calendar.getInstance();
     calendar.setTime(date);
     return calendar;
@@ -35,6 +35,10 @@ public class FileSizeLimitInfo {
   // Default target feed size is 10MB - about 75-100 typical documents.
   private long maxFeedSize = 10 * 1024 * 1024;
 
+  // Default in-memory portion of a feed is 1MB.  The rest of the feed
+  // is spilled to a temporary file.
+  private long maxFeedMemory = 1024 * 1024;
+
   public void setMaxDocumentSize(long maxDocumentSize) {
     if (maxDocumentSize <= 0) {
       throw new IllegalArgumentException("maxDocumentSize must be positive.");
@@ -65,9 +69,25 @@ public class FileSizeLimitInfo {
     return maxFeedSize;
   }
 
+  public void setMaxFeedMemory(long maxFeedMemory) {
+    if (maxFeedMemory <= 0) {
+      throw new IllegalArgumentException("maxFeedMemory must be positive.");
+    }
+    if (maxFeedMemory > MAXIMUM_FEED_FILE_SIZE) {
+      this.maxFeedMemory = MAXIMUM_FEED_FILE_SIZE;
+    } else {
+      this.maxFeedMemory = maxFeedMemory;
+    }
+  }
+
+  public long maxFeedMemory() {
+    return maxFeedMemory;
+  }
+
   @Override
   public String toString() {
     return "FileSizeLimitInfo: maxDocumentSize = " + maxDocumentSize
-           + ", maxFeedSize = " + maxFeedSize;
+           + ", maxFeedSize = " + maxFeedSize
+           + ", maxFeedMemory = " + maxFeedMemory;
   }
 }
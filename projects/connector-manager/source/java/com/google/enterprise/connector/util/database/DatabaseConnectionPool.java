@@ -14,9 +14,29 @@
 
 package com.google.enterprise.connector.util.database;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
+
+import java.lang.ref.WeakReference;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,6 +48,13 @@ import javax.sql.DataSource;
  * time-consuming to open.  This pool maintains a LIFO stack of open
  * Connections in an attempt to re-use existing Connections to the database.
  * <p>
+ * The number of Connections checked out of the pool at once is bounded.
+ * Threads that need a Connection when all of them are in use wait in
+ * a first-come, first-served queue, for no longer than the checkout
+ * timeout.  Idle Connections are validated in the background once they
+ * have been idle for a while, rather than on every checkout, and
+ * Connections are closed once they reach their maximum lifetime.
+ * <p>
  * This class requires a JDBC driver that supports the {@code isValid}
  * method of {@code java.sql.Connection}, part of the JDBC 4.0
  * specification in Java 6.
@@ -37,21 +64,185 @@ import javax.sql.DataSource;
 public class DatabaseConnectionPool {
   private static final Logger LOGGER =
       Logger.getLogger(DatabaseConnectionPool.class.getName());
+
+  /**
+   * The default maximum number of Connections checked out at once.
+   * @since 3.4
+   */
+  public static final int DEFAULT_MAX_CONNECTIONS = 10;
+
+  /**
+   * The default time to wait for a Connection, in milliseconds.
+   * @since 3.4
+   */
+  public static final long DEFAULT_CHECKOUT_TIMEOUT_MILLIS = 30 * 1000L;
+
+  /**
+   * The default time a Connection may be idle before it is validated,
+   * in milliseconds.
+   * @since 3.4
+   */
+  public static final long DEFAULT_VALIDATION_IDLE_MILLIS = 30 * 1000L;
+
+  /**
+   * The default maximum lifetime of a Connection, in milliseconds.
+   * @since 3.4
+   */
+  public static final long DEFAULT_MAX_LIFETIME_MILLIS = 30 * 60 * 1000L;
+
+  /** Validates the idle Connections of all the pools. */
+  private static final ScheduledExecutorService validator =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("DatabaseConnectionPool-validator")
+          .build());
+
   private final DataSource dataSource;
-  private final LinkedList<Connection> connections = new LinkedList<Connection>();
+  private final int maxConnections;
+  private final long checkoutTimeoutMillis;
+  private final long validationIdleMillis;
+  private final long maxLifetimeMillis;
+  private final Clock clock;
+
+  /** One permit for each Connection that may be checked out. */
+  private final Semaphore permits;
+
+  /* The following are guarded by this. */
+  private final LinkedList<PooledConnection> connections =
+      new LinkedList<PooledConnection>();
+  private final Map<Connection, PooledConnection> checkedOut =
+      new IdentityHashMap<Connection, PooledConnection>();
+  private int peakCheckedOut = 0;
+
+  /** The caches of statements prepared on the pooled Connections. */
+  private final List<PreparedStatementCache> statementCaches =
+      new CopyOnWriteArrayList<PreparedStatementCache>();
+
+  private final ScheduledFuture<?> validationTask;
+
+  /* Statistics. */
+  private final AtomicLong checkouts = new AtomicLong();
+  private final AtomicLong connectionsOpened = new AtomicLong();
+  private final AtomicLong connectionsClosed = new AtomicLong();
+  private final AtomicLong checkoutTimeouts = new AtomicLong();
+  private final AtomicLong validationFailures = new AtomicLong();
+
+  /** A pooled Connection, with the times used to expire it. */
+  private static class PooledConnection {
+    final Connection connection;
+    final long openedTime;
+    long verifiedTime;
+
+    PooledConnection(Connection connection, long now) {
+      this.connection = connection;
+      this.openedTime = now;
+      this.verifiedTime = now;
+    }
+  }
+
+  /**
+   * Periodically validates the idle Connections of a pool.  The pool
+   * is only weakly referenced, so that an abandoned pool can still be
+   * garbage collected.
+   */
+  private static class ValidationTask implements Runnable {
+    private final WeakReference<DatabaseConnectionPool> poolReference;
+    private volatile ScheduledFuture<?> future;
+
+    ValidationTask(DatabaseConnectionPool pool) {
+      this.poolReference = new WeakReference<DatabaseConnectionPool>(pool);
+    }
+
+    @Override
+    public void run() {
+      DatabaseConnectionPool pool = poolReference.get();
+      if (pool == null) {
+        if (future != null) {
+          future.cancel(false);
+        }
+      } else {
+        try {
+          pool.validateIdleConnections();
+        } catch (RuntimeException e) {
+          LOGGER.log(Level.WARNING, "Failed to validate connections", e);
+        }
+      }
+    }
+  }
 
   /**
    * Constructs a pool to hold cached {@link Connection Connections}
    * to the suppied JDBC {@link DataSource}.  The pool is initially empty.
+   * It uses the default bound, timeout, validation, and lifetime settings.
    *
    * @param dataSource a JDBC {@link DataSource}
    */
   public DatabaseConnectionPool(DataSource dataSource) {
+    this(dataSource, DEFAULT_MAX_CONNECTIONS, DEFAULT_CHECKOUT_TIMEOUT_MILLIS,
+         DEFAULT_VALIDATION_IDLE_MILLIS, DEFAULT_MAX_LIFETIME_MILLIS);
+  }
+
+  /**
+   * Constructs a pool to hold cached {@link Connection Connections}
+   * to the suppied JDBC {@link DataSource}.  The pool is initially empty.
+   *
+   * @param dataSource a JDBC {@link DataSource}
+   * @param maxConnections the maximum number of Connections that may be
+   *        checked out at once
+   * @param checkoutTimeoutMillis the maximum time to wait for a
+   *        Connection, in milliseconds
+   * @param validationIdleMillis the time a Connection may be idle before
+   *        it is validated, in milliseconds; {@code 0} validates
+   *        Connections on every checkout
+   * @param maxLifetimeMillis the time after which a Connection is closed,
+   *        in milliseconds, rather than returned to the pool
+   * @since 3.4
+   */
+  public DatabaseConnectionPool(DataSource dataSource, int maxConnections,
+      long checkoutTimeoutMillis, long validationIdleMillis,
+      long maxLifetimeMillis) {
+    this(dataSource, maxConnections, checkoutTimeoutMillis,
+         validationIdleMillis, maxLifetimeMillis, SystemClock.INSTANCE);
+  }
+
+  @VisibleForTesting
+  DatabaseConnectionPool(DataSource dataSource, int maxConnections,
+      long checkoutTimeoutMillis, long validationIdleMillis,
+      long maxLifetimeMillis, Clock clock) {
+    Preconditions.checkArgument(maxConnections > 0,
+        "maxConnections must be positive: %s", maxConnections);
+    Preconditions.checkArgument(checkoutTimeoutMillis >= 0,
+        "checkoutTimeoutMillis must not be negative: %s",
+        checkoutTimeoutMillis);
+    Preconditions.checkArgument(validationIdleMillis >= 0,
+        "validationIdleMillis must not be negative: %s",
+        validationIdleMillis);
+    Preconditions.checkArgument(maxLifetimeMillis > 0,
+        "maxLifetimeMillis must be positive: %s", maxLifetimeMillis);
     this.dataSource = dataSource;
+    this.maxConnections = maxConnections;
+    this.checkoutTimeoutMillis = checkoutTimeoutMillis;
+    this.validationIdleMillis = validationIdleMillis;
+    this.maxLifetimeMillis = maxLifetimeMillis;
+    this.clock = clock;
+    this.permits = new Semaphore(maxConnections, true);
+
+    if (validationIdleMillis > 0) {
+      long period = Math.max(validationIdleMillis / 2, 10L);
+      ValidationTask task = new ValidationTask(this);
+      task.future = validator.scheduleWithFixedDelay(task, period, period,
+                                                     TimeUnit.MILLISECONDS);
+      validationTask = task.future;
+    } else {
+      validationTask = null;
+    }
   }
 
   @Override
   protected void finalize() throws Throwable {
+    if (validationTask != null) {
+      validationTask.cancel(false);
+    }
     closeConnections();
   }
 
@@ -67,44 +258,187 @@ public class DatabaseConnectionPool {
   /**
    * Returns a {@link Connection} from the connection pool.
    * If the pool is empty, a new {@code Connection} is
-   * obtained from the {@link DataSource}.
+   * obtained from the {@link DataSource}.  If the maximum number of
+   * {@code Connections} are already checked out, waits for one to
+   * be released.
    *
    * @return a {@link Connection} to the {@link DataSource}
    * @throws SQLException if a Connection cannot be obtained
+   * @throws SQLTransientConnectionException if no Connection was
+   *         released before the checkout timeout
    */
-  public synchronized Connection getConnection() throws SQLException {
-    while (!connections.isEmpty()) {
-      // Get a cached connection, but check if it is still functional.
-      Connection conn = connections.removeFirst();
-      if (isAlive(conn)) {
-        return conn;
+  public Connection getConnection() throws SQLException {
+    try {
+      if (!permits.tryAcquire(checkoutTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        checkoutTimeouts.incrementAndGet();
+        throw new SQLTransientConnectionException("Timed out after "
+            + checkoutTimeoutMillis + " ms waiting for one of "
+            + maxConnections + " database connections");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a database connection",
+                             e);
+    }
+
+    boolean success = false;
+    try {
+      PooledConnection pooled = takeConnection();
+      if (pooled == null) {
+        // Pool is empty.  Get a new connection from the dataSource.
+        pooled = new PooledConnection(dataSource.getConnection(),
+                                      clock.getTimeMillis());
+        connectionsOpened.incrementAndGet();
+      }
+      synchronized (this) {
+        checkedOut.put(pooled.connection, pooled);
+        peakCheckedOut = Math.max(peakCheckedOut, checkedOut.size());
+      }
+      checkouts.incrementAndGet();
+      success = true;
+      return pooled.connection;
+    } finally {
+      if (!success) {
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * Takes the most recently used Connection from the pool, closing any
+   * that have expired or are dead.
+   *
+   * @return a pooled Connection, or {@code null} if the pool is empty
+   */
+  private PooledConnection takeConnection() {
+    while (true) {
+      PooledConnection pooled;
+      synchronized (this) {
+        if (connections.isEmpty()) {
+          return null;
+        }
+        pooled = connections.removeFirst();
+      }
+      long now = clock.getTimeMillis();
+      if (isExpired(pooled, now)) {
+        close(pooled);
+      } else if (isClosed(pooled.connection)) {
+        connectionsClosed.incrementAndGet();
+        invalidateStatements(pooled.connection);
+      } else if (now - pooled.verifiedTime >= validationIdleMillis
+                 && !isAlive(pooled.connection)) {
+        // Close dead connection.
+        validationFailures.incrementAndGet();
+        close(pooled);
+      } else {
+        return pooled;
       }
-      // Close dead connection.
-      close(conn);
     }
-    // Pool is empty.  Get a new connection from the dataSource.
-    return dataSource.getConnection();
   }
 
   /**
    * Releases a {@link Connection}, returning it to the connection pool
-   * for later re-use.
+   * for later re-use.  If the {@code Connection} has reached its maximum
+   * lifetime, it is closed instead.
    *
    * @param connection a Connection to to return to the pool
    */
-  public synchronized void releaseConnection(Connection connection) {
-    connections.addFirst(connection);
+  public void releaseConnection(Connection connection) {
+    long now = clock.getTimeMillis();
+    PooledConnection pooled;
+    boolean permitted;
+    boolean keep;
+    synchronized (this) {
+      pooled = checkedOut.remove(connection);
+      permitted = (pooled != null);
+      if (pooled == null) {
+        // Not checked out from this pool.  Accept it, unless it is
+        // already in the pool.
+        for (PooledConnection idle : connections) {
+          if (idle.connection == connection) {
+            return;
+          }
+        }
+        pooled = new PooledConnection(connection, now);
+      }
+      keep = !isExpired(pooled, now) && connections.size() < maxConnections;
+      if (keep) {
+        pooled.verifiedTime = now;
+        connections.addFirst(pooled);
+      }
+    }
+    if (!keep) {
+      close(pooled);
+    }
+    if (permitted) {
+      permits.release();
+    }
   }
 
   /**
    * Empties the connection pool, closing all its
    * {@link Connection Connections}.
    */
-  public synchronized void closeConnections() {
-    for (Connection conn : connections) {
-      close(conn);
+  public void closeConnections() {
+    List<PooledConnection> closing;
+    synchronized (this) {
+      closing = new ArrayList<PooledConnection>(connections);
+      connections.clear();
+    }
+    for (PooledConnection pooled : closing) {
+      close(pooled);
     }
-    connections.clear();
+  }
+
+  /**
+   * Validates the Connections that have been idle in the pool for
+   * longer than the validation idle time, and closes those that are
+   * dead or have reached their maximum lifetime.
+   */
+  @VisibleForTesting
+  void validateIdleConnections() {
+    long now = clock.getTimeMillis();
+    List<PooledConnection> checking = new ArrayList<PooledConnection>();
+    synchronized (this) {
+      Iterator<PooledConnection> it = connections.iterator();
+      while (it.hasNext()) {
+        PooledConnection pooled = it.next();
+        if (isExpired(pooled, now)
+            || now - pooled.verifiedTime >= validationIdleMillis) {
+          it.remove();
+          checking.add(pooled);
+        }
+      }
+    }
+
+    // Validate the connections outside the lock, so that checkouts of
+    // other connections are not blocked.
+    for (PooledConnection pooled : checking) {
+      if (isExpired(pooled, now)) {
+        close(pooled);
+      } else if (!isAlive(pooled.connection)) {
+        validationFailures.incrementAndGet();
+        close(pooled);
+      } else {
+        boolean keep;
+        synchronized (this) {
+          keep = connections.size() < maxConnections;
+          if (keep) {
+            // These were the least recently used, so return them to
+            // the bottom of the stack.
+            pooled.verifiedTime = clock.getTimeMillis();
+            connections.addLast(pooled);
+          }
+        }
+        if (!keep) {
+          close(pooled);
+        }
+      }
+    }
+  }
+
+  private boolean isExpired(PooledConnection pooled, long now) {
+    return now - pooled.openedTime >= maxLifetimeMillis;
   }
 
   /**
@@ -113,8 +447,8 @@ public class DatabaseConnectionPool {
    */
   private boolean isAlive(Connection conn) {
     try {
-      // Using timeout as 1 second. If the timeout period expires before 
-      // the operation completes, this method returns false. 
+      // Using timeout as 1 second. If the timeout period expires before
+      // the operation completes, this method returns false.
       return conn.isValid(1);
     } catch (SQLException e) {
       LOGGER.log(Level.INFO, "Connection is dead", e);
@@ -122,12 +456,147 @@ public class DatabaseConnectionPool {
     }
   }
 
+  /**
+   * Returns {@code true} if the connection has been closed.  Unlike
+   * {@link #isAlive}, this does not require a round trip to the database.
+   */
+  private boolean isClosed(Connection conn) {
+    try {
+      return conn.isClosed();
+    } catch (SQLException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Registers a cache of statements prepared on the pooled Connections,
+   * so that they are discarded when the pool closes their Connection.
+   */
+  void addStatementCache(PreparedStatementCache cache) {
+    statementCaches.add(cache);
+  }
+
+  /** Discards the cached statements of a Connection that is closed. */
+  private void invalidateStatements(Connection connection) {
+    for (PreparedStatementCache cache : statementCaches) {
+      cache.invalidate(connection);
+    }
+  }
+
   /** Closes the Connection silently. */
-  private void close(Connection conn) {
+  private void close(PooledConnection pooled) {
+    connectionsClosed.incrementAndGet();
+    invalidateStatements(pooled.connection);
     try {
-      conn.close();
+      pooled.connection.close();
     } catch (SQLException ignored) {
-      
+
     }
   }
+
+  /**
+   * Returns the maximum number of Connections that may be checked out
+   * at once.
+   *
+   * @since 3.4
+   */
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * Returns the number of Connections currently checked out.
+   *
+   * @since 3.4
+   */
+  public synchronized int getActiveConnections() {
+    return checkedOut.size();
+  }
+
+  /**
+   * Returns the largest number of Connections that have been checked
+   * out at once.
+   *
+   * @since 3.4
+   */
+  public synchronized int getPeakActiveConnections() {
+    return peakCheckedOut;
+  }
+
+  /**
+   * Returns the number of idle Connections in the pool.
+   *
+   * @since 3.4
+   */
+  public synchronized int getIdleConnections() {
+    return connections.size();
+  }
+
+  /**
+   * Returns an estimate of the number of threads waiting for a Connection.
+   *
+   * @since 3.4
+   */
+  public int getWaitingThreads() {
+    return permits.getQueueLength();
+  }
+
+  /**
+   * Returns the number of successful checkouts.
+   *
+   * @since 3.4
+   */
+  public long getCheckoutCount() {
+    return checkouts.get();
+  }
+
+  /**
+   * Returns the number of checkouts that timed out.
+   *
+   * @since 3.4
+   */
+  public long getCheckoutTimeoutCount() {
+    return checkoutTimeouts.get();
+  }
+
+  /**
+   * Returns the number of Connections opened by the pool.
+   *
+   * @since 3.4
+   */
+  public long getOpenedCount() {
+    return connectionsOpened.get();
+  }
+
+  /**
+   * Returns the number of Connections closed or discarded by the pool.
+   *
+   * @since 3.4
+   */
+  public long getClosedCount() {
+    return connectionsClosed.get();
+  }
+
+  /**
+   * Returns the number of idle Connections that failed validation.
+   *
+   * @since 3.4
+   */
+  public long getValidationFailureCount() {
+    return validationFailures.get();
+  }
+
+  @Override
+  public String toString() {
+    return "DatabaseConnectionPool(max=" + maxConnections
+        + ", active=" + getActiveConnections()
+        + ", peak=" + getPeakActiveConnections()
+        + ", idle=" + getIdleConnections()
+        + ", waiting=" + getWaitingThreads()
+        + ", checkouts=" + getCheckoutCount()
+        + ", timeouts=" + getCheckoutTimeoutCount()
+        + ", opened=" + getOpenedCount()
+        + ", closed=" + getClosedCount()
+        + ", validationFailures=" + getValidationFailureCount() + ")";
+  }
 }
@@ -0,0 +1,277 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.database;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
+
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks whether a database is available.  The database is probed
+ * periodically in the background using a {@link DatabaseConnectionPool},
+ * and the result is cached along with the time of the probe, so that
+ * callers may check the health of the database cheaply and often.
+ * {@link Listener Listeners} are notified when the state changes.
+ * <p>
+ * If the background probes are not running, or have fallen behind, the
+ * database is probed on demand once the cached state is stale.
+ *
+ * @since 3.4
+ */
+public class DatabaseHealthMonitor {
+  private static final Logger LOGGER =
+      Logger.getLogger(DatabaseHealthMonitor.class.getName());
+
+  /** The default time between probes, in milliseconds. */
+  public static final long DEFAULT_PROBE_INTERVAL_MILLIS = 30 * 1000L;
+
+  /** Probes the databases of all the monitors. */
+  private static final ScheduledExecutorService prober =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("DatabaseHealthMonitor")
+          .build());
+
+  /**
+   * Accepts notifications of changes in the health of a database.
+   *
+   * @since 3.4
+   */
+  public interface Listener {
+    /**
+     * Called when the database becomes available or unavailable.
+     *
+     * @param monitor the {@link DatabaseHealthMonitor} of the database
+     * @param healthy {@code true} if the database is now available,
+     *        {@code false} if it is now unavailable
+     */
+    void healthChanged(DatabaseHealthMonitor monitor, boolean healthy);
+  }
+
+  private final DatabaseConnectionPool connectionPool;
+  private final long probeIntervalMillis;
+  private final Clock clock;
+  private final List<Listener> listeners =
+      new CopyOnWriteArrayList<Listener>();
+
+  /**
+   * Serializes probes, so that state changes are reported in order.
+   * Listeners are notified while holding this lock.
+   */
+  private final Object probeLock = new Object();
+
+  /* The cached state. */
+  private volatile boolean healthy;
+  private volatile long lastProbeTime;
+  private volatile boolean probed = false;
+
+  /* Guarded by this. */
+  private ScheduledFuture<?> probeTask;
+
+  /**
+   * Periodically probes the database of a monitor.  The monitor is only
+   * weakly referenced, so that an abandoned monitor can still be garbage
+   * collected.
+   */
+  private static class ProbeTask implements Runnable {
+    private final WeakReference<DatabaseHealthMonitor> monitorReference;
+    private volatile ScheduledFuture<?> future;
+
+    ProbeTask(DatabaseHealthMonitor monitor) {
+      this.monitorReference =
+          new WeakReference<DatabaseHealthMonitor>(monitor);
+    }
+
+    @Override
+    public void run() {
+      DatabaseHealthMonitor monitor = monitorReference.get();
+      if (monitor == null) {
+        if (future != null) {
+          future.cancel(false);
+        }
+      } else {
+        try {
+          monitor.probe();
+        } catch (RuntimeException e) {
+          LOGGER.log(Level.WARNING, "Failed to probe database", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Constructs a monitor that probes the database using connections
+   * from the supplied pool.  The monitor does not probe the database
+   * in the background until it is {@link #start started}.
+   *
+   * @param connectionPool a {@link DatabaseConnectionPool}
+   * @param probeIntervalMillis the time between probes, in milliseconds
+   */
+  public DatabaseHealthMonitor(DatabaseConnectionPool connectionPool,
+      long probeIntervalMillis) {
+    this(connectionPool, probeIntervalMillis, SystemClock.INSTANCE);
+  }
+
+  @VisibleForTesting
+  DatabaseHealthMonitor(DatabaseConnectionPool connectionPool,
+      long probeIntervalMillis, Clock clock) {
+    Preconditions.checkArgument(probeIntervalMillis > 0,
+        "probeIntervalMillis must be positive: %s", probeIntervalMillis);
+    this.connectionPool = connectionPool;
+    this.probeIntervalMillis = probeIntervalMillis;
+    this.clock = clock;
+  }
+
+  @Override
+  protected void finalize() throws Throwable {
+    stop();
+  }
+
+  /**
+   * Starts probing the database in the background.  Does nothing if the
+   * background probes are already running.
+   */
+  public synchronized void start() {
+    if (probeTask == null) {
+      ProbeTask task = new ProbeTask(this);
+      task.future = prober.scheduleWithFixedDelay(task, probeIntervalMillis,
+          probeIntervalMillis, TimeUnit.MILLISECONDS);
+      probeTask = task.future;
+    }
+  }
+
+  /**
+   * Stops probing the database in the background.  The database will
+   * still be probed on demand when the cached state is stale.
+   */
+  public synchronized void stop() {
+    if (probeTask != null) {
+      probeTask.cancel(false);
+      probeTask = null;
+    }
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Returns the time between probes, in milliseconds.
+   */
+  public long getProbeIntervalMillis() {
+    return probeIntervalMillis;
+  }
+
+  /**
+   * Returns {@code true} if the database was available when it was last
+   * probed.  If the cached state is stale, the database is probed first.
+   *
+   * @return {@code true} if the database is available, {@code false}
+   *         otherwise
+   */
+  public boolean isHealthy() {
+    // Allow the background probe some leeway before probing on demand.
+    if (!probed
+        || clock.getTimeMillis() - lastProbeTime >= 2 * probeIntervalMillis) {
+      return probe();
+    }
+    return healthy;
+  }
+
+  /**
+   * Returns the time of the last probe, in milliseconds, or {@code 0} if
+   * the database has not yet been probed.
+   */
+  public long getLastProbeTime() {
+    return probed ? lastProbeTime : 0L;
+  }
+
+  /**
+   * Probes the database, updating the cached state and notifying the
+   * {@link Listener Listeners} if it has changed.
+   *
+   * @return {@code true} if the database is available, {@code false}
+   *         otherwise
+   */
+  public boolean probe() {
+    synchronized (probeLock) {
+      boolean state;
+      try {
+        Connection connection = connectionPool.getConnection();
+        try {
+          // Using timeout as 1 second, as in the DatabaseConnectionPool.
+          state = connection.isValid(1);
+          if (!state) {
+            // Closed connections are discarded by the pool.
+            connection.close();
+          }
+        } finally {
+          connectionPool.releaseConnection(connection);
+        }
+      } catch (SQLTransientConnectionException e) {
+        // All the connections are in use, which says nothing about the
+        // health of the database.
+        LOGGER.log(Level.FINEST, "Unable to probe database", e);
+        state = probed ? healthy : true;
+      } catch (SQLException e) {
+        LOGGER.log(Level.FINEST, "Database probe failed", e);
+        state = false;
+      }
+      boolean changed = probed && state != healthy;
+      healthy = state;
+      lastProbeTime = clock.getTimeMillis();
+      probed = true;
+      if (changed) {
+        notifyListeners(state);
+      }
+      return state;
+    }
+  }
+
+  private void notifyListeners(boolean state) {
+    if (state) {
+      LOGGER.info("Database is available: " + connectionPool.getDataSource());
+    } else {
+      LOGGER.warning("Database is unavailable: "
+                     + connectionPool.getDataSource());
+    }
+    for (Listener listener : listeners) {
+      try {
+        listener.healthChanged(this, state);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Database health listener failed", e);
+      }
+    }
+  }
+}
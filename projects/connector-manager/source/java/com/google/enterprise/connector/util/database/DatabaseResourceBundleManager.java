@@ -21,14 +21,21 @@ import com.google.common.base.Strings;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A {@link DatabasePropertyResourceBundle} manager which loads and caches
  * {@code DatabasePropertyResourceBundles}.
+ * <p>
+ * The bundle hierarchy for each base name and extension is resolved
+ * only once.  After that, looking up the bundle does not lock, and
+ * neither does looking up a bundle that was found not to exist.
  *
  * @since 2.8
  */
@@ -37,8 +44,17 @@ public class DatabaseResourceBundleManager {
       Logger.getLogger(DatabaseResourceBundleManager.class.getName());
 
   @VisibleForTesting
-  HashMap<String, DatabasePropertyResourceBundle> cache =
-      new HashMap<String, DatabasePropertyResourceBundle>();
+  final ConcurrentMap<String, DatabasePropertyResourceBundle> cache =
+      new ConcurrentHashMap<String, DatabasePropertyResourceBundle>();
+
+  /**
+   * The bundle names for which neither the bundle nor any of its
+   * ancestors exist.  These cannot be stored in the {@link #cache},
+   * which does not allow {@code null} values.
+   */
+  @VisibleForTesting
+  final Set<String> missing =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
   /**
    * Gets a resource bundle using the specified {@code baseName}, and the
@@ -91,17 +107,25 @@ public class DatabaseResourceBundleManager {
    *         can be found.
    * @throws NullPointerException if {@code baseName} is {@code null}
    */
-  public synchronized DatabasePropertyResourceBundle getResourceBundle(
+  public DatabasePropertyResourceBundle getResourceBundle(
       String baseName, String resourceBundleExtension,
       ClassLoader classLoader) {
     Preconditions.checkNotNull(baseName);
     String extension = Strings.nullToEmpty(resourceBundleExtension);
     String key = getKey(baseName, extension);
-    if (!cache.containsKey(key)) {
-      List<String> bundleNames = getBundleNames(baseName, extension);
-      loadBundles(bundleNames, getClassLoader(classLoader));
+    DatabasePropertyResourceBundle bundle = cache.get(key);
+    if (bundle == null && !missing.contains(key)) {
+      // Resolve the hierarchy only once, even if several threads ask for
+      // it at the same time, so that they all share the same bundles.
+      synchronized (this) {
+        if (!cache.containsKey(key) && !missing.contains(key)) {
+          List<String> bundleNames = getBundleNames(baseName, extension);
+          loadBundles(bundleNames, getClassLoader(classLoader));
+        }
+      }
+      bundle = cache.get(key);
     }
-    return cache.get(key);
+    return bundle;
   }
 
   /**
@@ -143,19 +167,24 @@ public class DatabaseResourceBundleManager {
 
   /**
    * Loads any bundles in the supplied list that are not already loaded,
-   * caches them, and sets parent-child relationship.
+   * caches them, and sets parent-child relationship.  Names that have
+   * no bundle and no ancestor bundle are remembered as missing.
    */
   @VisibleForTesting
   void loadBundles(List<String> bundleNames, ClassLoader classLoader) {
     DatabasePropertyResourceBundle parent = null;
     for (String name : bundleNames) {
       DatabasePropertyResourceBundle bundle = cache.get(name);
-      if (bundle == null) {
+      if (bundle == null && !missing.contains(name)) {
         bundle = loadBundle(name, parent, classLoader);
         if (bundle == null) {
           bundle = parent;
         }
-        cache.put(name, bundle);
+        if (bundle == null) {
+          missing.add(name);
+        } else {
+          cache.put(name, bundle);
+        }
       }
       parent = bundle;
     }
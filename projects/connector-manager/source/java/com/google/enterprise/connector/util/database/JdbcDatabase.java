@@ -15,6 +15,7 @@
 package com.google.enterprise.connector.util.database;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.enterprise.connector.spi.DatabaseResourceBundle;
 import com.google.enterprise.connector.spi.SpiConstants.DatabaseType;
@@ -25,6 +26,9 @@ import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,6 +43,8 @@ import javax.sql.DataSource;
  * <ul><li>Information regarding the underlying database implementation,
  * including the vendor name, version information, and description.</li>
  * <li>Maintaining a ConnectionPool for the DataSource.</li>
+ * <li>Limiting the number of Connections that connectors may use.</li>
+ * <li>Monitoring the availability of the database.</li>
  * <li>Manufacturing legal database table names base upon a Connector name.</li>
  * <li>Creating database tables based upon a supplied DDL, or verifying
  * that such a table exists.</li>
@@ -52,8 +58,46 @@ public class JdbcDatabase {
   private static final Logger LOGGER =
       Logger.getLogger(JdbcDatabase.class.getName());
 
+  /**
+   * The default maximum time to wait for another client to create a
+   * table, in milliseconds.
+   * @since 3.4
+   */
+  public static final long DEFAULT_TABLE_WAIT_MILLIS = 30 * 1000L;
+
+  /**
+   * The connector quota that does not limit the number of Connections.
+   * This is the default for both connector quotas.
+   * @since 3.4
+   */
+  public static final int NO_CONNECTION_LIMIT = 0;
+
+  /**
+   * The number of Connections reserved for the Connector Manager when
+   * the {@link #setMaxConnections size} of the DataSource is known.
+   * @since 3.4
+   */
+  public static final int RESERVED_CONNECTIONS = 1;
+
+  /** The initial and maximum times between checks for a table. */
+  private static final long MIN_TABLE_POLL_MILLIS = 100L;
+  private static final long MAX_TABLE_POLL_MILLIS = 5 * 1000L;
+
   private final DataSource dataSource;
   private final DatabaseConnectionPool connectionPool;
+  private final DatabaseHealthMonitor healthMonitor;
+  private volatile long tableWaitMillis = DEFAULT_TABLE_WAIT_MILLIS;
+
+  /* The connector quotas.  The Semaphores are guarded by this. */
+  private int maxConnections = NO_CONNECTION_LIMIT;
+  private int maxConnectorConnections = NO_CONNECTION_LIMIT;
+  private int maxConnectorTypeConnections = NO_CONNECTION_LIMIT;
+  private long connectorCheckoutTimeoutMillis =
+      DatabaseConnectionPool.DEFAULT_CHECKOUT_TIMEOUT_MILLIS;
+  private boolean connectorQuotasInUse = false;
+  private Semaphore connectorPermits;
+  private final Map<String, Semaphore> connectorTypePermits =
+      new HashMap<String, Semaphore>();
 
   private DatabaseType databaseType;
   private String productName;
@@ -61,10 +105,26 @@ public class JdbcDatabase {
   private String resourceBundleExtension;
 
   public JdbcDatabase(DataSource dataSource) {
+    this(dataSource, DatabaseHealthMonitor.DEFAULT_PROBE_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Constructs a {@code JdbcDatabase} that probes the health of the
+   * database at the supplied interval.
+   *
+   * @param dataSource a JDBC {@link DataSource}
+   * @param probeIntervalMillis the time between probes of the database,
+   *        in milliseconds
+   * @since 3.4
+   */
+  public JdbcDatabase(DataSource dataSource, long probeIntervalMillis) {
     this.dataSource = dataSource;
     this.connectionPool = new DatabaseConnectionPool(dataSource);
+    this.healthMonitor =
+        new DatabaseHealthMonitor(connectionPool, probeIntervalMillis);
     LOGGER.config("Using JDBC DataSource: " + dataSource.toString());
     getDatabaseInfo();
+    healthMonitor.start();
   }
 
   @Override
@@ -73,24 +133,201 @@ public class JdbcDatabase {
   }
 
   public synchronized void shutdown() {
+    healthMonitor.stop();
     connectionPool.closeConnections();
   }
 
   /**
    * Returns {@code true} if the configured {@code JdbcDatabase} is unavailable.
+   * This returns the state cached by the {@link DatabaseHealthMonitor}, so
+   * it does not usually require a round trip to the database.
    *
    * @return {@code true} if this {@code JdbcDatabase} is disabled, {@code false}
    * otherwise.
    */
   public boolean isDisabled() {
-    // If I can successfully establish a Connection to the database, assume
-    // the DataSource is functional.  Otherwise, consider it disabled.
-    try {
-      dataSource.getConnection().close();
-      return false;
-    } catch (SQLException e) {
-      return true;
+    return !healthMonitor.isHealthy();
+  }
+
+  /**
+   * Return the {@link DatabaseHealthMonitor} that tracks the availability
+   * of the database.  Listeners may be registered with it to be notified
+   * when the database becomes available or unavailable.
+   *
+   * @return the {@link DatabaseHealthMonitor} for this database
+   * @since 3.4
+   */
+  public DatabaseHealthMonitor getHealthMonitor() {
+    return healthMonitor;
+  }
+
+  /**
+   * Sets the maximum time {@link #verifyTableExists} waits for another
+   * client to create a table.
+   *
+   * @param tableWaitMillis the maximum wait, in milliseconds
+   * @since 3.4
+   */
+  public void setTableWaitMillis(long tableWaitMillis) {
+    this.tableWaitMillis = tableWaitMillis;
+  }
+
+  /**
+   * Sets the maximum number of Connections that the {@code DataSource}
+   * can have open at once, such as the size of the connection pool it
+   * draws from, or the connection limit of the database server.  If this
+   * is set, {@link #RESERVED_CONNECTIONS} of them are reserved for the
+   * Connector Manager, so that connectors cannot starve it of Connections:
+   * all connectors together may use no more than the rest.
+   * <p>
+   * By default, the {@code DataSource} is taken to be unbounded, and no
+   * Connections are reserved.  The DataSources configured by the Connector
+   * Manager open a new Connection for each request, so they are bounded
+   * only by the database server.
+   * <p>
+   * This must be set before any {@link #getConnectorDataSource connector
+   * DataSource} is created.
+   *
+   * @param maxConnections a number of Connections greater than
+   *        {@link #RESERVED_CONNECTIONS}, or {@link #NO_CONNECTION_LIMIT}
+   *        if the {@code DataSource} is unbounded
+   * @throws IllegalArgumentException if the
+   *         {@link #setMaxConnectorConnections connector quota} would
+   *         not leave the reserved Connections
+   * @since 3.4
+   */
+  public synchronized void setMaxConnections(int maxConnections) {
+    Preconditions.checkArgument(maxConnections == NO_CONNECTION_LIMIT
+        || maxConnections > RESERVED_CONNECTIONS,
+        "maxConnections must be greater than %s: %s", RESERVED_CONNECTIONS,
+        maxConnections);
+    Preconditions.checkState(!connectorQuotasInUse,
+        "Connector DataSources have already been created");
+    checkHeadroom(maxConnections, maxConnectorConnections);
+    this.maxConnections = maxConnections;
+  }
+
+  /**
+   * Sets the maximum number of Connections that all connectors together
+   * may have open at once.  Connections used by the Connector Manager
+   * itself, through the {@link #getConnectionPool connection pool}, do
+   * not count against this limit.  If the {@link #setMaxConnections size}
+   * of the {@code DataSource} is set, this limit must leave
+   * {@link #RESERVED_CONNECTIONS} of its Connections for the Connector
+   * Manager.
+   * <p>
+   * This must be set before any {@link #getConnectorDataSource connector
+   * DataSource} is created.
+   *
+   * @param maxConnectorConnections a number of Connections, or
+   *        {@link #NO_CONNECTION_LIMIT} for no limit other than the
+   *        size of the {@code DataSource}
+   * @throws IllegalArgumentException if the quota would not leave the
+   *         reserved Connections
+   * @since 3.4
+   */
+  public synchronized void setMaxConnectorConnections(
+      int maxConnectorConnections) {
+    Preconditions.checkArgument(maxConnectorConnections >= 0,
+        "maxConnectorConnections must not be negative: %s",
+        maxConnectorConnections);
+    Preconditions.checkState(!connectorQuotasInUse,
+        "Connector DataSources have already been created");
+    checkHeadroom(maxConnections, maxConnectorConnections);
+    this.maxConnectorConnections = maxConnectorConnections;
+  }
+
+  /**
+   * Checks that the connector quota leaves the reserved Connections
+   * of the {@code DataSource}.
+   */
+  private static void checkHeadroom(int maxConnections,
+      int maxConnectorConnections) {
+    if (maxConnections != NO_CONNECTION_LIMIT) {
+      Preconditions.checkArgument(
+          maxConnectorConnections <= maxConnections - RESERVED_CONNECTIONS,
+          "maxConnectorConnections (%s) must leave %s of the %s Connections "
+          + "for the Connector Manager", maxConnectorConnections,
+          RESERVED_CONNECTIONS, maxConnections);
+    }
+  }
+
+  /**
+   * Sets the maximum number of Connections that the connectors of one
+   * type may have open at once.  This must be set before any
+   * {@link #getConnectorDataSource connector DataSource} is created.
+   *
+   * @param maxConnectorTypeConnections a number of Connections, or
+   *        {@link #NO_CONNECTION_LIMIT} for no limit
+   * @since 3.4
+   */
+  public synchronized void setMaxConnectorTypeConnections(
+      int maxConnectorTypeConnections) {
+    Preconditions.checkArgument(maxConnectorTypeConnections >= 0,
+        "maxConnectorTypeConnections must not be negative: %s",
+        maxConnectorTypeConnections);
+    Preconditions.checkState(!connectorQuotasInUse,
+        "Connector DataSources have already been created");
+    this.maxConnectorTypeConnections = maxConnectorTypeConnections;
+  }
+
+  /**
+   * Sets the maximum time a connector waits for a Connection when its
+   * quota is used up.  This must be set before any
+   * {@link #getConnectorDataSource connector DataSource} is created.
+   *
+   * @param connectorCheckoutTimeoutMillis the maximum wait, in milliseconds
+   * @since 3.4
+   */
+  public synchronized void setConnectorCheckoutTimeoutMillis(
+      long connectorCheckoutTimeoutMillis) {
+    Preconditions.checkArgument(connectorCheckoutTimeoutMillis >= 0,
+        "connectorCheckoutTimeoutMillis must not be negative: %s",
+        connectorCheckoutTimeoutMillis);
+    Preconditions.checkState(!connectorQuotasInUse,
+        "Connector DataSources have already been created");
+    this.connectorCheckoutTimeoutMillis = connectorCheckoutTimeoutMillis;
+  }
+
+  /**
+   * Returns a {@link DataSource} for use by connectors of the given type.
+   * The Connections it returns count against the quota for the connector
+   * type and the quota for all connectors, so that connectors cannot use
+   * up the Connections that the Connector Manager needs.  If neither
+   * quota nor the {@link #setMaxConnections size} of the DataSource is
+   * set, this is the underlying {@link DataSource}.
+   *
+   * @param connectorTypeName the name of the connector type
+   * @return a {@link DataSource} that enforces the connector quotas
+   * @since 3.4
+   */
+  public synchronized DataSource getConnectorDataSource(
+      String connectorTypeName) {
+    Preconditions.checkNotNull(connectorTypeName);
+    connectorQuotasInUse = true;
+    int connectorLimit = (maxConnectorConnections == NO_CONNECTION_LIMIT
+        && maxConnections != NO_CONNECTION_LIMIT)
+        ? maxConnections - RESERVED_CONNECTIONS : maxConnectorConnections;
+    if (connectorLimit == NO_CONNECTION_LIMIT
+        && maxConnectorTypeConnections == NO_CONNECTION_LIMIT) {
+      return dataSource;
     }
+    if (connectorPermits == null) {
+      connectorPermits = newPermits(connectorLimit);
+    }
+    Semaphore typePermits = connectorTypePermits.get(connectorTypeName);
+    if (typePermits == null) {
+      typePermits = newPermits(maxConnectorTypeConnections);
+      connectorTypePermits.put(connectorTypeName, typePermits);
+    }
+    return new QuotaDataSource(dataSource, connectorTypeName, typePermits,
+        connectorPermits, connectorCheckoutTimeoutMillis);
+  }
+
+  /** Returns the permits for a connector quota. */
+  private static Semaphore newPermits(int maxConnections) {
+    return new Semaphore((maxConnections == NO_CONNECTION_LIMIT)
+        ? Integer.MAX_VALUE : maxConnections, true);
   }
 
   /**
@@ -356,8 +593,11 @@ public class JdbcDatabase {
       return verifyTableAndThrow(tableName, createTableDdl);
     } catch (SQLException e1) {
       // If that fails, we may have multiple clients trying to create the table
-      // at the same time; wait a bit, then try again.
-      try { Thread.sleep(30000); } catch (InterruptedException ignored) {}
+      // at the same time; wait for the table to appear, then try again.
+      LOGGER.log(Level.FINE, "Waiting for table " + tableName, e1);
+      if (waitForTable(tableName)) {
+        return true;
+      }
       try {
         return verifyTableAndThrow(tableName, createTableDdl);
       } catch (SQLException e2) {
@@ -367,6 +607,39 @@ public class JdbcDatabase {
     }
   }
 
+  /**
+   * Polls for a table named {@code tableName}, backing off between checks,
+   * until it exists or the table wait time has elapsed.
+   *
+   * @param tableName the name of the table to find in the database.
+   * @return {@code true} if the table exists, {@code false} if it did not
+   *         appear in time
+   */
+  private boolean waitForTable(String tableName) {
+    long deadline = System.currentTimeMillis() + tableWaitMillis;
+    long delay = MIN_TABLE_POLL_MILLIS;
+    while (true) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+      try {
+        Thread.sleep(Math.min(delay, remaining));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      try {
+        if (verifyTableAndThrow(tableName, null)) {
+          return true;
+        }
+      } catch (SQLException e) {
+        LOGGER.log(Level.FINEST, "Failed to look for table " + tableName, e);
+      }
+      delay = Math.min(delay * 2, MAX_TABLE_POLL_MILLIS);
+    }
+  }
+
   /**
    * Verify that a table named {@code tableName} exists in the database.
    * If not, create it, using the supplied DDL statements.
@@ -35,6 +35,7 @@ public class LocalDatabaseImpl implements LocalDatabase {
       Logger.getLogger(LocalDatabaseImpl.class.getName());
 
   private final JdbcDatabase database;
+  private final DataSource dataSource;
   private final ClassLoader classLoader;
   private final DatabaseResourceBundleManager resourceBundleManager;
 
@@ -88,6 +89,7 @@ public class LocalDatabaseImpl implements LocalDatabase {
   public LocalDatabaseImpl(JdbcDatabase jdbcDatabase, String connectorTypeName,
                            ClassLoader classLoader) {
     this.database = jdbcDatabase;
+    this.dataSource = jdbcDatabase.getConnectorDataSource(connectorTypeName);
     this.classLoader = classLoader;
     this.resourceBundleManager = new DatabaseResourceBundleManager();
 
@@ -99,13 +101,13 @@ public class LocalDatabaseImpl implements LocalDatabase {
 
   /**
    * Gets a {@link DataSource} which the connector implementer can use for any
-   * purpose.
+   * purpose.  The number of Connections it may have open at once may be
+   * limited by the connector quotas of the {@link JdbcDatabase}.
    *
    * @return a {@link DataSource}
    */
   @Override
   public DataSource getDataSource() {
-    DataSource dataSource = database.getDataSource();
     LOGGER.finest("Got DataSource: " + dataSource);
     return dataSource;
   }
@@ -0,0 +1,138 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of {@link PreparedStatement PreparedStatements}, kept separately
+ * for each {@link Connection}.  This is intended for use with pooled
+ * connections, such as those from a {@link DatabaseConnectionPool}, so
+ * that each statement is prepared only once per connection rather than
+ * once per use.
+ * <p>
+ * A cache constructed for a {@link DatabaseConnectionPool} discards the
+ * statements of a connection when the pool closes that connection.
+ * Otherwise, callers must {@link #invalidate} a connection before they
+ * close it.  Callers must not close the cached statements themselves,
+ * although they must close any {@code ResultSets} they obtain from them.
+ * If a statement fails, callers should {@link #invalidate} the
+ * connection's statements.
+ *
+ * @since 3.4
+ */
+public class PreparedStatementCache {
+  private static final Logger LOGGER =
+      Logger.getLogger(PreparedStatementCache.class.getName());
+
+  /** Map of Connection to its map of SQL to PreparedStatement. */
+  private final Map<Connection, Map<String, PreparedStatement>> cache =
+      new IdentityHashMap<Connection, Map<String, PreparedStatement>>();
+
+  /**
+   * Constructs a cache for connections that the caller closes itself.
+   */
+  public PreparedStatementCache() {
+  }
+
+  /**
+   * Constructs a cache for the connections of the supplied pool.
+   *
+   * @param pool the {@link DatabaseConnectionPool} that closes the
+   *        connections
+   */
+  public PreparedStatementCache(DatabaseConnectionPool pool) {
+    pool.addStatementCache(this);
+  }
+
+  /**
+   * Returns a {@link PreparedStatement} for the supplied SQL on the
+   * supplied {@link Connection}, preparing it if it is not already cached.
+   *
+   * @param connection a {@link Connection}
+   * @param sql the SQL statement, in {@link PreparedStatement} syntax
+   * @return a cached {@link PreparedStatement}
+   * @throws SQLException if the statement could not be prepared
+   */
+  public synchronized PreparedStatement prepareStatement(Connection connection,
+      String sql) throws SQLException {
+    Map<String, PreparedStatement> statements = cache.get(connection);
+    if (statements == null) {
+      statements = new HashMap<String, PreparedStatement>();
+      cache.put(connection, statements);
+    }
+    PreparedStatement statement = statements.get(sql);
+    if (statement == null || statement.isClosed()) {
+      statement = connection.prepareStatement(sql);
+      statements.put(sql, statement);
+    } else {
+      statement.clearParameters();
+    }
+    return statement;
+  }
+
+  /**
+   * Closes and discards any cached statements for the supplied
+   * {@link Connection}.
+   *
+   * @param connection a {@link Connection}
+   */
+  public synchronized void invalidate(Connection connection) {
+    Map<String, PreparedStatement> statements = cache.remove(connection);
+    if (statements != null) {
+      close(statements);
+    }
+  }
+
+  /**
+   * Closes and discards all the cached statements.
+   */
+  public synchronized void clear() {
+    for (Map<String, PreparedStatement> statements : cache.values()) {
+      close(statements);
+    }
+    cache.clear();
+  }
+
+  /**
+   * Returns the number of statements cached for the supplied
+   * {@link Connection}.
+   *
+   * @param connection a {@link Connection}
+   * @return the number of cached statements
+   */
+  public synchronized int size(Connection connection) {
+    Map<String, PreparedStatement> statements = cache.get(connection);
+    return (statements == null) ? 0 : statements.size();
+  }
+
+  /** Closes the statements silently. */
+  private static void close(Map<String, PreparedStatement> statements) {
+    for (PreparedStatement statement : statements.values()) {
+      try {
+        statement.close();
+      } catch (SQLException e) {
+        LOGGER.log(Level.FINEST, "Failed to close statement", e);
+      }
+    }
+  }
+}
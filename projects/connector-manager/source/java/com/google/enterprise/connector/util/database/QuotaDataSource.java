@@ -0,0 +1,208 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.database;
+
+import com.google.common.base.Preconditions;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * A {@link DataSource} that limits the number of open {@link Connection
+ * Connections} that connectors may get from the wrapped
+ * {@code DataSource}.  Each Connection needs a permit from the quota for
+ * its connector type, and a permit from the quota shared by all the
+ * connectors.  The permits are released when the Connection is closed.
+ * <p>
+ * If no permit is available before the checkout timeout,
+ * {@code getConnection} throws a {@link SQLTransientConnectionException},
+ * as {@link DatabaseConnectionPool#getConnection} does.
+ */
+class QuotaDataSource implements DataSource {
+  private static final Logger LOGGER =
+      Logger.getLogger(QuotaDataSource.class.getName());
+
+  private final DataSource dataSource;
+  private final String connectorTypeName;
+  private final Semaphore typePermits;
+  private final Semaphore sharedPermits;
+  private final long checkoutTimeoutMillis;
+
+  /**
+   * @param dataSource the {@code DataSource} to get Connections from
+   * @param connectorTypeName the name of the connector type, for messages
+   * @param typePermits the quota for the connector type
+   * @param sharedPermits the quota shared by all connectors
+   * @param checkoutTimeoutMillis the maximum time to wait for a permit,
+   *        in milliseconds
+   */
+  QuotaDataSource(DataSource dataSource, String connectorTypeName,
+      Semaphore typePermits, Semaphore sharedPermits,
+      long checkoutTimeoutMillis) {
+    Preconditions.checkNotNull(dataSource);
+    Preconditions.checkNotNull(typePermits);
+    Preconditions.checkNotNull(sharedPermits);
+    this.dataSource = dataSource;
+    this.connectorTypeName = connectorTypeName;
+    this.typePermits = typePermits;
+    this.sharedPermits = sharedPermits;
+    this.checkoutTimeoutMillis = checkoutTimeoutMillis;
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    acquire();
+    boolean success = false;
+    try {
+      Connection connection = wrap(dataSource.getConnection());
+      success = true;
+      return connection;
+    } finally {
+      if (!success) {
+        release();
+      }
+    }
+  }
+
+  @Override
+  public Connection getConnection(String username, String password)
+      throws SQLException {
+    acquire();
+    boolean success = false;
+    try {
+      Connection connection =
+          wrap(dataSource.getConnection(username, password));
+      success = true;
+      return connection;
+    } finally {
+      if (!success) {
+        release();
+      }
+    }
+  }
+
+  /** Takes a permit from the type quota, and then the shared quota. */
+  private void acquire() throws SQLException {
+    long deadline = System.currentTimeMillis() + checkoutTimeoutMillis;
+    try {
+      if (!typePermits.tryAcquire(checkoutTimeoutMillis,
+              TimeUnit.MILLISECONDS)) {
+        throw new SQLTransientConnectionException("Timed out after "
+            + checkoutTimeoutMillis + " ms waiting for a database connection"
+            + " within the quota for connector type " + connectorTypeName);
+      }
+      long remaining = Math.max(0L, deadline - System.currentTimeMillis());
+      if (!sharedPermits.tryAcquire(remaining, TimeUnit.MILLISECONDS)) {
+        typePermits.release();
+        throw new SQLTransientConnectionException("Timed out after "
+            + checkoutTimeoutMillis + " ms waiting for a database connection"
+            + " within the quota for all connectors");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a database connection",
+                             e);
+    }
+  }
+
+  private void release() {
+    sharedPermits.release();
+    typePermits.release();
+  }
+
+  /**
+   * Wraps a Connection so that closing it releases its permits.  A
+   * dynamic proxy is used so that the wrapper does not depend on the
+   * version of the {@code Connection} interface.
+   */
+  private Connection wrap(final Connection connection) {
+    final AtomicBoolean closed = new AtomicBoolean();
+    return (Connection) Proxy.newProxyInstance(
+        Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args)
+              throws Throwable {
+            try {
+              return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+              throw e.getCause();
+            } finally {
+              if (method.getName().equals("close")
+                  && method.getParameterTypes().length == 0
+                  && closed.compareAndSet(false, true)) {
+                release();
+              }
+            }
+          }
+        });
+  }
+
+  @Override
+  public void setLoginTimeout(int seconds) throws SQLException {
+    dataSource.setLoginTimeout(seconds);
+  }
+
+  @Override
+  public int getLoginTimeout() throws SQLException {
+    return dataSource.getLoginTimeout();
+  }
+
+  @Override
+  public void setLogWriter(PrintWriter out) throws SQLException {
+    dataSource.setLogWriter(out);
+  }
+
+  @Override
+  public PrintWriter getLogWriter() throws SQLException {
+    return dataSource.getLogWriter();
+  }
+
+  /* @Override TODO(jlacey): This @Override requires Java 7. */
+  public Logger getParentLogger() {
+    return LOGGER;
+  }
+
+  /*
+   * The wrapped DataSource is not exposed, so that connectors cannot use
+   * it to get around their quotas.
+   */
+  @Override
+  public boolean isWrapperFor(Class<?> iface) {
+    return false;
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    throw new SQLException("Not a wrapper for " + iface);
+  }
+
+  @Override
+  public String toString() {
+    return "QuotaDataSource(" + connectorTypeName + ", " + dataSource + ")";
+  }
+}
@@ -0,0 +1,286 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the records of a snapshot in the {@link BinarySnapshotFormat
+ * binary format}.
+ */
+class BinaryRecordReader implements SnapshotReader.RecordReader {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final FileInputStream fileInput;
+  private final String inputPath;
+  private final CharsetDecoder decoder = Charsets.UTF_8.newDecoder();
+  private final CRC32 crc = new CRC32();
+  private InputStream in;
+
+  /** The bytes of the current block header. */
+  private final byte[] header =
+      new byte[2 * BinarySnapshotFormat.MAX_VARINT_LENGTH];
+  private int headerLength;
+
+  /** The current block, and a spare block for seeking. */
+  private Block current = new Block();
+  private Block spare = new Block();
+
+  /** The offset of the block following the current block. */
+  private long nextBlockOffset;
+
+  /** The number of records read or skipped. */
+  private long recordCount;
+
+  /** The current record, front coded against the previous record. */
+  private char[] chars = new char[1024];
+  private int charsLength;
+
+  /** A block of records, and the position of the next record. */
+  private static class Block {
+    byte[] payload = new byte[BinarySnapshotFormat.BLOCK_BYTES + 1024];
+    int length;
+    int offset;
+    int remaining;
+    long totalLength;
+  }
+
+  /**
+   * @param fileInput the snapshot file, positioned after the header
+   * @param inputPath path to the snapshot, for messages
+   */
+  BinaryRecordReader(FileInputStream fileInput, String inputPath)
+      throws IOException {
+    this.fileInput = fileInput;
+    this.inputPath = inputPath;
+    this.nextBlockOffset = fileInput.getChannel().position();
+    this.in = new BufferedInputStream(fileInput, BUFFER_SIZE);
+  }
+
+  @Override
+  public String readRecord() throws SnapshotReaderException {
+    return nextRecord() ? new String(chars, 0, charsLength) : null;
+  }
+
+  /**
+   * Reads and discards a record.
+   *
+   * @return {@code false} if there are no records left
+   */
+  boolean skipRecord() throws SnapshotReaderException {
+    return nextRecord();
+  }
+
+  /**
+   * Moves to the block at the given offset, if there is a valid block
+   * there.  Otherwise, the position is not changed.
+   *
+   * @param offset the offset of a block in the file
+   * @param blockRecordCount the number of records before the block
+   * @return {@code true} if the reader moved to the block
+   */
+  boolean seek(long offset, long blockRecordCount)
+      throws SnapshotReaderException {
+    try {
+      fileInput.getChannel().position(offset);
+      InputStream seekInput = new BufferedInputStream(fileInput, BUFFER_SIZE);
+      boolean found;
+      try {
+        found = readBlock(seekInput, spare);
+      } catch (SnapshotReaderException e) {
+        found = false;
+      }
+      if (!found) {
+        fileInput.getChannel().position(nextBlockOffset);
+        in = new BufferedInputStream(fileInput, BUFFER_SIZE);
+        return false;
+      }
+      in = seekInput;
+      Block block = current;
+      current = spare;
+      spare = block;
+      nextBlockOffset = offset + current.totalLength;
+      recordCount = blockRecordCount;
+      charsLength = 0;
+      return true;
+    } catch (IOException e) {
+      throw new SnapshotReaderException(String.format(
+          "failed to seek in snapshot (%s, offset %d)", inputPath, offset), e);
+    }
+  }
+
+  private boolean nextRecord() throws SnapshotReaderException {
+    if (current.remaining == 0) {
+      try {
+        if (!readBlock(in, current)) {
+          return false;
+        }
+      } catch (IOException e) {
+        throw new SnapshotReaderException(String.format(
+            "failed to read snapshot record (%s, record %d)",
+            inputPath, recordCount + 1), e);
+      }
+      nextBlockOffset += current.totalLength;
+      charsLength = 0;
+    }
+    decodeRecord();
+    current.remaining--;
+    recordCount++;
+    return true;
+  }
+
+  /**
+   * Reads and checks a block.
+   *
+   * @return {@code false} at the end of the file
+   * @throws SnapshotReaderException if the block is torn or corrupt
+   */
+  private boolean readBlock(InputStream input, Block block)
+      throws IOException, SnapshotReaderException {
+    int first = input.read();
+    if (first < 0) {
+      return false;
+    }
+    headerLength = 0;
+    long records = readHeaderVarint(input, first);
+    long length = readHeaderVarint(input, readByte(input));
+    // Check the length before allocating the buffer for the payload.
+    if (records < 1 || length < 2 * records
+        || length > fileInput.getChannel().size()) {
+      throw corrupt("invalid block header");
+    }
+    crc.reset();
+    crc.update(header, 0, headerLength);
+
+    if (block.payload.length < length) {
+      block.payload = new byte[(int) length];
+    }
+    readFully(input, block.payload, (int) length);
+    crc.update(block.payload, 0, (int) length);
+    int checksum = 0;
+    for (int i = 0; i < 4; i++) {
+      checksum = (checksum << 8) | readByte(input);
+    }
+    if (checksum != (int) crc.getValue()) {
+      throw corrupt("bad block checksum");
+    }
+    block.length = (int) length;
+    block.offset = 0;
+    block.remaining = (int) records;
+    block.totalLength = headerLength + length + 4;
+    return true;
+  }
+
+  /** Reads a varint in a block header, starting with byte {@code b}. */
+  private long readHeaderVarint(InputStream input, int b)
+      throws IOException, SnapshotReaderException {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      if (headerLength == header.length) {
+        throw corrupt("invalid block header");
+      }
+      header[headerLength++] = (byte) b;
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+      b = readByte(input);
+    }
+  }
+
+  private int readByte(InputStream input)
+      throws IOException, SnapshotReaderException {
+    int b = input.read();
+    if (b < 0) {
+      throw corrupt("incomplete block");
+    }
+    return b;
+  }
+
+  private void readFully(InputStream input, byte[] buffer, int length)
+      throws IOException, SnapshotReaderException {
+    int offset = 0;
+    while (offset < length) {
+      int count = input.read(buffer, offset, length - offset);
+      if (count < 0) {
+        throw corrupt("incomplete block");
+      }
+      offset += count;
+    }
+  }
+
+  /** Decodes the next record of the current block into {@code chars}. */
+  private void decodeRecord() throws SnapshotReaderException {
+    int shared = readVarint();
+    int suffixLength = readVarint();
+    if (shared > charsLength
+        || suffixLength > current.length - current.offset) {
+      throw corrupt("invalid record");
+    }
+    if (chars.length < shared + suffixLength) {
+      char[] larger =
+          new char[Math.max(shared + suffixLength, 2 * chars.length)];
+      System.arraycopy(chars, 0, larger, 0, shared);
+      chars = larger;
+    }
+    CharBuffer out = CharBuffer.wrap(chars, shared, chars.length - shared);
+    decoder.reset();
+    CoderResult result = decoder.decode(
+        ByteBuffer.wrap(current.payload, current.offset, suffixLength),
+        out, true);
+    if (!result.isError()) {
+      result = decoder.flush(out);
+    }
+    if (result.isError()) {
+      throw corrupt("invalid UTF-8 in record");
+    }
+    current.offset += suffixLength;
+    charsLength = out.position();
+  }
+
+  private int readVarint() throws SnapshotReaderException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      if (current.offset >= current.length) {
+        throw corrupt("invalid record");
+      }
+      int b = current.payload[current.offset++];
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (value < 0) {
+          throw corrupt("invalid record");
+        }
+        return value;
+      }
+    }
+    throw corrupt("invalid record");
+  }
+
+  private SnapshotReaderException corrupt(String problem) {
+    return new SnapshotReaderException(String.format(
+        "failed to read snapshot record with %s (%s, record %d)",
+        problem, inputPath, recordCount + 1));
+  }
+}
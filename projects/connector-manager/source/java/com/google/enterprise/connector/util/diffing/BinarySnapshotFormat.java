@@ -0,0 +1,137 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Constants and helpers for the binary snapshot format.
+ * <p>
+ * A binary snapshot starts with a header of the four magic bytes
+ * {@code 00 53 4E 50} ({@code "\0SNP"}) and a version byte.  The text
+ * formats never start with a NUL character, so the formats can be told
+ * apart by the first byte.  The header is followed by blocks of records:
+ * <pre>
+ *   block   = varint(records) varint(length) payload crc32
+ *   payload = record*
+ *   record  = varint(shared) varint(suffix length) suffix
+ * </pre>
+ * Each record is the string form of a {@link DocumentSnapshot}, front
+ * coded against the previous record in the block: {@code shared} is the
+ * number of leading chars it has in common with the previous record, and
+ * the suffix is the UTF-8 encoding of the remaining chars.  The first
+ * record of each block is stored in full, so that a block can be decoded
+ * on its own.  The CRC-32 covers the two block varints and the payload,
+ * and is stored big-endian.  The varints are unsigned LEB128.
+ */
+final class BinarySnapshotFormat {
+  private BinarySnapshotFormat() {
+  }
+
+  /** The magic bytes at the start of a binary snapshot. */
+  static final byte[] MAGIC = { 0, 'S', 'N', 'P' };
+
+  /** The current version of the binary format. */
+  static final int VERSION = 1;
+
+  /** The length of the header, in bytes. */
+  static final int HEADER_LENGTH = MAGIC.length + 1;
+
+  /** The maximum number of records in a block. */
+  static final int BLOCK_RECORDS = 1024;
+
+  /**
+   * The payload length, in bytes, at which a block is ended.  A block
+   * may be longer if its last record is long.
+   */
+  static final int BLOCK_BYTES = 64 * 1024;
+
+  /** The maximum length of a varint, in bytes. */
+  static final int MAX_VARINT_LENGTH = 5;
+
+  /**
+   * Returns whether the header is the start of a binary snapshot.
+   *
+   * @param header the first bytes of a snapshot
+   * @param length the number of bytes in {@code header}
+   */
+  static boolean hasMagic(byte[] header, int length) {
+    return length >= MAGIC.length
+        && Arrays.equals(MAGIC, Arrays.copyOf(header, MAGIC.length));
+  }
+
+  /**
+   * Returns whether a snapshot file is in the binary format.  A file that
+   * does not exist is not.
+   */
+  static boolean isBinary(File snapshotFile) throws IOException {
+    if (!snapshotFile.exists()) {
+      return false;
+    }
+    InputStream in = new FileInputStream(snapshotFile);
+    try {
+      byte[] header = new byte[MAGIC.length];
+      int length = 0;
+      int count;
+      while (length < header.length
+          && (count = in.read(header, length, header.length - length)) > 0) {
+        length += count;
+      }
+      return hasMagic(header, length);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes an unsigned varint to a buffer.
+   *
+   * @param buffer the buffer, with room for {@link #MAX_VARINT_LENGTH}
+   *        bytes at {@code offset}
+   * @param offset the offset in the buffer
+   * @param value a non-negative value
+   * @return the offset after the varint
+   */
+  static int putVarint(byte[] buffer, int offset, int value) {
+    while ((value & ~0x7F) != 0) {
+      buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[offset++] = (byte) value;
+    return offset;
+  }
+
+  /**
+   * Returns the number of leading chars that two strings have in common,
+   * without splitting a surrogate pair.
+   */
+  static int sharedPrefixLength(String previous, String current) {
+    int limit = Math.min(previous.length(), current.length());
+    int shared = 0;
+    while (shared < limit
+        && previous.charAt(shared) == current.charAt(shared)) {
+      shared++;
+    }
+    // The high surrogate may be paired in one string and not the other.
+    if (shared > 0 && Character.isHighSurrogate(current.charAt(shared - 1))) {
+      shared--;
+    }
+    return shared;
+  }
+}
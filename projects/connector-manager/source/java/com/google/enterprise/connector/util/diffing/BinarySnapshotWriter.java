@@ -0,0 +1,160 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import static com.google.enterprise.connector.util.diffing.BinarySnapshotFormat.BLOCK_BYTES;
+import static com.google.enterprise.connector.util.diffing.BinarySnapshotFormat.BLOCK_RECORDS;
+import static com.google.enterprise.connector.util.diffing.BinarySnapshotFormat.MAX_VARINT_LENGTH;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Writes snapshot records in the {@link BinarySnapshotFormat binary
+ * format}.
+ * <p>
+ * The records are collected into blocks, and a block is written to the
+ * output when it is full, and whenever the records are synced.  Unlike
+ * {@link SnapshotWriter}, a record written between syncs may not reach
+ * the output until the next sync.  A crash may leave unsynced blocks
+ * missing from the file, or a torn block at its end.
+ */
+class BinarySnapshotWriter extends SnapshotWriter {
+  private final OutputStream out;
+  private final CRC32 crc = new CRC32();
+  private final byte[] blockHeader = new byte[2 * MAX_VARINT_LENGTH];
+
+  /** The payload of the current block. */
+  private byte[] block = new byte[BLOCK_BYTES + 1024];
+  private int blockLength;
+  private int blockRecords;
+
+  /** The previous record in the current block, or {@code null}. */
+  private String previous;
+
+  /** The number of bytes written to the output. */
+  private long byteCount;
+
+  /**
+   * @param output the snapshot file
+   * @param fileDescriptor if non-{code null}, this will be synced to disk
+   *        after a group of records is written, and by {@link #sync}
+   * @param path name of output, for logging purposes
+   * @param syncRecords the maximum number of records written between syncs
+   * @param syncMillis the maximum time between syncs, in milliseconds;
+   *        {@code 0} for no time limit
+   * @throws SnapshotWriterException if the header cannot be written
+   */
+  BinarySnapshotWriter(OutputStream output, FileDescriptor fileDescriptor,
+      String path, int syncRecords, long syncMillis)
+      throws SnapshotWriterException {
+    this(output, fileDescriptor, path, syncRecords, syncMillis,
+        SystemClock.INSTANCE);
+  }
+
+  @VisibleForTesting
+  BinarySnapshotWriter(OutputStream output, FileDescriptor fileDescriptor,
+      String path, int syncRecords, long syncMillis, Clock clock)
+      throws SnapshotWriterException {
+    super(fileDescriptor, path, syncRecords, syncMillis, clock);
+    this.out = new BufferedOutputStream(output, BLOCK_BYTES);
+    try {
+      out.write(BinarySnapshotFormat.MAGIC);
+      out.write(BinarySnapshotFormat.VERSION);
+    } catch (IOException e) {
+      throw new SnapshotWriterException("failed to write snapshot header", e);
+    }
+    this.byteCount = BinarySnapshotFormat.HEADER_LENGTH;
+  }
+
+  @Override
+  void writeRecord(String stringForm, long recordCount) throws IOException {
+    int shared = (previous == null)
+        ? 0 : BinarySnapshotFormat.sharedPrefixLength(previous, stringForm);
+    byte[] suffix = stringForm.substring(shared).getBytes(Charsets.UTF_8);
+    int needed = blockLength + 2 * MAX_VARINT_LENGTH + suffix.length;
+    if (needed > block.length) {
+      block = Arrays.copyOf(block, Math.max(needed, 2 * block.length));
+    }
+    blockLength = BinarySnapshotFormat.putVarint(block, blockLength, shared);
+    blockLength =
+        BinarySnapshotFormat.putVarint(block, blockLength, suffix.length);
+    System.arraycopy(suffix, 0, block, blockLength, suffix.length);
+    blockLength += suffix.length;
+    blockRecords++;
+    previous = stringForm;
+    if (blockRecords >= BLOCK_RECORDS || blockLength >= BLOCK_BYTES) {
+      writeBlock(recordCount);
+    }
+  }
+
+  /**
+   * Writes the current block to the output, if it has any records.
+   *
+   * @param recordCount the number of records written, including the
+   *        records in the block
+   */
+  private void writeBlock(long recordCount) throws IOException {
+    if (blockRecords == 0) {
+      return;
+    }
+    int headerLength =
+        BinarySnapshotFormat.putVarint(blockHeader, 0, blockRecords);
+    headerLength =
+        BinarySnapshotFormat.putVarint(blockHeader, headerLength, blockLength);
+    crc.reset();
+    crc.update(blockHeader, 0, headerLength);
+    crc.update(block, 0, blockLength);
+    int checksum = (int) crc.getValue();
+    out.write(blockHeader, 0, headerLength);
+    out.write(block, 0, blockLength);
+    out.write(checksum >>> 24);
+    out.write(checksum >>> 16);
+    out.write(checksum >>> 8);
+    out.write(checksum);
+    byteCount += headerLength + blockLength + 4;
+    blockLength = 0;
+    blockRecords = 0;
+    previous = null;
+    if (indexWriter != null) {
+      indexWriter.add(recordCount, byteCount);
+    }
+    if (block.length > 2 * BLOCK_BYTES) {
+      // Do not hold on to the buffer for an unusually long record.
+      block = new byte[BLOCK_BYTES + 1024];
+    }
+  }
+
+  @Override
+  void flushOutput() throws IOException {
+    writeBlock(count);
+    out.flush();
+  }
+
+  @Override
+  void closeOutput() throws IOException {
+    writeBlock(count);
+    out.close();
+  }
+}
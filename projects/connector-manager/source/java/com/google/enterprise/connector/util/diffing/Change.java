@@ -127,6 +127,13 @@ public class Change {
     return json.has(Field.FACTORY_TYPE.name());
   }
 
+  /**
+   * @return the type of factory that makes the document handle
+   */
+  FactoryType getFactoryType() {
+    return factoryType;
+  }
+
   /**
    * @return the monitor checkpoint associated with this change
    */
@@ -156,12 +163,11 @@ public class Change {
   }
 
   /**
-   * Converts this instance into a JSON object and
-   * returns that object's string representation.
+   * Returns the JSON representation of this instance.
    */
   @Override
   public String toString() {
-    return "" + getJson();
+    return DiffingJsonCodec.toJson(this);
   }
 
   @Override
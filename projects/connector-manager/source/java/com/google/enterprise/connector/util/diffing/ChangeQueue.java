@@ -162,7 +162,8 @@ public class ChangeQueue implements ChangeSource {
   /**
    * Adds {@link Change Changes} to this queue.
    */
-  private class Callback implements DocumentSnapshotRepositoryMonitor.Callback {
+  private class Callback
+      implements DocumentSnapshotRepositoryMonitor.PausingCallback {
     private int changeCount = 0;
 
     public void passBegin() {
@@ -196,10 +197,19 @@ public class ChangeQueue implements ChangeSource {
 
     @Override
     public void passComplete(MonitorCheckpoint mcp) throws InterruptedException {
+      long delay = passCompleteDelay(mcp);
+      if (delay > 0) {
+        Thread.sleep(delay);
+      }
+    }
+
+    @Override
+    public long passCompleteDelay(MonitorCheckpoint mcp) {
       activityLogger.scanEndAt(new Timestamp(System.currentTimeMillis()));
       if (introduceDelayAfterEveryScan || changeCount == 0) {
-        Thread.sleep(sleepInterval);
+        return sleepInterval;
       }
+      return 0L;
     }
 
     public boolean hasEnqueuedAtLeastOneChangeThisPass() {
@@ -24,8 +24,8 @@ import org.json.JSONObject;
  * @since 2.8
  */
 class CheckpointAndChange {
-  private static final String CHECKPOINT_LABEL = "cp";
-  private static final String CHANGE_LABEL = "chg";
+  static final String CHECKPOINT_LABEL = "cp";
+  static final String CHANGE_LABEL = "chg";
 
   private final DiffingConnectorCheckpoint checkpoint;
   private final Change change;
@@ -76,7 +76,7 @@ class CheckpointAndChange {
   /** @return the string representation of the JSON object of this instance */
   @Override
   public String toString() {
-    return "" + getJson();
+    return DiffingJsonCodec.toJson(this);
   }
 
   /** @return this instance as a JSON object */
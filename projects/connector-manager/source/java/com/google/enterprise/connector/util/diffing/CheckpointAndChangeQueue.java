@@ -16,22 +16,17 @@ package com.google.enterprise.connector.util.diffing;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.stream.JsonReader;
-
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONWriter;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -40,7 +35,12 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -52,6 +52,13 @@ import java.util.logging.Logger;
  * {@code CheckpointAndChange} objects remain until the client
  * indicates they have completed processing by calling {@link #resume(String)}
  * with the object's checkpoint or a later object's checkpoint.
+ * <p>
+ * The queue is persisted in a {@link RecoveryJournal}.  The journal
+ * starts with a snapshot of the queue, and each call to
+ * {@link #resume(String)} appends a small record of the changes that it
+ * acknowledged and added.  When the appended records outgrow the
+ * snapshot, the journal is compacted in the background into a new
+ * snapshot.
  *
  * @since 2.8
  */
@@ -65,6 +72,24 @@ public class CheckpointAndChangeQueue {
   private static final String RECOVERY_FILE_PREFIX = "recovery.";
   private static final String QUEUE_JSON_TAG = "Q";
   private static final String MONITOR_STATE_JSON_TAG = "MON";
+  private static final String ACKNOWLEDGED_JSON_TAG = "ACK";
+  private static final String ADDED_JSON_TAG = "ADD";
+
+  /** The suffix of a compacted journal that is being written. */
+  private static final String COMPACTION_SUFFIX = ".tmp";
+
+  /**
+   * The minimum number of bytes appended to a journal before it is
+   * compacted.
+   */
+  private static final long DEFAULT_COMPACTION_BYTES = 64 * 1024;
+
+  /** Compacts the journals of all the queues. */
+  private static final ExecutorService compactor =
+      Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("CheckpointAndChangeQueue-compactor")
+          .build());
 
   private final AtomicInteger maximumQueueSize =
       new AtomicInteger(DEFAULT_MAXIMUM_QUEUE_SIZE);
@@ -77,6 +102,24 @@ public class CheckpointAndChangeQueue {
   private final File persistDir;  // place to persist enqueued values
   private MonitorRestartState monitorPoints = new MonitorRestartState();
 
+  /** The journal, or {@code null} if it has not been written yet. */
+  private RecoveryFile journal;
+
+  /** Whether an append to the journal failed. */
+  private boolean isJournalBroken;
+
+  /** The length of the journal, and of its snapshot record. */
+  private long journalLength;
+  private long snapshotLength;
+
+  private long compactionBytes = DEFAULT_COMPACTION_BYTES;
+
+  /** The compaction in progress, or {@code null} if there is none. */
+  private Future<?> compaction;
+
+  /** Incremented when the journal is discarded by start or clean. */
+  private int generation;
+
   /** Convenient way to log some IOException instances. */
   private static class LoggingIoException extends IOException {
     LoggingIoException(String msg) {
@@ -141,23 +184,33 @@ public class CheckpointAndChangeQueue {
       points = new HashMap<String,MonitorCheckpoint>();
     }
 
-    MonitorRestartState(JSONObject persisted) throws JSONException {
+    MonitorRestartState(MonitorRestartState other) {
       this();
-      if (persisted.length() > 0) {
-        for (String key : JSONObject.getNames(persisted) ) {
-          JSONObject value = persisted.getJSONObject(key);
-          MonitorCheckpoint monPoint = new MonitorCheckpoint(value);
-          points.put(monPoint.getMonitorName(), monPoint);
-        }
+      // Copied one at a time, so that the copy is written in the same order.
+      for (MonitorCheckpoint monPoint : other.points.values()) {
+        points.put(monPoint.getMonitorName(), monPoint);
+      }
+    }
+
+    MonitorRestartState(JsonReader reader) throws IOException {
+      this();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        reader.nextName();
+        MonitorCheckpoint monPoint =
+            DiffingJsonCodec.readMonitorCheckpoint(reader);
+        points.put(monPoint.getMonitorName(), monPoint);
       }
+      reader.endObject();
     }
 
-    JSONObject getJson() throws JSONException {
-      JSONObject result = new JSONObject();
+    void writeJson(JsonWriter writer) throws IOException {
+      writer.beginObject();
       for (MonitorCheckpoint monPoint : points.values()) {
-        result.put(monPoint.getMonitorName(), monPoint.getJson());
+        writer.name(monPoint.getMonitorName());
+        DiffingJsonCodec.writeMonitorCheckpoint(writer, monPoint);
       }
-      return result;
+      writer.endObject();
     }
 
     void updateOnGuaranteed(List<CheckpointAndChange> checkpointAndChangeList) {
@@ -295,36 +348,109 @@ public class CheckpointAndChangeQueue {
      * take whatever action is required.
      */
     private void readJson(JsonReader reader) throws IOException {
-      JsonParser parser = new JsonParser();
+      readObject(reader);
+
+      reader.setLenient(true);
+      String name = reader.nextString();
+      if (!name.equals(SENTINAL)) {
+        throw new IOException("Read invalid recovery file.");
+      }
+    }
+
+    /**
+     * Reads the records of a journal.  The first record must be a
+     * snapshot of the queue.
+     *
+     * @return the length of the valid records in the journal
+     */
+    public long readJournal(File file) throws IOException {
+      RecoveryJournal.Records journal = RecoveryJournal.read(file);
+      if (journal.records.isEmpty()) {
+        throw new IOException("Read invalid recovery journal.");
+      }
+      boolean isSnapshot = true;
+      for (String record : journal.records) {
+        JsonReader reader = DiffingJsonCodec.newReader(record);
+        try {
+          if (readObject(reader) != isSnapshot) {
+            throw new IOException("Read invalid recovery journal.");
+          }
+        } finally {
+          reader.close();
+        }
+        isSnapshot = false;
+      }
+      return journal.length;
+    }
+
+    /**
+     * Reads a snapshot of the queue, or a record of the changes made by
+     * a call to {@link #resume}.
+     *
+     * @return {@code true} if the object was a snapshot
+     */
+    private boolean readObject(JsonReader reader) throws IOException {
+      try {
+        return readMembers(reader);
+      } catch (IllegalStateException e) {
+        // Thrown by JsonReader for unexpected tokens.
+        throw new IOException("Read invalid recovery file.", e);
+      } catch (NumberFormatException e) {
+        throw new IOException("Read invalid recovery file.", e);
+      }
+    }
+
+    private boolean readMembers(JsonReader reader) throws IOException {
+      boolean isSnapshot = false;
+      boolean isUpdate = false;
       reader.beginObject();
       while (reader.hasNext()) {
         String name = reader.nextName();
         if (name.equals(MONITOR_STATE_JSON_TAG)) {
-          readMonitorPoints(parser.parse(reader));
+          readMonitorPoints(reader);
+          isSnapshot = true;
         } else if (name.equals(QUEUE_JSON_TAG)) {
           reader.beginArray();
           while (reader.hasNext()) {
-            readCheckpointAndChange(parser.parse(reader));
+            readCheckpointAndChange(reader);
+          }
+          reader.endArray();
+          isSnapshot = true;
+        } else if (name.equals(ACKNOWLEDGED_JSON_TAG)) {
+          readAcknowledged(reader.nextInt());
+          isUpdate = true;
+        } else if (name.equals(ADDED_JSON_TAG)) {
+          reader.beginArray();
+          while (reader.hasNext()) {
+            readCheckpointAndChange(reader);
           }
           reader.endArray();
+          isUpdate = true;
         } else {
           throw new IOException("Read invalid recovery file.");
         }
       }
       reader.endObject();
-
-      reader.setLenient(true);
-      String name = reader.nextString();
-      if (!name.equals(SENTINAL)) {
+      if (isSnapshot == isUpdate) {
         throw new IOException("Read invalid recovery file.");
       }
+      if (isUpdate) {
+        readUpdateComplete();
+      }
+      return isSnapshot;
     }
 
-    protected abstract void readMonitorPoints(JsonElement gson)
+    protected abstract void readMonitorPoints(JsonReader reader)
         throws IOException;
 
-    protected abstract void readCheckpointAndChange(JsonElement gson)
+    protected abstract void readCheckpointAndChange(JsonReader reader)
         throws IOException;
+
+    /** Removes the first {@code count} changes in the queue. */
+    protected abstract void readAcknowledged(int count) throws IOException;
+
+    /** Called at the end of each record of changes from the journal. */
+    protected abstract void readUpdateComplete() throws IOException;
   }
 
   /**
@@ -332,83 +458,223 @@ public class CheckpointAndChangeQueue {
    * trailing sentinel.
    */
   private class ValidatingQueueReader extends AbstractQueueReader {
-    protected void readMonitorPoints(JsonElement gson) throws IOException {
+    protected void readMonitorPoints(JsonReader reader) throws IOException {
+      reader.skipValue();
     }
 
-    protected void readCheckpointAndChange(JsonElement gson)
+    protected void readCheckpointAndChange(JsonReader reader)
         throws IOException {
+      reader.skipValue();
+    }
+
+    protected void readAcknowledged(int count) throws IOException {
+    }
+
+    protected void readUpdateComplete() throws IOException {
     }
   }
 
   /** Loads the queue from a JSON recovery file. */
-  /*
-   * TODO(jlacey): Change everything downstream to gson. For now, we
-   * reserialize the individual gson objects and deserialize them
-   * using org.json.
-   */
   @VisibleForTesting
   class LoadingQueueReader extends AbstractQueueReader {
-    protected void readMonitorPoints(JsonElement gson) throws IOException {
-      try {
-        JSONObject json = gsonToJson(gson);
-        monitorPoints = new MonitorRestartState(json);
-      } catch (JSONException e) {
-        throw new IOException("Failed reading persisted JSON queue.", e);
-      }
+    protected void readMonitorPoints(JsonReader reader) throws IOException {
+      monitorPoints = new MonitorRestartState(reader);
     }
 
-    protected void readCheckpointAndChange(JsonElement gson)
+    protected void readCheckpointAndChange(JsonReader reader)
         throws IOException {
-      try {
-        JSONObject json = gsonToJson(gson);
-        checkpointAndChangeList.add(new CheckpointAndChange(json,
-            internalDocumentHandleFactory, clientDocumentHandleFactory));
-      } catch (JSONException e) {
-        throw new IOException("Failed reading persisted JSON queue.", e);
+      checkpointAndChangeList.add(DiffingJsonCodec.readCheckpointAndChange(
+          reader, internalDocumentHandleFactory, clientDocumentHandleFactory));
+    }
+
+    protected void readAcknowledged(int count) throws IOException {
+      if (count < 0 || count > checkpointAndChangeList.size()) {
+        throw new IOException("Read invalid recovery journal.");
       }
+      checkpointAndChangeList.subList(0, count).clear();
     }
 
-    // TODO(jlacey): This could be much more efficient, especially
-    // with LOBs, if we directly transformed the objects with a little
-    // recursive parser. This code is only used when recovering failed
-    // batches, so I don't know if that's worth the effort.
-    private JSONObject gsonToJson(JsonElement gson) throws JSONException {
-      return new JSONObject(gson.toString());
+    protected void readUpdateComplete() {
+      monitorPoints.updateOnGuaranteed(checkpointAndChangeList);
     }
   }
 
-  /** @return true if argument exists, has sentinal and readable JSON queue */
+  /**
+   * @return true if argument exists, and is a journal that starts with a
+   *         snapshot, or has sentinal and readable JSON queue
+   */
   private boolean isComplete(RecoveryFile recoveryFile) {
     // TODO(pjo): Move this method into RecoveryFile.
     try {
-      new ValidatingQueueReader().readJson(recoveryFile);
+      if (RecoveryJournal.isJournal(recoveryFile)) {
+        // The records after the snapshot are not needed to recover.
+        new ValidatingQueueReader().readJournal(recoveryFile);
+      } else {
+        new ValidatingQueueReader().readJson(recoveryFile);
+      }
       return true;
     } catch(IOException e) {
       return false;
     }
   }
 
-  private void writeRecoveryState(RecoveryFile recoveryFile)
-      throws IOException {
-    // TODO(pjo): Move this method into RecoveryFile.
-    FileOutputStream outStream = new FileOutputStream(recoveryFile);
-    Writer writer = new OutputStreamWriter(outStream, Charsets.UTF_8);
+  /**
+   * Writes the queue to a new journal, and deletes the current journal.
+   *
+   * @throws IOException if the new journal could not be written
+   */
+  private void writeNewJournal() throws IOException {
+    RecoveryFile newJournal = new RecoveryFile(persistDir);
     try {
-      try {
-        writeJson(writer);
-      } catch (JSONException e) {
-        throw new IOException("Failed writing recovery file.", e);
+      snapshotLength = RecoveryJournal.create(newJournal,
+          getSnapshotJson(monitorPoints, checkpointAndChangeList));
+    } catch (IOException e) {
+      // Avoid filling the disk with recovery files, if we cannot recover.
+      if (newJournal.exists()) {
+        newJournal.delete();
+      }
+      throw e;
+    }
+    if (journal != null) {
+      journal.logOnFailDelete();
+    }
+    journal = newJournal;
+    journalLength = snapshotLength;
+    isJournalBroken = false;
+  }
+
+  /**
+   * Appends the changes made by {@link #resume} to the journal.
+   *
+   * @param acknowledged the number of changes removed from the queue
+   * @param added the changes added to the queue
+   */
+  private void appendToJournal(int acknowledged,
+      List<CheckpointAndChange> added) throws IOException {
+    StringWriter out = new StringWriter();
+    JsonWriter writer = DiffingJsonCodec.newWriter(out);
+    writer.beginObject();
+    writer.name(ACKNOWLEDGED_JSON_TAG).value(acknowledged);
+    writer.name(ADDED_JSON_TAG);
+    writeQueueAsJsonArray(writer, added);
+    writer.endObject();
+    writer.close();
+    try {
+      journalLength +=
+          RecoveryJournal.append(journal, journalLength, out.toString());
+    } catch (IOException e) {
+      // The next call to resume will write a new journal.
+      isJournalBroken = true;
+      throw e;
+    }
+  }
+
+  /**
+   * Starts compacting the journal in the background, if enough has been
+   * appended to it since its snapshot.
+   */
+  private void maybeCompact() {
+    long appended = journalLength - snapshotLength;
+    if (compaction != null
+        || appended < Math.max(snapshotLength, compactionBytes)) {
+      return;
+    }
+    final RecoveryFile oldJournal = journal;
+    final long offset = journalLength;
+    final int compactionGeneration = generation;
+    final MonitorRestartState points = new MonitorRestartState(monitorPoints);
+    final List<CheckpointAndChange> list;
+    synchronized (checkpointAndChangeList) {
+      list = new ArrayList<CheckpointAndChange>(checkpointAndChangeList);
+    }
+    compaction = compactor.submit(new Runnable() {
+        @Override
+        public void run() {
+          compact(oldJournal, offset, compactionGeneration, points, list);
+        }
+      });
+  }
+
+  /**
+   * Writes a snapshot of the queue to a new journal.  Any records that
+   * were appended to the old journal after the snapshot was taken are
+   * copied to the new journal, which then replaces the old one.
+   *
+   * @param oldJournal the journal to replace
+   * @param offset the length of the old journal when the snapshot was taken
+   * @param compactionGeneration the generation when the snapshot was taken
+   * @param points the monitor points in the snapshot
+   * @param list the queue in the snapshot
+   */
+  private void compact(RecoveryFile oldJournal, long offset,
+      int compactionGeneration, MonitorRestartState points,
+      List<CheckpointAndChange> list) {
+    File temp = new File(persistDir, oldJournal.getName() + COMPACTION_SUFFIX);
+    try {
+      long newSnapshotLength =
+          RecoveryJournal.create(temp, getSnapshotJson(points, list));
+      synchronized (this) {
+        if (compactionGeneration != generation || oldJournal != journal
+            || isJournalBroken) {
+          // The journal was replaced while the snapshot was written.
+          temp.delete();
+          return;
+        }
+        RecoveryJournal.copy(oldJournal, offset, journalLength, temp);
+        RecoveryFile newJournal = new RecoveryFile(persistDir);
+        if (!temp.renameTo(newJournal)) {
+          throw new IOException("Failed to rename " + temp.getAbsolutePath()
+              + " to " + newJournal.getAbsolutePath());
+        }
+        oldJournal.logOnFailDelete();
+        journal = newJournal;
+        journalLength = newSnapshotLength + journalLength - offset;
+        snapshotLength = newSnapshotLength;
       }
-      writer.flush();
-      outStream.getFD().sync();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to compact recovery journal: "
+          + oldJournal.getAbsolutePath(), e);
+      temp.delete();
     } finally {
-      writer.close();
+      synchronized (this) {
+        compaction = null;
+      }
     }
   }
 
+  /** Waits for any compaction in progress to finish. */
+  @VisibleForTesting
+  void awaitCompaction() throws InterruptedException {
+    Future<?> current;
+    synchronized (this) {
+      current = compaction;
+    }
+    if (current != null) {
+      try {
+        current.get();
+      } catch (ExecutionException e) {
+        LOG.log(Level.WARNING, "Failed to compact recovery journal.",
+            e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Sets the minimum number of bytes appended to the journal before it
+   * is compacted.
+   */
+  @VisibleForTesting
+  synchronized void setCompactionBytes(long compactionBytes) {
+    this.compactionBytes = compactionBytes;
+  }
+
   private void loadUpFromRecoveryState(RecoveryFile file) throws IOException {
     // TODO(pjo): Move this method into RecoveryFile.
-    new LoadingQueueReader().readJson(file);
+    if (RecoveryJournal.isJournal(file)) {
+      new LoadingQueueReader().readJournal(file);
+    } else {
+      new LoadingQueueReader().readJson(file);
+    }
   }
 
   private RecoveryFile[] allRecoveryFiles() throws IOException {
@@ -417,11 +683,25 @@ public class CheckpointAndChangeQueue {
     if (files == null) {
       return new RecoveryFile[0];
     } else {
-      RecoveryFile[] recoveryFiles = new RecoveryFile[files.length];
-      for (int i = 0; i < files.length; i++) {
-        recoveryFiles[i] = new RecoveryFile(files[i].getAbsolutePath());
+      List<RecoveryFile> recoveryFiles = new ArrayList<RecoveryFile>();
+      for (File file : files) {
+        if (!file.getName().endsWith(COMPACTION_SUFFIX)) {
+          recoveryFiles.add(new RecoveryFile(file.getAbsolutePath()));
+        }
+      }
+      return recoveryFiles.toArray(new RecoveryFile[recoveryFiles.size()]);
+    }
+  }
+
+  /** Deletes any compacted journals that were not finished. */
+  private void removeUnfinishedCompactions() {
+    File files[] = persistDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().endsWith(COMPACTION_SUFFIX) && !file.delete()) {
+          LOG.severe("Failed to delete: " + file.getAbsolutePath());
+        }
       }
-      return recoveryFiles;
     }
   }
 
@@ -435,11 +715,18 @@ public class CheckpointAndChangeQueue {
     ensurePersistDirExists();
     checkpointAndChangeList.clear();
     lastCheckpoint = constructLastCheckpoint(checkpointString);
+    generation++;
+    journal = null;
+    removeUnfinishedCompactions();
     if (null == checkpointString) {
       removeAllRecoveryState();
     } else {
       RecoveryFile current = removeExcessRecoveryState();
       loadUpFromRecoveryState(current);
+      // Start a new journal, without any torn record at the end of the
+      // recovered one.
+      journal = current;
+      writeNewJournal();
     }
   }
 
@@ -460,24 +747,14 @@ public class CheckpointAndChangeQueue {
    */
   synchronized List<CheckpointAndChange> resume(String checkpointString)
       throws IOException {
-    removeCompletedChanges(checkpointString);
-    loadUpFromChangeSource();
+    int acknowledged = removeCompletedChanges(checkpointString);
+    List<CheckpointAndChange> added = loadUpFromChangeSource();
     monitorPoints.updateOnGuaranteed(checkpointAndChangeList);
-    RecoveryFile recoveryFile = new RecoveryFile(persistDir);
-    try {
-      try {
-        writeRecoveryState(recoveryFile);
-      } finally {
-        // TODO: Enhance with mechanism that remembers
-        // information about recovery files to avoid re-reading.
-        removeExcessRecoveryState();
-      }
-    } catch (IOException e) {
-      // Avoid filling the disk with recovery files, if we cannot recover.
-      if (recoveryFile.exists()) {
-        recoveryFile.delete();
-      }
-      throw e;
+    if (journal == null || isJournalBroken) {
+      writeNewJournal();
+    } else if (acknowledged > 0 || !added.isEmpty()) {
+      appendToJournal(acknowledged, added);
+      maybeCompact();
     }
     return getList();
   }
@@ -494,35 +771,57 @@ public class CheckpointAndChangeQueue {
     return new HashMap<String, MonitorCheckpoint>(monitorPoints.points);
   }
 
-  private void writeQueueAsJsonArray(JSONWriter writer) throws JSONException {
-    writer.array();
-    for (CheckpointAndChange guaranteed : checkpointAndChangeList) {
-      JSONObject encodedGuaranteedChange = guaranteed.getJson();
-      writer.value(encodedGuaranteedChange);
+  private static void writeQueueAsJsonArray(JsonWriter writer,
+      List<CheckpointAndChange> list) throws IOException {
+    writer.beginArray();
+    synchronized (list) {
+      for (CheckpointAndChange guaranteed : list) {
+        DiffingJsonCodec.writeCheckpointAndChange(writer, guaranteed);
+      }
     }
     writer.endArray();
   }
 
   @VisibleForTesting
-  void writeJson(Writer writer) throws IOException, JSONException {
+  void writeJson(Writer writer) throws IOException {
     LOG.fine("Writing CheckPointAndChangeQueue to recovery file");
-    writeJson(new JSONWriter(writer));
+    JsonWriter jsonWriter = DiffingJsonCodec.newWriter(writer);
+    writeJson(jsonWriter, monitorPoints, checkpointAndChangeList);
+    jsonWriter.flush();
 
     writer.write(SENTINAL);
   }
 
-  private void writeJson(JSONWriter writer) throws JSONException {
-    writer.object();
-    writer.key(MONITOR_STATE_JSON_TAG);
-    writer.value(monitorPoints.getJson());
-    writer.key(QUEUE_JSON_TAG);
-    writeQueueAsJsonArray(writer);
+  private static void writeJson(JsonWriter writer,
+      MonitorRestartState points, List<CheckpointAndChange> list)
+      throws IOException {
+    writer.beginObject();
+    writer.name(MONITOR_STATE_JSON_TAG);
+    points.writeJson(writer);
+    writer.name(QUEUE_JSON_TAG);
+    writeQueueAsJsonArray(writer, list);
     writer.endObject();
   }
 
-  private void removeCompletedChanges(String checkpointString) {
+  /** Returns a snapshot of the queue, for the journal. */
+  private static String getSnapshotJson(MonitorRestartState points,
+      List<CheckpointAndChange> list) throws IOException {
+    StringWriter out = new StringWriter();
+    JsonWriter writer = DiffingJsonCodec.newWriter(out);
+    writeJson(writer, points, list);
+    writer.close();
+    return out.toString();
+  }
+
+  /**
+   * Removes the changes up to and including the checkpoint.
+   *
+   * @return the number of changes removed
+   */
+  private int removeCompletedChanges(String checkpointString) {
+    int removed = 0;
     if (checkpointString == null) {
-      return;
+      return removed;
     } else {
       DiffingConnectorCheckpoint checkpoint
           = DiffingConnectorCheckpoint.fromJsonString(checkpointString);
@@ -538,14 +837,22 @@ public class CheckpointAndChangeQueue {
         } else {
           // Has been sent.  Remove it.
           iterator.remove();
+          removed++;
           // Monitors can consider these changes sent too.
           // monitorPoints.updateOnCompleted(current.getChange());
         }
       }
+      return removed;
     }
   }
 
-  private void loadUpFromChangeSource() {
+  /**
+   * Adds changes from the change source, up to the maximum queue size.
+   *
+   * @return the changes added to the queue
+   */
+  private List<CheckpointAndChange> loadUpFromChangeSource() {
+    List<CheckpointAndChange> added = new ArrayList<CheckpointAndChange>();
     int max = maximumQueueSize.get();
     if (checkpointAndChangeList.size() < max) {
       lastCheckpoint = lastCheckpoint.nextMajor();
@@ -557,9 +864,12 @@ public class CheckpointAndChangeQueue {
         break;
       }
       lastCheckpoint = lastCheckpoint.next();
-      checkpointAndChangeList.add(new CheckpointAndChange(
-          lastCheckpoint, newChange));
+      CheckpointAndChange checkpointAndChange =
+          new CheckpointAndChange(lastCheckpoint, newChange);
+      checkpointAndChangeList.add(checkpointAndChange);
+      added.add(checkpointAndChange);
     }
+    return added;
   }
 
   /**
@@ -634,6 +944,16 @@ public class CheckpointAndChangeQueue {
   }
 
   void clean() {
+    try {
+      awaitCompaction();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      generation++;
+      journal = null;
+    }
+    removeUnfinishedCompactions();
     try {
       removeAllRecoveryState();
     } catch (IOException e) {
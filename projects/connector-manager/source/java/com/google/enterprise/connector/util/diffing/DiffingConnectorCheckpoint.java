@@ -17,6 +17,8 @@ package com.google.enterprise.connector.util.diffing;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 /**
  * Checkpoint for the {@link DiffingConnector}.
  *
@@ -24,7 +26,7 @@ import org.json.JSONObject;
  */
 public class DiffingConnectorCheckpoint implements
     Comparable<DiffingConnectorCheckpoint> {
-  private static enum JsonFields {
+  static enum JsonFields {
     MAJOR_NUMBER, MINOR_NUMBER;
   }
 
@@ -48,10 +50,10 @@ public class DiffingConnectorCheckpoint implements
    */
   public static DiffingConnectorCheckpoint fromJsonString(String jsonObjectString) {
     try {
-      JSONObject jsonObject = new JSONObject(jsonObjectString);
-      return fromJson(jsonObject);
-    } catch (JSONException je) {
-      throw new IllegalArgumentException("Invalid checkpoint " + jsonObjectString, je);
+      return DiffingJsonCodec.checkpointFromJson(jsonObjectString);
+    } catch (IOException e) {
+      throw new IllegalArgumentException(
+          "Invalid checkpoint " + jsonObjectString, e);
     }
   }
 
@@ -86,7 +88,7 @@ public class DiffingConnectorCheckpoint implements
    */
   @Override
   public String toString() {
-    return getJson().toString();
+    return DiffingJsonCodec.toJson(this);
   }
 
   @Override
@@ -136,7 +138,7 @@ public class DiffingConnectorCheckpoint implements
     return minorNumber;
   }
 
-  private DiffingConnectorCheckpoint(long major, long minor) {
+  DiffingConnectorCheckpoint(long major, long minor) {
     this.majorNumber = major;
     this.minorNumber = minor;
   }
@@ -0,0 +1,418 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * Streams {@link MonitorCheckpoint}, {@link DiffingConnectorCheckpoint},
+ * {@link Change}, and {@link CheckpointAndChange} objects to and from
+ * JSON, without building JSON objects in memory.
+ * <p>
+ * The JSON is the same, byte for byte, as the org.json serialization
+ * of these objects that was used before version 3.4.  The members of
+ * each object are written in the order that org.json wrote them, and
+ * the {@link JsonWriter} returned by {@link #newWriter} escapes the same
+ * characters in strings that org.json did.  The members may be read in
+ * any order.
+ */
+final class DiffingJsonCodec {
+  private DiffingJsonCodec() {
+  }
+
+  /**
+   * Returns a {@link JsonWriter} that escapes strings the same way that
+   * org.json does.
+   */
+  static JsonWriter newWriter(Writer out) {
+    return new JsonWriter(new OrgJsonEscapingWriter(out));
+  }
+
+  /** Returns a {@link JsonReader} for the given JSON text. */
+  static JsonReader newReader(String json) {
+    return new JsonReader(new StringReader(json));
+  }
+
+  static void writeMonitorCheckpoint(JsonWriter writer,
+      MonitorCheckpoint monitorCheckpoint) throws IOException {
+    writer.beginObject();
+    writer.name(MonitorCheckpoint.MONITOR_NAME_TAG)
+        .value(monitorCheckpoint.getMonitorName());
+    writer.name(MonitorCheckpoint.OFFSET_2_TAG)
+        .value(monitorCheckpoint.getOffset2());
+    writer.name(MonitorCheckpoint.OFFSET_1_TAG)
+        .value(monitorCheckpoint.getOffset1());
+    writer.name(MonitorCheckpoint.SNAPSHOT_NUMBER_TAG)
+        .value(monitorCheckpoint.getSnapshotNumber());
+    writer.endObject();
+  }
+
+  static MonitorCheckpoint readMonitorCheckpoint(JsonReader reader)
+      throws IOException {
+    String monitorName = null;
+    Long snapshotNumber = null;
+    Long offset1 = null;
+    Long offset2 = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals(MonitorCheckpoint.MONITOR_NAME_TAG)) {
+        monitorName = reader.nextString();
+      } else if (name.equals(MonitorCheckpoint.SNAPSHOT_NUMBER_TAG)) {
+        snapshotNumber = reader.nextLong();
+      } else if (name.equals(MonitorCheckpoint.OFFSET_1_TAG)) {
+        offset1 = reader.nextLong();
+      } else if (name.equals(MonitorCheckpoint.OFFSET_2_TAG)) {
+        offset2 = reader.nextLong();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    checkMember(monitorName, MonitorCheckpoint.MONITOR_NAME_TAG);
+    checkMember(snapshotNumber, MonitorCheckpoint.SNAPSHOT_NUMBER_TAG);
+    checkMember(offset1, MonitorCheckpoint.OFFSET_1_TAG);
+    checkMember(offset2, MonitorCheckpoint.OFFSET_2_TAG);
+    return new MonitorCheckpoint(monitorName, snapshotNumber, offset1,
+        offset2);
+  }
+
+  static void writeCheckpoint(JsonWriter writer,
+      DiffingConnectorCheckpoint checkpoint) throws IOException {
+    writer.beginObject();
+    writer.name(DiffingConnectorCheckpoint.JsonFields.MINOR_NUMBER.name())
+        .value(checkpoint.getMinorNumber());
+    writer.name(DiffingConnectorCheckpoint.JsonFields.MAJOR_NUMBER.name())
+        .value(checkpoint.getMajorNumber());
+    writer.endObject();
+  }
+
+  static DiffingConnectorCheckpoint readCheckpoint(JsonReader reader)
+      throws IOException {
+    Long majorNumber = null;
+    Long minorNumber = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals(
+          DiffingConnectorCheckpoint.JsonFields.MAJOR_NUMBER.name())) {
+        majorNumber = reader.nextLong();
+      } else if (name.equals(
+          DiffingConnectorCheckpoint.JsonFields.MINOR_NUMBER.name())) {
+        minorNumber = reader.nextLong();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    checkMember(majorNumber,
+        DiffingConnectorCheckpoint.JsonFields.MAJOR_NUMBER.name());
+    checkMember(minorNumber,
+        DiffingConnectorCheckpoint.JsonFields.MINOR_NUMBER.name());
+    return new DiffingConnectorCheckpoint(majorNumber, minorNumber);
+  }
+
+  static void writeChange(JsonWriter writer, Change change)
+      throws IOException {
+    writer.beginObject();
+    writer.name(Change.Field.FACTORY_TYPE.name())
+        .value(change.getFactoryType().name());
+    writer.name(Change.Field.MONITOR_CHECKPOINT.name());
+    writeMonitorCheckpoint(writer, change.getMonitorCheckpoint());
+    writer.name(Change.Field.DOCUMENT_HANDLE.name())
+        .value(change.getDocumentHandle().toString());
+    writer.endObject();
+  }
+
+  /**
+   * Reads a {@link Change}.  Changes in the format used by the file
+   * system connector before version 2.8 are also read.
+   *
+   * @param reader the JSON to read
+   * @param internalFactory the factory for changes of type
+   *        {@link Change.FactoryType#INTERNAL}
+   * @param clientFactory the factory for changes of type
+   *        {@link Change.FactoryType#CLIENT}
+   */
+  static Change readChange(JsonReader reader,
+      DocumentHandleFactory internalFactory,
+      DocumentHandleFactory clientFactory) throws IOException {
+    Change.FactoryType factoryType = null;
+    String documentHandle = null;
+    MonitorCheckpoint monitorCheckpoint = null;
+    JsonObject oldFormat = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals(Change.Field.FACTORY_TYPE.name())) {
+        try {
+          factoryType = Change.FactoryType.valueOf(reader.nextString());
+        } catch (IllegalArgumentException e) {
+          throw new IOException("Invalid factory type", e);
+        }
+      } else if (name.equals(Change.Field.DOCUMENT_HANDLE.name())) {
+        documentHandle = reader.nextString();
+      } else if (name.equals(Change.Field.MONITOR_CHECKPOINT.name())) {
+        monitorCheckpoint = readMonitorCheckpoint(reader);
+      } else {
+        // The old format is the document handle with the monitor
+        // checkpoint added to it, which is rarely seen, so it is
+        // gathered into a tree.
+        if (oldFormat == null) {
+          oldFormat = new JsonObject();
+        }
+        oldFormat.add(name, new JsonParser().parse(reader));
+      }
+    }
+    reader.endObject();
+
+    if (factoryType == null && oldFormat != null) {
+      return readOldChange(oldFormat, internalFactory, clientFactory);
+    }
+    checkMember(factoryType, Change.Field.FACTORY_TYPE.name());
+    checkMember(documentHandle, Change.Field.DOCUMENT_HANDLE.name());
+    checkMember(monitorCheckpoint, Change.Field.MONITOR_CHECKPOINT.name());
+    DocumentHandleFactory factory =
+        (factoryType == Change.FactoryType.INTERNAL)
+        ? internalFactory : clientFactory;
+    return new Change(factoryType, factory.fromString(documentHandle),
+        monitorCheckpoint);
+  }
+
+  /**
+   * Reads a change in the old format.  There is no way to know which
+   * factory made the document handle, so each factory is asked in turn.
+   *
+   * @see Change#Change(org.json.JSONObject, DocumentHandleFactory,
+   *      DocumentHandleFactory)
+   */
+  private static Change readOldChange(JsonObject json,
+      DocumentHandleFactory internalFactory,
+      DocumentHandleFactory clientFactory) throws IOException {
+    JsonElement mcp = json.get(Change.Field.mcp.name());
+    checkMember(mcp, Change.Field.mcp.name());
+    Change.FactoryType factoryType = Change.FactoryType.INTERNAL;
+    DocumentHandle documentHandle = internalFactory.fromString(json.toString());
+    if (documentHandle == null) {
+      factoryType = Change.FactoryType.CLIENT;
+      documentHandle = clientFactory.fromString(json.toString());
+    }
+    if (documentHandle == null) {
+      throw new IllegalArgumentException("Could not "
+          + "constitute a document handle with given Json object.");
+    }
+    return new Change(factoryType, documentHandle,
+        readMonitorCheckpoint(newReader(mcp.toString())));
+  }
+
+  static void writeCheckpointAndChange(JsonWriter writer,
+      CheckpointAndChange checkpointAndChange) throws IOException {
+    writer.beginObject();
+    writer.name(CheckpointAndChange.CHANGE_LABEL);
+    writeChange(writer, checkpointAndChange.getChange());
+    writer.name(CheckpointAndChange.CHECKPOINT_LABEL);
+    writeCheckpoint(writer, checkpointAndChange.getCheckpoint());
+    writer.endObject();
+  }
+
+  static CheckpointAndChange readCheckpointAndChange(JsonReader reader,
+      DocumentHandleFactory internalFactory,
+      DocumentHandleFactory clientFactory) throws IOException {
+    DiffingConnectorCheckpoint checkpoint = null;
+    Change change = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals(CheckpointAndChange.CHECKPOINT_LABEL)) {
+        checkpoint = readCheckpoint(reader);
+      } else if (name.equals(CheckpointAndChange.CHANGE_LABEL)) {
+        change = readChange(reader, internalFactory, clientFactory);
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    checkMember(checkpoint, CheckpointAndChange.CHECKPOINT_LABEL);
+    checkMember(change, CheckpointAndChange.CHANGE_LABEL);
+    return new CheckpointAndChange(checkpoint, change);
+  }
+
+  /** Returns the JSON for a monitor checkpoint. */
+  static String toJson(MonitorCheckpoint monitorCheckpoint) {
+    StringWriter out = new StringWriter();
+    try {
+      JsonWriter writer = newWriter(out);
+      writeMonitorCheckpoint(writer, monitorCheckpoint);
+      writer.close();
+    } catch (IOException e) {
+      // A StringWriter does not throw IOExceptions.
+      throw new AssertionError(e);
+    }
+    return out.toString();
+  }
+
+  /** Returns the JSON for a checkpoint. */
+  static String toJson(DiffingConnectorCheckpoint checkpoint) {
+    StringWriter out = new StringWriter();
+    try {
+      JsonWriter writer = newWriter(out);
+      writeCheckpoint(writer, checkpoint);
+      writer.close();
+    } catch (IOException e) {
+      // A StringWriter does not throw IOExceptions.
+      throw new AssertionError(e);
+    }
+    return out.toString();
+  }
+
+  /** Returns the JSON for a change. */
+  static String toJson(Change change) {
+    StringWriter out = new StringWriter();
+    try {
+      JsonWriter writer = newWriter(out);
+      writeChange(writer, change);
+      writer.close();
+    } catch (IOException e) {
+      // A StringWriter does not throw IOExceptions.
+      throw new AssertionError(e);
+    }
+    return out.toString();
+  }
+
+  /** Returns the JSON for a change and its checkpoint. */
+  static String toJson(CheckpointAndChange checkpointAndChange) {
+    StringWriter out = new StringWriter();
+    try {
+      JsonWriter writer = newWriter(out);
+      writeCheckpointAndChange(writer, checkpointAndChange);
+      writer.close();
+    } catch (IOException e) {
+      // A StringWriter does not throw IOExceptions.
+      throw new AssertionError(e);
+    }
+    return out.toString();
+  }
+
+  /**
+   * Reads a checkpoint from its JSON.
+   *
+   * @throws IOException if the JSON is not a valid checkpoint
+   */
+  static DiffingConnectorCheckpoint checkpointFromJson(String json)
+      throws IOException {
+    JsonReader reader = newReader(json);
+    try {
+      DiffingConnectorCheckpoint checkpoint = readCheckpoint(reader);
+      if (reader.peek() != JsonToken.END_DOCUMENT) {
+        throw new IOException("Unexpected JSON after the checkpoint");
+      }
+      return checkpoint;
+    } catch (IllegalStateException e) {
+      // Thrown by JsonReader for unexpected tokens.
+      throw new IOException(e.getMessage(), e);
+    } catch (NumberFormatException e) {
+      throw new IOException(e.getMessage(), e);
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static void checkMember(Object value, String name)
+      throws IOException {
+    if (value == null) {
+      throw new IOException("Missing JSON member: " + name);
+    }
+  }
+
+  /**
+   * Escapes the characters in strings that org.json escapes and
+   * {@link JsonWriter} does not: {@code '/'} after {@code '<'}, and the
+   * characters from {@code U+0080} to {@code U+009F} and from
+   * {@code U+2000} to {@code U+20FF}.  These characters only occur
+   * inside strings in the output of a {@code JsonWriter}, so they can be
+   * escaped here without tracking the structure of the JSON.
+   */
+  private static class OrgJsonEscapingWriter extends FilterWriter {
+    private char previous;
+
+    OrgJsonEscapingWriter(Writer out) {
+      super(out);
+    }
+
+    private boolean isEscaped(char c) {
+      return (c >= 0x80 && c < 0xA0) || (c >= 0x2000 && c < 0x2100)
+          || (c == '/' && previous == '<');
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+      char ch = (char) c;
+      if (ch == '/' && previous == '<') {
+        out.write("\\/");
+      } else if (isEscaped(ch)) {
+        out.write(String.format("\\u%04x", c));
+      } else {
+        out.write(ch);
+      }
+      previous = ch;
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int length)
+        throws IOException {
+      int start = offset;
+      int end = offset + length;
+      for (int i = offset; i < end; i++) {
+        char c = buffer[i];
+        if (isEscaped(c)) {
+          out.write(buffer, start, i - start);
+          write(c);
+          start = i + 1;
+        } else {
+          previous = c;
+        }
+      }
+      out.write(buffer, start, end - start);
+    }
+
+    @Override
+    public void write(String s, int offset, int length) throws IOException {
+      int start = offset;
+      int end = offset + length;
+      for (int i = offset; i < end; i++) {
+        char c = s.charAt(i);
+        if (isEscaped(c)) {
+          out.write(s, start, i - start);
+          write(c);
+          start = i + 1;
+        } else {
+          previous = c;
+        }
+      }
+      out.write(s, start, end - start);
+    }
+  }
+}
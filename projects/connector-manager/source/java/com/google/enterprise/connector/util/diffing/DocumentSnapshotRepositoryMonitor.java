@@ -24,6 +24,9 @@ import com.google.enterprise.connector.spi.TraversalScheduleAware;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -125,6 +128,26 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
     public void passPausing(int sleepms) throws InterruptedException;
   }
 
+  /**
+   * A {@link Callback} that can return the time to pause after a pass,
+   * rather than sleeping.  A monitor that is run in slices by a
+   * {@link MonitorScheduler} uses this to avoid holding a thread while
+   * it waits for the next pass.
+   */
+  static interface PausingCallback extends Callback {
+    /**
+     * Like {@link Callback#passComplete}, but returns the time to pause
+     * before the next pass instead of sleeping.
+     *
+     * @return the time to pause, in milliseconds
+     */
+    public long passCompleteDelay(MonitorCheckpoint mcp)
+        throws InterruptedException;
+  }
+
+  /** The time to pause when outside the traversal schedule. */
+  private static final int OFF_SCHEDULE_PAUSE_MS = 15 * 60 * 1000;
+
   /** This connector instance's current traversal schedule. */
   private volatile TraversalSchedule traversalSchedule;
 
@@ -143,6 +166,9 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
   /** Current record from the snapshot. */
   private DocumentSnapshot current;
 
+  /** The documents in the repository for the current pass. */
+  private Iterator<? extends DocumentSnapshot> documents;
+
   /** The snapshot we are currently writing */
   private OrderedSnapshotWriter snapshotWriter;
 
@@ -155,6 +181,33 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
   /* Contains a checkpoint confirmation from CM. */
   private MonitorCheckpoint guaranteeCheckpoint;
 
+  /** The kinds of change reported to the {@link Callback}. */
+  private static enum ChangeType { NEW, CHANGED, DELETED }
+
+  /** A change that is waiting for its snapshot records to be synced. */
+  private static class PendingChange {
+    final ChangeType type;
+    final DocumentHandle documentHandle;
+    final MonitorCheckpoint checkpoint;
+
+    PendingChange(ChangeType type, DocumentHandle documentHandle,
+        MonitorCheckpoint checkpoint) {
+      this.type = type;
+      this.documentHandle = documentHandle;
+      this.checkpoint = checkpoint;
+    }
+  }
+
+  /**
+   * Changes found in this pass that have not been reported yet, in order.
+   * Once a change is reported, its checkpoint may be persisted at any time,
+   * so a change is held until the snapshot writer has synced the records
+   * that its checkpoint covers.  The writer syncs groups of records, so the
+   * changes are reported in groups, with one sync per group.
+   */
+  private final Queue<PendingChange> pendingChanges =
+      new ArrayDeque<PendingChange>();
+
   /* The monitor should exit voluntarily if set to false */
   private volatile boolean isRunning = true;
 
@@ -186,6 +239,10 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
   }
 
   /**
+   * Returns a current checkpoint for this monitor.  The checkpoint may
+   * cover snapshot records that have not been synced yet, so changes
+   * are not reported until they are; see {@link #pendingChanges}.
+   *
    * @return a current checkpoint for this monitor.
    */
   private MonitorCheckpoint getCheckpoint(long readerDelta) {
@@ -235,7 +292,7 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
               + "Sleeping for 15 minutes.");
           // TODO(nashi): Calculate when it should wake up while
           // handling TraversalScheduleAware events properly.
-          callback.passPausing(15*60*1000);
+          callback.passPausing(OFF_SCHEDULE_PAUSE_MS);
         }
       }
     } catch (SnapshotWriterException e) {
@@ -264,6 +321,8 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
    */
   private void performExceptionRecovery() throws InterruptedException,
       IllegalStateException {
+    // Changes that were not reported are found again by the next pass.
+    pendingChanges.clear();
     // Try to close potentially opened snapshot files.
     try {
       snapshotStore.close(snapshotReader, snapshotWriter);
@@ -301,6 +360,78 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
     }
   }
 
+  /**
+   * Runs part of a pass through the repository, processing up to
+   * {@code maxDocuments} documents.  The next call continues the pass
+   * where this one left off.  If a failure interrupts the pass, the
+   * snapshots are recovered, and the next call starts a new pass.
+   *
+   * @param maxDocuments the maximum number of documents to process
+   * @return the time to pause before the next call, in milliseconds
+   * @throws InterruptedException if the monitor has been shut down or
+   *         the calling thread is interrupted
+   * @throws IllegalStateException if recovery from a failure fails
+   */
+  long runSlice(int maxDocuments) throws InterruptedException {
+    if (!isRunning) {
+      throw new InterruptedException();
+    }
+    // Call NDC.push() via reflection, if possible.
+    invoke(ndcPush, "Monitor " + name);
+    try {
+      return tryToRunSlice(maxDocuments);
+    } catch (SnapshotWriterException e) {
+      String msg =
+          "Failed to write to snapshot file: " + snapshotWriter.getPath();
+      LOG.log(Level.SEVERE, msg, e);
+    } catch (SnapshotReaderException e) {
+      String msg = "Failed to read snapshot file: " + snapshotReader.getPath();
+      LOG.log(Level.SEVERE, msg, e);
+    } catch (SnapshotStoreException e) {
+      String msg = "Problem with snapshot store.";
+      LOG.log(Level.SEVERE, msg, e);
+    } catch (SnapshotRepositoryRuntimeException e) {
+      String msg = "Failed reading repository.";
+      LOG.log(Level.SEVERE, msg, e);
+    } finally {
+      // Call NDC.remove() via reflection, if possible.
+      invoke(ndcRemove);
+    }
+    performExceptionRecovery();
+    return 0L;
+  }
+
+  private long tryToRunSlice(int maxDocuments)
+      throws SnapshotStoreException, InterruptedException {
+    if (documents == null) {
+      if (traversalSchedule != null && !traversalSchedule.shouldRun()) {
+        LOG.finest("Currently out of traversal window. "
+            + "Pausing for 15 minutes.");
+        return OFF_SCHEDULE_PAUSE_MS;
+      }
+      callback.passBegin();
+    }
+    boolean isComplete = false;
+    boolean isPaused = false;
+    try {
+      if (documents == null) {
+        openPass();
+      }
+      isComplete = processDocuments(maxDocuments);
+      if (!isComplete) {
+        // Report the changes found in this slice without waiting for the
+        // next one.
+        reportAllChanges();
+      }
+      isPaused = !isComplete;
+    } finally {
+      if (!isPaused) {
+        closePass();
+      }
+    }
+    return isComplete ? completePass(false) : 0L;
+  }
+
   /**
    * Makes one pass through the repository, notifying {@code visitor} of any
    * changes.
@@ -311,43 +442,150 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
       InterruptedException {
     callback.passBegin();
     try {
-      // Open the most recent snapshot and read the first record.
-      this.snapshotReader = snapshotStore.openMostRecentSnapshot();
-      current = snapshotReader.read();
+      openPass();
+      processDocuments(Long.MAX_VALUE);
+    } finally {
+      closePass();
+    }
+    completePass(true);
+  }
 
-      // Create an snapshot writer for this pass.
-      this.snapshotWriter =
-          new OrderedSnapshotWriter(snapshotStore.openNewSnapshotWriter());
+  /** Opens the snapshots and the repository for a new pass. */
+  private void openPass() throws SnapshotStoreException {
+    // Open the most recent snapshot and read the first record.
+    this.snapshotReader = snapshotStore.openMostRecentSnapshot();
+    current = snapshotReader.read();
 
-      for(DocumentSnapshot ss : query) {
-        if (false == isRunning) {
-          LOG.log(Level.INFO, "Exiting the monitor thread " + name
-              + " " + this);
-          throw new InterruptedException();
-        }
+    // Create an snapshot writer for this pass.
+    this.snapshotWriter =
+        new OrderedSnapshotWriter(snapshotStore.openNewSnapshotWriter());
 
-        if (Thread.currentThread().isInterrupted()) {
-          throw new InterruptedException();
-        }
-        processDeletes(ss);
-        safelyProcessDocumentSnapshot(ss);
+    documents = query.iterator();
+    pendingChanges.clear();
+  }
+
+  /**
+   * Processes up to {@code maxDocuments} documents in the repository.
+   *
+   * @return {@code true} if the pass has processed every document
+   */
+  private boolean processDocuments(long maxDocuments)
+      throws SnapshotStoreException, InterruptedException {
+    for (long i = 0; i < maxDocuments; i++) {
+      if (!documents.hasNext()) {
+        // Take care of any trailing paths in the snapshot.
+        processDeletes(null);
+        return true;
+      }
+      DocumentSnapshot ss = documents.next();
+      if (false == isRunning) {
+        LOG.log(Level.INFO, "Exiting the monitor thread " + name
+            + " " + this);
+        throw new InterruptedException();
       }
-      // Take care of any trailing paths in the snapshot.
-      processDeletes(null);
 
-    } finally {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedException();
+      }
+      processDeletes(ss);
+      safelyProcessDocumentSnapshot(ss);
+      reportSyncedChanges();
+    }
+    return false;
+  }
+
+  /** Holds a change until its snapshot records have been synced. */
+  private void addChange(ChangeType type, DocumentHandle documentHandle,
+      MonitorCheckpoint checkpoint) {
+    pendingChanges.add(new PendingChange(type, documentHandle, checkpoint));
+  }
+
+  /**
+   * Reports the pending changes whose snapshot records have been synced
+   * by the snapshot writer.
+   */
+  private void reportSyncedChanges() throws InterruptedException {
+    long syncedCount = snapshotWriter.getSyncedRecordCount();
+    PendingChange change;
+    while ((change = pendingChanges.peek()) != null
+        && change.checkpoint.getOffset2() <= syncedCount) {
+      pendingChanges.remove();
+      switch (change.type) {
+        case NEW:
+          callback.newDocument(change.documentHandle, change.checkpoint);
+          break;
+        case CHANGED:
+          callback.changedDocument(change.documentHandle, change.checkpoint);
+          break;
+        case DELETED:
+          callback.deletedDocument(change.documentHandle, change.checkpoint);
+          break;
+      }
+    }
+  }
+
+  /**
+   * Reports all of the pending changes, syncing the snapshot records
+   * written so far if there are any.
+   */
+  private void reportAllChanges()
+      throws SnapshotWriterException, InterruptedException {
+    if (!pendingChanges.isEmpty()) {
+      snapshotWriter.sync();
+      reportSyncedChanges();
+    }
+  }
+
+  /**
+   * Ends a pass that is in progress without finishing it, closing the
+   * snapshots.  This is for a monitor that is stopped between slices, and
+   * must not be called while a slice is running.  The changes that were
+   * not reported are found again by the next pass.
+   */
+  void abortPass() {
+    pendingChanges.clear();
+    if (documents != null) {
       try {
-        snapshotStore.close(snapshotReader, snapshotWriter);
-      } catch (IOException e) {
-        LOG.log(Level.WARNING, "Failed closing snapshot reader and writer.", e);
-        // Try to proceed anyway.  Weird they are not closing.
+        closePass();
+      } catch (SnapshotStoreException e) {
+        LOG.log(Level.WARNING, "Repository Monitor " + name
+            + " failed closing snapshot reader and writer.", e);
       }
     }
+  }
+
+  /** Closes the snapshots at the end of a pass, or after a failure. */
+  private void closePass() throws SnapshotStoreException {
+    documents = null;
+    try {
+      snapshotStore.close(snapshotReader, snapshotWriter);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed closing snapshot reader and writer.", e);
+      // Try to proceed anyway.  Weird they are not closing.
+    }
+  }
+
+  /**
+   * Finishes a complete pass.
+   *
+   * @param sleep {@code true} to pause here before the next pass, or
+   *        {@code false} to return the pause if the callback allows it
+   * @return the time to pause before the next pass, in milliseconds
+   */
+  private long completePass(boolean sleep) throws SnapshotStoreException,
+      InterruptedException {
     if (current != null) {
       throw new IllegalStateException(
           "Should not finish pass until entire read snapshot is consumed.");
     }
-    callback.passComplete(getCheckpoint(-1));
+    // The snapshot writer has been closed, which synced it.
+    reportAllChanges();
+    long delay = 0L;
+    if (!sleep && callback instanceof PausingCallback) {
+      delay = ((PausingCallback) callback).passCompleteDelay(getCheckpoint(-1));
+    } else {
+      callback.passComplete(getCheckpoint(-1));
+    }
     snapshotStore.deleteOldSnapshots();
     if (!callback.hasEnqueuedAtLeastOneChangeThisPass()) {
       // No monitor checkpoints from this pass went to queue because
@@ -357,6 +595,7 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
     }
     snapshotWriter = null;
     snapshotReader = null;
+    return delay;
   }
 
   /**
@@ -373,7 +612,7 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
     while (current != null
         && (documentSnapshot == null
             || COMPARATOR.compare(documentSnapshot, current) > 0)) {
-      callback.deletedDocument(
+      addChange(ChangeType.DELETED,
           new DeleteDocumentHandle(current.getDocumentId()), getCheckpoint());
       current = snapshotReader.read();
     }
@@ -414,7 +653,7 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
 
       // Null if filtered due to mime-type.
       if (documentHandle != null) {
-        callback.newDocument(documentHandle, getCheckpoint(-1));
+        addChange(ChangeType.NEW, documentHandle, getCheckpoint(-1));
       }
     }
   }
@@ -439,7 +678,7 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
       // No change.
     } else {
       // Normal change - send the gsa an update.
-      callback.changedDocument(documentHandle, getCheckpoint());
+      addChange(ChangeType.CHANGED, documentHandle, getCheckpoint());
     }
     current = snapshotReader.read();
   }
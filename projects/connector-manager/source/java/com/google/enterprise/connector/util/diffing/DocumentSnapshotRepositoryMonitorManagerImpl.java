@@ -21,7 +21,6 @@ import com.google.enterprise.connector.util.ChecksumGenerator;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -37,6 +36,11 @@ import java.util.logging.Logger;
  * their recovery method.  It creates and manages the
  * {@link DocumentSnapshotRepositoryMonitor} instances and passes guaranteed
  * checkpoints to these monitors.
+ * <p>
+ * The monitors share a bounded pool of threads, which limits the number
+ * of repositories that are scanned at once.  Each monitor processes a
+ * slice of its repository at a time, and the monitors take turns in
+ * proportion to their priorities.
  *
  * @since 2.8
  */
@@ -45,6 +49,27 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
   /** Maximum time to wait for background threads to terminate (in ms). */
   private static final long MAX_SHUTDOWN_MS = 5000;
 
+  /**
+   * The default maximum number of repositories scanned at once.
+   *
+   * @since 3.4
+   */
+  public static final int DEFAULT_MAX_CONCURRENT_SCANS = 4;
+
+  /**
+   * The default number of documents a monitor processes in one turn.
+   *
+   * @since 3.4
+   */
+  public static final int DEFAULT_SCAN_SLICE_DOCUMENTS = 1000;
+
+  /**
+   * The default priority of a repository.
+   *
+   * @since 3.4
+   */
+  public static final int DEFAULT_PRIORITY = 1;
+
   private static final DocumentSink DOCUMENT_SINK = new LoggingDocumentSink();
 
   private static final Logger LOG = Logger.getLogger(
@@ -57,8 +82,8 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
     return monitorName;
   }
 
-  private final List<Thread> threads =
-      Collections.synchronizedList(new ArrayList<Thread>());
+  /** Runs the monitors, or {@code null} if they are not running. */
+  private volatile MonitorScheduler scheduler;
   private final Map<String, DocumentSnapshotRepositoryMonitor> fileSystemMonitorsByName =
       Collections.synchronizedMap(new HashMap<String, DocumentSnapshotRepositoryMonitor>());
   private boolean isRunning = false;  // Monitor threads start in off state.
@@ -72,6 +97,13 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
 
   private final DocumentSnapshotFactory documentSnapshotFactory;
 
+  private int snapshotSyncRecords = SnapshotStore.DEFAULT_SYNC_RECORDS;
+  private long snapshotSyncMillis = SnapshotStore.DEFAULT_SYNC_MILLIS;
+  private boolean binarySnapshots = false;
+  private int maxConcurrentScans = DEFAULT_MAX_CONCURRENT_SCANS;
+  private int scanSliceDocuments = DEFAULT_SCAN_SLICE_DOCUMENTS;
+  private Map<String, Integer> repositoryPriorities = Collections.emptyMap();
+
   /**
    * Constructs {@link DocumentSnapshotRepositoryMonitorManagerImpl}
    * for the {@link DiffingConnector}.
@@ -101,6 +133,96 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
     this.checkpointAndChangeQueue = checkpointAndChangeQueue;
   }
 
+  /**
+   * Sets the maximum number of snapshot records written between syncs
+   * to disk.  The changes found by a monitor are queued once the records
+   * that their checkpoints refer to are synced, so this is also the most
+   * changes that wait for a sync.
+   *
+   * @param snapshotSyncRecords the maximum number of records; {@code 1}
+   *        syncs every record
+   * @since 3.4
+   */
+  public void setSnapshotSyncRecords(int snapshotSyncRecords) {
+    this.snapshotSyncRecords = snapshotSyncRecords;
+  }
+
+  /**
+   * Sets the maximum time between syncs of the snapshot records to disk.
+   *
+   * @param snapshotSyncMillis the maximum time, in milliseconds;
+   *        {@code 0} for no time limit
+   * @since 3.4
+   */
+  public void setSnapshotSyncMillis(long snapshotSyncMillis) {
+    this.snapshotSyncMillis = snapshotSyncMillis;
+  }
+
+  /**
+   * Sets whether new snapshots are written in the binary format.
+   *
+   * @param binarySnapshots {@code true} to write the binary format, or
+   *        {@code false} to write the text format
+   * @see SnapshotStore#setBinarySnapshots
+   * @since 3.4
+   */
+  public void setBinarySnapshots(boolean binarySnapshots) {
+    this.binarySnapshots = binarySnapshots;
+  }
+
+  /**
+   * Sets the maximum number of repositories that are scanned at once.
+   * The monitors share this many threads.
+   *
+   * @param maxConcurrentScans the maximum number of scans; must be
+   *        positive
+   * @since 3.4
+   */
+  public void setMaxConcurrentScans(int maxConcurrentScans) {
+    if (maxConcurrentScans <= 0) {
+      throw new IllegalArgumentException(
+          "maxConcurrentScans must be positive: " + maxConcurrentScans);
+    }
+    this.maxConcurrentScans = maxConcurrentScans;
+  }
+
+  /**
+   * Sets the number of documents that a monitor processes before it
+   * yields its thread to the next monitor.
+   *
+   * @param scanSliceDocuments the number of documents; must be positive
+   * @since 3.4
+   */
+  public void setScanSliceDocuments(int scanSliceDocuments) {
+    if (scanSliceDocuments <= 0) {
+      throw new IllegalArgumentException(
+          "scanSliceDocuments must be positive: " + scanSliceDocuments);
+    }
+    this.scanSliceDocuments = scanSliceDocuments;
+  }
+
+  /**
+   * Sets the priorities of the repositories.  A repository with priority
+   * 2 gets twice as many turns to scan as a repository with priority 1.
+   * Repositories that are not listed get {@link #DEFAULT_PRIORITY}.
+   *
+   * @param repositoryPriorities a {@code Map} of
+   *        {@link SnapshotRepository#getName() repository names} to
+   *        positive priorities
+   * @since 3.4
+   */
+  public void setRepositoryPriorities(
+      Map<String, Integer> repositoryPriorities) {
+    for (Map.Entry<String, Integer> entry : repositoryPriorities.entrySet()) {
+      if (entry.getValue() == null || entry.getValue() <= 0) {
+        throw new IllegalArgumentException("Priority for "
+            + entry.getKey() + " must be positive: " + entry.getValue());
+      }
+    }
+    this.repositoryPriorities =
+        new HashMap<String, Integer>(repositoryPriorities);
+  }
+
   private void flagAllMonitorsToStop() {
     for (SnapshotRepository<? extends DocumentSnapshot> repository
         : repositories) {
@@ -119,24 +241,23 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
 
   @Override
   public synchronized void stop() {
-    for (Thread thread : threads) {
-      thread.interrupt();
-    }
-    for (Thread thread : threads) {
+    // Monitors stop at the end of the current document, so the running
+    // slices finish quickly.
+    flagAllMonitorsToStop();
+
+    if (scheduler != null) {
+      // Make room for monitors that are waiting to queue a change.
+      changeQueue.clear();
       try {
-        thread.join(MAX_SHUTDOWN_MS);
-        if (thread.isAlive()) {
-          LOG.warning("failed to stop background thread: " + thread.getName());
+        if (!scheduler.shutdown(MAX_SHUTDOWN_MS)) {
+          LOG.warning("failed to stop background monitor threads");
         }
       } catch (InterruptedException e) {
         // Mark this thread as interrupted so it can be dealt with later.
         Thread.currentThread().interrupt();
       }
+      scheduler = null;
     }
-    threads.clear();
-
-    /* in case thread.interrupt doesn't stop monitors */
-    flagAllMonitorsToStop();
 
     fileSystemMonitorsByName.clear();
     changeQueue.clear();
@@ -170,6 +291,8 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
 
       SnapshotStore snapshotStore = new SnapshotStore(dir,
           documentSnapshotFactory);
+      snapshotStore.setSyncPolicy(snapshotSyncRecords, snapshotSyncMillis);
+      snapshotStore.setBinarySnapshots(binarySnapshots);
 
       snapshotStores.put(monitorName, snapshotStore);
     }
@@ -217,15 +340,16 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
     checkpointAndChangeQueue.clean();
   }
 
+  /**
+   * Returns the number of {@link DocumentSnapshotRepositoryMonitor
+   * DocumentSnapshotRepositoryMonitors} that are running.  The monitors
+   * share at most {@link #setMaxConcurrentScans maxConcurrentScans}
+   * threads.
+   */
   @Override
   public int getThreadCount() {
-    int result = 0;
-    for (Thread t : threads) {
-      if (t.isAlive()) {
-        result++;
-      }
-    }
-    return result;
+    MonitorScheduler current = scheduler;
+    return (current == null) ? 0 : current.getMonitorCount();
   }
 
   @Override
@@ -249,13 +373,13 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
   }
 
   /**
-   * Creates a {@link DocumentSnapshotRepositoryMonitor} thread for the provided
+   * Creates a {@link DocumentSnapshotRepositoryMonitor} for the provided
    * folder.
    *
    * @throws RepositoryDocumentException if {@code startPath} is not readable,
    *         or if there is any problem reading or writing snapshots.
    */
-  private Thread newMonitorThread(
+  private DocumentSnapshotRepositoryMonitor newMonitor(
       SnapshotRepository<? extends DocumentSnapshot> repository,
       SnapshotStore snapshotStore, MonitorCheckpoint startCp)
       throws RepositoryDocumentException {
@@ -267,32 +391,34 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
     monitor.setTraversalSchedule(traversalSchedule);
     LOG.fine("Adding a new monitor for " + monitorName + ": " + monitor);
     fileSystemMonitorsByName.put(monitorName, monitor);
-    return new Thread(monitor);
+    return monitor;
   }
 
   /**
-   * Creates a {@link DocumentSnapshotRepositoryMonitor} thread for each
-   * startPath.
+   * Creates a {@link DocumentSnapshotRepositoryMonitor} for each
+   * startPath, and schedules them to run.
    *
-   * @throws RepositoryDocumentException if any of the threads cannot be
+   * @throws RepositoryDocumentException if any of the monitors cannot be
    *         started.
    */
   private void startMonitorThreads(Map<String, SnapshotStore> snapshotStores,
       Map<String, MonitorCheckpoint> monitorPoints)
       throws RepositoryDocumentException {
+    MonitorScheduler newScheduler =
+        new MonitorScheduler(maxConcurrentScans, scanSliceDocuments);
+    scheduler = newScheduler;
 
     for (SnapshotRepository<? extends DocumentSnapshot> repository
             : repositories) {
       String monitorName = makeMonitorNameFromStartPath(repository.getName());
       SnapshotStore snapshotStore = snapshotStores.get(monitorName);
-      Thread monitorThread = newMonitorThread(repository, snapshotStore,
-          monitorPoints.get(monitorName));
-      threads.add(monitorThread);
+      DocumentSnapshotRepositoryMonitor monitor = newMonitor(repository,
+          snapshotStore, monitorPoints.get(monitorName));
 
+      Integer priority = repositoryPriorities.get(repository.getName());
       LOG.info("starting monitor for <" + repository.getName() + ">");
-      monitorThread.setName(repository.getName());
-      monitorThread.setDaemon(true);
-      monitorThread.start();
+      newScheduler.schedule(monitor, repository.getName(),
+          (priority == null) ? DEFAULT_PRIORITY : priority);
     }
   }
 
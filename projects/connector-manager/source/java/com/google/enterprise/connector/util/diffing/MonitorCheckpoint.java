@@ -23,10 +23,10 @@ import org.json.JSONObject;
  * @since 2.8
  */
 public class MonitorCheckpoint {
-  private static final String SNAPSHOT_NUMBER_TAG = "ssn";
-  private static final String MONITOR_NAME_TAG = "name";
-  private static final String OFFSET_1_TAG = "offset1";
-  private static final String OFFSET_2_TAG = "offset2";
+  static final String SNAPSHOT_NUMBER_TAG = "ssn";
+  static final String MONITOR_NAME_TAG = "name";
+  static final String OFFSET_1_TAG = "offset1";
+  static final String OFFSET_2_TAG = "offset2";
 
   private final String monitorName;
   private final long snapshotNumber;
@@ -154,6 +154,6 @@ public class MonitorCheckpoint {
 
   @Override
   public String toString() {
-    return getJson().toString();
+    return DiffingJsonCodec.toJson(this);
   }
 }
@@ -0,0 +1,244 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs {@link DocumentSnapshotRepositoryMonitor} instances on a bounded
+ * pool of threads.  Each monitor runs in slices of a limited number of
+ * documents, and then yields its thread to the next monitor in line.
+ * <p>
+ * The monitors take turns using stride scheduling: every monitor has a
+ * virtual time that advances by the inverse of its priority after each
+ * slice, and the monitor with the earliest virtual time runs next.  With
+ * equal priorities, this is round-robin.  A monitor with priority 2 runs
+ * twice as many slices as one with priority 1, and no monitor starves.
+ * Monitors that are pausing between passes do not hold a thread, and do
+ * not accumulate turns while they wait.
+ */
+class MonitorScheduler {
+  private static final Logger LOG =
+      Logger.getLogger(MonitorScheduler.class.getName());
+
+  /** The virtual time that a slice at priority 1 takes. */
+  private static final long STRIDE = 1 << 20;
+
+  private final ThreadPoolExecutor executor;
+  private final ScheduledExecutorService timer;
+  private final int sliceDocuments;
+
+  /** The monitors that have not stopped. */
+  private final Set<Task> tasks =
+      Collections.synchronizedSet(new HashSet<Task>());
+
+  /** The virtual time of the latest slice to start. */
+  private long virtualTime = 0L;
+
+  /** Breaks ties between monitors with the same virtual time. */
+  private long sequence = 0L;
+
+  private volatile boolean isShutdown = false;
+
+  /**
+   * @param maxScans the maximum number of monitors that run at once
+   * @param sliceDocuments the maximum number of documents that a monitor
+   *        processes before yielding its thread
+   */
+  MonitorScheduler(int maxScans, int sliceDocuments) {
+    Preconditions.checkArgument(maxScans > 0,
+        "maxScans must be positive: %s", maxScans);
+    Preconditions.checkArgument(sliceDocuments > 0,
+        "sliceDocuments must be positive: %s", sliceDocuments);
+    this.sliceDocuments = sliceDocuments;
+    this.executor = new ThreadPoolExecutor(maxScans, maxScans,
+        0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("DocumentSnapshotRepositoryMonitor-%d").build());
+    this.timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("DocumentSnapshotRepositoryMonitor-timer").build());
+  }
+
+  /**
+   * Starts running a monitor.
+   *
+   * @param monitor the monitor
+   * @param name the name of the monitor, used to name the thread while
+   *        the monitor runs
+   * @param priority the relative share of slices that the monitor gets;
+   *        must be positive
+   */
+  void schedule(DocumentSnapshotRepositoryMonitor monitor, String name,
+      int priority) {
+    Preconditions.checkArgument(priority > 0,
+        "priority must be positive: %s", priority);
+    Task task = new Task(monitor, name, STRIDE / priority);
+    tasks.add(task);
+    task.submit();
+  }
+
+  /** Returns the number of monitors that have not stopped. */
+  int getMonitorCount() {
+    return tasks.size();
+  }
+
+  /**
+   * Stops running the monitors.  Slices that are running are allowed to
+   * finish, and no more slices are started.  The threads are interrupted
+   * only if the slices do not finish in time.  The passes of monitors that
+   * are waiting for their next slice are aborted, which closes their
+   * snapshots.
+   *
+   * @param timeoutMillis the maximum time to wait for the slices to
+   *        finish before interrupting them, in milliseconds
+   * @return {@code true} if all of the threads stopped
+   * @throws InterruptedException if interrupted while waiting
+   */
+  boolean shutdown(long timeoutMillis) throws InterruptedException {
+    isShutdown = true;
+    timer.shutdownNow();
+    List<Runnable> dropped = new ArrayList<Runnable>();
+    executor.getQueue().drainTo(dropped);
+    abort(dropped);
+    executor.shutdown();
+    boolean isTerminated = true;
+    if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+      LOG.warning("Interrupting monitors that failed to stop within "
+          + timeoutMillis + " ms.");
+      abort(executor.shutdownNow());
+      isTerminated =
+          executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    tasks.clear();
+    return isTerminated;
+  }
+
+  /** Aborts the monitors of tasks that were dropped from the queue. */
+  private static void abort(List<Runnable> dropped) {
+    for (Runnable runnable : dropped) {
+      ((Task) runnable).abort();
+    }
+  }
+
+  /** Runs a slice of a monitor, and then queues the monitor again. */
+  private class Task implements Runnable, Comparable<Task> {
+    private final DocumentSnapshotRepositoryMonitor monitor;
+    private final String name;
+    private final long stride;
+
+    /* Guarded by MonitorScheduler.this. */
+    private long pass;
+    private long order;
+
+    Task(DocumentSnapshotRepositoryMonitor monitor, String name,
+        long stride) {
+      this.monitor = monitor;
+      this.name = name;
+      this.stride = stride;
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      synchronized (MonitorScheduler.this) {
+        if (pass != other.pass) {
+          return (pass < other.pass) ? -1 : 1;
+        }
+        return (order < other.order) ? -1 : ((order == other.order) ? 0 : 1);
+      }
+    }
+
+    @Override
+    public void run() {
+      if (isShutdown) {
+        abort();
+        return;
+      }
+      synchronized (MonitorScheduler.this) {
+        virtualTime = Math.max(virtualTime, pass);
+      }
+      Thread thread = Thread.currentThread();
+      String threadName = thread.getName();
+      thread.setName(name);
+      long delay;
+      try {
+        delay = monitor.runSlice(sliceDocuments);
+      } catch (InterruptedException e) {
+        // A monitor that was stopped between slices is still in a pass.
+        LOG.info("Repository Monitor " + name + " stopped.");
+        abort();
+        return;
+      } catch (RuntimeException e) {
+        LOG.log(Level.SEVERE, "Repository Monitor " + name + " failed.", e);
+        abort();
+        return;
+      } finally {
+        thread.setName(threadName);
+      }
+      synchronized (MonitorScheduler.this) {
+        pass += stride;
+      }
+      if (delay > 0) {
+        try {
+          timer.schedule(new Runnable() {
+              @Override
+              public void run() {
+                submit();
+              }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          abort();
+        }
+      } else {
+        submit();
+      }
+    }
+
+    /** Queues the next slice of this monitor. */
+    void submit() {
+      synchronized (MonitorScheduler.this) {
+        // A monitor that was pausing does not get extra turns.
+        pass = Math.max(pass, virtualTime);
+        order = sequence++;
+      }
+      try {
+        executor.execute(this);
+      } catch (RejectedExecutionException e) {
+        abort();
+      }
+    }
+
+    /** Stops running the monitor, and ends any pass in progress. */
+    void abort() {
+      tasks.remove(this);
+      monitor.abortPass();
+    }
+  }
+}
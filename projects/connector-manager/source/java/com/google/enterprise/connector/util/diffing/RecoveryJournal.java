@@ -0,0 +1,206 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the append-only recovery journal of a
+ * {@link CheckpointAndChangeQueue}.
+ * <p>
+ * A journal is a sequence of records, one per line:
+ * <pre>
+ *   record = crc32 ' ' json '\n'
+ * </pre>
+ * where {@code crc32} is the CRC-32 of the UTF-8 encoded JSON, written
+ * as eight lowercase hex digits.  JSON text never contains a raw newline.
+ * A record is only valid if it is complete and its checksum matches, so
+ * a record that was torn by a crash is detected, and the records before
+ * it are still used.
+ * <p>
+ * Recovery files written before version 3.4 contain a single JSON object
+ * followed by a sentinel, and start with <code>'{'</code>, which a journal
+ * never does.
+ */
+final class RecoveryJournal {
+  private RecoveryJournal() {
+  }
+
+  /** The length of the checksum and the space that follows it. */
+  private static final int CHECKSUM_LENGTH = 9;
+
+  /** The records of a journal, and the length of the valid records. */
+  static class Records {
+    final List<String> records = new ArrayList<String>();
+    long length;
+  }
+
+  /**
+   * Returns whether a recovery file is a journal, as opposed to a
+   * recovery file in the original format.
+   */
+  static boolean isJournal(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      int first = in.read();
+      return first != -1 && first != '{';
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Returns a record as the bytes to write to a journal. */
+  static byte[] encode(String json) {
+    byte[] bytes = json.getBytes(Charsets.UTF_8);
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    String checksum = String.format("%08x ", crc.getValue());
+    byte[] record = new byte[CHECKSUM_LENGTH + bytes.length + 1];
+    System.arraycopy(checksum.getBytes(Charsets.US_ASCII), 0, record, 0,
+        CHECKSUM_LENGTH);
+    System.arraycopy(bytes, 0, record, CHECKSUM_LENGTH, bytes.length);
+    record[record.length - 1] = '\n';
+    return record;
+  }
+
+  /**
+   * Creates a journal that starts with the given record, and syncs it to
+   * disk.  An existing file is replaced.
+   *
+   * @return the length of the journal, in bytes
+   */
+  static long create(File file, String json) throws IOException {
+    return write(file, false, encode(json));
+  }
+
+  /**
+   * Appends a record to a journal, and syncs it to disk.  If the write
+   * fails, the journal is truncated to its previous length, if possible.
+   *
+   * @param length the current length of the journal
+   * @return the length of the record, in bytes
+   */
+  static long append(File file, long length, String json)
+      throws IOException {
+    byte[] record = encode(json);
+    FileOutputStream out = new FileOutputStream(file, true);
+    try {
+      try {
+        out.write(record);
+        out.getFD().sync();
+      } catch (IOException e) {
+        try {
+          out.getChannel().truncate(length);
+        } catch (IOException ignored) {
+          // The torn record will be ignored on recovery.
+        }
+        throw e;
+      }
+    } finally {
+      out.close();
+    }
+    return record.length;
+  }
+
+  /**
+   * Appends part of one journal to another, and syncs the target to disk.
+   *
+   * @param from the journal to copy from
+   * @param start the offset of the first byte to copy
+   * @param end the offset after the last byte to copy
+   * @param to the journal to append to
+   */
+  static void copy(File from, long start, long end, File to)
+      throws IOException {
+    byte[] bytes = new byte[(int) (end - start)];
+    FileInputStream in = new FileInputStream(from);
+    try {
+      in.getChannel().position(start);
+      int offset = 0;
+      while (offset < bytes.length) {
+        int count = in.read(bytes, offset, bytes.length - offset);
+        if (count < 0) {
+          throw new IOException("Recovery journal is shorter than expected: "
+              + from.getAbsolutePath());
+        }
+        offset += count;
+      }
+    } finally {
+      in.close();
+    }
+    write(to, true, bytes);
+  }
+
+  private static long write(File file, boolean append, byte[] bytes)
+      throws IOException {
+    FileOutputStream out = new FileOutputStream(file, append);
+    try {
+      out.write(bytes);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    return bytes.length;
+  }
+
+  /**
+   * Reads the valid records of a journal.  Reading stops at the first
+   * record that is incomplete or has a bad checksum.
+   */
+  static Records read(File file) throws IOException {
+    byte[] bytes = Files.toByteArray(file);
+    Records result = new Records();
+    CRC32 crc = new CRC32();
+    int start = 0;
+    while (start < bytes.length) {
+      int end = start;
+      while (end < bytes.length && bytes[end] != '\n') {
+        end++;
+      }
+      if (end == bytes.length || end - start < CHECKSUM_LENGTH
+          || bytes[start + CHECKSUM_LENGTH - 1] != ' ') {
+        break;
+      }
+      long checksum;
+      try {
+        checksum = Long.parseLong(new String(bytes, start,
+            CHECKSUM_LENGTH - 1, Charsets.US_ASCII), 16);
+      } catch (NumberFormatException e) {
+        break;
+      }
+      crc.reset();
+      crc.update(bytes, start + CHECKSUM_LENGTH,
+          end - start - CHECKSUM_LENGTH);
+      if (checksum != crc.getValue()) {
+        break;
+      }
+      result.records.add(new String(bytes, start + CHECKSUM_LENGTH,
+          end - start - CHECKSUM_LENGTH, Charsets.UTF_8));
+      start = end + 1;
+      result.length = start;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,138 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts snapshot files between the text format and the binary format.
+ * The connector must not be running while its snapshots are converted.
+ * <p>
+ * Usage:
+ * <pre>
+ *   java -cp connector-util.jar:guava.jar \
+ *       com.google.enterprise.connector.util.diffing.SnapshotConverter \
+ *       [-binary|-text] input output
+ * </pre>
+ * The input may be in either format.  The output is written in the
+ * binary format unless {@code -text} is given.
+ *
+ * @since 3.4
+ */
+public class SnapshotConverter {
+  private SnapshotConverter() {
+  }
+
+  /**
+   * Copies the records of a snapshot file to a new snapshot file.
+   *
+   * @param input the snapshot file to read
+   * @param output the snapshot file to write; it is replaced if it exists
+   * @param binary {@code true} to write the binary format, or
+   *        {@code false} to write the text format
+   * @return the number of records copied
+   * @throws IOException if the files could not be read or written
+   * @throws SnapshotStoreException if the input is not a valid snapshot
+   */
+  public static long convert(File input, File output, boolean binary)
+      throws IOException, SnapshotStoreException {
+    if (input.getCanonicalFile().equals(output.getCanonicalFile())) {
+      throw new IllegalArgumentException(
+          "The input and output must be different files: " + input);
+    }
+    SnapshotReader reader =
+        SnapshotReader.open(input, 0, new StringFormFactory());
+    try {
+      SnapshotWriter writer = SnapshotStore.getSnapshotWriter(output,
+          Integer.MAX_VALUE, 0L, binary);
+      try {
+        DocumentSnapshot record;
+        while ((record = reader.read()) != null) {
+          writer.write(record);
+        }
+      } finally {
+        writer.close();
+      }
+      return writer.getRecordCount();
+    } finally {
+      reader.close();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    boolean binary = true;
+    int first = 0;
+    if (args.length == 3) {
+      if (args[0].equals("-binary")) {
+        binary = true;
+      } else if (args[0].equals("-text")) {
+        binary = false;
+      } else {
+        usage();
+        return;
+      }
+      first = 1;
+    } else if (args.length != 2) {
+      usage();
+      return;
+    }
+    File input = new File(args[first]);
+    File output = new File(args[first + 1]);
+    long start = System.currentTimeMillis();
+    long records = convert(input, output, binary);
+    System.out.println("Converted " + records + " records in "
+        + (System.currentTimeMillis() - start) + " ms from " + input
+        + " (" + input.length() + " bytes) to " + output + " ("
+        + output.length() + " bytes).");
+  }
+
+  private static void usage() {
+    System.err.println("Usage: " + SnapshotConverter.class.getName()
+        + " [-binary|-text] input output");
+    System.exit(2);
+  }
+
+  /** Passes the string form of each record through unchanged. */
+  private static class StringFormFactory implements DocumentSnapshotFactory {
+    @Override
+    public DocumentSnapshot fromString(String stringForm) {
+      return new StringFormSnapshot(stringForm);
+    }
+  }
+
+  private static class StringFormSnapshot implements DocumentSnapshot {
+    private final String stringForm;
+
+    StringFormSnapshot(String stringForm) {
+      this.stringForm = stringForm;
+    }
+
+    @Override
+    public String getDocumentId() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public DocumentHandle getUpdate(DocumentSnapshot onGsa) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String toString() {
+      return stringForm;
+    }
+  }
+}
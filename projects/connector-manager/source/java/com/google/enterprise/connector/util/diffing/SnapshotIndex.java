@@ -0,0 +1,245 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A sparse index of the records in a snapshot file, kept in a sidecar
+ * file next to the snapshot.  Every {@code interval} records or so, the
+ * index records the number of records written so far and the byte offset
+ * in the snapshot file at which the next record, or block of records in
+ * the binary format, starts, one entry per line:
+ * <pre>
+ *   records offset
+ * </pre>
+ * <p>
+ * The index is only a hint.  It is not synced to disk, entries that are
+ * torn, out of order, or beyond the end of the snapshot are ignored, and
+ * a snapshot without an index is read from the beginning.
+ */
+final class SnapshotIndex {
+  private static final Logger LOG =
+      Logger.getLogger(SnapshotIndex.class.getName());
+
+  /** The default number of records between index entries. */
+  static final int DEFAULT_INTERVAL = 1000;
+
+  private static final String SUFFIX = ".idx";
+
+  /** The number of records before each entry, in ascending order. */
+  private final long[] records;
+
+  /** The byte offset of the record following each entry. */
+  private final long[] offsets;
+
+  private final int size;
+
+  private SnapshotIndex(long[] records, long[] offsets, int size) {
+    this.records = records;
+    this.offsets = offsets;
+    this.size = size;
+  }
+
+  /**
+   * Returns the index file for the given snapshot file.
+   */
+  static File getIndexFile(File snapshotFile) {
+    return new File(snapshotFile.getPath() + SUFFIX);
+  }
+
+  /**
+   * Reads the index for a snapshot file.
+   *
+   * @param snapshotFile the snapshot file
+   * @return the index, or {@code null} if the snapshot has no usable index
+   */
+  static SnapshotIndex read(File snapshotFile) {
+    File indexFile = getIndexFile(snapshotFile);
+    if (!indexFile.exists()) {
+      return null;
+    }
+    long snapshotLength = snapshotFile.length();
+    long[] records = new long[64];
+    long[] offsets = new long[64];
+    int size = 0;
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(
+          new FileInputStream(indexFile), Charsets.UTF_8));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          int space = line.indexOf(' ');
+          if (space < 0) {
+            break;
+          }
+          long recordCount;
+          long offset;
+          try {
+            recordCount = Long.parseLong(line.substring(0, space));
+            offset = Long.parseLong(line.substring(space + 1));
+          } catch (NumberFormatException e) {
+            break;
+          }
+          // A torn or stale entry ends the usable part of the index.
+          if (recordCount <= ((size == 0) ? 0 : records[size - 1])
+              || offset <= ((size == 0) ? 0 : offsets[size - 1])
+              || offset > snapshotLength) {
+            break;
+          }
+          if (size == records.length) {
+            records = Arrays.copyOf(records, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+          }
+          records[size] = recordCount;
+          offsets[size] = offset;
+          size++;
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to read snapshot index " + indexFile, e);
+      return null;
+    }
+    return (size == 0) ? null : new SnapshotIndex(records, offsets, size);
+  }
+
+  /**
+   * Deletes the index for a snapshot file, if there is one.
+   *
+   * @return {@code false} if the index exists and could not be deleted
+   */
+  static boolean delete(File snapshotFile) {
+    File indexFile = getIndexFile(snapshotFile);
+    return !indexFile.exists() || indexFile.delete();
+  }
+
+  /**
+   * Returns the position of the last entry that precedes the given record,
+   * or {@code -1} if there is no such entry.
+   *
+   * @param recordCount the number of records to skip
+   */
+  int floor(long recordCount) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (records[mid] <= recordCount) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return high;
+  }
+
+  /** Returns the number of records before the given entry. */
+  long getRecordCount(int entry) {
+    return records[entry];
+  }
+
+  /** Returns the byte offset of the record following the given entry. */
+  long getOffset(int entry) {
+    return offsets[entry];
+  }
+
+  /** Returns the number of entries in the index. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Writes the index for a snapshot file as the snapshot is written.
+   * The index file is created when the first entry is added, so small
+   * snapshots do not have one.
+   */
+  static class IndexWriter {
+    private final File indexFile;
+    private final int interval;
+    private final StringBuilder pending = new StringBuilder();
+    private Writer out;
+
+    /** The number of records at the last entry. */
+    private long lastRecordCount;
+
+    /**
+     * @param snapshotFile the snapshot file being written
+     * @param interval the number of records between index entries
+     */
+    IndexWriter(File snapshotFile, int interval) {
+      if (interval < 1) {
+        throw new IllegalArgumentException("interval must be positive: "
+            + interval);
+      }
+      this.indexFile = getIndexFile(snapshotFile);
+      this.interval = interval;
+    }
+
+    /**
+     * Notes that the records up to {@code offset} have been written.
+     * An entry is added if at least {@code interval} records have been
+     * written since the last entry.  Entries are held in memory until the
+     * next {@link #flush}.
+     *
+     * @param recordCount the number of records written so far
+     * @param offset the number of bytes written so far
+     */
+    void add(long recordCount, long offset) {
+      if (recordCount - lastRecordCount >= interval) {
+        pending.append(recordCount).append(' ').append(offset).append('\n');
+        lastRecordCount = recordCount;
+      }
+    }
+
+    /**
+     * Writes the pending entries to the index file.  This is called after
+     * the snapshot records are synced, so that the index does not refer
+     * to records that could be lost in a crash.
+     */
+    void flush() throws IOException {
+      if (pending.length() > 0) {
+        if (out == null) {
+          out = new OutputStreamWriter(new FileOutputStream(indexFile),
+              Charsets.UTF_8);
+        }
+        out.write(pending.toString());
+        out.flush();
+        pending.setLength(0);
+      }
+    }
+
+    /** Writes the pending entries, and closes the index file. */
+    void close() throws IOException {
+      flush();
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+}
@@ -14,9 +14,17 @@
 
 package com.google.enterprise.connector.util.diffing;
 
+import com.google.common.base.Charsets;
+
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.CharBuffer;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
 
 /**
  * Reader for a {@link SnapshotStore}.
@@ -24,14 +32,28 @@ import java.nio.CharBuffer;
  * @since 2.8
  */
 public class SnapshotReader {
+  private static final Logger LOG =
+      Logger.getLogger(SnapshotReader.class.getName());
 
   private static final char START_JSON_CHAR = '{';
-  
+
+  /** The size of the buffer for reading snapshot files, in chars. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
   private final String inputPath;
-  private final BufferedReader in;
+  private BufferedReader in;
   private final long snapshotNumber;
   private final DocumentSnapshotFactory documentSnapshotFactory;
   private long recordNumber;
+
+  /** The snapshot file, or {@code null} if the input cannot seek. */
+  private final FileInputStream fileInput;
+
+  /** The sparse index of the snapshot, or {@code null} if there is none. */
+  private SnapshotIndex index;
+
+  /** The number of records read or skipped from the input. */
+  private long position;
   private boolean done;
   private RecordReader recordReader;
   
@@ -53,6 +75,12 @@ public class SnapshotReader {
    * each record.
    */
   private class LengthBasedRecordReader implements RecordReader {
+    /** The digits of the length of the current record. */
+    private final StringBuilder lengthChars = new StringBuilder();
+
+    /** The buffer for the current record, reused for each record. */
+    private char[] chars = new char[1024];
+
     @Override
     public String readRecord() throws SnapshotReaderException {
       String stringForm = null;
@@ -69,14 +97,44 @@ public class SnapshotReader {
       } 
       return stringForm;
     }
-    
+
+    /**
+     * Reads and discards a record, without decoding it.
+     *
+     * @return {@code false} if there are no records left
+     */
+    boolean skipRecord() throws SnapshotReaderException {
+      try {
+        int length = readLength();
+        if (length <= 0) {
+          return false;
+        }
+        long remaining = length;
+        while (remaining > 0) {
+          long skipped = in.skip(remaining);
+          if (skipped <= 0) {
+            throw new SnapshotReaderException(String.format(
+                "failed to read snapshot record with incomplete record "
+                + "(%s, record %d)", inputPath, position + 1));
+          }
+          remaining -= skipped;
+        }
+        readRecordDelimiter("(skipped)");
+        return true;
+      } catch (IOException ioe) {
+        throw new SnapshotReaderException(
+            String.format("failed to read snapshot record (%s, record %d)",
+                inputPath, position + 1), ioe);
+      }
+    }
+
     private int readLength() throws SnapshotReaderException, IOException {
-      StringBuilder sb = new StringBuilder();
+      lengthChars.setLength(0);
       int c;
       while ((c=in.read()) > 0 && c != SnapshotWriter.LENGTH_DELIMITER) {
-        sb.append((char)c);
+        lengthChars.append((char)c);
       }
-      if (sb.length() == 0) {
+      if (lengthChars.length() == 0) {
         if (c == SnapshotWriter.LENGTH_DELIMITER) {
           throw new SnapshotReaderException(String.format(
               "failed to read snapshot record with missing length (%s, record %d)",
@@ -84,34 +142,59 @@ public class SnapshotReader {
         }
         return -1;
       } else {
-        try {
-          if (c != SnapshotWriter.LENGTH_DELIMITER) {
-            throw new SnapshotReaderException(String.format(
-                "failed to read snapshot record with missing length delimiter "
-                + "(%s, record %d)", inputPath, recordNumber));
-          }
-          return Integer.parseInt(sb.toString());
-        } catch (NumberFormatException nfe) {
+        if (c != SnapshotWriter.LENGTH_DELIMITER) {
+          throw new SnapshotReaderException(String.format(
+              "failed to read snapshot record with missing length delimiter "
+              + "(%s, record %d)", inputPath, recordNumber));
+        }
+        int length = parseLength();
+        if (length < 0) {
           throw new SnapshotReaderException(String.format(
               "failed to read snapshot record with invalid length "
               + "(%s, record %d, length %s)",
-              inputPath, recordNumber, sb.toString()));
+              inputPath, recordNumber, lengthChars));
         }
+        return length;
       }
     }
 
+    /**
+     * Parses the length without allocating a String.
+     *
+     * @return the length, or {@code -1} if it is not a valid length
+     */
+    private int parseLength() {
+      long length = 0;
+      for (int i = 0; i < lengthChars.length(); i++) {
+        int digit = Character.digit(lengthChars.charAt(i), 10);
+        if (digit < 0) {
+          return -1;
+        }
+        length = length * 10 + digit;
+        if (length > Integer.MAX_VALUE) {
+          return -1;
+        }
+      }
+      return (int) length;
+    }
+
     private String readString(int length) throws IOException, SnapshotReaderException{
-      CharBuffer cb = CharBuffer.allocate(length);
-      while (in.read(cb) >= 0 && cb.hasRemaining()) {
-        continue;
+      if (chars.length < length) {
+        chars = new char[Math.max(length, chars.length * 2)];
+      }
+      int offset = 0;
+      int count;
+      while (offset < length
+          && (count = in.read(chars, offset, length - offset)) >= 0) {
+        offset += count;
       }
-      if (cb.hasRemaining()) {
+      if (offset < length) {
         throw new SnapshotReaderException(String.format(
             "failed to read snapshot record with incomplete record "
             + "(%s, record %d, partial record %s)",
-            inputPath, recordNumber, cb.flip().toString()));
+            inputPath, recordNumber, new String(chars, 0, offset)));
       }
-      return cb.flip().toString();
+      return new String(chars, 0, length);
     }
 
     private void readRecordDelimiter(String stringForm)
@@ -157,6 +240,13 @@ public class SnapshotReader {
       long snapshotNumber,
       DocumentSnapshotFactory documentSnapshotFactory)
       throws SnapshotReaderException {
+    this(in, inputPath, snapshotNumber, documentSnapshotFactory, null, null);
+  }
+
+  private SnapshotReader(BufferedReader in, String inputPath,
+      long snapshotNumber, DocumentSnapshotFactory documentSnapshotFactory,
+      FileInputStream fileInput, SnapshotIndex index)
+      throws SnapshotReaderException {
     this.in = in;
     /* Initial version of File System connector (2.6) used JSON.
     When diffing library was extracted (2.8) the requirement was loosened to
@@ -169,6 +259,8 @@ public class SnapshotReader {
       in.reset();
       if (firstChar == START_JSON_CHAR) {
         recordReader = new LineBasedRecordReader();
+        // The index holds offsets of length-based records.
+        index = null;
       } else {
         recordReader = new LengthBasedRecordReader();
       }
@@ -180,6 +272,107 @@ public class SnapshotReader {
     this.recordNumber = 0;  //1 based.
     this.snapshotNumber = snapshotNumber;
     this.documentSnapshotFactory = documentSnapshotFactory;
+    this.fileInput = fileInput;
+    this.index = index;
+    this.position = 0;
+  }
+
+  private SnapshotReader(BinaryRecordReader recordReader, String inputPath,
+      long snapshotNumber, DocumentSnapshotFactory documentSnapshotFactory,
+      FileInputStream fileInput, SnapshotIndex index) {
+    this.in = null;
+    this.recordReader = recordReader;
+    this.inputPath = inputPath;
+    this.recordNumber = 0;  //1 based.
+    this.snapshotNumber = snapshotNumber;
+    this.documentSnapshotFactory = documentSnapshotFactory;
+    this.fileInput = fileInput;
+    this.index = index;
+    this.position = 0;
+  }
+
+  /**
+   * Opens a snapshot file in the text or {@link BinarySnapshotFormat
+   * binary} format.  If the snapshot has a sparse index,
+   * {@link #skipRecords} seeks to the nearest indexed record rather than
+   * reading all the records it skips.
+   *
+   * @param input the snapshot file
+   * @param snapshotNumber the number of the snapshot being read
+   * @param documentSnapshotFactory factory for creating DocumentSnapshots
+   * @return a reader for the snapshot
+   * @throws FileNotFoundException if the snapshot file does not exist
+   * @throws SnapshotReaderException if the snapshot cannot be read
+   */
+  static SnapshotReader open(File input, long snapshotNumber,
+      DocumentSnapshotFactory documentSnapshotFactory)
+      throws FileNotFoundException, SnapshotReaderException {
+    SnapshotIndex index = SnapshotIndex.read(input);
+    FileInputStream fileInput = new FileInputStream(input);
+    boolean success = false;
+    try {
+      SnapshotReader reader;
+      if (isBinary(fileInput, input.getAbsolutePath())) {
+        reader = new SnapshotReader(
+            new BinaryRecordReader(fileInput, input.getAbsolutePath()),
+            input.getAbsolutePath(), snapshotNumber, documentSnapshotFactory,
+            fileInput, index);
+      } else {
+        reader = new SnapshotReader(newReader(fileInput),
+            input.getAbsolutePath(), snapshotNumber, documentSnapshotFactory,
+            fileInput, index);
+      }
+      success = true;
+      return reader;
+    } catch (IOException e) {
+      throw new SnapshotReaderException(
+          "failed to open snapshot " + input.getAbsolutePath(), e);
+    } finally {
+      if (!success) {
+        try {
+          fileInput.close();
+        } catch (IOException e) {
+          // Report the original exception.
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks whether a snapshot file is in the binary format.  If it is,
+   * the file is positioned after the header.
+   *
+   * @throws SnapshotReaderException if the binary format version is
+   *         not supported
+   */
+  private static boolean isBinary(FileInputStream fileInput, String inputPath)
+      throws IOException, SnapshotReaderException {
+    FileChannel channel = fileInput.getChannel();
+    ByteBuffer header = ByteBuffer.allocate(BinarySnapshotFormat.HEADER_LENGTH);
+    while (header.hasRemaining()
+        && channel.read(header, header.position()) > 0) {
+      continue;
+    }
+    if (!BinarySnapshotFormat.hasMagic(header.array(), header.position())) {
+      return false;
+    }
+    if (header.position() < BinarySnapshotFormat.HEADER_LENGTH
+        || header.get(BinarySnapshotFormat.MAGIC.length)
+            != BinarySnapshotFormat.VERSION) {
+      throw new SnapshotReaderException(String.format(
+          "unsupported snapshot format version (%s)", inputPath));
+    }
+    channel.position(BinarySnapshotFormat.HEADER_LENGTH);
+    return true;
+  }
+
+  /**
+   * Returns a reader that decodes the snapshot file from the current
+   * position of {@code fileInput}.
+   */
+  private static BufferedReader newReader(FileInputStream fileInput) {
+    return new BufferedReader(
+        new InputStreamReader(fileInput, Charsets.UTF_8), BUFFER_SIZE);
   }
 
   /**
@@ -196,6 +389,7 @@ public class SnapshotReader {
       stringForm = recordReader.readRecord();
     } finally {
       recordNumber++;
+      position++;
       if (stringForm == null) {
         done = true;
       }
@@ -233,7 +427,8 @@ public class SnapshotReader {
   }
 
   /**
-   * Read and discard {@code number} records.
+   * Read and discard {@code number} records.  If the snapshot has a sparse
+   * index, this seeks to the nearest indexed record first.
    *
    * @param number of records to skip.
    * @throws SnapshotReaderException on IO errors, or if there aren't enough
@@ -242,16 +437,82 @@ public class SnapshotReader {
    */
   public void skipRecords(long number) throws SnapshotReaderException,
       InterruptedException {
-    for (int k = 0; k < number; ++k) {
+    if (number <= 0) {
+      return;
+    }
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+    long target = position + number;
+    seek(target);
+    while (position < target) {
       if (Thread.interrupted()) {
         throw new InterruptedException();
       }
-      if (recordReader.readRecord() == null) {
+      if (!skipRecord()) {
         throw new SnapshotReaderException(String.format(
             "failed to skip %d records; snapshot contains only %d",
-            number, recordNumber));
-        }
+            number, position));
       }
+      position++;
+    }
+  }
+
+  private boolean skipRecord() throws SnapshotReaderException {
+    if (recordReader instanceof BinaryRecordReader) {
+      return ((BinaryRecordReader) recordReader).skipRecord();
+    } else if (recordReader instanceof LengthBasedRecordReader) {
+      return ((LengthBasedRecordReader) recordReader).skipRecord();
+    } else {
+      return recordReader.readRecord() != null;
+    }
+  }
+
+  /**
+   * Moves the input to the last indexed record at or before
+   * {@code target}, if that is ahead of the current position.
+   */
+  private void seek(long target) throws SnapshotReaderException {
+    if (index == null) {
+      return;
+    }
+    int entry = index.floor(target);
+    if (entry < 0 || index.getRecordCount(entry) <= position) {
+      return;
+    }
+    long offset = index.getOffset(entry);
+    if (recordReader instanceof BinaryRecordReader) {
+      // The block at the offset is checked before the reader moves.
+      if (((BinaryRecordReader) recordReader).seek(offset,
+              index.getRecordCount(entry))) {
+        position = index.getRecordCount(entry);
+      } else {
+        LOG.warning("Ignoring invalid index for snapshot " + inputPath
+            + " at record " + index.getRecordCount(entry));
+        index = null;
+      }
+      return;
+    }
+    try {
+      // Every record ends with a record delimiter, so an index entry
+      // that does not follow one is stale.
+      FileChannel channel = fileInput.getChannel();
+      ByteBuffer previous = ByteBuffer.allocate(1);
+      if (channel.read(previous, offset - 1) != 1
+          || previous.get(0) != SnapshotWriter.RECORD_DELIMITER) {
+        LOG.warning("Ignoring invalid index for snapshot " + inputPath
+            + " at record " + index.getRecordCount(entry));
+        index = null;
+        return;
+      }
+      channel.position(offset);
+    } catch (IOException e) {
+      throw new SnapshotReaderException(String.format(
+          "failed to seek to snapshot record (%s, record %d)",
+          inputPath, index.getRecordCount(entry) + 1), e);
+    }
+    in = newReader(fileInput);
+    position = index.getRecordCount(entry);
   }
 
   /**
@@ -265,6 +526,17 @@ public class SnapshotReader {
    * Closes the underlying input stream.
    */
   public void close() throws IOException {
-    in.close();
+    if (in != null) {
+      in.close();
+    } else {
+      fileInput.close();
+    }
+  }
+
+  /**
+   * @return {@code true} if the snapshot is in the binary format
+   */
+  boolean isBinary() {
+    return recordReader instanceof BinaryRecordReader;
   }
 }
\ No newline at end of file
@@ -20,16 +20,11 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Ordering;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.io.Reader;
 import java.io.Writer;
 import java.util.Arrays;
 import java.util.SortedSet;
@@ -53,13 +48,46 @@ public class SnapshotStore {
     return new File(snapshotDir, name);
   }
 
-  private static SnapshotWriter getSnapshotWriter(File snapshotFile)
+  /**
+   * Returns a writer for a new snapshot file, which also writes the
+   * sparse index of the snapshot.
+   *
+   * @param snapshotFile the snapshot file
+   * @param syncRecords the maximum number of records written between syncs
+   * @param syncMillis the maximum time between syncs, in milliseconds
+   * @param binary {@code true} to write the binary format, or
+   *        {@code false} to write the text format
+   */
+  static SnapshotWriter getSnapshotWriter(File snapshotFile,
+      int syncRecords, long syncMillis, boolean binary)
       throws IOException, SnapshotWriterException {
+    // An index left behind by an earlier snapshot with the same number
+    // would refer to the wrong records.
+    if (!SnapshotIndex.delete(snapshotFile)) {
+      throw new IOException("failed to delete snapshot index for "
+          + snapshotFile.getAbsolutePath());
+    }
     FileOutputStream os = new FileOutputStream(snapshotFile);
-    Writer w = new OutputStreamWriter(os, Charsets.UTF_8);
-    return new SnapshotWriter(w, os.getFD(), snapshotFile.getAbsolutePath());
+    SnapshotWriter writer;
+    if (binary) {
+      writer = new BinarySnapshotWriter(os, os.getFD(),
+          snapshotFile.getAbsolutePath(), syncRecords, syncMillis);
+    } else {
+      Writer w = new OutputStreamWriter(os, Charsets.UTF_8);
+      writer = new SnapshotWriter(w, os.getFD(),
+          snapshotFile.getAbsolutePath(), syncRecords, syncMillis);
+    }
+    writer.setIndexWriter(new SnapshotIndex.IndexWriter(snapshotFile,
+        SnapshotIndex.DEFAULT_INTERVAL));
+    return writer;
   }
 
+  /** The default maximum number of records written between syncs. */
+  public static final int DEFAULT_SYNC_RECORDS = 100;
+
+  /** The default maximum time between syncs, in milliseconds. */
+  public static final long DEFAULT_SYNC_MILLIS = 1000L;
+
   private static final Pattern SNAPSHOT_PATTERN =
       Pattern.compile("snap.([0-9]*)");
   private final File snapshotDir;
@@ -70,6 +98,10 @@ public class SnapshotStore {
 
   protected volatile long oldestSnapshotToKeep;
 
+  private volatile int syncRecords = DEFAULT_SYNC_RECORDS;
+  private volatile long syncMillis = DEFAULT_SYNC_MILLIS;
+  private volatile boolean binarySnapshots = false;
+
   /**
    * @param snapshotDirectory the directory in which to store the snapshots.
    *        Must be non-{@code null}. If it does not exist, it will be created.
@@ -92,6 +124,42 @@ public class SnapshotStore {
     this.oldestSnapshotToKeep = 0;
   }
 
+  /**
+   * Sets how often the records written to a new snapshot are synced to
+   * disk.  The records are synced after every {@code syncRecords} records,
+   * or when a record is written more than {@code syncMillis} milliseconds
+   * after the previous sync, and always before a checkpoint that refers to
+   * them is taken.
+   *
+   * @param syncRecords the maximum number of records written between syncs;
+   *        {@code 1} syncs every record
+   * @param syncMillis the maximum time between syncs, in milliseconds;
+   *        {@code 0} for no time limit
+   * @since 3.4
+   */
+  public void setSyncPolicy(int syncRecords, long syncMillis) {
+    Preconditions.checkArgument(syncRecords > 0,
+        "syncRecords must be positive: %s", syncRecords);
+    Preconditions.checkArgument(syncMillis >= 0,
+        "syncMillis must not be negative: %s", syncMillis);
+    this.syncRecords = syncRecords;
+    this.syncMillis = syncMillis;
+  }
+
+  /**
+   * Sets whether new snapshots are written in the binary format, which
+   * is smaller and faster to read than the text format.  Snapshots in
+   * either format can always be read.  Snapshots written in the binary
+   * format cannot be read by versions before 3.4.
+   *
+   * @param binarySnapshots {@code true} to write the binary format, or
+   *        {@code false} to write the text format
+   * @since 3.4
+   */
+  public void setBinarySnapshots(boolean binarySnapshots) {
+    this.binarySnapshots = binarySnapshots;
+  }
+
   /**
    * @return a writer for the next snapshot
    * @throws SnapshotStoreException
@@ -104,7 +172,8 @@ public class SnapshotStore {
     long nextIndex = (snapshots.isEmpty()) ? 1 : snapshots.first() + 1;
     File out = getSnapshotFile(snapshotDir, nextIndex);
     try {
-      SnapshotWriter writer = getSnapshotWriter(out);
+      SnapshotWriter writer = getSnapshotWriter(out, syncRecords, syncMillis,
+          binarySnapshots);
       aWriterIsActive = true;
       return writer;
     } catch (IOException e) {
@@ -136,7 +205,7 @@ public class SnapshotStore {
     LOG.info("starting with empty snapshot");
     File out = getSnapshotFile(snapshotDir, 0);
     try {
-      SnapshotWriter writer = getSnapshotWriter(out);
+      SnapshotWriter writer = getSnapshotWriter(out, 1, 0L, binarySnapshots);
       writer.close();
     } catch (IOException e) {
       throw new SnapshotStoreException("failed to open snapshot: " + out.getAbsolutePath(), e);
@@ -174,6 +243,10 @@ public class SnapshotStore {
     for (long k : Iterables.skip(getExistingSnapshots(), 2)) {
       if (k < oldestSnapshotToKeep) {
         File x = getSnapshotFile(snapshotDir, k);
+        if (!SnapshotIndex.delete(x)) {
+          LOG.warning("failed to delete snapshot index for "
+              + x.getAbsolutePath());
+        }
         if (x.delete()) {
           LOG.fine("deleting snapshot file " + x.getAbsolutePath());
         } else {
@@ -221,10 +294,7 @@ public class SnapshotStore {
       throws SnapshotStoreException {
     File input = getSnapshotFile(snapshotDir, number);
     try {
-      InputStream is = new FileInputStream(input);
-      Reader r = new InputStreamReader(is, Charsets.UTF_8);
-      return new SnapshotReader(new BufferedReader(r), input.getAbsolutePath(),
-          number, documentSnapshotFactory);
+      return SnapshotReader.open(input, number, documentSnapshotFactory);
     } catch (FileNotFoundException e) {
       throw new SnapshotStoreException("failed to open snapshot: " + number);
     }
@@ -259,6 +329,7 @@ public class SnapshotStore {
       handleInterrupt();
       if (snapshotIndex > writeSnapshotIndex) {
         File snapshotFile = getSnapshotFile(snapshotDir, snapshotIndex); 
+        SnapshotIndex.delete(snapshotFile);
         if (snapshotFile.delete()) {
           LOG.info("Deleted snapshot # " + snapshotIndex + ".");
         } else {
@@ -279,15 +350,42 @@ public class SnapshotStore {
     long recoveryFileIndex = checkpoint.getSnapshotNumber() + 2;
     File out = getSnapshotFile(snapshotDir, recoveryFileIndex);
     boolean iMadeIt = false;
-    SnapshotWriter writer = getSnapshotWriter(out);
+    // If we crash while stitching, the recovery snapshot is deleted and
+    // rewritten next time, so it only needs to be synced when it is closed.
+    // It is written in the format of the snapshot that was being written.
+    boolean binary = BinarySnapshotFormat.isBinary(
+        getSnapshotFile(snapshotDir, writeSnapshotIndex));
+    SnapshotWriter writer =
+        getSnapshotWriter(out, Integer.MAX_VALUE, 0L, binary);
       try {
       SnapshotReader part1 = openSnapshot(snapshotDir,
           checkpoint.getSnapshotNumber() + 1, documentSnapshotFactory);
       try {
+        // Only the records covered by the checkpoint are copied.  They
+        // were synced before the checkpoint was taken, so they should all
+        // be intact.  A crash while writing the snapshot may leave a torn
+        // record after them, which is never read: the rest of the recovered
+        // snapshot comes from the older snapshot.  If a checkpointed record
+        // is bad or missing anyway, the recovered snapshot is truncated at
+        // the last good record.  The documents of the lost records are
+        // missing from the recovered snapshot, so the next pass finds them
+        // again.
         for (long k = 0; k < checkpoint.getOffset2(); ++k) {
           handleInterrupt();
-          DocumentSnapshot rec = part1.read();
+          DocumentSnapshot rec;
+          try {
+            rec = part1.read();
+          } catch (SnapshotReaderException e) {
+            LOG.log(Level.WARNING, "Truncating snapshot " + part1.getPath()
+                + " at bad record " + (k + 1) + " of the "
+                + checkpoint.getOffset2() + " records in checkpoint "
+                + checkpoint, e);
+            break;
+          }
           if (rec == null) {
+            LOG.warning("Truncating snapshot " + part1.getPath()
+                + " at record " + k + " of the " + checkpoint.getOffset2()
+                + " records in checkpoint " + checkpoint);
             break;
           }
           writer.write(rec);
@@ -311,6 +409,14 @@ public class SnapshotStore {
       iMadeIt = true;
     } finally {
       writer.close();
+      if (!iMadeIt) {
+        // Do not leave a partial recovery snapshot that would be taken for
+        // the most recent snapshot.
+        SnapshotIndex.delete(out);
+        if (!out.delete()) {
+          LOG.severe("Couldn't delete: " + out);
+        }
+      }
     }
   }
 
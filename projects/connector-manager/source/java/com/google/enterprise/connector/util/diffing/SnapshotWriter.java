@@ -15,6 +15,8 @@
 package com.google.enterprise.connector.util.diffing;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
 
 import java.io.BufferedWriter;
 import java.io.FileDescriptor;
@@ -23,6 +25,16 @@ import java.io.Writer;
 
 /**
  * Write snapshot records in CSV format.
+ * <p>
+ * The records are buffered, and flushed to the output when they are
+ * synced.  The potentially expensive sync of the file descriptor to disk
+ * may be shared by a group of records: the file is synced after every
+ * {@code syncRecords} records, or when a record is written more than
+ * {@code syncMillis} milliseconds after the previous sync, whichever
+ * comes first.  Callers that need the records written so far to be
+ * durable, for example before handing out a checkpoint that refers to
+ * them, must call {@link #sync}.  A crash may leave unsynced records
+ * missing from the file, or a torn record at its end.
  *
  * @since 2.8
  */
@@ -34,8 +46,25 @@ public class SnapshotWriter {
   protected long count;
   protected FileDescriptor fileDescriptor;
 
+  private final int syncRecords;
+  private final long syncMillis;
+  private final Clock clock;
+
+  /** The number of records known to be synced to disk. */
+  private long syncedCount;
+
+  /** The time of the last sync, in milliseconds. */
+  private long lastSyncTime;
+
+  /** The sparse index of the records, or {@code null} if not indexed. */
+  SnapshotIndex.IndexWriter indexWriter;
+
+  /** The number of UTF-8 encoded bytes written, if indexed. */
+  private long byteCount;
+
   /**
-   * Creates a SnapshotWriter that appends to {@code output}.
+   * Creates a SnapshotWriter that appends to {@code output}, and syncs
+   * each record to disk as it is written.
    *
    * @param output CSV writer that is being wrapped
    * @param fileDescriptor if non-{code null}, this will be flushed after
@@ -45,10 +74,71 @@ public class SnapshotWriter {
    */
   public SnapshotWriter(Writer output, FileDescriptor fileDescriptor,
       String path) throws SnapshotWriterException {
+    this(output, fileDescriptor, path, 1, 0L);
+  }
+
+  /**
+   * Creates a SnapshotWriter that appends to {@code output}, and syncs
+   * groups of records to disk.
+   *
+   * @param output CSV writer that is being wrapped
+   * @param fileDescriptor if non-{code null}, this will be synced to disk
+   *        after a group of records is written, and by {@link #sync}
+   * @param path name of output, for logging purposes
+   * @param syncRecords the maximum number of records written between syncs;
+   *        {@code 1} syncs every record
+   * @param syncMillis the maximum time between syncs, in milliseconds,
+   *        checked as each record is written; {@code 0} for no time limit
+   * @throws SnapshotWriterException on any error
+   * @since 3.4
+   */
+  public SnapshotWriter(Writer output, FileDescriptor fileDescriptor,
+      String path, int syncRecords, long syncMillis)
+      throws SnapshotWriterException {
+    this(output, fileDescriptor, path, syncRecords, syncMillis,
+         SystemClock.INSTANCE);
+  }
+
+  @VisibleForTesting
+  SnapshotWriter(Writer output, FileDescriptor fileDescriptor, String path,
+      int syncRecords, long syncMillis, Clock clock)
+      throws SnapshotWriterException {
+    this(fileDescriptor, path, syncRecords, syncMillis, clock);
     this.output = new BufferedWriter(output);
+  }
+
+  /**
+   * Creates a SnapshotWriter for a subclass that writes the records
+   * to its own output.
+   */
+  SnapshotWriter(FileDescriptor fileDescriptor, String path,
+      int syncRecords, long syncMillis, Clock clock) {
+    if (syncRecords < 1) {
+      throw new IllegalArgumentException("syncRecords must be positive: "
+          + syncRecords);
+    }
+    if (syncMillis < 0) {
+      throw new IllegalArgumentException("syncMillis must not be negative: "
+          + syncMillis);
+    }
     this.fileDescriptor = fileDescriptor;
     this.path = path;
     this.count = 0;
+    this.syncRecords = syncRecords;
+    this.syncMillis = syncMillis;
+    this.clock = clock;
+    this.syncedCount = 0;
+    this.lastSyncTime = clock.getTimeMillis();
+  }
+
+  /**
+   * Writes a sparse index of the records to a sidecar file.  The output
+   * must be the snapshot file, written from the beginning.
+   *
+   * @param indexWriter the writer for the index
+   */
+  void setIndexWriter(SnapshotIndex.IndexWriter indexWriter) {
+    this.indexWriter = indexWriter;
   }
 
   /**
@@ -61,40 +151,139 @@ public class SnapshotWriter {
   public void write(DocumentSnapshot snapshot) throws SnapshotWriterException,
       IllegalArgumentException {
     try {
-      write(snapshot, output);
-      if (fileDescriptor != null) {
-        fileDescriptor.sync();
-      }
+      writeRecord(getStringForm(snapshot), count + 1);
       ++count;
+      if (count - syncedCount >= syncRecords
+          || (syncMillis > 0
+              && clock.getTimeMillis() - lastSyncTime >= syncMillis)) {
+        syncOutput();
+      }
     } catch (IOException e) {
       throw new SnapshotWriterException("failed to write snapshot record", e);
     }
   }
 
+  /**
+   * Syncs all the records written so far to disk.  This does nothing
+   * if they have already been synced.
+   *
+   * @throws SnapshotWriterException if the records could not be synced
+   * @since 3.4
+   */
+  public void sync() throws SnapshotWriterException {
+    if (syncedCount < count) {
+      try {
+        syncOutput();
+      } catch (IOException e) {
+        throw new SnapshotWriterException("failed to sync snapshot", e);
+      }
+    }
+  }
+
+  private void syncOutput() throws IOException {
+    flushOutput();
+    if (fileDescriptor != null) {
+      fileDescriptor.sync();
+    }
+    syncedCount = count;
+    lastSyncTime = clock.getTimeMillis();
+    if (indexWriter != null) {
+      indexWriter.flush();
+    }
+  }
+
+  /**
+   * Writes a record to the output.
+   *
+   * @param stringForm the string form of the record
+   * @param recordCount the number of records written, including this one
+   */
+  void writeRecord(String stringForm, long recordCount) throws IOException {
+    writeRecord(stringForm, output);
+    if (indexWriter != null) {
+      byteCount += getEncodedLength(stringForm);
+      indexWriter.add(recordCount, byteCount);
+    }
+  }
+
+  /** Flushes the records written so far to the underlying output. */
+  void flushOutput() throws IOException {
+    output.flush();
+  }
+
+  /** Closes the underlying output. */
+  void closeOutput() throws IOException {
+    output.close();
+  }
+
   @VisibleForTesting
   static void write(DocumentSnapshot snapshot, Writer writer)
       throws IOException, IllegalArgumentException {
+    writeRecord(getStringForm(snapshot), writer);
+  }
+
+  private static String getStringForm(DocumentSnapshot snapshot) {
     String stringForm = snapshot.toString();
     if (stringForm == null) {
       throw new IllegalArgumentException(
           "DocumentSnapshot.toString returned null.");
     }
+    return stringForm;
+  }
+
+  private static void writeRecord(String stringForm, Writer writer)
+      throws IOException {
     String length = Integer.toString(stringForm.length());
     writer.write(length);
     writer.write(LENGTH_DELIMITER);
     writer.write(stringForm);
     writer.write(RECORD_DELIMITER);
-    writer.flush();
   }
 
   /**
-   * Closes the underlying output stream.
+   * Returns the number of bytes in the UTF-8 encoding of the record
+   * written by {@link #writeRecord}.  An unpaired surrogate is encoded
+   * as a single replacement byte.
+   */
+  @VisibleForTesting
+  static long getEncodedLength(String stringForm) {
+    int length = stringForm.length();
+    long bytes = Integer.toString(length).length() + 2;
+    for (int i = 0; i < length; i++) {
+      char c = stringForm.charAt(i);
+      if (c < 0x80) {
+        bytes += 1;
+      } else if (c < 0x800) {
+        bytes += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(stringForm.charAt(i + 1))) {
+        bytes += 4;
+        i++;
+      } else if (c >= Character.MIN_SURROGATE
+          && c <= Character.MAX_SURROGATE) {
+        bytes += 1;
+      } else {
+        bytes += 3;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Syncs any remaining records to disk, and closes the underlying
+   * output stream.
    *
    * @throws SnapshotWriterException
    */
   public void close() throws SnapshotWriterException {
     try {
-      output.close();
+      if (syncedCount < count) {
+        syncOutput();
+      }
+      closeOutput();
+      if (indexWriter != null) {
+        indexWriter.close();
+      }
     } catch (IOException e) {
       throw new SnapshotWriterException("failed to close snapshot", e);
     }
@@ -114,6 +303,14 @@ public class SnapshotWriter {
     return count;
   }
 
+  /**
+   * @return the number of records known to be synced to disk.
+   * @since 3.4
+   */
+  public long getSyncedRecordCount() {
+    return syncedCount;
+  }
+
   @VisibleForTesting
   public Writer getOutput() {
     return output;
@@ -21,7 +21,7 @@ import com.google.enterprise.connector.spi.RepositoryDocumentException;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.Value;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -134,7 +134,7 @@ public abstract class AbstractDocumentFilter implements DocumentFilterFactory {
    */
   public List<Value> getPropertyValues(Document source, String name)
       throws RepositoryException {
-    LinkedList<Value> values = new LinkedList<Value>();
+    List<Value> values = new ArrayList<Value>();
     Property prop = source.findProperty(name);
     if (prop != null) {
       Value value;
@@ -16,16 +16,30 @@ package com.google.enterprise.connector.util.filter;
 
 import com.google.common.base.Preconditions;
 import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.Property;
 import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SimpleProperty;
+import com.google.enterprise.connector.spi.Value;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * {@link DocumentFilterChain} constructs a chain of {@link Document}
  * filters.  The filters are constructed from a {@link List} of
  * {@link DocumentFilterFactory DocumentFilterFactories}, and linked
  * together like pop-beads, each using the previous as its source Document.
+ * <p>
+ * Each {@link Property} of a filtered document is resolved through the
+ * chain only once. The resulting {@link Value Values} are remembered, and
+ * subsequent lookups of the same property return a new {@code Property}
+ * over the same values. The values themselves are not read, so the
+ * content stream of a binary value is still consumed only once, by its
+ * eventual reader.
  *
  * @since 2.8
  */
@@ -57,8 +71,10 @@ public class DocumentFilterChain implements DocumentFilterFactory {
   /**
    * Constructs a document procssing pipeline, assembled from filters fetched
    * from each of the {@link DocumentFilterFactory DocumentFilterFactories}
-   * in the list.  Returns the head of the chain.  The supplied {@code source}
-   * Document will be the input for the tail of the chain.
+   * in the list.  Returns the head of the chain, wrapped so that each
+   * property is resolved through the chain only once.  The supplied
+   * {@code source} Document will be the input for the tail of the chain.
+   * If the chain is empty, the {@code source} Document is returned.
    *
    * @param source the input {@link Document} for the filters
    * @return the head of the chain of filters
@@ -67,14 +83,70 @@ public class DocumentFilterChain implements DocumentFilterFactory {
   public Document newDocumentFilter(Document source)
       throws RepositoryException {
     Preconditions.checkNotNull(source);
+    if (factories.isEmpty()) {
+      return source;
+    }
     for (DocumentFilterFactory factory : factories) {
       source = factory.newDocumentFilter(source);
     }
-    return source;
+    return new MemoizingDocument(source);
   }
 
   @Override
   public String toString() {
     return "DocumentFilterChain: " + factories.toString();
   }
+
+  /**
+   * A {@link Document} that remembers the property names and values
+   * returned by the head of a filter chain.  Like the filters themselves,
+   * a {@code MemoizingDocument} is used by one thread for one document.
+   */
+  private static class MemoizingDocument implements Document {
+    private final Document source;
+
+    /** The values of the properties found so far; null if not found. */
+    private final Map<String, List<Value>> properties =
+        new HashMap<String, List<Value>>();
+
+    private Set<String> propertyNames;
+
+    MemoizingDocument(Document source) {
+      this.source = source;
+    }
+
+    @Override
+    public Property findProperty(String name) throws RepositoryException {
+      List<Value> values;
+      if (properties.containsKey(name)) {
+        values = properties.get(name);
+      } else {
+        values = getValues(source.findProperty(name));
+        properties.put(name, values);
+      }
+      return (values == null) ? null : new SimpleProperty(values);
+    }
+
+    /** Collects the values of the property, without reading them. */
+    private static List<Value> getValues(Property property)
+        throws RepositoryException {
+      if (property == null) {
+        return null;
+      }
+      List<Value> values = new ArrayList<Value>();
+      Value value;
+      while ((value = property.nextValue()) != null) {
+        values.add(value);
+      }
+      return values;
+    }
+
+    @Override
+    public Set<String> getPropertyNames() throws RepositoryException {
+      if (propertyNames == null) {
+        propertyNames = source.getPropertyNames();
+      }
+      return propertyNames;
+    }
+  }
 }
@@ -14,16 +14,34 @@
 
 package com.google.enterprise.connector.instantiator;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.connector.persist.ConnectorStamps;
+import com.google.enterprise.connector.persist.JdbcStore;
 import com.google.enterprise.connector.persist.MockPersistentStore;
 import com.google.enterprise.connector.persist.PersistentStore;
+import com.google.enterprise.connector.persist.Stamp;
 import com.google.enterprise.connector.persist.StoreContext;
 import com.google.enterprise.connector.scheduler.Schedule;
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.database.JdbcDatabase;
+
+import org.h2.jdbcx.JdbcDataSource;
 
 import junit.framework.TestCase;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
 
 /** Tests for {@link ChangeDetectorImpl}. */
 // TODO: Change StoreContext to String (instance name).
@@ -276,6 +294,259 @@ public class ChangeDetectorTest extends TestCase {
     assertNoChanges(expectedChanges, listener.getChanges());
   }
 
+  /** A Clock that only moves when told to. */
+  private static class FrozenClock implements Clock {
+    long time = 1000000L;
+
+    @Override
+    public long getTimeMillis() {
+      return time;
+    }
+  }
+
+  /**
+   * A MockPersistentStore that counts the reads of its inventory, and
+   * that optionally does not supply an inventory stamp.
+   */
+  private static class CountingStore extends MockPersistentStore {
+    int inventoryReads = 0;
+    boolean hasInventoryStamp = true;
+
+    @Override
+    public ImmutableMap<StoreContext, ConnectorStamps> getInventory() {
+      inventoryReads++;
+      return super.getInventory();
+    }
+
+    @Override
+    public Stamp getInventoryStamp() {
+      return hasInventoryStamp ? super.getInventoryStamp() : null;
+    }
+  }
+
+  /** Tests that the inventory is only read when it has changed. */
+  public void testUnchangedInventoryNotRead() {
+    CountingStore countingStore = new CountingStore();
+    store = countingStore;
+    FrozenClock clock = new FrozenClock();
+    detector = new ChangeDetectorImpl(store, listener, 60, clock);
+
+    addConnector("c1");
+    detector.detect();
+    assertEqualsMultiSet(expectedChanges, listener.getChanges());
+    assertEquals(1, countingStore.inventoryReads);
+
+    expectedChanges.clear();
+    listener.clear();
+    detector.detect();
+    detector.detect();
+    assertNoChanges(expectedChanges, listener.getChanges());
+    assertEquals(1, countingStore.inventoryReads);
+
+    setCheckpoint("c1");
+    detector.detect();
+    assertEqualsMultiSet(expectedChanges, listener.getChanges());
+    assertEquals(2, countingStore.inventoryReads);
+
+    expectedChanges.clear();
+    listener.clear();
+    updateConnector("c1");
+    detector.detect();
+    assertEqualsMultiSet(expectedChanges, listener.getChanges());
+    assertEquals(3, countingStore.inventoryReads);
+  }
+
+  /** Tests that the inventory is read in full after the resync interval. */
+  public void testResyncInterval() {
+    CountingStore countingStore = new CountingStore();
+    store = countingStore;
+    FrozenClock clock = new FrozenClock();
+    detector = new ChangeDetectorImpl(store, listener, 60, clock);
+
+    addConnector("c1");
+    detector.detect();
+    assertEquals(1, countingStore.inventoryReads);
+
+    clock.time += 59999L;
+    detector.detect();
+    assertEquals(1, countingStore.inventoryReads);
+
+    clock.time += 1L;
+    detector.detect();
+    assertEquals(2, countingStore.inventoryReads);
+
+    // The resync restarts the interval.
+    clock.time += 1000L;
+    detector.detect();
+    assertEquals(2, countingStore.inventoryReads);
+  }
+
+  /** Tests that a resync interval of zero reads the inventory every time. */
+  public void testNoResyncInterval() {
+    CountingStore countingStore = new CountingStore();
+    store = countingStore;
+    detector = new ChangeDetectorImpl(store, listener, 0, new FrozenClock());
+
+    addConnector("c1");
+    detector.detect();
+    detector.detect();
+    assertEquals(2, countingStore.inventoryReads);
+  }
+
+  /** Tests a store that does not supply an inventory stamp. */
+  public void testNoInventoryStamp() {
+    CountingStore countingStore = new CountingStore();
+    countingStore.hasInventoryStamp = false;
+    store = countingStore;
+    detector = new ChangeDetectorImpl(store, listener, 60, new FrozenClock());
+
+    addConnector("c1");
+    detector.detect();
+    assertEqualsMultiSet(expectedChanges, listener.getChanges());
+    detector.detect();
+    assertEquals(2, countingStore.inventoryReads);
+  }
+
+  /** Tests that failed instantiations are retried without reading again. */
+  public void testRetryWithUnchangedInventory() {
+    CountingStore countingStore = new CountingStore();
+    store = countingStore;
+    detector = new ChangeDetectorImpl(store, listener, 60, new FrozenClock());
+
+    listener.beBad = true;
+    addConnector("c1");
+    detector.detect();
+    assertEqualsMultiSet(expectedChanges, listener.getChanges());
+
+    listener.beBad = false;
+    listener.clear();
+    detector.detect();
+    assertEqualsMultiSet(expectedChanges, listener.getChanges());
+    assertEquals(1, countingStore.inventoryReads);
+  }
+
+  /**
+   * Forwards calls to a JDBC object, counting the queries run by the
+   * PreparedStatements that it returns, directly or indirectly.
+   */
+  private static class QueryCounter implements InvocationHandler {
+    private final Object target;
+    private final AtomicInteger queries;
+
+    QueryCounter(Object target, AtomicInteger queries) {
+      this.target = target;
+      this.queries = queries;
+    }
+
+    /** Returns a DataSource that counts the queries run using it. */
+    static DataSource wrap(DataSource dataSource, AtomicInteger queries) {
+      return (DataSource) proxy(DataSource.class, dataSource, queries);
+    }
+
+    private static Object proxy(Class<?> type, Object target,
+        AtomicInteger queries) {
+      return Proxy.newProxyInstance(type.getClassLoader(),
+          new Class<?>[] { type }, new QueryCounter(target, queries));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable {
+      if (target instanceof PreparedStatement
+          && method.getName().equals("executeQuery")) {
+        queries.incrementAndGet();
+      }
+      Object result;
+      try {
+        result = method.invoke(target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      if (result instanceof PreparedStatement) {
+        return proxy(PreparedStatement.class, result, queries);
+      } else if (result instanceof Connection) {
+        return proxy(Connection.class, result, queries);
+      } else {
+        return result;
+      }
+    }
+  }
+
+  private static void addRow(PreparedStatement insert, String connectorName,
+      String propertyName, String propertyValue) throws SQLException {
+    insert.setString(1, connectorName);
+    insert.setString(2, propertyName);
+    insert.setString(3, propertyValue);
+    insert.addBatch();
+  }
+
+  /**
+   * Tests the number of queries run to look for changes in a JdbcStore
+   * holding many connectors.
+   */
+  public void testJdbcStoreQueriesPerTick() throws SQLException {
+    JdbcDataSource ds = new JdbcDataSource();
+    ds.setURL("jdbc:h2:mem:changedetector");
+    ds.setUser("sa");
+    ds.setPassword("sa");
+    AtomicInteger queries = new AtomicInteger();
+    JdbcDatabase database = new JdbcDatabase(QueryCounter.wrap(ds, queries));
+    try {
+      JdbcStore jdbcStore = new JdbcStore();
+      jdbcStore.setDatabase(database);
+      store = jdbcStore;
+      FrozenClock clock = new FrozenClock();
+      detector = new ChangeDetectorImpl(store, listener, 60, clock);
+
+      // Create the table, then fill it directly, which is much faster.
+      assertNotNull(store.getInventoryStamp());
+      Connection connection = ds.getConnection();
+      try {
+        PreparedStatement insert = connection.prepareStatement(
+            "INSERT INTO google_connectors ( modify_stamp, connector_name, "
+            + "property_name, property_value ) VALUES ( 1, ?, ?, ? )");
+        for (int i = 0; i < 5000; i++) {
+          String name = "c" + i;
+          addRow(insert, name, "configuration_type", "testType");
+          addRow(insert, name, "configuration_map", "");
+          addRow(insert, name, "checkpoint", "checkpoint" + i);
+        }
+        insert.executeBatch();
+        insert.close();
+      } finally {
+        connection.close();
+      }
+      detector.detect();
+      assertEquals(5000, listener.getChanges().size());
+
+      // An unchanged inventory costs one query.
+      listener.clear();
+      queries.set(0);
+      detector.detect();
+      assertEquals(1, queries.get());
+      assertTrue(listener.getChanges().isEmpty());
+
+      // A change costs the inventory stamp, checked again by JdbcStore,
+      // the inventory query, and a query to read the changed checkpoint.
+      setCheckpoint("c42");
+      queries.set(0);
+      detector.detect();
+      assertEquals(4, queries.get());
+      assertEquals(expectedChanges, listener.getChanges());
+
+      // A full resync of an unchanged inventory gets the snapshot that
+      // JdbcStore has cached, after checking the inventory stamp.
+      listener.clear();
+      clock.time += 60000L;
+      queries.set(0);
+      detector.detect();
+      assertEquals(2, queries.get());
+      assertTrue(listener.getChanges().isEmpty());
+    } finally {
+      database.shutdown();
+    }
+  }
+
   /**
    * A ChangeListener that optionally throws InstantiatorException
    * for configuration changes.  Used to test instantiation retry.
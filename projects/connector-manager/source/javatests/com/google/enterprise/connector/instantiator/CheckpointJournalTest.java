@@ -0,0 +1,335 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.instantiator;
+
+import com.google.enterprise.connector.persist.MockPersistentStore;
+import com.google.enterprise.connector.persist.StoreContext;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link CheckpointJournal}.
+ */
+public class CheckpointJournalTest extends TestCase {
+  private static final StoreContext CONTEXT =
+      new StoreContext("connector1", "TestConnectorA");
+  private static final StoreContext OTHER_CONTEXT =
+      new StoreContext("connector2", "TestConnectorA");
+
+  /**
+   * A store that records the checkpoints written to it, and that can
+   * crash, or block until released.
+   */
+  private static class RecordingStore extends MockPersistentStore {
+    final List<String> history =
+        Collections.synchronizedList(new ArrayList<String>());
+    volatile boolean crashed = false;
+    volatile CountDownLatch gate = null;
+    final CountDownLatch entered = new CountDownLatch(1);
+
+    @Override
+    public void storeConnectorState(StoreContext context,
+        String connectorState) {
+      entered.countDown();
+      if (gate != null) {
+        try {
+          gate.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (crashed) {
+        throw new IllegalStateException("Crashed before storing "
+                                        + connectorState);
+      }
+      history.add(connectorState);
+      super.storeConnectorState(context, connectorState);
+    }
+  }
+
+  private File journalFile;
+  private List<CheckpointJournal> journals = new ArrayList<CheckpointJournal>();
+
+  @Override
+  protected void setUp() throws IOException {
+    journalFile = File.createTempFile("checkpoints", ".journal");
+    journalFile.delete();
+  }
+
+  @Override
+  protected void tearDown() {
+    for (CheckpointJournal journal : journals) {
+      journal.stop(true);
+    }
+    journalFile.delete();
+  }
+
+  private CheckpointJournal newJournal(RecordingStore store) {
+    return newJournal(store, CheckpointJournal.DEFAULT_COMPACT_BYTES);
+  }
+
+  private CheckpointJournal newJournal(RecordingStore store,
+      long compactBytes) {
+    CheckpointJournal journal = new CheckpointJournal(store,
+        journalFile.getAbsolutePath(), compactBytes);
+    journals.add(journal);
+    return journal;
+  }
+
+  /**
+   * Simulates a crash by stopping the journal without copying the
+   * pending checkpoints to the store.
+   */
+  private static void crash(CheckpointJournal journal) {
+    journal.stop(true);
+  }
+
+  public void testDisabled() {
+    RecordingStore store = new RecordingStore();
+    CheckpointJournal journal = new CheckpointJournal(store, "");
+    journals.add(journal);
+    assertFalse(journal.isEnabled());
+    journal.storeConnectorState(CONTEXT, "checkpoint");
+    assertEquals("checkpoint", store.getConnectorState(CONTEXT));
+    assertFalse(journalFile.exists());
+  }
+
+  public void testWriteBehind() {
+    RecordingStore store = new RecordingStore();
+    CheckpointJournal journal = newJournal(store);
+    journal.start();
+    assertTrue(journal.isEnabled());
+
+    journal.storeConnectorState(CONTEXT, "checkpoint");
+    assertTrue(journalFile.length() > 0);
+    assertEquals("checkpoint", journal.getConnectorState(CONTEXT));
+
+    assertTrue(journal.flush());
+    assertEquals("checkpoint", store.getConnectorState(CONTEXT));
+    assertEquals(0, journal.getPendingCount());
+  }
+
+  public void testBackgroundWriter() throws Exception {
+    RecordingStore store = new RecordingStore();
+    CheckpointJournal journal = newJournal(store);
+    journal.storeConnectorState(CONTEXT, "checkpoint");
+    assertTrue(store.entered.await(10, TimeUnit.SECONDS));
+    journal.stop(false);
+    assertEquals("checkpoint", store.getConnectorState(CONTEXT));
+  }
+
+  public void testCoalescing() throws Exception {
+    RecordingStore store = new RecordingStore();
+    store.gate = new CountDownLatch(1);
+    CheckpointJournal journal = newJournal(store);
+
+    // The writer blocks in the store on the first checkpoint, while
+    // the later ones are journaled.
+    journal.storeConnectorState(CONTEXT, "checkpoint0");
+    assertTrue(store.entered.await(10, TimeUnit.SECONDS));
+    for (int i = 1; i <= 10; i++) {
+      journal.storeConnectorState(CONTEXT, "checkpoint" + i);
+    }
+    assertEquals("checkpoint10", journal.getConnectorState(CONTEXT));
+    store.gate.countDown();
+    journal.stop(false);
+
+    // Only the latest of the superseded checkpoints was stored.
+    assertEquals("[checkpoint0, checkpoint10]", store.history.toString());
+    assertEquals("checkpoint10", store.getConnectorState(CONTEXT));
+  }
+
+  public void testRemoveSupersedesPending() throws Exception {
+    RecordingStore store = new RecordingStore();
+    store.gate = new CountDownLatch(1);
+    CheckpointJournal journal = newJournal(store);
+
+    journal.storeConnectorState(CONTEXT, "checkpoint0");
+    assertTrue(store.entered.await(10, TimeUnit.SECONDS));
+    journal.storeConnectorState(CONTEXT, "checkpoint1");
+
+    // The removal waits for the blocked store write to finish.
+    final CheckpointJournal remover = journal;
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        remover.removeConnectorState(CONTEXT);
+      }
+    };
+    thread.start();
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (journal.getConnectorState(CONTEXT) != null
+           && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertNull(journal.getConnectorState(CONTEXT));
+    store.gate.countDown();
+    thread.join();
+    journal.stop(false);
+
+    assertNull(store.getConnectorState(CONTEXT));
+    assertFalse(store.history.contains("checkpoint1"));
+  }
+
+  /**
+   * Crashes between the journal write and the store write, and checks
+   * that the recovered checkpoints are the latest ones.
+   */
+  public void testCrashBeforeStoreWrite() {
+    RecordingStore store = new RecordingStore();
+    CheckpointJournal journal = newJournal(store);
+    journal.storeConnectorState(CONTEXT, "checkpoint1");
+    journal.storeConnectorState(OTHER_CONTEXT, "other1");
+    assertTrue(journal.flush());
+
+    store.crashed = true;
+    for (int i = 2; i <= 5; i++) {
+      journal.storeConnectorState(CONTEXT, "checkpoint" + i);
+    }
+    journal.storeConnectorState(OTHER_CONTEXT, "other2");
+    assertFalse(journal.flush());
+    assertEquals("checkpoint1", store.getConnectorState(CONTEXT));
+
+    crash(journal);
+    store.crashed = false;
+    CheckpointJournal recovered = newJournal(store);
+    recovered.start();
+    assertEquals("checkpoint5", store.getConnectorState(CONTEXT));
+    assertEquals("other2", store.getConnectorState(OTHER_CONTEXT));
+
+    // No superseded checkpoint ever reached the store.
+    for (int i = 2; i <= 4; i++) {
+      assertFalse(store.history.toString(),
+                  store.history.contains("checkpoint" + i));
+    }
+  }
+
+  /** Stored checkpoints are not replayed, and so cannot regress. */
+  public void testNoReplayOfStoredCheckpoints() {
+    RecordingStore store = new RecordingStore();
+    CheckpointJournal journal = newJournal(store);
+    journal.storeConnectorState(CONTEXT, "checkpoint1");
+    journal.storeConnectorState(CONTEXT, "checkpoint2");
+    assertTrue(journal.flush());
+    crash(journal);
+
+    // Another writer moves the checkpoint on after the crash.
+    store.storeConnectorState(CONTEXT, "checkpoint3");
+    store.history.clear();
+
+    CheckpointJournal recovered = newJournal(store);
+    recovered.start();
+    assertTrue(store.history.isEmpty());
+    assertEquals("checkpoint3", recovered.getConnectorState(CONTEXT));
+  }
+
+  public void testRecoveryUntilStored() {
+    RecordingStore store = new RecordingStore();
+    store.crashed = true;
+    CheckpointJournal journal = newJournal(store);
+    journal.storeConnectorState(CONTEXT, "checkpoint1");
+    crash(journal);
+
+    // The store is still down when we recover, so the checkpoint is
+    // served from the journal and is recovered again next time.
+    CheckpointJournal second = newJournal(store);
+    second.start();
+    assertEquals("checkpoint1", second.getConnectorState(CONTEXT));
+    assertNull(store.getConnectorState(CONTEXT));
+    crash(second);
+
+    store.crashed = false;
+    CheckpointJournal third = newJournal(store);
+    third.start();
+    assertEquals("checkpoint1", store.getConnectorState(CONTEXT));
+  }
+
+  public void testTornRecord() throws IOException {
+    RecordingStore store = new RecordingStore();
+    store.crashed = true;
+    CheckpointJournal journal = newJournal(store);
+    journal.storeConnectorState(CONTEXT, "checkpoint1");
+    journal.storeConnectorState(CONTEXT, "checkpoint2");
+    crash(journal);
+    long goodLength = journalFile.length();
+
+    // Simulate a crash in the middle of writing a record.
+    FileOutputStream out = new FileOutputStream(journalFile, true);
+    try {
+      out.write(new byte[] { 0, 0, 0, 40, 1, 0, 0 });
+    } finally {
+      out.close();
+    }
+
+    store.crashed = false;
+    CheckpointJournal recovered = newJournal(store);
+    assertTrue(recovered.isEnabled());
+    assertEquals(goodLength, journalFile.length());
+    recovered.storeConnectorState(CONTEXT, "checkpoint3");
+    recovered.stop(false);
+    assertEquals("checkpoint3", store.getConnectorState(CONTEXT));
+
+    // The journal is still readable after the torn record was discarded.
+    store.crashed = true;
+    CheckpointJournal third = newJournal(store);
+    third.storeConnectorState(CONTEXT, "checkpoint4");
+    crash(third);
+    store.crashed = false;
+    CheckpointJournal fourth = newJournal(store);
+    fourth.start();
+    assertEquals("checkpoint4", store.getConnectorState(CONTEXT));
+  }
+
+  public void testCompaction() throws Exception {
+    RecordingStore store = new RecordingStore();
+    store.gate = new CountDownLatch(1);
+    CheckpointJournal journal = newJournal(store, 100L);
+    for (int i = 0; i < 10; i++) {
+      journal.storeConnectorState(CONTEXT, "checkpoint" + i);
+    }
+    assertTrue(store.entered.await(10, TimeUnit.SECONDS));
+    assertTrue(journalFile.length() > 100L);
+    store.gate.countDown();
+    assertTrue(journal.flush());
+    assertEquals(0L, journalFile.length());
+
+    // Journaling continues after truncation.
+    journal.storeConnectorState(CONTEXT, "after");
+    crash(journal);
+    CheckpointJournal recovered = newJournal(store);
+    recovered.start();
+    assertEquals("after", store.getConnectorState(CONTEXT));
+  }
+
+  public void testStoreAfterStop() {
+    RecordingStore store = new RecordingStore();
+    CheckpointJournal journal = newJournal(store);
+    journal.start();
+    journal.stop(false);
+
+    // Checkpoints are written directly once the journal is closed.
+    journal.storeConnectorState(CONTEXT, "checkpoint");
+    assertEquals("checkpoint", store.getConnectorState(CONTEXT));
+  }
+}
@@ -0,0 +1,292 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.manager;
+
+import com.google.enterprise.connector.manager.AuthorizationEngine.Query;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
+import com.google.enterprise.connector.spi.AuthorizationResponse.Status;
+import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link AuthorizationEngine}.
+ */
+public class AuthorizationEngineTest extends TestCase {
+  private static final long TIMEOUT_MILLIS = 1000L;
+  private static final long CACHE_TTL_MILLIS = 60 * 1000L;
+
+  private static final AuthenticationIdentity ALICE =
+      new SimpleAuthenticationIdentity("alice");
+  private static final AuthenticationIdentity BOB =
+      new SimpleAuthenticationIdentity("bob");
+
+  private AdjustableClock clock;
+  private LatencyManager manager;
+  private AuthorizationEngine engine;
+
+  @Override
+  protected void setUp() {
+    clock = new AdjustableClock(0L);
+    manager = new LatencyManager();
+    engine = new AuthorizationEngine(4, TIMEOUT_MILLIS, 100, CACHE_TTL_MILLIS,
+                                     clock);
+  }
+
+  @Override
+  protected void tearDown() {
+    engine.stop(true);
+  }
+
+  /**
+   * A {@link Manager} that answers each connector after an injected
+   * latency.  Docids starting with "p" are permitted, those starting
+   * with "d" are denied, those starting with "i" are indeterminate,
+   * and any others are omitted from the response.  Once access has been
+   * revoked, everything is denied.
+   */
+  private static class LatencyManager extends MockManager {
+    final Map<String, Long> latencies = new ConcurrentHashMap<String, Long>();
+    final Map<String, AtomicInteger> calls =
+        new ConcurrentHashMap<String, AtomicInteger>();
+    volatile boolean revoked = false;
+
+    int getCalls(String connectorName) {
+      AtomicInteger count = calls.get(connectorName);
+      return (count == null) ? 0 : count.get();
+    }
+
+    @Override
+    public Collection<AuthorizationResponse> authorizeDocids(
+        String connectorName, List<String> docidList,
+        AuthenticationIdentity identity) {
+      synchronized (calls) {
+        if (!calls.containsKey(connectorName)) {
+          calls.put(connectorName, new AtomicInteger());
+        }
+      }
+      calls.get(connectorName).incrementAndGet();
+      Long latency = latencies.get(connectorName);
+      if (latency != null) {
+        try {
+          Thread.sleep(latency);
+        } catch (InterruptedException e) {
+          return null;
+        }
+      }
+      if ("null".equals(connectorName)) {
+        return null;
+      }
+      List<AuthorizationResponse> responses =
+          new ArrayList<AuthorizationResponse>();
+      for (String docid : docidList) {
+        if (revoked) {
+          responses.add(new AuthorizationResponse(Status.DENY, docid));
+        } else if (docid.startsWith("p")) {
+          responses.add(new AuthorizationResponse(Status.PERMIT, docid));
+        } else if (docid.startsWith("d")) {
+          responses.add(new AuthorizationResponse(Status.DENY, docid));
+        } else if (docid.startsWith("i")) {
+          responses.add(
+              new AuthorizationResponse(Status.INDETERMINATE, docid));
+        }
+      }
+      return responses;
+    }
+  }
+
+  /** Returns the responses as a map of docid to status. */
+  private static Map<String, Status> toMap(
+      Collection<AuthorizationResponse> responses) {
+    Map<String, Status> map = new HashMap<String, Status>();
+    for (AuthorizationResponse response : responses) {
+      assertNull(response.getDocid(),
+                 map.put(response.getDocid(), response.getStatus()));
+    }
+    return map;
+  }
+
+  private Map<String, Status> authorize(String connectorName,
+      AuthenticationIdentity identity, String... docids) {
+    List<Collection<AuthorizationResponse>> results = engine.authorizeDocids(
+        manager, Collections.singletonList(
+            new Query(connectorName, identity, Arrays.asList(docids))));
+    assertEquals(1, results.size());
+    return (results.get(0) == null) ? null : toMap(results.get(0));
+  }
+
+  public void testAuthorize() {
+    Map<String, Status> results = authorize("c1", ALICE, "p1", "d1", "i1");
+    assertEquals(Status.PERMIT, results.get("p1"));
+    assertEquals(Status.DENY, results.get("d1"));
+    assertEquals(Status.INDETERMINATE, results.get("i1"));
+    assertEquals(3, results.size());
+  }
+
+  public void testNullResponse() {
+    assertNull(authorize("null", ALICE, "p1"));
+  }
+
+  public void testConcurrentQueries() {
+    List<Query> queries = new ArrayList<Query>();
+    for (int i = 0; i < 4; i++) {
+      String connectorName = "c" + i;
+      manager.latencies.put(connectorName, 500L);
+      queries.add(new Query(connectorName, ALICE, Arrays.asList("p" + i)));
+    }
+    long start = System.currentTimeMillis();
+    List<Collection<AuthorizationResponse>> results =
+        engine.authorizeDocids(manager, queries);
+    long elapsed = System.currentTimeMillis() - start;
+
+    // Run one after another, the queries would take 2 seconds.
+    assertTrue("elapsed = " + elapsed, elapsed < 1500L);
+    for (int i = 0; i < 4; i++) {
+      assertEquals(Status.PERMIT, toMap(results.get(i)).get("p" + i));
+    }
+    assertEquals(0, engine.getTimeouts());
+  }
+
+  public void testDeadline() {
+    manager.latencies.put("slow", 10 * TIMEOUT_MILLIS);
+    List<Query> queries = Arrays.asList(
+        new Query("slow", ALICE, Arrays.asList("p1", "d1")),
+        new Query("fast", ALICE, Arrays.asList("p2", "d2")));
+    long start = System.nanoTime();
+    List<Collection<AuthorizationResponse>> results =
+        engine.authorizeDocids(manager, queries);
+    long elapsed = (System.nanoTime() - start) / 1000000L;
+
+    assertTrue("elapsed = " + elapsed, elapsed >= TIMEOUT_MILLIS);
+    assertTrue("elapsed = " + elapsed, elapsed < 3 * TIMEOUT_MILLIS);
+    Map<String, Status> slow = toMap(results.get(0));
+    assertEquals(Status.INDETERMINATE, slow.get("p1"));
+    assertEquals(Status.INDETERMINATE, slow.get("d1"));
+    Map<String, Status> fast = toMap(results.get(1));
+    assertEquals(Status.PERMIT, fast.get("p2"));
+    assertEquals(Status.DENY, fast.get("d2"));
+    assertEquals(1, engine.getTimeouts());
+
+    // Timed out decisions are not cached.
+    manager.latencies.remove("slow");
+    assertEquals(Status.PERMIT, authorize("slow", ALICE, "p1").get("p1"));
+    assertEquals(2, manager.getCalls("slow"));
+  }
+
+  public void testCacheHitsAndMisses() {
+    authorize("c1", ALICE, "p1", "d1", "x1", "i1");
+    assertEquals(0, engine.getCacheHits());
+    assertEquals(4, engine.getCacheMisses());
+    assertEquals(1, manager.getCalls("c1"));
+
+    // The PERMIT, DENY, and omitted decisions are cached.
+    Map<String, Status> results = authorize("c1", ALICE, "p1", "d1", "x1");
+    assertEquals(Status.PERMIT, results.get("p1"));
+    assertEquals(Status.DENY, results.get("d1"));
+    assertEquals(Status.DENY, results.get("x1"));
+    assertEquals(3, engine.getCacheHits());
+    assertEquals(4, engine.getCacheMisses());
+    assertEquals(1, manager.getCalls("c1"));
+
+    // INDETERMINATE is not cached.
+    results = authorize("c1", ALICE, "p1", "i1");
+    assertEquals(Status.PERMIT, results.get("p1"));
+    assertEquals(Status.INDETERMINATE, results.get("i1"));
+    assertEquals(4, engine.getCacheHits());
+    assertEquals(5, engine.getCacheMisses());
+    assertEquals(2, manager.getCalls("c1"));
+  }
+
+  public void testCacheKeys() {
+    authorize("c1", ALICE, "p1");
+    authorize("c2", ALICE, "p1");
+    authorize("c1", BOB, "p1");
+    authorize("c1", new SimpleAuthenticationIdentity("alice", "secret"),
+              "p1");
+    authorize("c1", new SimpleAuthenticationIdentity("alice", null, "corp"),
+              "p1");
+    assertEquals(0, engine.getCacheHits());
+    assertEquals(5, engine.getCacheMisses());
+
+    authorize("c1", new SimpleAuthenticationIdentity("alice"), "p1");
+    assertEquals(1, engine.getCacheHits());
+
+    // The password is compared by its hash.
+    authorize("c1", new SimpleAuthenticationIdentity("alice", "secret"),
+              "p1");
+    assertEquals(2, engine.getCacheHits());
+    authorize("c1", new SimpleAuthenticationIdentity("alice", "Secret"),
+              "p1");
+    assertEquals(2, engine.getCacheHits());
+  }
+
+  public void testPermitNeverServedAfterExpiry() {
+    assertEquals(Status.PERMIT, authorize("c1", ALICE, "p1").get("p1"));
+    manager.revoked = true;
+
+    // The clock also advances in real time, so stay clear of the TTL.
+    clock.adjustTime(CACHE_TTL_MILLIS / 2);
+    assertEquals(Status.PERMIT, authorize("c1", ALICE, "p1").get("p1"));
+    assertEquals(1, engine.getCacheHits());
+
+    clock.adjustTime(CACHE_TTL_MILLIS / 2 + 1);
+    assertEquals(Status.DENY, authorize("c1", ALICE, "p1").get("p1"));
+    assertEquals(1, engine.getCacheHits());
+    assertEquals(2, manager.getCalls("c1"));
+  }
+
+  public void testCacheDisabled() {
+    engine = new AuthorizationEngine(4, TIMEOUT_MILLIS, 100, 0L, clock);
+    authorize("c1", ALICE, "p1");
+    authorize("c1", ALICE, "p1");
+    assertEquals(0, engine.getCacheHits());
+    assertEquals(2, manager.getCalls("c1"));
+  }
+
+  public void testCacheDisabledByDefault() {
+    engine.stop(true);
+    engine = new AuthorizationEngine();
+    authorize("c1", ALICE, "p1");
+    authorize("c1", ALICE, "p1");
+    assertEquals(0, engine.getCacheHits());
+    assertEquals(2, manager.getCalls("c1"));
+  }
+
+  public void testStopped() {
+    engine.stop(false);
+    assertFalse(engine.isRunning());
+    // Queries are still answered, in the calling thread.
+    assertEquals(Status.PERMIT, authorize("c1", ALICE, "p1").get("p1"));
+  }
+
+  public void testRestart() {
+    engine.stop(false);
+    engine.start();
+    assertTrue(engine.isRunning());
+    testConcurrentQueries();
+  }
+}
@@ -0,0 +1,332 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.persist;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.google.enterprise.connector.instantiator.Configuration;
+import com.google.enterprise.connector.instantiator.TypeMap;
+import com.google.enterprise.connector.scheduler.Schedule;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+import com.google.enterprise.connector.util.database.JdbcDatabase;
+
+import junit.framework.TestCase;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests migrating a FileStore to a JdbcStore with a BulkStoreMigrator.
+ */
+public class BulkStoreMigratorTest extends TestCase {
+  private static final String TEST_DIR_NAME =
+      "testdata/tmp/BulkStoreMigratorTests";
+  private static final String TYPENAME = "TestConnectorA";
+  private static final int CONNECTORS = 2000;
+
+  private final File baseDirectory = new File(TEST_DIR_NAME);
+  private File progressFile;
+  private FileStore fileStore;
+  private JdbcDatabase jdbcDatabase;
+  private JdbcStore jdbcStore;
+
+  @Override
+  protected void setUp() throws Exception {
+    ConnectorTestUtils.deleteAllFiles(baseDirectory);
+    File typesDirectory = new File(baseDirectory, "types");
+    assertTrue(ConnectorTestUtils.mkdirs(typesDirectory));
+    progressFile = new File(baseDirectory, "progress.txt");
+
+    TypeMap typeMap = new TypeMap(typesDirectory.getPath());
+    typeMap.init();
+    fileStore = new FileStore();
+    fileStore.setTypeMap(typeMap);
+
+    JdbcDataSource ds = new JdbcDataSource();
+    ds.setURL("jdbc:h2:mem:bulkmigratedb");
+    ds.setUser("sa");
+    ds.setPassword("sa");
+    jdbcDatabase = new JdbcDatabase(ds);
+    jdbcStore = new JdbcStore();
+    jdbcStore.setDatabase(jdbcDatabase);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      jdbcDatabase.shutdown();
+    } finally {
+      ConnectorTestUtils.deleteAllFiles(baseDirectory);
+    }
+  }
+
+  private static StoreContext getStoreContext(int i) {
+    return new StoreContext(String.format("connector%04d", i), TYPENAME);
+  }
+
+  private static Configuration getConfiguration(int i) {
+    return new Configuration(TYPENAME,
+        ImmutableMap.of("property", "value" + i, "other", "x"),
+        "<beans>" + i + "</beans>");
+  }
+
+  private static Schedule getSchedule(int i) {
+    return new Schedule(getStoreContext(i).getConnectorName()
+        + ":200:300000:0-" + (i % 24));
+  }
+
+  private static String getState(int i) {
+    return "checkpoint" + i;
+  }
+
+  /** Populates the FileStore with the given number of connectors. */
+  private void populate(int count) {
+    for (int i = 0; i < count; i++) {
+      StoreContext context = getStoreContext(i);
+      fileStore.storeConnectorConfiguration(context, getConfiguration(i));
+      fileStore.storeConnectorSchedule(context, getSchedule(i));
+      fileStore.storeConnectorState(context, getState(i));
+    }
+  }
+
+  /** Checks that the JdbcStore holds the given number of connectors. */
+  private void checkMigrated(int count) {
+    assertEquals(count, jdbcStore.getInventory().size());
+    for (int i = 0; i < count; i++) {
+      StoreContext context = getStoreContext(i);
+      ConnectorTestUtils.compareConfigurations(getConfiguration(i),
+          jdbcStore.getConnectorConfiguration(context));
+      assertEquals(getSchedule(i).toString(),
+          jdbcStore.getConnectorSchedule(context).toString());
+      assertEquals(getState(i), jdbcStore.getConnectorState(context));
+    }
+  }
+
+  private BulkStoreMigrator newMigrator(PersistentStore destStore) {
+    BulkStoreMigrator migrator = new BulkStoreMigrator(fileStore, destStore);
+    migrator.setThreads(4);
+    migrator.setBatchSize(50);
+    migrator.setProgressFile(progressFile);
+    return migrator;
+  }
+
+  public void testMigrate() throws Exception {
+    populate(CONNECTORS);
+    BulkStoreMigrator migrator = newMigrator(jdbcStore);
+    List<String> mismatches = migrator.migrate();
+    assertTrue(mismatches.toString(), mismatches.isEmpty());
+    assertEquals(CONNECTORS, migrator.getMigratedCount());
+    assertEquals(0, migrator.getResumedCount());
+    checkMigrated(CONNECTORS);
+  }
+
+  /** Interrupts a migration halfway through, and then resumes it. */
+  public void testInterruptAndResume() throws Exception {
+    populate(CONNECTORS);
+    final AtomicInteger writes = new AtomicInteger();
+    final BulkStoreMigrator[] interrupted = new BulkStoreMigrator[1];
+    PersistentStore cancellingStore = new DelegatingStore(jdbcStore) {
+        @Override
+        public void storeConnectorState(StoreContext context, String state) {
+          super.storeConnectorState(context, state);
+          if (writes.incrementAndGet() == CONNECTORS / 2) {
+            interrupted[0].cancel();
+          }
+        }
+      };
+    interrupted[0] = newMigrator(cancellingStore);
+    try {
+      interrupted[0].migrate();
+      fail("Expected an InterruptedException");
+    } catch (InterruptedException expected) {
+    }
+    int migrated = interrupted[0].getMigratedCount();
+    assertTrue(String.valueOf(migrated), migrated >= CONNECTORS / 2);
+    assertTrue(String.valueOf(migrated), migrated < CONNECTORS);
+
+    BulkStoreMigrator migrator = newMigrator(jdbcStore);
+    List<String> mismatches = migrator.migrate();
+    assertTrue(mismatches.toString(), mismatches.isEmpty());
+    assertEquals(migrated, migrator.getResumedCount());
+    assertEquals(CONNECTORS - migrated, migrator.getMigratedCount());
+    checkMigrated(CONNECTORS);
+  }
+
+  /** Fails one batch, and then resumes the migration. */
+  public void testFailedBatch() throws Exception {
+    populate(200);
+    final StoreContext bad = getStoreContext(123);
+    final boolean[] failed = new boolean[1];
+    PersistentStore failingStore = new DelegatingStore(jdbcStore) {
+        @Override
+        public void storeConnectorState(StoreContext context, String state) {
+          synchronized (failed) {
+            if (context.equals(bad) && !failed[0]) {
+              failed[0] = true;
+              throw new IllegalStateException("Test failure");
+            }
+          }
+          super.storeConnectorState(context, state);
+        }
+      };
+    BulkStoreMigrator migrator = newMigrator(failingStore);
+    try {
+      migrator.migrate();
+      fail("Expected an ExecutionException");
+    } catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof IllegalStateException);
+    }
+    assertTrue(migrator.getMigratedCount() < 200);
+
+    migrator = newMigrator(jdbcStore);
+    List<String> mismatches = migrator.migrate();
+    assertTrue(mismatches.toString(), mismatches.isEmpty());
+    assertTrue(migrator.getResumedCount() > 0);
+    checkMigrated(200);
+  }
+
+  public void testVerifyMismatch() throws Exception {
+    populate(10);
+    BulkStoreMigrator migrator = newMigrator(jdbcStore);
+    assertTrue(migrator.migrate().isEmpty());
+
+    jdbcStore.storeConnectorState(getStoreContext(5), "changed");
+    jdbcStore.removeConnectorSchedule(getStoreContext(7));
+    assertEquals(ImmutableList.of("connector0005 traversal state",
+            "connector0007 traversal schedule"),
+        migrator.verify());
+  }
+
+  /** Existing fields are not overwritten unless forced. */
+  public void testForce() throws Exception {
+    populate(10);
+    jdbcStore.storeConnectorState(getStoreContext(3), "existing");
+
+    BulkStoreMigrator migrator = newMigrator(jdbcStore);
+    migrator.setProgressFile(null);
+    assertEquals(ImmutableList.of("connector0003 traversal state"),
+        migrator.migrate());
+    assertEquals("existing", jdbcStore.getConnectorState(getStoreContext(3)));
+
+    migrator.setForce(true);
+    assertTrue(migrator.migrate().isEmpty());
+    checkMigrated(10);
+  }
+
+  public void testConnectorNames() throws Exception {
+    populate(10);
+    BulkStoreMigrator migrator = newMigrator(jdbcStore);
+    migrator.setConnectorNames(ImmutableList.of("connector0002",
+        "connector0004"));
+    assertTrue(migrator.migrate().isEmpty());
+    assertEquals(2, migrator.getMigratedCount());
+    assertEquals(2, jdbcStore.getInventory().size());
+    assertEquals(getState(4), jdbcStore.getConnectorState(getStoreContext(4)));
+  }
+
+  /** A progress line torn by a crash is ignored. */
+  public void testTornProgress() throws Exception {
+    populate(3);
+    Files.write("connector0000\nconnector00", progressFile, Charsets.UTF_8);
+
+    BulkStoreMigrator migrator = newMigrator(jdbcStore);
+    assertEquals(ImmutableList.of("connector0000 configuration",
+            "connector0000 traversal schedule",
+            "connector0000 traversal state"),
+        migrator.migrate());
+    assertEquals(1, migrator.getResumedCount());
+    assertEquals(2, migrator.getMigratedCount());
+    assertEquals(ImmutableList.of("connector0000", "connector00",
+            "connector0001", "connector0002"),
+        Files.readLines(progressFile, Charsets.UTF_8));
+  }
+
+  /** A PersistentStore that forwards every call to another store. */
+  private static class DelegatingStore implements PersistentStore {
+    private final PersistentStore delegate;
+
+    DelegatingStore(PersistentStore delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean isDisabled() {
+      return delegate.isDisabled();
+    }
+
+    @Override
+    public ImmutableMap<StoreContext, ConnectorStamps> getInventory() {
+      return delegate.getInventory();
+    }
+
+    @Override
+    public Stamp getInventoryStamp() {
+      return delegate.getInventoryStamp();
+    }
+
+    @Override
+    public String getConnectorState(StoreContext context) {
+      return delegate.getConnectorState(context);
+    }
+
+    @Override
+    public void storeConnectorState(StoreContext context, String state) {
+      delegate.storeConnectorState(context, state);
+    }
+
+    @Override
+    public void removeConnectorState(StoreContext context) {
+      delegate.removeConnectorState(context);
+    }
+
+    @Override
+    public Configuration getConnectorConfiguration(StoreContext context) {
+      return delegate.getConnectorConfiguration(context);
+    }
+
+    @Override
+    public void storeConnectorConfiguration(StoreContext context,
+        Configuration configuration) {
+      delegate.storeConnectorConfiguration(context, configuration);
+    }
+
+    @Override
+    public void removeConnectorConfiguration(StoreContext context) {
+      delegate.removeConnectorConfiguration(context);
+    }
+
+    @Override
+    public Schedule getConnectorSchedule(StoreContext context) {
+      return delegate.getConnectorSchedule(context);
+    }
+
+    @Override
+    public void storeConnectorSchedule(StoreContext context,
+        Schedule schedule) {
+      delegate.storeConnectorSchedule(context, schedule);
+    }
+
+    @Override
+    public void removeConnectorSchedule(StoreContext context) {
+      delegate.removeConnectorSchedule(context);
+    }
+  }
+}
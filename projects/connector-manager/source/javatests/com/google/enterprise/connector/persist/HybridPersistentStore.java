@@ -40,6 +40,12 @@ public class HybridPersistentStore implements PersistentStore {
   }
 
 
+  @Override
+  public Stamp getInventoryStamp() {
+    // The stamps of the component stores cannot be combined.
+    return null;
+  }
+
   @Override
   public ImmutableMap<StoreContext, ConnectorStamps> getInventory() {
     ImmutableMap<StoreContext, ConnectorStamps> scheduleInventory =
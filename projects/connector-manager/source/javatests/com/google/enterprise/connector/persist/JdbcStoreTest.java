@@ -14,16 +14,31 @@
 
 package com.google.enterprise.connector.persist;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.connector.instantiator.Configuration;
 import com.google.enterprise.connector.scheduler.Schedule;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
 import com.google.enterprise.connector.util.database.JdbcDatabase;
+import com.google.enterprise.connector.util.database.PreparedStatementCache;
 
 import org.h2.jdbcx.JdbcDataSource;
 
 import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.sql.DataSource;
 
@@ -31,6 +46,9 @@ import javax.sql.DataSource;
  * Class to test JDBC persistent store.
  */
 public class JdbcStoreTest extends PersistentStoreTestAbstract {
+  private static final Logger LOGGER =
+      Logger.getLogger(JdbcStoreTest.class.getName());
+
   protected DataSource dataSource;
   protected JdbcDatabase jdbcDatabase;
 
@@ -80,6 +98,350 @@ public class JdbcStoreTest extends PersistentStoreTestAbstract {
     jdbcDatabase.getConnectionPool().releaseConnection(connection);
   }
 
+  /** Names that would break SQL built by string concatenation. */
+  private static final String[] QUOTED_NAMES = {
+      "O'Brien", "it''s", "\"quoted\"", "x' OR '1'='1", "back\\slash'" };
+
+  // Tests connector and property values containing quote characters.
+  public void testQuotedNames() {
+    for (String name : QUOTED_NAMES) {
+      StoreContext context = getStoreContext(name);
+      Configuration config = new Configuration(TYPENAME,
+          ImmutableMap.of("key'1", "value'1", "key\"2", "value\"2"),
+          "<beans name='" + name + "'/>");
+      Schedule schedule = new Schedule(name + ":200:300000:0-0");
+      String checkpoint = "{'checkpoint':'" + name + "'}";
+
+      store.storeConnectorConfiguration(context, config);
+      store.storeConnectorSchedule(context, schedule);
+      store.storeConnectorState(context, checkpoint);
+
+      Configuration stored = store.getConnectorConfiguration(context);
+      assertNotNull(name, stored);
+      assertEquals(name, TYPENAME, stored.getTypeName());
+      ConnectorTestUtils.compareMaps(config.getMap(), stored.getMap());
+      assertEquals(name, config.getXml(), stored.getXml());
+      assertEquals(name, schedule.toString(),
+                   store.getConnectorSchedule(context).toString());
+      assertEquals(name, checkpoint, store.getConnectorState(context));
+      assertTrue(name, store.getInventory().containsKey(context));
+    }
+
+    // Make sure none of the names leaked into another connector's rows.
+    for (String name : QUOTED_NAMES) {
+      StoreContext context = getStoreContext(name);
+      assertEquals(name, "{'checkpoint':'" + name + "'}",
+                   store.getConnectorState(context));
+      store.removeConnectorConfiguration(context);
+      assertNull(name, store.getConnectorConfiguration(context));
+      assertFalse(name, store.getInventory().containsKey(context));
+    }
+  }
+
+  // Tests that the modify stamps are bumped by each write.
+  public void testModifyStamps() {
+    StoreContext context = getStoreContext("stamps");
+    store.storeConnectorConfiguration(context, getConfiguration());
+    ConnectorStamps first = store.getInventory().get(context);
+    store.storeConnectorState(context, "state");
+    ConnectorStamps second = store.getInventory().get(context);
+    assertTrue(second.getCheckpointStamp() != null);
+    assertEquals(0, first.getConfigurationStamp().compareTo(
+        second.getConfigurationStamp()));
+
+    store.storeConnectorState(context, "state2");
+    store.storeConnectorConfiguration(context, getConfiguration());
+    ConnectorStamps third = store.getInventory().get(context);
+    assertTrue(third.getCheckpointStamp().compareTo(
+        second.getCheckpointStamp()) > 0);
+    assertTrue(third.getConfigurationStamp().compareTo(
+        second.getConfigurationStamp()) > 0);
+  }
+
+  // Tests that a configuration is written as one row per field.
+  public void testStoreConfigurationRows() throws SQLException {
+    StoreContext context = getStoreContext("rows");
+    store.storeConnectorConfiguration(context, getConfiguration());
+    store.storeConnectorConfiguration(context, getConfiguration());
+    store.removeConnectorConfiguration(context);
+    store.storeConnectorConfiguration(context, getConfiguration());
+
+    Connection connection = jdbcDatabase.getConnectionPool().getConnection();
+    try {
+      PreparedStatement stmt = connection.prepareStatement(
+          "SELECT property_name, modify_stamp FROM google_connectors "
+          + "WHERE connector_name = ? ORDER BY property_name");
+      try {
+        stmt.setString(1, "rows");
+        ResultSet rs = stmt.executeQuery();
+        StringBuilder rows = new StringBuilder();
+        while (rs.next()) {
+          rows.append(rs.getString(1)).append('=').append(rs.getInt(2))
+              .append(' ');
+        }
+        assertEquals("configuration_map=4 configuration_type=4 "
+            + "configuration_xml=4 ", rows.toString());
+      } finally {
+        stmt.close();
+      }
+    } finally {
+      jdbcDatabase.getConnectionPool().releaseConnection(connection);
+    }
+  }
+
+  // Tests that statements are prepared once for each pooled connection.
+  public void testStatementCache() throws SQLException {
+    StoreContext context = getStoreContext("cached");
+    store.storeConnectorState(context, "state1");
+    store.getConnectorState(context);
+    PreparedStatementCache cache = ((JdbcStore) store).getStatementCache();
+
+    Connection connection = jdbcDatabase.getConnectionPool().getConnection();
+    int size = cache.size(connection);
+    // The update, insert, and getvalue statements.
+    assertTrue("size = " + size, size >= 3);
+    jdbcDatabase.getConnectionPool().releaseConnection(connection);
+
+    for (int i = 0; i < 10; i++) {
+      store.storeConnectorState(context, "state" + i);
+      assertEquals("state" + i, store.getConnectorState(context));
+    }
+    connection = jdbcDatabase.getConnectionPool().getConnection();
+    assertEquals(size, cache.size(connection));
+    jdbcDatabase.getConnectionPool().releaseConnection(connection);
+  }
+
+  // Tests that the inventory of a large table is the same as the one
+  // built by the original two-query implementation, with fewer queries.
+  public void testLargeInventory() throws SQLException {
+    AtomicInteger queries = new AtomicInteger();
+    JdbcDatabase countingDatabase =
+        new JdbcDatabase(countingDataSource(dataSource, queries));
+    // Logging each connector would dominate the times.
+    Logger storeLogger = Logger.getLogger(JdbcStore.class.getName());
+    Level storeLevel = storeLogger.getLevel();
+    storeLogger.setLevel(Level.INFO);
+    try {
+      JdbcStore countingStore = new JdbcStore();
+      countingStore.setDatabase(countingDatabase);
+      assertTrue(countingStore.getInventory().isEmpty());
+
+      // 10,000 connectors with five properties each.  Every hundredth
+      // connector has been deleted, leaving a null type.
+      int connectors = 10000;
+      insertRows(connectors);
+
+      long start = System.nanoTime();
+      Map<StoreContext, String> expected = getOriginalInventory();
+      long originalNanos = System.nanoTime() - start;
+      assertEquals(connectors - connectors / 100, expected.size());
+
+      queries.set(0);
+      start = System.nanoTime();
+      ImmutableMap<StoreContext, ConnectorStamps> inventory =
+          countingStore.getInventory();
+      long coldNanos = System.nanoTime() - start;
+      assertEquals(expected, describe(inventory));
+      // The inventory stamp, the stamps, and the types.
+      assertEquals(3, queries.get());
+
+      // An unchanged inventory is shared.
+      queries.set(0);
+      start = System.nanoTime();
+      assertSame(inventory, countingStore.getInventory());
+      long unchangedNanos = System.nanoTime() - start;
+      assertEquals(1, queries.get());
+
+      // A new checkpoint does not read the types again.
+      StoreContext context = getStoreContext("connector00042");
+      countingStore.storeConnectorState(context, "new checkpoint");
+      queries.set(0);
+      start = System.nanoTime();
+      inventory = countingStore.getInventory();
+      long changedNanos = System.nanoTime() - start;
+      assertEquals(2, queries.get());
+      assertEquals(getOriginalInventory(), describe(inventory));
+
+      // A new connector type is noticed.
+      StoreContext retyped = getStoreContext("connector00043", "OtherType");
+      countingStore.storeConnectorConfiguration(retyped,
+          getConfiguration("OtherType"));
+      queries.set(0);
+      inventory = countingStore.getInventory();
+      assertEquals(3, queries.get());
+      assertTrue(inventory.containsKey(retyped));
+      assertFalse(inventory.containsKey(getStoreContext("connector00043")));
+      assertEquals(getOriginalInventory(), describe(inventory));
+
+      LOGGER.info("Inventory of " + (connectors * 5) + " rows: original "
+          + (originalNanos / 1000000) + " ms (2 queries), cold "
+          + (coldNanos / 1000000) + " ms (3 queries), unchanged "
+          + (unchangedNanos / 1000000) + " ms (1 query), changed "
+          + (changedNanos / 1000000) + " ms (2 queries)");
+    } finally {
+      storeLogger.setLevel(storeLevel);
+      countingDatabase.shutdown();
+    }
+  }
+
+  /** Inserts five rows for each of the given number of connectors. */
+  private void insertRows(int connectors) throws SQLException {
+    Connection connection = dataSource.getConnection();
+    try {
+      PreparedStatement insert = connection.prepareStatement(
+          "INSERT INTO google_connectors (modify_stamp, connector_name, "
+          + "property_name, property_value) VALUES (?, ?, ?, ?)");
+      try {
+        for (int i = 0; i < connectors; i++) {
+          String name = String.format("connector%05d", i);
+          String[][] rows = {
+              { JdbcStore.TYPE, (i % 100 == 0) ? null : TYPENAME },
+              { JdbcStore.MAP, "{}" },
+              { JdbcStore.XML, CONFIG_XML },
+              { JdbcStore.SCHEDULE, name + ":200:300000:0-0" },
+              { JdbcStore.STATE, "checkpoint" + i } };
+          for (int j = 0; j < rows.length; j++) {
+            insert.setInt(1, 1 + (i + j) % 7);
+            insert.setString(2, name);
+            insert.setString(3, rows[j][0]);
+            insert.setString(4, rows[j][1]);
+            insert.addBatch();
+          }
+          if (i % 1000 == 999) {
+            insert.executeBatch();
+          }
+        }
+        insert.executeBatch();
+      } finally {
+        insert.close();
+      }
+    } finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * Builds the inventory the way JdbcStore originally did, with separate
+   * queries for the stamps and the types, joined by connector name.
+   * The stamps are described by strings so that they may be compared.
+   */
+  private Map<StoreContext, String> getOriginalInventory()
+      throws SQLException {
+    Map<String, Map<String, Long>> stampAlbum =
+        new HashMap<String, Map<String, Long>>();
+    Map<StoreContext, String> inventory = new HashMap<StoreContext, String>();
+    Connection connection = dataSource.getConnection();
+    try {
+      PreparedStatement stmt = connection.prepareStatement(
+          "SELECT modify_stamp, connector_name, property_name "
+          + "FROM google_connectors WHERE ( property_value IS NOT NULL )");
+      try {
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+          String connectorName = rs.getString("connector_name");
+          Map<String, Long> stamps = stampAlbum.get(connectorName);
+          if (stamps == null) {
+            stamps = new HashMap<String, Long>();
+            stampAlbum.put(connectorName, stamps);
+          }
+          stamps.put(rs.getString("property_name"),
+                     rs.getLong("modify_stamp"));
+        }
+      } finally {
+        stmt.close();
+      }
+
+      stmt = connection.prepareStatement(
+          "SELECT connector_name, property_value FROM google_connectors "
+          + "WHERE ( property_name=? AND property_value IS NOT NULL )");
+      try {
+        stmt.setString(1, JdbcStore.TYPE);
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+          String connectorName = rs.getString("connector_name");
+          Map<String, Long> stamps = stampAlbum.get(connectorName);
+          Long map = stamps.get(JdbcStore.MAP);
+          Long xml = stamps.get(JdbcStore.XML);
+          long config = ((map == null) ? 0L : map) + ((xml == null) ? 0L : xml);
+          inventory.put(
+              new StoreContext(connectorName, rs.getString("property_value")),
+              stamps.get(JdbcStore.STATE) + "/" + config + "/"
+              + stamps.get(JdbcStore.SCHEDULE));
+        }
+      } finally {
+        stmt.close();
+      }
+    } finally {
+      connection.close();
+    }
+    return inventory;
+  }
+
+  /** Describes the stamps in an inventory, like getOriginalInventory. */
+  private static Map<StoreContext, String> describe(
+      Map<StoreContext, ConnectorStamps> inventory) {
+    Map<StoreContext, String> described = new HashMap<StoreContext, String>();
+    for (Map.Entry<StoreContext, ConnectorStamps> entry
+             : inventory.entrySet()) {
+      ConnectorStamps stamps = entry.getValue();
+      described.put(entry.getKey(), stamps.getCheckpointStamp() + "/"
+          + stamps.getConfigurationStamp() + "/" + stamps.getScheduleStamp());
+    }
+    return described;
+  }
+
+  /**
+   * Wraps a DataSource so that queries of the connectors table are
+   * counted.
+   */
+  private static DataSource countingDataSource(final DataSource dataSource,
+      final AtomicInteger queries) {
+    return (DataSource) Proxy.newProxyInstance(
+        DataSource.class.getClassLoader(), new Class<?>[] { DataSource.class },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args)
+              throws Throwable {
+            Object result = JdbcStoreTest.invoke(dataSource, method, args);
+            if (result instanceof Connection) {
+              return countingProxy(Connection.class, result, queries, null);
+            }
+            return result;
+          }
+        });
+  }
+
+  private static <T> T countingProxy(Class<T> type, final Object target,
+      final AtomicInteger queries, final String sql) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+        new Class<?>[] { type },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args)
+              throws Throwable {
+            Object result = JdbcStoreTest.invoke(target, method, args);
+            if (result instanceof PreparedStatement) {
+              return countingProxy(PreparedStatement.class, result, queries,
+                                   (String) args[0]);
+            }
+            if (method.getName().equals("executeQuery")
+                && sql != null && sql.contains("google_connectors")) {
+              queries.incrementAndGet();
+            }
+            return result;
+          }
+        }));
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args)
+      throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
   // A ClassLoader that looks for resources relative to the
   // current working directory and the source/resources directory.
   private class TestClassLoader extends ClassLoader {
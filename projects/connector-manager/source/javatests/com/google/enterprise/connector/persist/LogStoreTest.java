@@ -0,0 +1,333 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.persist;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.connector.instantiator.Configuration;
+import com.google.enterprise.connector.instantiator.TypeMap;
+import com.google.enterprise.connector.scheduler.Schedule;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.logging.Logger;
+
+/**
+ * Class to test the log-structured persistent store.
+ */
+public class LogStoreTest extends PersistentStoreTestAbstract {
+  private static final Logger LOGGER =
+      Logger.getLogger(LogStoreTest.class.getName());
+
+  private static final String TEST_DIR_NAME = "testdata/tmp/LogStoreTests";
+  private final File baseDirectory = new File(TEST_DIR_NAME);
+  private File logFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ConnectorTestUtils.deleteAllFiles(baseDirectory);
+    assertTrue(ConnectorTestUtils.mkdirs(baseDirectory));
+    logFile = new File(baseDirectory, "connectors.log").getAbsoluteFile();
+    store = newStore();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      ((LogStore) store).close();
+      ConnectorTestUtils.deleteAllFiles(baseDirectory);
+    } finally {
+      super.tearDown();
+    }
+  }
+
+  private LogStore newStore() {
+    LogStore logStore = new LogStore();
+    logStore.setLogFile(logFile.getPath());
+    return logStore;
+  }
+
+  /** Opens the log again, as if after a restart. */
+  private LogStore reopen() {
+    ((LogStore) store).close();
+    store = newStore();
+    return (LogStore) store;
+  }
+
+  private static Configuration getConfiguration(String value, String xml) {
+    return new Configuration(TYPENAME, ImmutableMap.of("property", value),
+                             xml);
+  }
+
+  private static void appendToLog(File file, byte[] bytes) throws IOException {
+    FileOutputStream out = new FileOutputStream(file, true);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  public void testDisabled() {
+    LogStore logStore = new LogStore();
+    assertTrue(logStore.isDisabled());
+    assertTrue(logStore.getInventory().isEmpty());
+    assertNull(logStore.getInventoryStamp());
+    assertFalse(store.isDisabled());
+  }
+
+  public void testReopen() {
+    StoreContext context = getStoreContext("reopen");
+    store.storeConnectorConfiguration(context, getConfiguration("one", "xml"));
+    store.storeConnectorSchedule(context, getSchedule());
+    store.storeConnectorState(context, "checkpoint");
+    ConnectorStamps stamps = store.getInventory().get(context);
+
+    reopen();
+    assertEquals("checkpoint", store.getConnectorState(context));
+    assertEquals(getSchedule(), store.getConnectorSchedule(context));
+    Configuration config = store.getConnectorConfiguration(context);
+    assertEquals("one", config.getMap().get("property"));
+    assertEquals("xml", config.getXml());
+
+    ConnectorStamps reopened = store.getInventory().get(context);
+    assertEquals(0, stamps.getCheckpointStamp().compareTo(
+        reopened.getCheckpointStamp()));
+    assertEquals(0, stamps.getConfigurationStamp().compareTo(
+        reopened.getConfigurationStamp()));
+    assertEquals(0, stamps.getScheduleStamp().compareTo(
+        reopened.getScheduleStamp()));
+  }
+
+  /** Tests that the stamps keep increasing across removals and restarts. */
+  public void testMonotonicStamps() {
+    StoreContext context = getStoreContext("stamps");
+    store.storeConnectorState(context, "checkpoint1");
+    Stamp first = store.getInventory().get(context).getCheckpointStamp();
+    store.removeConnectorState(context);
+    assertNull(store.getInventory().get(context));
+    Stamp removed = store.getInventoryStamp();
+
+    reopen();
+    assertEquals(0, removed.compareTo(store.getInventoryStamp()));
+    store.storeConnectorState(context, "checkpoint1");
+    Stamp second = store.getInventory().get(context).getCheckpointStamp();
+    assertTrue(second.compareTo(first) > 0);
+    assertTrue(second.compareTo(removed) > 0);
+  }
+
+  /** Tests that a torn record at the end of the log is discarded. */
+  public void testTornRecord() throws IOException {
+    StoreContext context = getStoreContext("torn");
+    store.storeConnectorState(context, "checkpoint1");
+    ((LogStore) store).close();
+    long goodLength = logFile.length();
+    appendToLog(logFile, new byte[] { 0, 0, 0, 40, 1, 0, 3, 'a' });
+
+    reopen();
+    assertEquals("checkpoint1", store.getConnectorState(context));
+    assertEquals(goodLength, logFile.length());
+
+    // Records written after the torn one are not lost.
+    store.storeConnectorState(context, "checkpoint2");
+    reopen();
+    assertEquals("checkpoint2", store.getConnectorState(context));
+  }
+
+  /** Tests that a record with a bad checksum is discarded. */
+  public void testCorruptRecord() throws IOException {
+    StoreContext context = getStoreContext("corrupt");
+    store.storeConnectorState(context, "checkpoint1");
+    ((LogStore) store).close();
+    long goodLength = logFile.length();
+    reopen();
+    store.storeConnectorState(context, "checkpoint2");
+    ((LogStore) store).close();
+
+    // Flip a bit in the value of the second record.
+    RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+    try {
+      raf.seek(logFile.length() - 6);
+      int b = raf.read();
+      raf.seek(logFile.length() - 6);
+      raf.write(b ^ 1);
+    } finally {
+      raf.close();
+    }
+
+    reopen();
+    assertEquals("checkpoint1", store.getConnectorState(context));
+    assertEquals(goodLength, logFile.length());
+  }
+
+  /**
+   * Tests that a configuration is written atomically, so a crash while
+   * writing it leaves the whole of the previous configuration.
+   */
+  public void testAtomicConfiguration() throws IOException {
+    StoreContext context = getStoreContext("atomic");
+    store.storeConnectorConfiguration(context, getConfiguration("one", "xml1"));
+    ((LogStore) store).close();
+    long goodLength = logFile.length();
+    reopen();
+    store.storeConnectorConfiguration(context, getConfiguration("two", "xml2"));
+    ((LogStore) store).close();
+
+    // Cut the second record short, as if the write were interrupted.
+    RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+    try {
+      raf.setLength(logFile.length() - 10);
+    } finally {
+      raf.close();
+    }
+
+    reopen();
+    Configuration config = store.getConnectorConfiguration(context);
+    assertEquals("one", config.getMap().get("property"));
+    assertEquals("xml1", config.getXml());
+    assertEquals(goodLength, logFile.length());
+  }
+
+  public void testCompaction() {
+    LogStore logStore = (LogStore) store;
+    logStore.setCompactBytes(4096L);
+    StoreContext one = getStoreContext("one");
+    StoreContext two = getStoreContext("two");
+    store.storeConnectorConfiguration(one, getConfiguration("one", "xml"));
+    store.storeConnectorConfiguration(two, getConfiguration("two", null));
+    store.removeConnectorConfiguration(two);
+    for (int i = 0; i < 1000; i++) {
+      store.storeConnectorState(one, "checkpoint" + i);
+    }
+    // Without compaction, the log would hold all 1000 checkpoints.
+    assertTrue(String.valueOf(logFile.length()), logFile.length() < 2 * 4096L);
+    Stamp stamp = store.getInventoryStamp();
+
+    reopen();
+    assertEquals("checkpoint999", store.getConnectorState(one));
+    assertEquals("one",
+        store.getConnectorConfiguration(one).getMap().get("property"));
+    assertNull(store.getConnectorConfiguration(two));
+    assertEquals(0, stamp.compareTo(store.getInventoryStamp()));
+  }
+
+  public void testCompactionPreservesSequence() {
+    StoreContext context = getStoreContext("sequence");
+    store.storeConnectorState(context, "checkpoint");
+    store.removeConnectorState(context);
+    Stamp stamp = store.getInventoryStamp();
+    ((LogStore) store).compact();
+
+    reopen();
+    assertTrue(store.getInventory().isEmpty());
+    assertEquals(0, stamp.compareTo(store.getInventoryStamp()));
+  }
+
+  /** Tests recovery from a crash in the middle of a compaction. */
+  public void testInterruptedCompaction() throws IOException {
+    StoreContext context = getStoreContext("compact");
+    store.storeConnectorState(context, "checkpoint1");
+    ((LogStore) store).close();
+    File compactFile = new File(logFile.getPath() + ".compact");
+
+    // A partial compacted log is discarded.
+    appendToLog(compactFile, new byte[] { 0, 0, 0, 9 });
+    reopen();
+    assertEquals("checkpoint1", store.getConnectorState(context));
+    assertFalse(compactFile.exists());
+
+    // A compacted log that was not yet renamed is used.
+    store.storeConnectorState(context, "checkpoint2");
+    ((LogStore) store).compact();
+    ((LogStore) store).close();
+    assertTrue(logFile.renameTo(compactFile));
+    reopen();
+    assertEquals("checkpoint2", store.getConnectorState(context));
+    assertTrue(logFile.exists());
+    assertFalse(compactFile.exists());
+  }
+
+  /** Tests migrating connectors to and from a FileStore. */
+  public void testMigration() {
+    File typesDirectory = new File(baseDirectory, "types");
+    assertTrue(ConnectorTestUtils.mkdirs(typesDirectory));
+    TypeMap typeMap = new TypeMap(typesDirectory.getPath());
+    typeMap.init();
+    FileStore fileStore = new FileStore();
+    fileStore.setTypeMap(typeMap);
+
+    StoreContext context = getStoreContext("migrated");
+    Configuration config = getConfiguration("one", "xml");
+    fileStore.storeConnectorConfiguration(context, config);
+    fileStore.storeConnectorSchedule(context, getSchedule());
+    fileStore.storeConnectorState(context, "checkpoint");
+
+    StoreMigrator.migrate(fileStore, store, null, false);
+    ConnectorTestUtils.compareConfigurations(config,
+        store.getConnectorConfiguration(context));
+    assertEquals(getSchedule(), store.getConnectorSchedule(context));
+    assertEquals("checkpoint", store.getConnectorState(context));
+
+    StoreContext other = getStoreContext("other");
+    store.storeConnectorState(other, "otherCheckpoint");
+    StoreMigrator.migrate(store, fileStore, null, false);
+    assertEquals("otherCheckpoint", fileStore.getConnectorState(other));
+  }
+
+  /**
+   * Compares the throughput of checkpoint writes with the FileStore.
+   * The results are logged rather than checked, because they depend on
+   * the machine.
+   */
+  public void testCheckpointThroughput() {
+    File typesDirectory = new File(baseDirectory, "types");
+    assertTrue(ConnectorTestUtils.mkdirs(typesDirectory));
+    TypeMap typeMap = new TypeMap(typesDirectory.getPath());
+    typeMap.init();
+    FileStore fileStore = new FileStore();
+    fileStore.setTypeMap(typeMap);
+
+    int connectors = 20;
+    int checkpoints = 5000;
+    long fileMillis = writeCheckpoints(fileStore, connectors, checkpoints);
+    long logMillis = writeCheckpoints(store, connectors, checkpoints);
+    LOGGER.info("Wrote " + checkpoints + " checkpoints for " + connectors
+        + " connectors: FileStore " + fileMillis + " ms, LogStore "
+        + logMillis + " ms");
+
+    reopen();
+    for (int i = 0; i < connectors; i++) {
+      assertEquals("checkpoint" + (checkpoints - connectors + i),
+          store.getConnectorState(getStoreContext("connector" + i)));
+    }
+  }
+
+  private long writeCheckpoints(PersistentStore target, int connectors,
+      int checkpoints) {
+    StoreContext[] contexts = new StoreContext[connectors];
+    for (int i = 0; i < connectors; i++) {
+      contexts[i] = getStoreContext("connector" + i);
+      target.storeConnectorConfiguration(contexts[i], getConfiguration());
+    }
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < checkpoints; i++) {
+      target.storeConnectorState(contexts[i % connectors], "checkpoint" + i);
+    }
+    return System.currentTimeMillis() - start;
+  }
+}
@@ -87,6 +87,9 @@ public class MockPersistentStore implements PersistentStore {
   /** Incremented stamp value for constructing updated stamps. */
   private static int stampValue = 0;
 
+  /* Counts the changes to the store, for the inventory stamp. */
+  private long modCount = 0;
+
   private final Map<StoreKey, StoreEntry> storeMap =
       new HashMap<StoreKey, StoreEntry>();
 
@@ -104,6 +107,7 @@ public class MockPersistentStore implements PersistentStore {
   public void clear() {
     storeMap.clear();
     stampValue = 0;
+    modCount++;
   }
 
   /* @GuardedBy(getInventory) */
@@ -119,12 +123,15 @@ public class MockPersistentStore implements PersistentStore {
 
   private synchronized Object storeObject(StoreContext context, String property,
       Object object) {
+    modCount++;
     return storeMap.put(new StoreKey(context, property),
         new StoreEntry(object, new MockStamp(stampValue++)));
   }
 
   private synchronized void removeObject(StoreContext context, String property) {
-    storeMap.remove(new StoreKey(context, property));
+    if (storeMap.remove(new StoreKey(context, property)) != null) {
+      modCount++;
+    }
   }
 
   @Override
@@ -153,6 +160,11 @@ public class MockPersistentStore implements PersistentStore {
     return builder.build();
   }
 
+  @Override
+  public synchronized Stamp getInventoryStamp() {
+    return new MockStamp(modCount);
+  }
+
   @Override
   public String getConnectorState(StoreContext context) {
     return (String) getObject(context, CHECKPOINT);
@@ -450,6 +450,37 @@ public abstract class PersistentStoreTestAbstract extends TestCase {
     checkIsEmpty(store);
   }
 
+  /**
+   * Tests that the inventory stamp changes with each write, and only then.
+   */
+  public void testInventoryStamp() {
+    StoreContext context = getStoreContext("stamp");
+    store.storeConnectorConfiguration(context, configuration);
+    Stamp stamp = store.getInventoryStamp();
+    if (stamp == null) {
+      // This store does not supply inventory stamps.
+      return;
+    }
+    assertEquals(0, stamp.compareTo(store.getInventoryStamp()));
+
+    store.storeConnectorSchedule(context, schedule);
+    stamp = checkStampChanged(store, stamp);
+    store.storeConnectorState(context, checkpoint);
+    stamp = checkStampChanged(store, stamp);
+    store.storeConnectorState(context, checkpoint);
+    stamp = checkStampChanged(store, stamp);
+    store.removeConnectorState(context);
+    stamp = checkStampChanged(store, stamp);
+    store.removeConnectorConfiguration(context);
+    checkStampChanged(store, stamp);
+  }
+
+  private static Stamp checkStampChanged(PersistentStore store, Stamp stamp) {
+    Stamp newStamp = store.getInventoryStamp();
+    assertTrue(newStamp + " vs " + stamp, newStamp.compareTo(stamp) != 0);
+    return newStamp;
+  }
+
   private static void checkIsEmpty(PersistentStore store) {
     ImmutableMap<StoreContext, ConnectorStamps> inventory =
         store.getInventory();
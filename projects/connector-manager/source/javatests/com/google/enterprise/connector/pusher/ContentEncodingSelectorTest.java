@@ -0,0 +1,217 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.enterprise.connector.spi.SpiConstants.ContentEncoding;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests for {@link ContentEncodingSelector}.
+ */
+public class ContentEncodingSelectorTest extends TestCase {
+  private static final String TESTDATA_DIR = "testdata/";
+
+  private ContentEncodingSelector selector;
+
+  @Override
+  protected void setUp() {
+    selector = new ContentEncodingSelector();
+  }
+
+  /** Returns the text and XML files in the testdata directory. */
+  private static List<byte[]> getTextCorpus() throws Exception {
+    List<byte[]> corpus = new ArrayList<byte[]>();
+    addFiles(new File(TESTDATA_DIR), corpus);
+    assertFalse(corpus.isEmpty());
+    return corpus;
+  }
+
+  private static void addFiles(File dir, List<byte[]> corpus)
+      throws Exception {
+    File[] files = dir.listFiles(new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+          String name = file.getName();
+          if (file.isDirectory()) {
+            // Skip the generated files in testdata/tmp.
+            return !name.equals("tmp");
+          }
+          return name.endsWith(".xml")
+              || name.endsWith(".txt") || name.endsWith(".properties");
+        }
+      });
+    for (File file : files) {
+      if (file.isDirectory()) {
+        addFiles(file, corpus);
+      } else if (file.length() >= ContentEncodingSelector.DEFAULT_MIN_SIZE) {
+        corpus.add(Files.toByteArray(file));
+      }
+    }
+  }
+
+  private static byte[] gzip(byte[] data) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    gzip.write(data);
+    gzip.close();
+    return out.toByteArray();
+  }
+
+  /** Returns a zip file with a single entry containing all the files. */
+  private static byte[] zip(List<byte[]> files) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ZipOutputStream zip = new ZipOutputStream(out);
+    zip.putNextEntry(new ZipEntry("corpus"));
+    for (byte[] file : files) {
+      zip.write(file);
+    }
+    zip.closeEntry();
+    zip.close();
+    return out.toByteArray();
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * Selects the encoding for the content, and checks that the content
+   * can still be fully read afterwards.
+   */
+  private ContentEncoding select(String mimetype, byte[] content)
+      throws Exception {
+    PushbackInputStream in = new PushbackInputStream(
+        new ByteArrayInputStream(content), ContentEncodingSelector.TRIAL_SIZE);
+    ContentEncoding encoding = selector.select(mimetype, in);
+    assertTrue(Arrays.equals(content, ByteStreams.toByteArray(in)));
+    return encoding;
+  }
+
+  public void testCompressibleCorpus() throws Exception {
+    for (byte[] content : getTextCorpus()) {
+      assertEquals(ContentEncoding.BASE64COMPRESSED,
+                   select("text/plain", content));
+    }
+  }
+
+  public void testCompressedCorpus() throws Exception {
+    List<byte[]> corpus = getTextCorpus();
+    for (byte[] content : corpus) {
+      assertEquals(ContentEncoding.BASE64BINARY,
+                   select(null, gzip(content)));
+    }
+    assertEquals(ContentEncoding.BASE64BINARY, select(null, zip(corpus)));
+  }
+
+  public void testRandomContent() throws Exception {
+    assertEquals(ContentEncoding.BASE64BINARY,
+                 select("application/octet-stream", randomBytes(100000)));
+  }
+
+  public void testTinyContent() throws Exception {
+    byte[] content = new byte[ContentEncodingSelector.DEFAULT_MIN_SIZE - 1];
+    Arrays.fill(content, (byte) 'x');
+    assertEquals(ContentEncoding.BASE64BINARY, select("text/plain", content));
+
+    content = new byte[ContentEncodingSelector.DEFAULT_MIN_SIZE];
+    Arrays.fill(content, (byte) 'x');
+    assertEquals(ContentEncoding.BASE64COMPRESSED,
+                 select("text/plain", content));
+  }
+
+  public void testNoContent() throws Exception {
+    assertEquals(ContentEncoding.BASE64BINARY,
+                 selector.select("text/plain", null));
+  }
+
+  public void testLargeContent() throws Exception {
+    // Content larger than the trial block is fully preserved.
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] content : getTextCorpus()) {
+      out.write(content);
+    }
+    while (out.size() < 3 * ContentEncodingSelector.TRIAL_SIZE) {
+      out.write(out.toByteArray());
+    }
+    assertEquals(ContentEncoding.BASE64COMPRESSED,
+                 select("text/xml", out.toByteArray()));
+  }
+
+  public void testCompressedMimeTypes() throws Exception {
+    byte[] content = getTextCorpus().get(0);
+    String[] mimetypes = {
+        "application/zip",
+        "image/jpeg",
+        "image/PNG",
+        "video/mp4",
+        "audio/mpeg; bitrate=128",
+        "application/vnd.openxmlformats-officedocument"
+            + ".wordprocessingml.document",
+        "application/vnd.oasis.opendocument.text",
+        "application/epub+zip" };
+    for (String mimetype : mimetypes) {
+      assertTrue(mimetype,
+                 ContentEncodingSelector.isCompressedMimeType(mimetype));
+      assertEquals(mimetype, ContentEncoding.BASE64BINARY,
+                   select(mimetype, content));
+    }
+    String[] uncompressed = {
+        null, "text/html", "application/msword", "application/pdf",
+        "image/bmp" };
+    for (String mimetype : uncompressed) {
+      assertFalse(mimetype,
+                  ContentEncodingSelector.isCompressedMimeType(mimetype));
+    }
+  }
+
+  public void testCounters() throws Exception {
+    byte[] compressible = getTextCorpus().get(0);
+    assertEquals(ContentEncoding.BASE64COMPRESSED,
+                 select("text/plain", compressible));
+    assertEquals(ContentEncoding.BASE64BINARY,
+                 select("image/png", compressible));
+    assertEquals(1, selector.getCompressedRecords());
+    assertEquals(1, selector.getUncompressedRecords());
+    assertEquals(0, selector.getBytesSaved());
+
+    InputStream in = selector.newCompressedStream(
+        new ByteArrayInputStream(compressible), 1024);
+    byte[] compressed = ByteStreams.toByteArray(in);
+    in.close();
+    in.close();
+    assertEquals(compressible.length - compressed.length,
+                 selector.getBytesSaved());
+    assertTrue(selector.getCompressionNanos() > 0);
+  }
+}
@@ -55,6 +55,7 @@ import junit.framework.TestCase;
 import org.xml.sax.SAXParseException;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
@@ -70,6 +71,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
 import java.util.Set;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
@@ -86,6 +88,7 @@ public class DocPusherTest extends TestCase {
   private DocumentFilterChain dfc;
   private String dataSource;
   private String contentUrlPrefix;
+  private ContentEncodingSelector contentEncodingSelector;
 
   @Override
   protected void setUp() throws Exception {
@@ -118,6 +121,23 @@ public class DocPusherTest extends TestCase {
     Value.setFeedTimeZone("");
   }
 
+  /** Compress all content, no matter how small. */
+  private void alwaysCompress() {
+    contentEncodingSelector = new ContentEncodingSelector(0, Double.MAX_VALUE);
+  }
+
+  /**
+   * Returns a new DocPusher that uses the {@link #contentEncodingSelector},
+   * if one was set.
+   */
+  private DocPusher newDocPusher(FeedConnection feedConnection) {
+    DocPusher dpusher = new DocPusher(feedConnection, dataSource, fsli, dfc);
+    if (contentEncodingSelector != null) {
+      dpusher.setContentEncodingSelector(contentEncodingSelector);
+    }
+    return dpusher;
+  }
+
   private void setContentUrlPrefix(String contentUrlPrefix) {
     this.contentUrlPrefix = contentUrlPrefix;
     Context.getInstance().setContentUrlPrefix(contentUrlPrefix);
@@ -266,6 +286,7 @@ public class DocPusherTest extends TestCase {
    * Test Take for a compressed content feed.
    */
   public void testTakeCompressedContent() throws Exception {
+    alwaysCompress();
     String[] expectedXml = new String[1];
     String feedType = "incremental";
     String record = "<record url=" + googleConnectorUrl("doc10")
@@ -494,8 +515,7 @@ public class DocPusherTest extends TestCase {
     while ((document = documentList.nextDocument()) != null) {
       System.out.println("Test " + i + " output");
       assertFalse(i == expectedXml.length);
-      DocPusher dpusher =
-          new DocPusher(feedConnection, dataSource, fsli, dfc);
+      DocPusher dpusher = newDocPusher(feedConnection);
       assertEquals(PusherStatus.OK, dpusher.take(document, null));
       dpusher.flush();
       System.out.println("Test " + i + " assertions");
@@ -578,6 +598,7 @@ public class DocPusherTest extends TestCase {
   }
 
   public void testSimpleContent() throws Exception {
+    alwaysCompress();
     Map<String, Object> props = getTestDocumentConfig();
     props.put(
         SpiConstants.PROPNAME_ACTION, SpiConstants.ActionType.ADD.toString());
@@ -593,6 +614,39 @@ public class DocPusherTest extends TestCase {
         resultXML);
   }
 
+  /** Tests that tiny content is not compressed. */
+  public void testTinyContentNotCompressed() throws Exception {
+    Map<String, Object> props = getTestDocumentConfig();
+    Document document = ConnectorTestUtils.createSimpleDocument(props);
+
+    String resultXML = feedCompressedDocument(document);
+    assertStringContains(
+        "<content encoding=\"" + ContentEncoding.BASE64BINARY + "\">",
+        resultXML);
+  }
+
+  /** Tests that already compressed content is not compressed. */
+  public void testCompressedMimeTypeNotCompressed() throws Exception {
+    char[] chars = new char[10000];
+    Arrays.fill(chars, 'x');
+    Map<String, Object> props = getTestDocumentConfig();
+    props.put(SpiConstants.PROPNAME_CONTENT, new String(chars));
+    props.put(SpiConstants.PROPNAME_MIMETYPE, "image/jpeg");
+    Document document = ConnectorTestUtils.createSimpleDocument(props);
+
+    String resultXML = feedCompressedDocument(document);
+    assertStringContains(
+        "<content encoding=\"" + ContentEncoding.BASE64BINARY + "\">",
+        resultXML);
+
+    props.put(SpiConstants.PROPNAME_MIMETYPE, "text/plain");
+    document = ConnectorTestUtils.createSimpleDocument(props);
+    resultXML = feedCompressedDocument(document);
+    assertStringContains(
+        "<content encoding=\"" + ContentEncoding.BASE64COMPRESSED + "\">",
+        resultXML);
+  }
+
   public void testSimpleBinaryContent() throws Exception {
     String docId = "doc1";
     String content = "hello doc";
@@ -1519,8 +1573,7 @@ public class DocPusherTest extends TestCase {
       }
     };
 
-    DocPusher dpusher =
-        new DocPusher(mockFeedConnection, dataSource, fsli, dfc);
+    DocPusher dpusher = newDocPusher(mockFeedConnection);
     assertEquals(PusherStatus.OK, dpusher.take(document, null));
     dpusher.flush();
     return mockFeedConnection.getFeed();
@@ -2983,6 +3036,43 @@ public class DocPusherTest extends TestCase {
     assertStringContains(HTML_TITLE_ONLY_BASE64, resultXML);
   }
 
+  /**
+   * Test that a feed that exceeds the in-memory feed size is spilled to
+   * disk, and is fed just the same as a feed held in memory.
+   */
+  public void testSpilledFeed() throws Exception {
+    String inMemoryXML = feedSpilledDocument(fsli);
+
+    FileSizeLimitInfo limit = new FileSizeLimitInfo();
+    limit.setMaxDocumentSize(fsli.maxDocumentSize());
+    limit.setMaxFeedSize(fsli.maxFeedSize());
+    limit.setMaxFeedMemory(4096);
+    String spilledXML = feedSpilledDocument(limit);
+
+    // The Base64 line breaks depend upon the sizes of the reads,
+    // so ignore them.
+    assertTrue(spilledXML.length() > 200 * 1024);
+    assertEquals(inMemoryXML.replace("\n", ""),
+                 spilledXML.replace("\n", ""));
+  }
+
+  private String feedSpilledDocument(FileSizeLimitInfo limit)
+      throws Exception {
+    byte[] content = new byte[150 * 1024];
+    new Random(42).nextBytes(content);
+    Map<String, Object> config = getTestDocumentConfig();
+    config.put(SpiConstants.PROPNAME_CONTENT,
+               new ByteArrayInputStream(content));
+    Document doc = ConnectorTestUtils.createSimpleDocument(config);
+
+    MockFeedConnection mockFeedConnection = new MockFeedConnection();
+    DocPusher dpusher =
+        new DocPusher(mockFeedConnection, dataSource, limit, dfc);
+    assertEquals(PusherStatus.OK, dpusher.take(doc, null));
+    dpusher.flush();
+    return mockFeedConnection.getFeed();
+  }
+
   /**
    * Utility method to take the given Document with huge content and feed
    * it through a DocPusher and return the resulting XML feed string.
@@ -3243,6 +3333,7 @@ public class DocPusherTest extends TestCase {
     // available memory - there should not be room for a second one.
     limit.setMaxDocumentSize(memAvailable/4);
     limit.setMaxFeedSize(memAvailable/3);
+    limit.setMaxFeedMemory(memAvailable/3);
 
     DocPusher dpusher =
         new DocPusher(feedConnection, dataSource, limit, dfc);
@@ -0,0 +1,142 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for {@link FeedBuffer}.
+ */
+public class FeedBufferTest extends TestCase {
+  private FeedBuffer buffer;
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (buffer != null) {
+      buffer.release();
+    }
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+
+  private void assertContents(byte[] expected, int length) throws Exception {
+    assertEquals(length, buffer.size());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    buffer.writeTo(out);
+    assertTrue(Arrays.equals(Arrays.copyOf(expected, length),
+                             out.toByteArray()));
+  }
+
+  public void testSmallFeedStaysInMemory() throws Exception {
+    buffer = new FeedBuffer(1024);
+    byte[] data = randomBytes(1000);
+    buffer.write(data);
+    assertNull(buffer.getSpillFile());
+    assertContents(data, data.length);
+  }
+
+  public void testLargeFeedSpills() throws Exception {
+    buffer = new FeedBuffer(1024);
+    byte[] data = randomBytes(300 * 1024);
+    buffer.write(data, 0, 100);
+    buffer.write(data, 100, 1000);
+    for (int i = 1100; i < 2000; i++) {
+      buffer.write(data[i]);
+    }
+    buffer.write(data, 2000, data.length - 2000);
+    assertNotNull(buffer.getSpillFile());
+    assertContents(data, data.length);
+
+    // The contents may be written out more than once.
+    assertContents(data, data.length);
+  }
+
+  public void testReadFrom() throws Exception {
+    buffer = new FeedBuffer(4096);
+    byte[] data = randomBytes(200 * 1024);
+    buffer.write(data, 0, 10);
+    buffer.readFrom(new ByteArrayInputStream(data, 10, data.length - 10));
+    assertNotNull(buffer.getSpillFile());
+    assertContents(data, data.length);
+  }
+
+  public void testResetInMemory() throws Exception {
+    buffer = new FeedBuffer(1024);
+    byte[] data = randomBytes(2000);
+    buffer.write(data);
+    buffer.reset(500);
+    assertContents(data, 500);
+    buffer.write(data, 500, 1500);
+    assertContents(data, data.length);
+  }
+
+  public void testResetIntoSpillFile() throws Exception {
+    buffer = new FeedBuffer(1024);
+    byte[] data = randomBytes(200 * 1024);
+    buffer.write(data);
+    buffer.reset(100 * 1024);
+    assertContents(data, 100 * 1024);
+    buffer.write(data, 100 * 1024, data.length - 100 * 1024);
+    assertContents(data, data.length);
+  }
+
+  public void testResetIntoSpillBuffer() throws Exception {
+    buffer = new FeedBuffer(1024);
+    byte[] data = randomBytes(2000);
+    buffer.write(data);
+    buffer.reset(1500);
+    assertContents(data, 1500);
+    buffer.write(data, 1500, 500);
+    assertContents(data, data.length);
+  }
+
+  public void testResetIllegalSize() throws Exception {
+    buffer = new FeedBuffer(1024);
+    buffer.write(randomBytes(10));
+    try {
+      buffer.reset(11);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testReleaseDeletesSpillFile() throws Exception {
+    buffer = new FeedBuffer(16);
+    buffer.write(randomBytes(100));
+    File spillFile = buffer.getSpillFile();
+    assertNotNull(spillFile);
+    assertTrue(spillFile.exists());
+    buffer.release();
+    assertFalse(spillFile.exists());
+    assertNull(buffer.getSpillFile());
+    assertEquals(0, buffer.size());
+  }
+
+  public void testToString() throws Exception {
+    buffer = new FeedBuffer(4);
+    buffer.write("Hello, World!".getBytes("UTF-8"));
+    assertEquals("Hello, World!", buffer.toString("UTF-8"));
+  }
+}
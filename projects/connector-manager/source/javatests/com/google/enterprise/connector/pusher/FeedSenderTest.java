@@ -0,0 +1,273 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.enterprise.connector.instantiator.DocumentFilterFactoryFactoryImpl;
+import com.google.enterprise.connector.manager.Context;
+import com.google.enterprise.connector.pusher.Pusher.PusherStatus;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
+import com.google.enterprise.connector.util.filter.DocumentFilterChain;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the {@link FeedSender} shared by multiple {@link DocPusher}s.
+ */
+public class FeedSenderTest extends TestCase {
+  private FileSizeLimitInfo fsli;
+  private DocumentFilterChain dfc;
+
+  @Override
+  protected void setUp() throws Exception {
+    // Force 1 document per feed by setting a tiny feed size.
+    fsli = new FileSizeLimitInfo();
+    fsli.setMaxFeedSize(32);
+    fsli.setMaxDocumentSize(64 * 1024);
+
+    dfc = new DocumentFilterChain();
+    Context.getInstance().setContentUrlPrefix("http://contentUrlPrefix");
+  }
+
+  /**
+   * A NullFeedConnection-style FeedConnection that discards the feeds,
+   * but holds each one until it is released, counting the number of
+   * feeds in flight at once.
+   */
+  private static class GatedFeedConnection extends NullFeedConnection {
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    final AtomicInteger sent = new AtomicInteger();
+    final CountDownLatch arrived;
+    final CountDownLatch release = new CountDownLatch(1);
+
+    GatedFeedConnection(int expectedArrivals) {
+      arrived = new CountDownLatch(expectedArrivals);
+    }
+
+    @Override
+    public String sendData(FeedData feedData) {
+      int count = inFlight.incrementAndGet();
+      synchronized (maxInFlight) {
+        if (count > maxInFlight.get()) {
+          maxInFlight.set(count);
+        }
+      }
+      arrived.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        // Stop waiting.
+      } finally {
+        inFlight.decrementAndGet();
+      }
+      sent.incrementAndGet();
+      return super.sendData(feedData);
+    }
+  }
+
+  private Document getTestDocument(String docid) {
+    return ConnectorTestUtils.createSimpleDocument(docid);
+  }
+
+  /** Each DocPusher submits one feed, then each is flushed. */
+  private List<DocPusher> takeOneEach(int pushers, FeedConnection connection,
+      FeedSender sender) throws Exception {
+    List<DocPusher> list = new ArrayList<DocPusher>();
+    for (int i = 0; i < pushers; i++) {
+      DocPusher dpusher =
+          new DocPusher(connection, "connector" + i, fsli, dfc, sender);
+      dpusher.take(getTestDocument("doc" + i));
+      list.add(dpusher);
+    }
+    return list;
+  }
+
+  private void flushAll(List<DocPusher> list) throws Exception {
+    for (DocPusher dpusher : list) {
+      dpusher.flush();
+    }
+  }
+
+  /** Tests that N feeds from N connectors are in flight at once. */
+  public void testConcurrentFeeds() throws Exception {
+    final int senders = 4;
+    FeedSender sender = new FeedSender(senders, 100);
+    GatedFeedConnection connection = new GatedFeedConnection(senders);
+    try {
+      List<DocPusher> pushers = takeOneEach(senders, connection, sender);
+      assertTrue("Feeds were not sent concurrently",
+                 connection.arrived.await(10, TimeUnit.SECONDS));
+      assertEquals(senders, connection.inFlight.get());
+      assertEquals(senders, sender.getOutstandingFeeds());
+      connection.release.countDown();
+      flushAll(pushers);
+      assertEquals(senders, connection.maxInFlight.get());
+      assertEquals(senders, connection.sent.get());
+      assertEquals(0, sender.getOutstandingFeeds());
+    } finally {
+      connection.release.countDown();
+      sender.stop(true);
+    }
+  }
+
+  /** Tests that no more than senderThreads feeds are in flight at once. */
+  public void testSenderThreadsLimit() throws Exception {
+    FeedSender sender = new FeedSender(2, 100);
+    GatedFeedConnection connection = new GatedFeedConnection(2);
+    try {
+      List<DocPusher> pushers = takeOneEach(6, connection, sender);
+      assertTrue(connection.arrived.await(10, TimeUnit.SECONDS));
+      assertEquals(6, sender.getOutstandingFeeds());
+      connection.release.countDown();
+      flushAll(pushers);
+      assertEquals(2, connection.maxInFlight.get());
+      assertEquals(6, connection.sent.get());
+    } finally {
+      connection.release.countDown();
+      sender.stop(true);
+    }
+  }
+
+  /**
+   * Tests that the backlog limit is global: a connector with no
+   * outstanding feeds of its own is told to stop if other connectors
+   * have backed up the shared FeedSender.
+   */
+  public void testGlobalFeedBacklog() throws Exception {
+    FeedSender sender = new FeedSender(1, 2);
+    GatedFeedConnection connection = new GatedFeedConnection(1);
+    try {
+      List<DocPusher> pushers = takeOneEach(3, connection, sender);
+      assertTrue(connection.arrived.await(10, TimeUnit.SECONDS));
+      assertTrue(sender.isBacklogged());
+
+      DocPusher idle =
+          new DocPusher(connection, "idle", fsli, dfc, sender);
+      assertEquals(PusherStatus.LOCAL_FEED_BACKLOG, idle.getPusherStatus());
+
+      connection.release.countDown();
+      flushAll(pushers);
+      assertFalse(sender.isBacklogged());
+      assertEquals(PusherStatus.OK, idle.getPusherStatus());
+      idle.flush();
+      assertEquals(PusherStatus.DISABLED, idle.getPusherStatus());
+    } finally {
+      connection.release.countDown();
+      sender.stop(true);
+    }
+  }
+
+  /** Tests that canceling a DocPusher discards its outstanding feeds. */
+  public void testCancel() throws Exception {
+    FeedSender sender = new FeedSender(1, 100);
+    GatedFeedConnection connection = new GatedFeedConnection(1);
+    try {
+      List<DocPusher> pushers = takeOneEach(3, connection, sender);
+      assertTrue(connection.arrived.await(10, TimeUnit.SECONDS));
+      DocPusher dpusher = pushers.get(2);
+      dpusher.cancel();
+      assertEquals(PusherStatus.DISABLED, dpusher.getPusherStatus());
+      assertEquals(2, sender.getOutstandingFeeds());
+      connection.release.countDown();
+      pushers.get(0).flush();
+      pushers.get(1).flush();
+      dpusher.flush();
+      assertEquals(2, connection.sent.get());
+      assertEquals(0, sender.getOutstandingFeeds());
+    } finally {
+      connection.release.countDown();
+      sender.stop(true);
+    }
+  }
+
+  /** Tests that a FeedSender rejects feeds after shutdown. */
+  public void testShutdown() throws Exception {
+    FeedSender sender = new FeedSender();
+    assertTrue(sender.isRunning());
+    Future<String> future = sender.submit(new Callable<String>() {
+        public String call() {
+          return GsaFeedConnection.SUCCESS_RESPONSE;
+        }
+      });
+    assertEquals(GsaFeedConnection.SUCCESS_RESPONSE, future.get());
+    sender.stop(false);
+    assertFalse(sender.isRunning());
+    try {
+      sender.submit(new Callable<String>() {
+          public String call() {
+            return GsaFeedConnection.SUCCESS_RESPONSE;
+          }
+        });
+      fail("Expected RejectedExecutionException");
+    } catch (RejectedExecutionException expected) {
+    }
+    assertEquals(0, sender.getOutstandingFeeds());
+  }
+
+  /** Tests that a FeedSender accepts feeds again after a restart. */
+  public void testRestart() throws Exception {
+    FeedSender sender = new FeedSender();
+    sender.start();
+    sender.stop(false);
+    assertFalse(sender.isRunning());
+    sender.start();
+    assertTrue(sender.isRunning());
+    try {
+      Future<String> future = sender.submit(new Callable<String>() {
+          public String call() {
+            return GsaFeedConnection.SUCCESS_RESPONSE;
+          }
+        });
+      assertEquals(GsaFeedConnection.SUCCESS_RESPONSE, future.get());
+    } finally {
+      sender.stop(true);
+    }
+  }
+
+  /** A DocPusherFactory stops the FeedSender that it created. */
+  public void testFactoryStopsOwnFeedSender() {
+    DocPusherFactory factory =
+        new DocPusherFactory(new MockFeedConnection());
+    factory.start();
+    assertTrue(factory.isRunning());
+    factory.stop(false);
+    assertFalse(factory.isRunning());
+  }
+
+  /** A DocPusherFactory does not stop a FeedSender that it was given. */
+  public void testFactoryLeavesSharedFeedSender() {
+    FeedSender sender = new FeedSender();
+    try {
+      DocPusherFactory factory = new DocPusherFactory(
+          new MockFeedConnection(), fsli,
+          new DocumentFilterFactoryFactoryImpl(null, null), sender);
+      factory.stop(false);
+      assertTrue(sender.isRunning());
+    } finally {
+      sender.stop(true);
+    }
+  }
+}
@@ -16,6 +16,8 @@ package com.google.enterprise.connector.pusher;
 
 import static com.google.common.base.Charsets.UTF_8;
 
+import com.google.enterprise.connector.spi.SpiConstants.FeedType;
+import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
@@ -26,7 +28,12 @@ import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 /** Tests for {@link GsaFeedConnection} URLs. */
 public class GsaFeedConnectionTest extends TestCase {
@@ -34,16 +41,21 @@ public class GsaFeedConnectionTest extends TestCase {
   private DtdHandler handler;
   private GsaFeedConnection feedConnection;
 
+  private FeedHandler feedHandler;
+
   public void setUp() throws IOException {
     handler = new DtdHandler();
+    feedHandler = new FeedHandler();
     server = HttpServer.create(new InetSocketAddress(0), 0);
     server.createContext("/", handler);
+    server.createContext("/xmlfeed", feedHandler);
     server.start();
     int port = server.getAddress().getPort();
     feedConnection = new GsaFeedConnection("http", "localhost", port, -1);
   }
 
   public void tearDown() {
+    feedHandler.release.countDown();
     server.stop(0);
   }
 
@@ -64,6 +76,167 @@ public class GsaFeedConnectionTest extends TestCase {
     }
   }
 
+  /** A response that makes the FeedHandler drop the connection. */
+  private static final String DROP = "drop connection";
+
+  /**
+   * A stub GSA feedergate.  Responds to each feed with the next of the
+   * queued responses, and records the client port of every request.
+   */
+  static class FeedHandler implements HttpHandler {
+    private final LinkedList<String> responses = new LinkedList<String>();
+    final List<Integer> clientPorts = new ArrayList<Integer>();
+    volatile CountDownLatch release = new CountDownLatch(0);
+
+    synchronized void addResponses(String... responses) {
+      for (String response : responses) {
+        this.responses.add(response);
+      }
+    }
+
+    synchronized int getRequestCount() {
+      return clientPorts.size();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      String response;
+      synchronized (this) {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        response = responses.isEmpty()
+            ? GsaFeedConnection.SUCCESS_RESPONSE : responses.remove();
+      }
+      InputStream in = exchange.getRequestBody();
+      if (DROP.equals(response)) {
+        // Read only part of the upload, then hang up without responding.
+        in.read(new byte[16]);
+        exchange.close();
+        return;
+      }
+      byte[] buffer = new byte[4096];
+      while (in.read(buffer) != -1) {
+      }
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      byte[] body = response.getBytes(UTF_8);
+      exchange.sendResponseHeaders(200, body.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      exchange.close();
+    }
+  }
+
+  private XmlFeed newFeed() throws IOException {
+    FileSizeLimitInfo fsli = new FileSizeLimitInfo();
+    XmlFeed feed = new XmlFeed("test", FeedType.CONTENT, fsli, null,
+                               feedConnection);
+    feed.close();
+    return feed;
+  }
+
+  /** Tests that an Internal Error response is retried. */
+  public void testRetryInternalError() throws Exception {
+    feedConnection.setRetryPolicy(new FeedRetryPolicy(3, 1L, 2L));
+    feedHandler.addResponses(GsaFeedConnection.INTERNAL_ERROR_RESPONSE,
+        GsaFeedConnection.INTERNAL_ERROR_RESPONSE);
+    assertEquals(GsaFeedConnection.SUCCESS_RESPONSE,
+                 feedConnection.sendData(newFeed()));
+    assertEquals(3, feedHandler.getRequestCount());
+  }
+
+  /** Tests that the last response is returned when the retries run out. */
+  public void testRetriesExhausted() throws Exception {
+    feedConnection.setRetryPolicy(new FeedRetryPolicy(1, 1L, 2L));
+    feedHandler.addResponses(GsaFeedConnection.INTERNAL_ERROR_RESPONSE,
+        GsaFeedConnection.INTERNAL_ERROR_RESPONSE);
+    assertEquals(GsaFeedConnection.INTERNAL_ERROR_RESPONSE,
+                 feedConnection.sendData(newFeed()));
+    assertEquals(2, feedHandler.getRequestCount());
+  }
+
+  /** Tests that other error responses are not retried. */
+  public void testNoRetryOtherError() throws Exception {
+    feedConnection.setRetryPolicy(new FeedRetryPolicy(3, 1L, 2L));
+    feedHandler.addResponses(GsaFeedConnection.UNAUTHORIZED_RESPONSE);
+    assertEquals(GsaFeedConnection.UNAUTHORIZED_RESPONSE,
+                 feedConnection.sendData(newFeed()));
+    assertEquals(1, feedHandler.getRequestCount());
+  }
+
+  /** Tests that NO_RETRIES does not retry. */
+  public void testNoRetries() throws Exception {
+    feedConnection.setRetryPolicy(FeedRetryPolicy.NO_RETRIES);
+    feedHandler.addResponses(GsaFeedConnection.INTERNAL_ERROR_RESPONSE);
+    assertEquals(GsaFeedConnection.INTERNAL_ERROR_RESPONSE,
+                 feedConnection.sendData(newFeed()));
+    assertEquals(1, feedHandler.getRequestCount());
+  }
+
+  /** Tests that a connection dropped during the upload is retried. */
+  public void testRetryDroppedConnection() throws Exception {
+    feedConnection.setRetryPolicy(new FeedRetryPolicy(3, 1L, 2L));
+    feedHandler.addResponses(DROP);
+    assertEquals(GsaFeedConnection.SUCCESS_RESPONSE,
+                 feedConnection.sendData(newFeed()));
+    assertEquals(2, feedHandler.getRequestCount());
+  }
+
+  /** Tests that a dropped connection throws when not retried. */
+  public void testDroppedConnectionNoRetries() throws Exception {
+    feedConnection.setRetryPolicy(FeedRetryPolicy.NO_RETRIES);
+    feedHandler.addResponses(DROP);
+    try {
+      feedConnection.sendData(newFeed());
+      fail("Expected FeedException");
+    } catch (FeedException expected) {
+      assertTrue(expected.getCause() instanceof IOException);
+    }
+    assertEquals(1, feedHandler.getRequestCount());
+  }
+
+  /** Tests that successive feeds reuse the same connection. */
+  public void testConnectionReuse() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      assertEquals(GsaFeedConnection.SUCCESS_RESPONSE,
+                   feedConnection.sendData(newFeed()));
+    }
+    assertEquals(3, feedHandler.getRequestCount());
+    int port = feedHandler.clientPorts.get(0);
+    for (int clientPort : feedHandler.clientPorts) {
+      assertEquals(port, clientPort);
+    }
+  }
+
+  /** Tests that a GSA that never responds causes a timeout. */
+  public void testReadTimeout() throws Exception {
+    feedConnection.setRetryPolicy(FeedRetryPolicy.NO_RETRIES);
+    feedConnection.setReadTimeout(1);
+    feedHandler.release = new CountDownLatch(1);
+    try {
+      feedConnection.sendData(newFeed());
+      fail("Expected FeedException");
+    } catch (FeedException expected) {
+      assertTrue(expected.getCause() instanceof IOException);
+    }
+  }
+
+  public void testFeedRetryPolicyDelays() {
+    FeedRetryPolicy policy = new FeedRetryPolicy(5, 100L, 1000L);
+    assertEquals(5, policy.getMaxRetries());
+    assertTrue(policy.isRetryable(GsaFeedConnection.INTERNAL_ERROR_RESPONSE));
+    assertFalse(policy.isRetryable(GsaFeedConnection.SUCCESS_RESPONSE));
+    long[] nominal = { 100L, 200L, 400L, 800L, 1000L, 1000L };
+    for (int retry = 1; retry <= nominal.length; retry++) {
+      long delay = policy.getDelayMillis(retry);
+      long max = nominal[retry - 1];
+      assertTrue("retry " + retry + ": " + delay,
+                 delay >= max / 2 && delay <= max);
+    }
+  }
+
   public void testSupportsInheritedAcls_true() throws IOException {
     handler.setContent("<!ELEMENT acl (principal*)>");
     assertEquals(true, feedConnection.supportsInheritedAcls());
@@ -0,0 +1,119 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for {@link Utf8Appender}.
+ */
+public class Utf8AppenderTest extends TestCase {
+  private ByteArrayOutputStream out;
+  private Utf8Appender appender;
+
+  @Override
+  protected void setUp() {
+    out = new ByteArrayOutputStream();
+    appender = new Utf8Appender(out);
+  }
+
+  /** Checks that the appended string is encoded like String.getBytes. */
+  private void checkEncoding(String expected) throws Exception {
+    appender.flush();
+    byte[] expectedBytes = expected.getBytes(Charsets.UTF_8);
+    assertTrue(expected, Arrays.equals(expectedBytes, out.toByteArray()));
+  }
+
+  public void testAscii() throws Exception {
+    appender.append("hello, ").append("world", 1, 4).append('!');
+    checkEncoding("hello, orl!");
+  }
+
+  public void testNull() throws Exception {
+    appender.append(null).append(null, 1, 3);
+    checkEncoding("nullul");
+  }
+
+  public void testMultiByte() throws Exception {
+    String value = "caf\u00e9 \u20ac \u4e2d\u6587 \ud834\udd1e \uffff";
+    appender.append(value);
+    checkEncoding(value);
+  }
+
+  public void testSplitSurrogatePair() throws Exception {
+    appender.append('\ud834').append('\udd1e');
+    checkEncoding("\ud834\udd1e");
+  }
+
+  public void testUnpairedSurrogates() throws Exception {
+    String value = "a\ud800b\udc00c\udc00\ud800\ud800\udc00\ud800";
+    appender.append(value);
+    checkEncoding(value);
+  }
+
+  public void testRandomStrings() throws Exception {
+    Random random = new Random(1234);
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      // Bias towards surrogates and other multi-byte characters.
+      switch (random.nextInt(4)) {
+        case 0:
+          builder.append((char) random.nextInt(0x80));
+          break;
+        case 1:
+          builder.append((char) (0xD800 + random.nextInt(0x800)));
+          break;
+        default:
+          builder.append((char) random.nextInt(0x10000));
+          break;
+      }
+    }
+    String value = builder.toString();
+    // Append in uneven pieces, to cross the buffer boundaries.
+    int start = 0;
+    while (start < value.length()) {
+      int end = Math.min(value.length(), start + random.nextInt(5000));
+      appender.append(value, start, end);
+      start = end;
+    }
+    checkEncoding(value);
+  }
+
+  public void testLog() throws Exception {
+    StringBuilder log = new StringBuilder();
+    appender.append("before ");
+    appender.setLog(log);
+    appender.append("logged").append(' ').append("text", 0, 2);
+    appender.setLog(null);
+    appender.append(" after");
+    checkEncoding("before logged te after");
+    assertEquals("logged te", log.toString());
+  }
+
+  public void testDiscard() throws Exception {
+    appender.append("kept");
+    appender.flush();
+    appender.append("discarded\ud800");
+    appender.discard();
+    appender.append(" again");
+    checkEncoding("kept again");
+  }
+}
@@ -0,0 +1,244 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.enterprise.connector.jcr.JcrTraversalManager;
+import com.google.enterprise.connector.manager.Context;
+import com.google.enterprise.connector.mock.MockRepository;
+import com.google.enterprise.connector.mock.MockRepositoryEventList;
+import com.google.enterprise.connector.mock.jcr.MockJcrQueryManager;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.DocumentList;
+import com.google.enterprise.connector.spi.Principal;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.SimpleDocument;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.SpiConstants.FeedType;
+import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
+import com.google.enterprise.connector.util.UniqueIdGenerator;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.jcr.query.QueryManager;
+
+/**
+ * Golden-file tests for {@link XmlFeed}.  The feeds built from the
+ * mock repository event logs, and from documents with awkward characters,
+ * must match the reference feeds and feed logs in {@code testdata/feeds}
+ * byte for byte.
+ */
+public class XmlFeedTest extends TestCase {
+  private static final String GOLDEN_DIR = "testdata/feeds/";
+
+  /** The mock repositories fed through the XmlFeed. */
+  private static final String[] REPOSITORIES = {
+      "MockRepositoryEventLog1.txt",
+      "MockRepositoryEventLog2.txt",
+      "MockRepositoryEventLog3.txt",
+      "MockRepositoryEventLog4.txt",
+      "MockRepositoryEventLog5.txt",
+      "MockRepositoryEventLog5null.txt",
+      "MockRepositoryEventLog5smb.txt",
+      "MockRepositoryEventLog6.txt",
+      "MockRepositoryEventLog7.txt",
+      "MockRepositoryEventLog8.txt",
+      "MockRepositoryEventLog9.txt",
+      "MockRepositoryEventLogAcl.txt",
+      "MockRepositoryEventLogBinaryFile.txt" };
+
+  /** Awkward characters: markup, controls, non-ASCII, and surrogates. */
+  private static final String AWKWARD = "<a href=\"x\">Tom & Jerry's</a>"
+      + "\t\r\n\u0000\u0008\u001f caf\u00e9 \u20ac \u4e2d\u6587 "
+      + "\ud834\udd1e clef \ud800 lone high \udc00 lone low \ufffe\uffff";
+
+  private FileSizeLimitInfo fsli;
+
+  @Override
+  protected void setUp() throws Exception {
+    fsli = new FileSizeLimitInfo();
+    fsli.setMaxFeedSize(1024 * 1024);
+    fsli.setMaxDocumentSize(1024 * 1024);
+    Context.getInstance().setContentUrlPrefix("http://contentUrlPrefix");
+    Value.setFeedTimeZone("GMT");
+    XmlFeed.setUniqueIdGenerator(new MockIdGenerator());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Value.setFeedTimeZone("");
+  }
+
+  public void testContentFeed() throws Exception {
+    checkCorpus(FeedType.CONTENT, false);
+  }
+
+  public void testCompressedContentFeed() throws Exception {
+    checkCorpus(FeedType.CONTENT, true);
+  }
+
+  public void testContentUrlFeed() throws Exception {
+    checkCorpus(FeedType.CONTENTURL, false);
+  }
+
+  public void testAwkwardCharacters() throws Exception {
+    List<Document> documents = new ArrayList<Document>();
+    documents.add(getAwkwardDocument("awkward1"));
+    documents.add(getSortedAwkwardDocument("awkward2"));
+    checkGolden("awkwardContent", FeedType.CONTENT, false, documents);
+
+    documents.clear();
+    documents.add(getAwkwardDocument("awkward1"));
+    documents.add(getSortedAwkwardDocument("awkward2"));
+    checkGolden("awkwardContentUrl", FeedType.CONTENTURL, false, documents);
+  }
+
+  public void testIsSorted() {
+    assertTrue(XmlFeed.isSorted(new TreeSet<String>(Arrays.asList("b", "a"))));
+    assertTrue(XmlFeed.isSorted(
+        new LinkedHashSet<String>(Arrays.asList("A", "a", "b"))));
+    assertFalse(XmlFeed.isSorted(
+        new LinkedHashSet<String>(Arrays.asList("a", "b", "A"))));
+    assertTrue(XmlFeed.isSorted(new HashSet<String>()));
+  }
+
+  /** Returns a document with awkward characters throughout. */
+  private static Document getAwkwardDocument(String docid) {
+    return ConnectorTestUtils.createSimpleDocument(getAwkwardProperties(docid));
+  }
+
+  /**
+   * Returns a document with awkward characters throughout, whose
+   * property names are returned in sorted order.
+   */
+  private static Document getSortedAwkwardDocument(String docid) {
+    return new SimpleDocument(new TreeMap<String, List<Value>>(
+        ConnectorTestUtils.createSpiProperties(
+            getAwkwardProperties(docid))));
+  }
+
+  private static Map<String, Object> getAwkwardProperties(String docid) {
+    Map<String, Object> props =
+        ConnectorTestUtils.createSimpleDocumentBasicProperties(docid);
+    props.put(SpiConstants.PROPNAME_CONTENT, AWKWARD);
+    props.put(SpiConstants.PROPNAME_TITLE, AWKWARD);
+    props.put(SpiConstants.PROPNAME_DISPLAYURL,
+        "http://example.com/" + docid + "?q=" + AWKWARD);
+    props.put(SpiConstants.PROPNAME_ACLUSERS, new Principal(AWKWARD));
+    props.put("zebra", AWKWARD);
+    props.put("apple", Arrays.asList("one", AWKWARD, ""));
+    props.put("\u00e9t\u00e9 & <more>", Boolean.TRUE);
+    props.put("Middle", Long.valueOf(42));
+    return props;
+  }
+
+  /**
+   * Feeds all the documents in the mock repositories to a single feed,
+   * and checks the resulting feed against the golden files.
+   */
+  private void checkCorpus(FeedType feedType, boolean useCompression)
+      throws Exception {
+    List<Document> documents = new ArrayList<Document>();
+    for (String repository : REPOSITORIES) {
+      MockRepositoryEventList mrel = new MockRepositoryEventList(repository);
+      MockRepository r = new MockRepository(mrel);
+      QueryManager qm = new MockJcrQueryManager(r.getStore());
+      DocumentList documentList =
+          new JcrTraversalManager(qm).startTraversal();
+      Document document;
+      while ((document = documentList.nextDocument()) != null) {
+        documents.add(document);
+      }
+    }
+    String name = "corpus-" + feedType.toLegacyString()
+        + (useCompression ? "-compressed" : "");
+    checkGolden(name, feedType, useCompression, documents);
+  }
+
+  /**
+   * Builds a feed from the documents, and compares the feed and
+   * the feed log with the golden files {@code name.xml} and
+   * {@code name.log}.
+   */
+  private void checkGolden(String name, FeedType feedType,
+      final boolean useCompression, List<Document> documents)
+      throws Exception {
+    MockFeedConnection feedConnection = new MockFeedConnection() {
+      @Override
+      public String getContentEncodings() {
+        if (useCompression) {
+          return super.getContentEncodings() + ", base64compressed";
+        } else {
+          return super.getContentEncodings();
+        }
+      }
+    };
+    StringBuilder feedLog = new StringBuilder();
+    XmlFeed feed = new XmlFeed("junit", feedType, fsli, feedLog,
+                               feedConnection);
+    try {
+      for (Document document : documents) {
+        int resetPoint = feed.size();
+        int resetCount = feed.getRecordCount();
+        try {
+          feed.addRecord(document);
+        } catch (RepositoryDocumentException e) {
+          // Skipped documents are removed from the feed, as DocPusher does.
+          feed.reset(resetPoint);
+          feed.setRecordCount(resetCount);
+          feedLog.append("skipped: ").append(e.getMessage()).append('\n');
+        }
+      }
+      feed.close();
+
+      byte[] expectedXml = Files.toByteArray(new File(GOLDEN_DIR + name
+                                                      + ".xml"));
+      byte[] actualXml = feed.toByteArray();
+      assertEquals(name, new String(expectedXml, Charsets.UTF_8),
+                   new String(actualXml, Charsets.UTF_8));
+      assertTrue(name, Arrays.equals(expectedXml, actualXml));
+
+      // Compare the encoded logs, since lone surrogates can't be decoded.
+      byte[] expectedLog = Files.toByteArray(new File(GOLDEN_DIR + name
+                                                      + ".log"));
+      byte[] actualLog = feedLog.toString().getBytes(Charsets.UTF_8);
+      assertEquals(name, new String(expectedLog, Charsets.UTF_8),
+                   new String(actualLog, Charsets.UTF_8));
+      assertTrue(name, Arrays.equals(expectedLog, actualLog));
+    } finally {
+      feed.release();
+    }
+  }
+
+  private static class MockIdGenerator implements UniqueIdGenerator {
+    // Return a predictable non-unique ID to ease expected output comparisons.
+    public String uniqueId() {
+      return "test";
+    }
+  }
+}
@@ -15,6 +15,7 @@
 package com.google.enterprise.connector.servlet;
 
 import com.google.enterprise.connector.common.StringUtils;
+import com.google.enterprise.connector.manager.AuthorizationEngine;
 import com.google.enterprise.connector.manager.MockManager;
 
 import junit.framework.TestCase;
@@ -79,6 +80,19 @@ public class AuthorizationTest extends TestCase {
           + "  <Identity source=\"gsa\">username</Identity>\n"
           + "</ConnectorQuery>\n" + "</AuthorizationQuery>";
 
+  private AuthorizationEngine engine;
+
+  @Override
+  protected void setUp() throws Exception {
+    engine = new AuthorizationEngine();
+    engine.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    engine.stop(true);
+  }
+
   /** Test invalid (empty) XML request. */
   public void testInvalidRequest() throws Exception {
     String expectedResult = "<CmResponse>\n" + "  <StatusId>"
@@ -557,7 +571,7 @@ public class AuthorizationTest extends TestCase {
     PrintWriter out = new PrintWriter(writer);
     AuthorizationHandler authorizationHandler =
         AuthorizationHandler.makeAuthorizationHandlerForTest(xmlBody, manager,
-            out);
+            engine, out);
     authorizationHandler.handleDoPost();
     out.flush();
     String result = writer.toString();
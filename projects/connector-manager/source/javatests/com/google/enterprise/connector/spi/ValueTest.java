@@ -28,15 +28,27 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.Random;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 
 /**
  * Unit tests for the {@link Value} class.
  */
 public class ValueTest extends TestCase {
+  private static final Logger LOGGER =
+      Logger.getLogger(ValueTest.class.getName());
+
   @Override
   public void setUp() {
     // RFC 822 is English-only, and ISO 8601 isn't locale-sensitive,
@@ -231,6 +243,110 @@ public class ValueTest extends TestCase {
     assertEquals(expected.iso8601Date, s);
   }
 
+  private static final int THREADS = 8;
+
+  /**
+   * Formats and parses random dates on several threads at once, and
+   * checks the results against formats owned by each thread.
+   */
+  public void testConcurrentFormatting() throws Exception {
+    Value.setFeedTimeZone("GMT-0800");
+    final TimeZone timeZone = TimeZone.getTimeZone("GMT-0800");
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int t = 0; t < THREADS; t++) {
+      final long seed = t;
+      tasks.add(new Callable<Void>() {
+          public Void call() throws Exception {
+            SimpleDateFormat iso8601 =
+                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+            iso8601.setTimeZone(timeZone);
+            SimpleDateFormat rfc822 = new SimpleDateFormat(
+                "EEE', 'dd' 'MMM' 'yyyy' 'HH:mm:ss Z", Locale.ENGLISH);
+            rfc822.setTimeZone(timeZone);
+            SimpleDateFormat feedXml = new SimpleDateFormat("yyyy-MM-dd");
+            feedXml.setTimeZone(timeZone);
+
+            Random random = new Random(seed);
+            Calendar calendar = Calendar.getInstance();
+            for (int i = 0; i < 20000; i++) {
+              Date date = new Date(random.nextLong() % (1L << 42));
+              calendar.setTime(date);
+              String expected = iso8601.format(date);
+              assertEquals(expected, Value.calendarToIso8601(calendar));
+              assertEquals(date, Value.iso8601ToCalendar(expected).getTime());
+              assertEquals(rfc822.format(date),
+                           Value.calendarToRfc822(calendar));
+              assertEquals(feedXml.format(date),
+                           Value.calendarToFeedXml(calendar));
+            }
+            return null;
+          }
+        });
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Compares the throughput of the date formatting with that of a single
+   * shared format guarded by a lock, as it was formerly implemented.
+   * The timings are informational only.
+   */
+  public void testFormattingThroughput() throws Exception {
+    Value.setFeedTimeZone("GMT");
+    final int iterations = 20000;
+    final SimpleDateFormat shared =
+        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    shared.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+    long locked = timeThreads(new Runnable() {
+        public void run() {
+          Calendar calendar = Calendar.getInstance();
+          for (int i = 0; i < iterations; i++) {
+            calendar.setTimeInMillis(i * 1000003L);
+            synchronized (shared) {
+              shared.format(calendar.getTime()).replaceFirst("\\+0000$", "Z");
+            }
+          }
+        }
+      });
+    long lockFree = timeThreads(new Runnable() {
+        public void run() {
+          Calendar calendar = Calendar.getInstance();
+          for (int i = 0; i < iterations; i++) {
+            calendar.setTimeInMillis(i * 1000003L);
+            Value.calendarToIso8601(calendar);
+          }
+        }
+      });
+    LOGGER.info("Formatted " + (THREADS * iterations)
+        + " dates on " + THREADS + " threads: shared lock = "
+        + (locked / 1000000L) + " ms, per-thread formats = "
+        + (lockFree / 1000000L) + " ms");
+  }
+
+  /** Runs the task on several threads, returning the elapsed nanos. */
+  private static long timeThreads(Runnable task) throws Exception {
+    Thread[] threads = new Thread[THREADS];
+    for (int t = 0; t < THREADS; t++) {
+      threads[t] = new Thread(task);
+    }
+    long start = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return System.nanoTime() - start;
+  }
+
   private static final String TEST_DIR = "testdata/contextTests/value/";
 
   /** Tests the default Spring configuration. */
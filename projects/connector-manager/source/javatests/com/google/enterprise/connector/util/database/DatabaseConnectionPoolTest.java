@@ -19,16 +19,28 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
 import org.h2.jdbcx.JdbcDataSource;
 
 import junit.framework.TestCase;
 
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.sql.DataSource;
 
 public class DatabaseConnectionPoolTest extends TestCase {  
+  private static final long VALIDATION_IDLE_MILLIS = 60 * 1000L;
+  private static final long MAX_LIFETIME_MILLIS = 60 * 60 * 1000L;
 
   public void testConstructor() {
     DataSource ds = createMock(DataSource.class);
@@ -59,8 +71,9 @@ public class DatabaseConnectionPoolTest extends TestCase {
     Connection c4 = createMock(Connection.class);
     expect(ds.getConnection()).andReturn(c1).andReturn(c2).andReturn(c3)
         .andReturn(c4);
-    expect(c2.isValid(1)).andReturn(true);
-    expect(c3.isValid(1)).andReturn(true);
+    // Recently released connections are not validated on checkout.
+    expect(c2.isClosed()).andReturn(false);
+    expect(c3.isClosed()).andReturn(false);
     replay(ds, c1, c2, c3, c4);
 
     DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
@@ -107,12 +120,15 @@ public class DatabaseConnectionPoolTest extends TestCase {
     Connection alive = createMock(Connection.class);
     Connection deadAfterSomeTime = createMock(Connection.class);    
     expect(ds.getConnection()).andReturn(alive).andReturn(deadAfterSomeTime);    
+    expect(alive.isClosed()).andReturn(false);
     expect(alive.isValid(1)).andReturn(true);
+    expect(deadAfterSomeTime.isClosed()).andReturn(false);
     expect(deadAfterSomeTime.isValid(1)).andReturn(false);
     deadAfterSomeTime.close();
     replay(ds, alive, deadAfterSomeTime);
     
-    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    AdjustableClock clock = new AdjustableClock();
+    DatabaseConnectionPool pool = newPool(ds, 2, clock);
     assertEquals(alive, pool.getConnection());
     assertEquals(deadAfterSomeTime, pool.getConnection());
    
@@ -120,11 +136,134 @@ public class DatabaseConnectionPoolTest extends TestCase {
     // release dead connection to connection pool.
     pool.releaseConnection(deadAfterSomeTime);    
     
+    // Idle connections are validated on checkout.
+    clock.adjustTime(VALIDATION_IDLE_MILLIS);
+
     // Pool should return alive connection and close dead connection.
     assertEquals(alive, pool.getConnection());
+    assertEquals(1, pool.getValidationFailureCount());
     verify(ds, alive, deadAfterSomeTime);
   }
 
+  public void testClosedConnection() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection closed = createMock(Connection.class);
+    Connection c2 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(closed).andReturn(c2);
+    expect(closed.isClosed()).andReturn(true);
+    replay(ds, closed, c2);
+
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    assertEquals(closed, pool.getConnection());
+    pool.releaseConnection(closed);
+
+    // A connection closed while checked out is discarded, not reused.
+    assertEquals(c2, pool.getConnection());
+    assertEquals(1, pool.getClosedCount());
+    verify(ds, closed, c2);
+  }
+
+  public void testCheckoutTimeout() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1);
+    expect(c1.isClosed()).andReturn(false);
+    replay(ds, c1);
+
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds, 1, 10L,
+        VALIDATION_IDLE_MILLIS, MAX_LIFETIME_MILLIS);
+    assertEquals(c1, pool.getConnection());
+    try {
+      pool.getConnection();
+      fail("Expected SQLTransientConnectionException");
+    } catch (SQLTransientConnectionException expected) {
+    }
+    assertEquals(1, pool.getCheckoutTimeoutCount());
+    assertEquals(1, pool.getActiveConnections());
+
+    // The released connection is available again.
+    pool.releaseConnection(c1);
+    assertEquals(c1, pool.getConnection());
+    assertEquals(2, pool.getCheckoutCount());
+    verify(ds, c1);
+  }
+
+  public void testFailedCheckoutReleasesPermit() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    expect(ds.getConnection()).andThrow(new SQLException("no database"))
+        .andReturn(c1);
+    replay(ds, c1);
+
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds, 1, 10L,
+        VALIDATION_IDLE_MILLIS, MAX_LIFETIME_MILLIS);
+    try {
+      pool.getConnection();
+      fail("Expected SQLException");
+    } catch (SQLException expected) {
+      assertEquals("no database", expected.getMessage());
+    }
+    assertEquals(c1, pool.getConnection());
+    verify(ds, c1);
+  }
+
+  public void testMaxLifetime() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection old = createMock(Connection.class);
+    Connection young = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(old).andReturn(young);
+    old.close();
+    replay(ds, old, young);
+
+    AdjustableClock clock = new AdjustableClock();
+    DatabaseConnectionPool pool = newPool(ds, 2, clock);
+    assertEquals(old, pool.getConnection());
+    clock.adjustTime(MAX_LIFETIME_MILLIS);
+
+    // An expired connection is closed rather than returned to the pool.
+    pool.releaseConnection(old);
+    assertEquals(0, pool.getIdleConnections());
+    assertEquals(1, pool.getClosedCount());
+    assertEquals(young, pool.getConnection());
+    verify(ds, old, young);
+  }
+
+  public void testValidateIdleConnections() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection alive = createMock(Connection.class);
+    Connection dead = createMock(Connection.class);
+    Connection busy = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(alive).andReturn(dead)
+        .andReturn(busy);
+    expect(alive.isValid(1)).andReturn(true);
+    expect(dead.isValid(1)).andReturn(false);
+    dead.close();
+    replay(ds, alive, dead, busy);
+
+    AdjustableClock clock = new AdjustableClock();
+    DatabaseConnectionPool pool = newPool(ds, 3, clock);
+    pool.getConnection();
+    pool.getConnection();
+    pool.getConnection();
+    pool.releaseConnection(alive);
+    pool.releaseConnection(dead);
+
+    // Recently used connections are not validated.
+    pool.validateIdleConnections();
+    assertEquals(2, pool.getIdleConnections());
+
+    // Idle connections are validated, but checked out ones are not.
+    clock.adjustTime(VALIDATION_IDLE_MILLIS);
+    pool.validateIdleConnections();
+    assertEquals(1, pool.getIdleConnections());
+    assertEquals(1, pool.getActiveConnections());
+    assertEquals(1, pool.getValidationFailureCount());
+
+    // The surviving connection has been revalidated.
+    pool.validateIdleConnections();
+    verify(ds, alive, dead, busy);
+  }
+
   public void testConnectionPoolwithH2() throws SQLException {
     // Setup in-memory H2 JDBC DataSource;
     JdbcDataSource ds = new JdbcDataSource();
@@ -149,4 +288,131 @@ public class DatabaseConnectionPoolTest extends TestCase {
     pool.closeConnections();    
     assertTrue(newOne.isClosed());
   }
+
+  public void testBoundUnderConcurrentLoad() throws Exception {
+    final int threadCount = 100;
+    final int maxConnections = 5;
+    final int checkoutsPerThread = 10;
+    JdbcDataSource ds = new JdbcDataSource();
+    ds.setURL("jdbc:h2:mem:boundedpool;DB_CLOSE_DELAY=-1");
+    ds.setUser("sa");
+    ds.setPassword("sa");
+
+    final DatabaseConnectionPool pool = new DatabaseConnectionPool(ds,
+        maxConnections, 60 * 1000L, VALIDATION_IDLE_MILLIS,
+        MAX_LIFETIME_MILLIS);
+    final AtomicInteger holders = new AtomicInteger();
+    final AtomicInteger maxHolders = new AtomicInteger();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < threadCount; i++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < checkoutsPerThread; j++) {
+              Connection conn = pool.getConnection();
+              try {
+                int count = holders.incrementAndGet();
+                while (true) {
+                  int max = maxHolders.get();
+                  if (count <= max || maxHolders.compareAndSet(max, count)) {
+                    break;
+                  }
+                }
+                assertEquals(1, selectOne(conn));
+                holders.decrementAndGet();
+              } finally {
+                pool.releaseConnection(conn);
+              }
+            }
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join(60 * 1000L);
+    }
+
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    assertTrue(pool.toString(), maxHolders.get() <= maxConnections);
+    assertTrue(pool.toString(),
+        pool.getPeakActiveConnections() <= maxConnections);
+    assertTrue(pool.toString(), pool.getOpenedCount() <= maxConnections);
+    assertEquals(threadCount * checkoutsPerThread, pool.getCheckoutCount());
+    assertEquals(0, pool.getCheckoutTimeoutCount());
+    assertEquals(0, pool.getActiveConnections());
+    assertEquals(0, pool.getWaitingThreads());
+    pool.closeConnections();
+  }
+
+  public void testServerKilledConnectionIsEvicted() throws Exception {
+    JdbcDataSource ds = new JdbcDataSource();
+    ds.setURL("jdbc:h2:mem:killedpool");
+    ds.setUser("sa");
+    ds.setPassword("sa");
+
+    // Use a short validation time so that the background check runs.
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds, 2,
+        60 * 1000L, 100L, MAX_LIFETIME_MILLIS);
+    Connection victim = pool.getConnection();
+    Connection killer = pool.getConnection();
+    pool.releaseConnection(victim);
+
+    // Shut the database down from another session.
+    Statement stmt = killer.createStatement();
+    try {
+      stmt.execute("SHUTDOWN");
+    } finally {
+      stmt.close();
+    }
+    killer.close();
+    pool.releaseConnection(killer);
+    assertFalse(victim.isValid(1));
+
+    long deadline = System.currentTimeMillis() + 10 * 1000L;
+    while (pool.getIdleConnections() > 0
+           && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    assertEquals(pool.toString(), 0, pool.getIdleConnections());
+    assertTrue(pool.toString(), pool.getValidationFailureCount() >= 1);
+
+    // A fresh connection is opened in place of the dead one.
+    Connection conn = pool.getConnection();
+    assertNotSame(victim, conn);
+    assertEquals(1, selectOne(conn));
+    pool.releaseConnection(conn);
+    pool.closeConnections();
+  }
+
+  private static int selectOne(Connection conn) throws SQLException {
+    Statement stmt = conn.createStatement();
+    try {
+      ResultSet rs = stmt.executeQuery("SELECT 1 FROM DUAL");
+      try {
+        assertTrue(rs.next());
+        return rs.getInt(1);
+      } finally {
+        rs.close();
+      }
+    } finally {
+      stmt.close();
+    }
+  }
+
+  private static DatabaseConnectionPool newPool(DataSource ds,
+      int maxConnections, AdjustableClock clock) {
+    return new DatabaseConnectionPool(ds, maxConnections, 10L,
+        VALIDATION_IDLE_MILLIS, MAX_LIFETIME_MILLIS, clock);
+  }
 }
@@ -0,0 +1,177 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.database;
+
+import com.google.enterprise.connector.database.FakeDataSource;
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.h2.tools.Server;
+
+import junit.framework.TestCase;
+
+import java.net.ServerSocket;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link DatabaseHealthMonitor}, using an H2 server that is
+ * stopped and restarted while in use.
+ */
+public class DatabaseHealthMonitorTest extends TestCase {
+  private static final long PROBE_INTERVAL_MILLIS = 60 * 1000L;
+
+  private String port;
+  private Server server;
+  private JdbcDataSource dataSource;
+
+  /** Records the health changes reported to a listener. */
+  private static class RecordingListener
+      implements DatabaseHealthMonitor.Listener {
+    final BlockingQueue<Boolean> changes = new LinkedBlockingQueue<Boolean>();
+
+    @Override
+    public void healthChanged(DatabaseHealthMonitor monitor, boolean healthy) {
+      changes.add(healthy);
+    }
+
+    List<Boolean> getChanges() {
+      return new ArrayList<Boolean>(changes);
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    ServerSocket socket = new ServerSocket(0);
+    try {
+      port = Integer.toString(socket.getLocalPort());
+    } finally {
+      socket.close();
+    }
+    startServer();
+
+    dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:tcp://localhost:" + port
+                      + "/mem:healthmonitor;DB_CLOSE_DELAY=-1");
+    dataSource.setUser("sa");
+    dataSource.setPassword("sa");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop();
+  }
+
+  private void startServer() throws SQLException {
+    server = Server.createTcpServer("-tcpPort", port).start();
+  }
+
+  public void testStoppedAndRestartedServer() throws SQLException {
+    JdbcDatabase database = new JdbcDatabase(dataSource, PROBE_INTERVAL_MILLIS);
+    RecordingListener listener = new RecordingListener();
+    database.getHealthMonitor().addListener(listener);
+    try {
+      assertFalse(database.isDisabled());
+      assertEquals("h2", database.getProductName());
+
+      server.stop();
+      assertFalse(database.getHealthMonitor().probe());
+      assertTrue(database.isDisabled());
+
+      startServer();
+      assertTrue(database.getHealthMonitor().probe());
+      assertFalse(database.isDisabled());
+      assertEquals(2, listener.getChanges().size());
+      assertEquals(Boolean.FALSE, listener.getChanges().get(0));
+      assertEquals(Boolean.TRUE, listener.getChanges().get(1));
+
+      // The pool hands out working connections again.
+      Connection connection = database.getConnectionPool().getConnection();
+      try {
+        assertTrue(connection.isValid(1));
+      } finally {
+        database.getConnectionPool().releaseConnection(connection);
+      }
+    } finally {
+      database.shutdown();
+    }
+  }
+
+  public void testBackgroundProbes() throws Exception {
+    JdbcDatabase database = new JdbcDatabase(dataSource, 50L);
+    RecordingListener listener = new RecordingListener();
+    database.getHealthMonitor().addListener(listener);
+    try {
+      assertFalse(database.isDisabled());
+
+      server.stop();
+      assertEquals(Boolean.FALSE, listener.changes.poll(10, TimeUnit.SECONDS));
+      assertTrue(database.isDisabled());
+
+      startServer();
+      assertEquals(Boolean.TRUE, listener.changes.poll(10, TimeUnit.SECONDS));
+      assertFalse(database.isDisabled());
+    } finally {
+      database.shutdown();
+    }
+  }
+
+  public void testCachedState() {
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(dataSource);
+    AdjustableClock clock = new AdjustableClock();
+    DatabaseHealthMonitor monitor =
+        new DatabaseHealthMonitor(pool, PROBE_INTERVAL_MILLIS, clock);
+    assertEquals(0L, monitor.getLastProbeTime());
+
+    // The first check probes the database.
+    assertTrue(monitor.isHealthy());
+    assertEquals(1, pool.getCheckoutCount());
+    long probeTime = monitor.getLastProbeTime();
+    assertTrue(probeTime > 0L);
+
+    // Later checks use the cached state.
+    assertTrue(monitor.isHealthy());
+    assertTrue(monitor.isHealthy());
+    assertEquals(1, pool.getCheckoutCount());
+
+    // Once the cached state is stale, the database is probed again.
+    clock.adjustTime(2 * PROBE_INTERVAL_MILLIS);
+    assertTrue(monitor.isHealthy());
+    assertEquals(2, pool.getCheckoutCount());
+    assertTrue(monitor.getLastProbeTime() > probeTime);
+    pool.closeConnections();
+  }
+
+  public void testUnavailableDataSource() {
+    JdbcDatabase database = new JdbcDatabase(new FakeDataSource("Fake"));
+    RecordingListener listener = new RecordingListener();
+    database.getHealthMonitor().addListener(listener);
+    try {
+      assertTrue(database.isDisabled());
+      assertFalse(database.getHealthMonitor().probe());
+      assertEquals("Disabled Database", database.getDescription());
+
+      // There is no change to report.
+      assertTrue(listener.getChanges().isEmpty());
+    } finally {
+      database.shutdown();
+    }
+  }
+}
@@ -21,7 +21,15 @@ import junit.framework.TestCase;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests for DatabaseResourceBundleManager.
@@ -302,11 +310,127 @@ public class DatabaseResourceBundleManagerTest extends TestCase {
     assertSame(parent, bundle2.getParent());
   }
 
+  // Check that a bundle that does not exist is only looked for once.
+  public void testCacheNonExistentResourceBundle() throws Exception {
+    TestClassLoader countingLoader = new TestClassLoader();
+    String name = "NonExistentDatabasePropertyResourceBundle";
+    assertNull(mgr.getResourceBundle(name, "_dbname", countingLoader));
+    assertTrue(mgr.missing.contains(name + "_dbname"));
+    int probes = countingLoader.probes.get();
+    assertEquals(2, probes);
+
+    assertNull(mgr.getResourceBundle(name, "_dbname", countingLoader));
+    assertNull(mgr.getResourceBundle(name, null, countingLoader));
+    assertEquals(probes, countingLoader.probes.get());
+
+    // Only the new location is looked for.
+    assertNull(mgr.getResourceBundle(name, "_dbname_dbversion",
+                                     countingLoader));
+    assertEquals(probes + 1, countingLoader.probes.get());
+  }
+
+  // Check that a missing location in the middle of the hierarchy is
+  // only looked for once.
+  public void testCacheNonExistentLocation() throws Exception {
+    TestClassLoader countingLoader = new TestClassLoader();
+    String name = BASE_PATH + "BaseName";
+    DatabasePropertyResourceBundle bundle = mgr.getResourceBundle(name,
+        "_dbname_non_existent_version", countingLoader);
+    assertNotNull(bundle);
+    assertEquals("BaseName_dbname", bundle.getString("bundle.name"));
+    int probes = countingLoader.probes.get();
+    assertEquals(5, probes);
+
+    assertSame(bundle, mgr.getResourceBundle(name,
+        "_dbname_non_existent_version", countingLoader));
+    assertSame(bundle, mgr.getResourceBundle(name, "_dbname_non_existent",
+        countingLoader));
+    assertEquals(probes, countingLoader.probes.get());
+  }
+
+  /**
+   * Looks up the JdbcStore bundles for several database types from many
+   * threads at once, and checks that they resolve to the same bundles
+   * as a lookup from a single thread.
+   */
+  public void testConcurrentLookups() throws Exception {
+    final String name = "sql.connector-manager.JdbcStore";
+    final String[] extensions = { null, "_h2_1_3", "_mysql_5_1",
+        "_oracle_11_2", "_sqlserver_10_50", "_db2_9_7", "_h2" };
+
+    List<String> expected = new ArrayList<String>();
+    for (String extension : extensions) {
+      expected.add(describe(new DatabaseResourceBundleManager()
+          .getResourceBundle(name, extension, null)));
+    }
+
+    final DatabaseResourceBundleManager shared =
+        new DatabaseResourceBundleManager();
+    final CountDownLatch start = new CountDownLatch(1);
+    int threads = 8;
+    final int lookups = 200;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<DatabasePropertyResourceBundle[]>> futures =
+          new ArrayList<Future<DatabasePropertyResourceBundle[]>>();
+      for (int t = 0; t < threads; t++) {
+        final int offset = t;
+        futures.add(executor.submit(
+            new Callable<DatabasePropertyResourceBundle[]>() {
+              @Override
+              public DatabasePropertyResourceBundle[] call() throws Exception {
+                DatabasePropertyResourceBundle[] found =
+                    new DatabasePropertyResourceBundle[extensions.length];
+                start.await();
+                for (int i = 0; i < lookups; i++) {
+                  int e = (i + offset) % extensions.length;
+                  DatabasePropertyResourceBundle bundle =
+                      shared.getResourceBundle(name, extensions[e], null);
+                  assertNotNull(bundle);
+                  if (found[e] == null) {
+                    found[e] = bundle;
+                  } else {
+                    assertSame(found[e], bundle);
+                  }
+                }
+                return found;
+              }
+            }));
+      }
+      start.countDown();
+
+      DatabasePropertyResourceBundle[] first = futures.get(0).get();
+      for (Future<DatabasePropertyResourceBundle[]> future : futures) {
+        DatabasePropertyResourceBundle[] found = future.get();
+        for (int e = 0; e < extensions.length; e++) {
+          assertSame(extensions[e], first[e], found[e]);
+          assertEquals(extensions[e], expected.get(e), describe(found[e]));
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Describes a bundle and its ancestors by some of their resources. */
+  private static String describe(DatabasePropertyResourceBundle bundle) {
+    StringBuilder builder = new StringBuilder();
+    for (; bundle != null; bundle = bundle.getParent()) {
+      builder.append(bundle.getString("getinventory.stamps.query"))
+          .append(Arrays.toString(bundle.getStringArray("table.create.ddl")))
+          .append('\n');
+    }
+    return builder.toString();
+  }
+
   // A ClassLoader that looks for resources relative to the
-  // current working directory.
+  // current working directory, and counts the resources looked for.
   private class TestClassLoader extends ClassLoader {
+    final AtomicInteger probes = new AtomicInteger();
+
     @Override
     public URL getResource(String name) {
+      probes.incrementAndGet();
       try {
         File file = new File(name);
         if (file.exists() && file.isFile()) {
@@ -75,6 +75,40 @@ public class JdbcDatabaseTest extends TestCase {
     database.getConnectionPool().releaseConnection(connection);
   }
 
+  // Test waiting for a table created at the same time by another client.
+  public void testVerifyTableWaitsForConcurrentCreate() throws Exception {
+    final String tableName = "concurrent_table";
+    Thread creator = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(300);
+          assertTrue(database.verifyTableExists(tableName, new String[] {
+              "CREATE TABLE " + tableName + " ( foo INT )" }));
+        } catch (InterruptedException ignored) {
+        }
+      }
+    };
+
+    // Our own DDL fails, so we wait for the other client's table.
+    String[] badDdl = { "CREATE TABLE " + tableName + " ( foo INT" };
+    database.setTableWaitMillis(60 * 1000L);
+    long start = System.currentTimeMillis();
+    creator.start();
+    assertTrue(database.verifyTableExists(tableName, badDdl));
+    assertTrue(System.currentTimeMillis() - start < 30 * 1000L);
+    creator.join();
+  }
+
+  // Test that the wait for a table is bounded.
+  public void testVerifyTableWaitTimesOut() {
+    String[] badDdl = { "CREATE TABLE missing_table ( foo INT" };
+    database.setTableWaitMillis(200L);
+    long start = System.currentTimeMillis();
+    assertFalse(database.verifyTableExists("missing_table", badDdl));
+    assertTrue(System.currentTimeMillis() - start < 30 * 1000L);
+  }
+
   // Tests getting the maximum table name length.
   public void testGetMaxTableNameLength() {
     // H2 has no max table name length, so we expect the default 255.
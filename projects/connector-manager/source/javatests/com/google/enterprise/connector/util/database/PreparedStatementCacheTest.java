@@ -0,0 +1,131 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.database;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import junit.framework.TestCase;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Tests for {@link PreparedStatementCache}.
+ */
+public class PreparedStatementCacheTest extends TestCase {
+  private static final String QUERY = "SELECT ? FROM DUAL";
+
+  private PreparedStatementCache cache;
+  private Connection c1;
+  private Connection c2;
+
+  @Override
+  protected void setUp() throws SQLException {
+    JdbcDataSource ds = new JdbcDataSource();
+    ds.setURL("jdbc:h2:mem:statementcache");
+    ds.setUser("sa");
+    ds.setPassword("sa");
+    c1 = ds.getConnection();
+    c2 = ds.getConnection();
+    cache = new PreparedStatementCache();
+  }
+
+  @Override
+  protected void tearDown() throws SQLException {
+    cache.clear();
+    c1.close();
+    c2.close();
+  }
+
+  private String select(PreparedStatement stmt, String value)
+      throws SQLException {
+    stmt.setString(1, value);
+    ResultSet rs = stmt.executeQuery();
+    try {
+      assertTrue(rs.next());
+      return rs.getString(1);
+    } finally {
+      rs.close();
+    }
+  }
+
+  public void testSameStatement() throws SQLException {
+    PreparedStatement stmt = cache.prepareStatement(c1, QUERY);
+    assertEquals("it's", select(stmt, "it's"));
+    assertSame(stmt, cache.prepareStatement(c1, QUERY));
+    assertEquals("again", select(stmt, "again"));
+    assertEquals(1, cache.size(c1));
+  }
+
+  public void testPerConnection() throws SQLException {
+    PreparedStatement stmt1 = cache.prepareStatement(c1, QUERY);
+    PreparedStatement stmt2 = cache.prepareStatement(c2, QUERY);
+    assertNotSame(stmt1, stmt2);
+    assertSame(c1, stmt1.getConnection());
+    assertSame(c2, stmt2.getConnection());
+    cache.prepareStatement(c1, "SELECT 1 FROM DUAL");
+    assertEquals(2, cache.size(c1));
+    assertEquals(1, cache.size(c2));
+  }
+
+  public void testInvalidate() throws SQLException {
+    PreparedStatement stmt1 = cache.prepareStatement(c1, QUERY);
+    PreparedStatement stmt2 = cache.prepareStatement(c2, QUERY);
+    cache.invalidate(c1);
+    assertTrue(stmt1.isClosed());
+    assertFalse(stmt2.isClosed());
+    assertEquals(0, cache.size(c1));
+    assertNotSame(stmt1, cache.prepareStatement(c1, QUERY));
+    assertSame(stmt2, cache.prepareStatement(c2, QUERY));
+  }
+
+  public void testClosedStatement() throws SQLException {
+    PreparedStatement stmt = cache.prepareStatement(c1, QUERY);
+    stmt.close();
+    PreparedStatement newStmt = cache.prepareStatement(c1, QUERY);
+    assertNotSame(stmt, newStmt);
+    assertEquals("new", select(newStmt, "new"));
+  }
+
+  public void testPoolClosesConnection() throws SQLException {
+    JdbcDataSource ds = new JdbcDataSource();
+    ds.setURL("jdbc:h2:mem:statementcache");
+    ds.setUser("sa");
+    ds.setPassword("sa");
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    PreparedStatementCache poolCache = new PreparedStatementCache(pool);
+    Connection connection = pool.getConnection();
+    PreparedStatement stmt = poolCache.prepareStatement(connection, QUERY);
+    pool.releaseConnection(connection);
+    assertEquals(1, poolCache.size(connection));
+
+    pool.closeConnections();
+    assertTrue(connection.isClosed());
+    assertTrue(stmt.isClosed());
+    assertEquals(0, poolCache.size(connection));
+  }
+
+  public void testClear() throws SQLException {
+    PreparedStatement stmt1 = cache.prepareStatement(c1, QUERY);
+    PreparedStatement stmt2 = cache.prepareStatement(c2, QUERY);
+    cache.clear();
+    assertTrue(stmt1.isClosed());
+    assertTrue(stmt2.isClosed());
+    assertEquals(0, cache.size(c1));
+    assertEquals(0, cache.size(c2));
+  }
+}
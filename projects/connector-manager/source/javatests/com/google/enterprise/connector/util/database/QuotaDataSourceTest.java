@@ -0,0 +1,271 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.database;
+
+import com.google.enterprise.connector.persist.JdbcStore;
+import com.google.enterprise.connector.persist.StoreContext;
+
+import junit.framework.TestCase;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+/**
+ * Tests the connector connection quotas of JdbcDatabase.
+ */
+public class QuotaDataSourceTest extends TestCase {
+  /** The most Connections the underlying DataSource may have open. */
+  private static final int MAX_CONNECTIONS = 4;
+
+  private JdbcConnectionPool dataSource;
+  private JdbcDatabase database;
+  private List<Connection> connections;
+
+  @Override
+  protected void setUp() throws Exception {
+    // A bounded H2 DataSource, like a production connection pool.
+    dataSource = JdbcConnectionPool.create("jdbc:h2:mem:quotadb", "sa", "sa");
+    dataSource.setMaxConnections(MAX_CONNECTIONS);
+    dataSource.setLoginTimeout(1);
+    database = new JdbcDatabase(dataSource);
+    database.setMaxConnectorConnections(3);
+    database.setMaxConnectorTypeConnections(2);
+    database.setConnectorCheckoutTimeoutMillis(100L);
+    connections = new ArrayList<Connection>();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      for (Connection connection : connections) {
+        connection.close();
+      }
+      database.shutdown();
+    } finally {
+      dataSource.dispose();
+    }
+  }
+
+  private Connection getConnection(DataSource source) throws SQLException {
+    Connection connection = source.getConnection();
+    connections.add(connection);
+    return connection;
+  }
+
+  private void assertNoConnection(DataSource source) throws SQLException {
+    try {
+      getConnection(source);
+      fail("Expected a SQLTransientConnectionException");
+    } catch (SQLTransientConnectionException expected) {
+    }
+  }
+
+  /** Connectors of the same type share a quota. */
+  public void testTypeQuota() throws Exception {
+    DataSource first = database.getConnectorDataSource("TypeA");
+    DataSource second = database.getConnectorDataSource("TypeA");
+    getConnection(first);
+    Connection connection = getConnection(second);
+    assertNoConnection(first);
+    assertNoConnection(second);
+
+    // Closing a Connection releases its permits.
+    connection.close();
+    connections.remove(connection);
+    getConnection(first);
+  }
+
+  /** All connectors share a quota. */
+  public void testSharedQuota() throws Exception {
+    DataSource typeA = database.getConnectorDataSource("TypeA");
+    DataSource typeB = database.getConnectorDataSource("TypeB");
+    getConnection(typeA);
+    getConnection(typeA);
+    getConnection(typeB);
+    assertNoConnection(typeB);
+  }
+
+  /** Closing a Connection more than once releases its permits once. */
+  public void testCloseTwice() throws Exception {
+    DataSource typeA = database.getConnectorDataSource("TypeA");
+    Connection connection = typeA.getConnection();
+    connection.close();
+    connection.close();
+    getConnection(typeA);
+    getConnection(typeA);
+    assertNoConnection(typeA);
+  }
+
+  /** The wrapped DataSource is not exposed to the connectors. */
+  public void testUnwrap() throws Exception {
+    DataSource typeA = database.getConnectorDataSource("TypeA");
+    assertFalse(typeA.isWrapperFor(JdbcConnectionPool.class));
+    try {
+      typeA.unwrap(JdbcConnectionPool.class);
+      fail("Expected a SQLException");
+    } catch (SQLException expected) {
+    }
+  }
+
+  /** Without quotas, connectors get the underlying DataSource. */
+  public void testNoQuotas() throws Exception {
+    JdbcDatabase unlimited = new JdbcDatabase(dataSource);
+    try {
+      assertSame(dataSource, unlimited.getConnectorDataSource("TypeA"));
+    } finally {
+      unlimited.shutdown();
+    }
+  }
+
+  /** A connector type quota may be set without a shared quota. */
+  public void testTypeQuotaOnly() throws Exception {
+    JdbcDatabase typeOnly = new JdbcDatabase(dataSource);
+    try {
+      typeOnly.setMaxConnectorTypeConnections(1);
+      typeOnly.setConnectorCheckoutTimeoutMillis(100L);
+      DataSource typeA = typeOnly.getConnectorDataSource("TypeA");
+      DataSource typeB = typeOnly.getConnectorDataSource("TypeB");
+      assertNotSame(dataSource, typeA);
+      getConnection(typeA);
+      assertNoConnection(typeA);
+      getConnection(typeB);
+    } finally {
+      typeOnly.shutdown();
+    }
+  }
+
+  public void testNegativeQuotas() {
+    try {
+      database.setMaxConnectorConnections(-1);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      database.setMaxConnectorTypeConnections(-1);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testSetQuotasAfterUse() {
+    database.getConnectorDataSource("TypeA");
+    try {
+      database.setMaxConnectorConnections(10);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      database.setMaxConnectorTypeConnections(10);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  /** The connector quota must leave the reserved Connections. */
+  public void testNoHeadroom() {
+    try {
+      database.setMaxConnections(MAX_CONNECTIONS - 1);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    database.setMaxConnections(MAX_CONNECTIONS);
+    try {
+      database.setMaxConnectorConnections(MAX_CONNECTIONS);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      database.setMaxConnections(JdbcDatabase.RESERVED_CONNECTIONS);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /**
+   * Checks that a connector that takes all the Connections it can get
+   * does not keep the Connector Manager from storing a checkpoint.
+   */
+  public void testConnectorCannotBlockStoreConnectorState() throws Exception {
+    checkStoreConnectorState(3);
+  }
+
+  /**
+   * Checks that the Connections reserved by the size of the DataSource
+   * keep a connector from blocking the Connector Manager, without
+   * connector quotas.
+   */
+  public void testReservedConnections() throws Exception {
+    database.shutdown();
+    database = new JdbcDatabase(dataSource);
+    database.setMaxConnections(MAX_CONNECTIONS);
+    database.setConnectorCheckoutTimeoutMillis(100L);
+    checkStoreConnectorState(
+        MAX_CONNECTIONS - JdbcDatabase.RESERVED_CONNECTIONS);
+  }
+
+  /**
+   * Takes all the Connections that two connector types can get, and
+   * checks that the Connector Manager can still store a checkpoint.
+   *
+   * @param expectedHeld the number of Connections the connectors get
+   */
+  private void checkStoreConnectorState(int expectedHeld) throws Exception {
+    LocalDatabaseImpl localDatabase =
+        new LocalDatabaseImpl(database, "HogType", (ClassLoader) null);
+    DataSource hog = localDatabase.getDataSource();
+    DataSource otherHog = new LocalDatabaseImpl(database, "OtherHogType",
+        (ClassLoader) null).getDataSource();
+    int held = 0;
+    for (DataSource source : new DataSource[] { hog, otherHog }) {
+      try {
+        while (true) {
+          getConnection(source);
+          held++;
+        }
+      } catch (SQLTransientConnectionException expected) {
+      }
+    }
+    assertEquals(expectedHeld, held);
+
+    final JdbcStore store = new JdbcStore();
+    store.setDatabase(database);
+    final StoreContext context = new StoreContext("connector", "HogType");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<String> future = executor.submit(new Callable<String>() {
+          @Override
+          public String call() {
+            store.storeConnectorState(context, "checkpoint");
+            return store.getConnectorState(context);
+          }
+        });
+      assertEquals("checkpoint", future.get(30, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.util.diffing;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
 import com.google.enterprise.connector.util.diffing.Change;
 import com.google.enterprise.connector.util.diffing.ChangeSource;
 import com.google.enterprise.connector.util.diffing.CheckpointAndChange;
@@ -28,6 +30,7 @@ import junit.framework.TestCase;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
@@ -37,6 +40,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 /**
  * Test for {@Link CheckpointAndChangeQueue}.
@@ -413,7 +417,7 @@ public class CheckpointAndChangeQueueTest extends TestCase {
     assertEquals(original, getRecoveryFile(q2));
   }
 
-  public void testRecoveryStateCleanup() throws IOException {
+  public void testRecoveryStateCleanup() throws Exception {
     final int NUM_RESUME_CALLS = 20;
     ChangeSource changeSource = new MockChangeSource(NUM_RESUME_CALLS * 3);
     CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
@@ -424,6 +428,7 @@ public class CheckpointAndChangeQueueTest extends TestCase {
     for (int i = 0; i < NUM_RESUME_CALLS; i++) {
        List<CheckpointAndChange> batch = q.resume(checkpoint);
        checkpoint = batch.get(1).getCheckpoint().toString();
+       q.awaitCompaction();
        assertTrue(1 >= persistDir.listFiles().length);
     }
     assertTrue(1 == persistDir.listFiles().length);
@@ -617,7 +622,8 @@ public class CheckpointAndChangeQueueTest extends TestCase {
     assertEquals(firstBatch, firstBatchAgain);
   }
 
-  public void testWithMoreResumeCallsThanFileDescriptors() throws IOException {
+  public void testWithMoreResumeCallsThanFileDescriptors()
+      throws Exception {
     final int NUM_RESUME_CALLS = 1000;
     ChangeSource changeSource = new MockChangeSource(NUM_RESUME_CALLS * 3);
     CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
@@ -628,6 +634,7 @@ public class CheckpointAndChangeQueueTest extends TestCase {
     for (int i = 0; i < NUM_RESUME_CALLS; i++) {
        List<CheckpointAndChange> batch = q.resume(checkpoint);
        checkpoint = batch.get(1).getCheckpoint().toString();
+       q.awaitCompaction();
        assertTrue(1 >= persistDir.listFiles().length);
     }
     assertTrue(1 == persistDir.listFiles().length);
@@ -808,4 +815,156 @@ public class CheckpointAndChangeQueueTest extends TestCase {
     assertFalse(rfA.isOlder(rfC));
     assertFalse(rfB.isOlder(rfC));
   }
+
+  private static final int MAX_QUEUE_SIZE = 5;
+
+  /** The state of a queue after a call to resume, and how to recover it. */
+  private static class ResumeState {
+    final String checkpoint;
+    final List<CheckpointAndChange> list;
+    final Map<String, MonitorCheckpoint> monitorPoints;
+    final boolean isChanged;
+
+    ResumeState(String checkpoint, List<CheckpointAndChange> list,
+        Map<String, MonitorCheckpoint> monitorPoints, boolean isChanged) {
+      this.checkpoint = checkpoint;
+      this.list = list;
+      this.monitorPoints = monitorPoints;
+      this.isChanged = isChanged;
+    }
+  }
+
+  /**
+   * Simulates crashes at random points in a long run of resume calls,
+   * with frequent compaction of the journal.  Recovering from a copy of
+   * the recovery files must reproduce the state of the queue after the
+   * last resume call that was persisted.
+   */
+  public void testRecoveryFromRandomCrashes() throws Exception {
+    File crashDir = testDirectoryManager.makeDirectory("crash");
+    File olderDir = testDirectoryManager.makeDirectory("older");
+    for (long seed = 0; seed < 10; seed++) {
+      checkRandomCrashes(new Random(seed), crashDir, olderDir);
+    }
+    assertFalse(crashDir.exists());
+    assertTrue(deleteDir(olderDir));
+  }
+
+  private void checkRandomCrashes(Random random, File crashDir,
+      File olderDir) throws Exception {
+    final int NUM_RESUME_CALLS = 60;
+    List<Change> changes = new ArrayList<Change>();
+    for (int i = 0; i < NUM_RESUME_CALLS * MAX_QUEUE_SIZE; i++) {
+      changes.add(newChange(i, "monitor" + random.nextInt(4)));
+    }
+    deleteDir(persistDir);
+    assertTrue(persistDir.mkdir());
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(
+        new MockChangeSource(changes), persistDir, internalFactory,
+        clientFactory);
+    q.setMaximumQueueSize(MAX_QUEUE_SIZE);
+    q.setCompactionBytes(random.nextInt(2000));
+    q.start(null);
+
+    // A model of the queue: the indexes of the changes that it holds.
+    LinkedList<Integer> model = new LinkedList<Integer>();
+    int nextChange = 0;
+    String checkpoint = null;
+    ResumeState previous = null;
+    File older = null;
+    for (int i = 0; i < NUM_RESUME_CALLS; i++) {
+      // Acknowledge none, some, or all of the queue.
+      int acknowledged = random.nextInt(model.size() + 1);
+      if (acknowledged > 0) {
+        List<CheckpointAndChange> list = q.resume(checkpoint);
+        checkpoint = list.get(acknowledged - 1).getCheckpoint().toString();
+        for (int j = 0; j < acknowledged; j++) {
+          model.removeFirst();
+        }
+      }
+      List<CheckpointAndChange> list = q.resume(checkpoint);
+      int added = 0;
+      while (model.size() < MAX_QUEUE_SIZE && nextChange < changes.size()) {
+        model.add(nextChange++);
+        added++;
+      }
+      assertEquals(model.size(), list.size());
+      for (int j = 0; j < model.size(); j++) {
+        assertEquals(changes.get(model.get(j)), list.get(j).getChange());
+      }
+      q.awaitCompaction();
+      ResumeState current = new ResumeState(checkpoint,
+          new ArrayList<CheckpointAndChange>(list),
+          q.getMonitorRestartPoints(), acknowledged > 0 || added > 0);
+      if (checkpoint != null && random.nextInt(4) == 0) {
+        older = crash(random, current, previous, older, crashDir, olderDir);
+      }
+      previous = current;
+    }
+  }
+
+  /**
+   * Copies the recovery files, damages them the way a crash might, and
+   * checks that a new queue recovers the expected state from them.
+   *
+   * @return a copy of the recovery file
+   */
+  private File crash(Random random, ResumeState current,
+      ResumeState previous, File older, File crashDir, File olderDir)
+      throws Exception {
+    File[] files = persistDir.listFiles();
+    assertEquals(1, files.length);
+    assertTrue(crashDir.exists() || crashDir.mkdir());
+    File journal = new File(crashDir, files[0].getName());
+    Files.copy(files[0], journal);
+
+    ResumeState expected = current;
+    RecoveryJournal.Records records = RecoveryJournal.read(journal);
+    switch (random.nextInt(4)) {
+      case 0:
+        break;
+      case 1:
+        // Tear the last record, written by the last call to resume.
+        if (records.records.size() > 1 && current.isChanged
+            && previous.checkpoint != null) {
+          String last = records.records.get(records.records.size() - 1);
+          long start = journal.length()
+              - RecoveryJournal.encode(last).length;
+          RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+          raf.setLength(start
+              + random.nextInt((int) (journal.length() - start)));
+          raf.close();
+          expected = previous;
+        }
+        break;
+      case 2:
+        // Leave a compaction that did not finish.
+        Files.write("garbage", new File(crashDir, journal.getName() + ".tmp"),
+            Charsets.UTF_8);
+        break;
+      case 3:
+        // Leave an older journal that was not deleted.
+        if (older != null && !older.getName().equals(journal.getName())) {
+          Files.copy(older, new File(crashDir, older.getName()));
+        }
+        break;
+    }
+
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(
+        new MockChangeSource(0), crashDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(MAX_QUEUE_SIZE);
+    q.start(expected.checkpoint);
+    assertEquals(expected.monitorPoints, q.getMonitorRestartPoints());
+    assertEquals(expected.list, q.resume(expected.checkpoint));
+    assertEquals(expected.monitorPoints, q.getMonitorRestartPoints());
+    assertEquals(1, crashDir.listFiles().length);
+    q.clean();
+
+    if (older != null) {
+      assertTrue(older.delete());
+    }
+    File olderCopy = new File(olderDir, files[0].getName());
+    Files.copy(files[0], olderCopy);
+    return olderCopy;
+  }
 }
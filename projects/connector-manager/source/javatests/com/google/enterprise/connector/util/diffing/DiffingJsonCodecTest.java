@@ -0,0 +1,292 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.enterprise.connector.util.diffing.testing.TestDirectoryManager;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Golden-file tests for the JSON written to the recovery files of a
+ * {@link CheckpointAndChangeQueue}.  The recovery files, and the string
+ * forms of the checkpoints and changes, must match the reference files
+ * in {@code testdata/recovery} byte for byte.  The reference files were
+ * written by the original org.json serialization.
+ */
+public class DiffingJsonCodecTest extends TestCase {
+  private static final String GOLDEN_DIR = "testdata/recovery/";
+
+  /** Document IDs with characters that JSON writers escape differently. */
+  private static final String[] DOCUMENT_IDS = {
+      "/share/plain/file.txt",
+      "/share/caf\u00e9/\u4e2d\u6587/\ud834\udd1e clef.txt",
+      "/share/<a href=\"x\">Tom & Jerry's</a>/back\\slash\t\r\n",
+      "/share/\u20ac \u2013 \u2018quoted\u2019 \u2026/\u0085\u009f\u00a0",
+      "/share/\u2028\u2029\u0000\u001f\u007f\ufeff" };
+
+  private static final String[] MONITOR_NAMES = {
+      "monitor", "caf\u00e9 \u20ac </monitor>", "\u2013dash\u2013" };
+
+  private File persistDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    persistDir = new TestDirectoryManager(this).makeDirectory("queue");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = persistDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+  }
+
+  /** Returns changes for all combinations of the awkward strings. */
+  private static List<Change> getChanges() {
+    List<Change> changes = new ArrayList<Change>();
+    int i = 0;
+    for (String documentId : DOCUMENT_IDS) {
+      for (String monitorName : MONITOR_NAMES) {
+        MonitorCheckpoint monitorCheckpoint = new MonitorCheckpoint(
+            monitorName, i, 9876543210L * i, Long.MAX_VALUE - i);
+        if (i % 3 == 2) {
+          changes.add(new Change(Change.FactoryType.INTERNAL,
+              new DeleteDocumentHandle(documentId), monitorCheckpoint));
+        } else {
+          changes.add(new Change(Change.FactoryType.CLIENT,
+              new MockDocumentHandle(documentId, monitorName + i),
+              monitorCheckpoint));
+        }
+        i++;
+      }
+    }
+    return changes;
+  }
+
+  /** Returns a queue over the changes, in the persist directory. */
+  private CheckpointAndChangeQueue newQueue(List<Change> changes) {
+    final Iterator<Change> iterator = changes.iterator();
+    ChangeSource changeSource = new ChangeSource() {
+        @Override
+        public Change getNextChange() {
+          return iterator.hasNext() ? iterator.next() : null;
+        }
+      };
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, new DeleteDocumentHandleFactory(),
+        new MockDocumentHandleFactory());
+    q.setMaximumQueueSize(4);
+    return q;
+  }
+
+  /**
+   * Runs a queue through a fixed sequence of batches.
+   *
+   * @param lastBatch if not {@code null}, receives the last batch
+   * @return the checkpoint of the last batch
+   */
+  private static String runBatches(CheckpointAndChangeQueue q,
+      List<CheckpointAndChange> lastBatch) throws Exception {
+    q.start(null);
+    String checkpoint = null;
+    List<CheckpointAndChange> list = q.resume(checkpoint);
+    for (int i = 0; i < 6; i++) {
+      // Acknowledge one, two, or three changes at a time.
+      checkpoint = list.get(i % 3).getCheckpoint().toString();
+      list = q.resume(checkpoint);
+    }
+    if (lastBatch != null) {
+      lastBatch.addAll(list);
+    }
+    return checkpoint;
+  }
+
+  /** Returns the string forms of the checkpoints and changes. */
+  private static String getStringForms(List<CheckpointAndChange> list) {
+    StringBuilder builder = new StringBuilder();
+    for (CheckpointAndChange checkpointAndChange : list) {
+      Change change = checkpointAndChange.getChange();
+      builder.append(checkpointAndChange.getCheckpoint()).append('\n');
+      builder.append(change.getMonitorCheckpoint()).append('\n');
+      builder.append(change).append('\n');
+      builder.append(checkpointAndChange).append('\n');
+    }
+    return builder.toString();
+  }
+
+  /** Writes the golden files to the given directory. */
+  private void writeGoldenFiles(File dir) throws Exception {
+    CheckpointAndChangeQueue q = newQueue(getChanges());
+    String checkpoint = runBatches(q, null);
+    File[] files = persistDir.listFiles();
+    assertEquals(1, files.length);
+    Files.copy(files[0], new File(dir, "journal"));
+
+    StringWriter writer = new StringWriter();
+    q.writeJson(writer);
+    Files.write(writer.toString(), new File(dir, "queue.json"),
+        Charsets.UTF_8);
+    Files.write(checkpoint, new File(dir, "checkpoint.txt"), Charsets.UTF_8);
+
+    // All of the changes, with the checkpoints assigned by the queue.
+    CheckpointAndChangeQueue all = newQueue(getChanges());
+    all.setMaximumQueueSize(DOCUMENT_IDS.length * MONITOR_NAMES.length);
+    all.start(null);
+    Files.write(getStringForms(all.resume(null)),
+        new File(dir, "strings.txt"), Charsets.UTF_8);
+  }
+
+  /** The files written now must match the golden files. */
+  public void testWriteGoldenFiles() throws Exception {
+    File dir = new TestDirectoryManager(this).makeDirectory("golden");
+    try {
+      writeGoldenFiles(dir);
+      for (String name : new String[] {
+          "journal", "queue.json", "checkpoint.txt", "strings.txt" }) {
+        assertEquals(name,
+            Files.toString(new File(GOLDEN_DIR, name), Charsets.UTF_8),
+            Files.toString(new File(dir, name), Charsets.UTF_8));
+        assertTrue(name, Arrays.equals(
+            Files.toByteArray(new File(GOLDEN_DIR, name)),
+            Files.toByteArray(new File(dir, name))));
+      }
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Recovers a queue from a golden recovery file.  The batches are
+   * compared by their string forms, since delete document handles do not
+   * implement equals.
+   */
+  private void checkRecovery(String name) throws Exception {
+    CheckpointAndChangeQueue expected = newQueue(getChanges());
+    List<CheckpointAndChange> expectedList =
+        new ArrayList<CheckpointAndChange>();
+    String checkpoint = runBatches(expected, expectedList);
+    assertEquals(
+        Files.toString(new File(GOLDEN_DIR, "checkpoint.txt"), Charsets.UTF_8),
+        checkpoint);
+    assertFalse(expectedList.isEmpty());
+    Map<String, MonitorCheckpoint> expectedPoints =
+        expected.getMonitorRestartPoints();
+    expected.start(null);
+
+    Files.copy(new File(GOLDEN_DIR, name),
+        new File(persistDir, "recovery.1_1"));
+    CheckpointAndChangeQueue q = newQueue(new ArrayList<Change>());
+    q.start(checkpoint);
+    assertEquals(expectedPoints, q.getMonitorRestartPoints());
+    assertEquals(getStringForms(expectedList),
+        getStringForms(q.resume(checkpoint)));
+  }
+
+  public void testReadGoldenJournal() throws Exception {
+    checkRecovery("journal");
+  }
+
+  public void testReadGoldenQueue() throws Exception {
+    checkRecovery("queue.json");
+  }
+
+  /**
+   * The string forms must be readable, and the objects read must have the
+   * same string forms.  Delete document handles do not implement equals.
+   */
+  public void testReadGoldenStrings() throws Exception {
+    List<String> lines = Files.readLines(new File(GOLDEN_DIR, "strings.txt"),
+        Charsets.UTF_8);
+    List<Change> changes = getChanges();
+    assertEquals(changes.size() * 4, lines.size());
+    DocumentHandleFactory internalFactory = new DeleteDocumentHandleFactory();
+    DocumentHandleFactory clientFactory = new MockDocumentHandleFactory();
+    for (int i = 0; i < changes.size(); i++) {
+      Change change = changes.get(i);
+      DiffingConnectorCheckpoint checkpoint =
+          DiffingConnectorCheckpoint.fromJsonString(lines.get(4 * i));
+      assertEquals(lines.get(4 * i), checkpoint.toString());
+      assertEquals(change.getMonitorCheckpoint(),
+          DiffingJsonCodec.readMonitorCheckpoint(
+              DiffingJsonCodec.newReader(lines.get(4 * i + 1))));
+      Change changeRead = DiffingJsonCodec.readChange(
+          DiffingJsonCodec.newReader(lines.get(4 * i + 2)),
+          internalFactory, clientFactory);
+      assertEquals(change.getDocumentHandle().getDocumentId(),
+          changeRead.getDocumentHandle().getDocumentId());
+      assertEquals(lines.get(4 * i + 2), changeRead.toString());
+      CheckpointAndChange checkpointAndChange =
+          DiffingJsonCodec.readCheckpointAndChange(
+              DiffingJsonCodec.newReader(lines.get(4 * i + 3)),
+              internalFactory, clientFactory);
+      assertEquals(checkpoint, checkpointAndChange.getCheckpoint());
+      assertEquals(lines.get(4 * i + 3), checkpointAndChange.toString());
+
+      // The original org.json parsing must read the new JSON, too.
+      assertEquals(change.getMonitorCheckpoint(), new MonitorCheckpoint(
+          new JSONObject(change.getMonitorCheckpoint().toString())));
+      assertEquals(lines.get(4 * i + 2), new Change(
+          new JSONObject(change.toString()), internalFactory, clientFactory)
+          .toString());
+    }
+  }
+
+  /** Changes in the format before version 2.8 can still be read. */
+  public void testReadOldChange() throws Exception {
+    String json = "{\"DOCUMENT_ID\":\"/share/old.txt\","
+        + "\"mcp\":{\"name\":\"old\",\"ssn\":1,\"offset1\":2,"
+        + "\"offset2\":3},\"EXTRA\":\"extra\"}";
+    Change change = DiffingJsonCodec.readChange(
+        DiffingJsonCodec.newReader(json), new DeleteDocumentHandleFactory(),
+        new MockDocumentHandleFactory());
+    assertEquals(Change.FactoryType.INTERNAL, change.getFactoryType());
+    assertEquals("/share/old.txt",
+        change.getDocumentHandle().getDocumentId());
+    assertEquals(new MonitorCheckpoint("old", 1, 2, 3),
+        change.getMonitorCheckpoint());
+  }
+
+  public void testMissingMember() throws Exception {
+    try {
+      DiffingJsonCodec.readMonitorCheckpoint(DiffingJsonCodec.newReader(
+          "{\"name\":\"monitor\",\"ssn\":1,\"offset1\":2}"));
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+    }
+    try {
+      DiffingConnectorCheckpoint.fromJsonString("{\"MAJOR_NUMBER\":1}");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
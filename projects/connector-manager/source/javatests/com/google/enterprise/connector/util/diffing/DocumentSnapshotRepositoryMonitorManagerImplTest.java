@@ -14,16 +14,41 @@
 
 package com.google.enterprise.connector.util.diffing;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
 import com.google.enterprise.connector.spi.TraversalSchedule;
+import com.google.enterprise.connector.util.BasicChecksumGenerator;
+import com.google.enterprise.connector.util.diffing.testing.TestDirectoryManager;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests for {@link DocumentSnapshotRepositoryMonitorManagerImpl}.
  */
 public class DocumentSnapshotRepositoryMonitorManagerImplTest extends TestCase {
+  private File snapshotDir;
+  private File persistDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    TestDirectoryManager testDirectoryManager = new TestDirectoryManager(this);
+    snapshotDir = testDirectoryManager.makeDirectory("snapshots");
+    persistDir = testDirectoryManager.makeDirectory("queue");
+  }
 
   // Borrowed from filesystem connector's  MockTraversalSchedule.java
   public class MockTraversalSchedule implements TraversalSchedule {
@@ -92,7 +117,8 @@ public class DocumentSnapshotRepositoryMonitorManagerImplTest extends TestCase {
    */
   public void testSetTraversalSchedule() {
     ChangeQueue queue;
-    queue = new ChangeQueue(10, 0L, null);
+    queue = new ChangeQueue(10, 0L,
+        new ChangeQueue.DefaultCrawlActivityLogger());
 
     DocumentSnapshotRepositoryMonitorManagerImpl manager =
         new DocumentSnapshotRepositoryMonitorManagerImpl(
@@ -104,4 +130,405 @@ public class DocumentSnapshotRepositoryMonitorManagerImplTest extends TestCase {
         false, false));
     assertEquals(8074000, queue.getSleepInterval());
   }
+
+  /** A document that is new, or changed if its extra field differs. */
+  private static class TestDocumentSnapshot extends MockDocumentSnapshot {
+    TestDocumentSnapshot(String documentId, String extra) {
+      super(documentId, extra);
+    }
+
+    @Override
+    public DocumentHandle getUpdate(DocumentSnapshot onGsa) {
+      if (onGsa != null && onGsa.toString().equals(toString())) {
+        return null;
+      }
+      return new MockDocumentHandle(getDocumentId(), getExtra());
+    }
+  }
+
+  /** Records how the scans of all the repositories interleave. */
+  private static class ScanTracker {
+    private final CountDownLatch released = new CountDownLatch(1);
+    private final AtomicInteger activeScans = new AtomicInteger();
+    private final AtomicInteger maxActiveScans = new AtomicInteger();
+    private final AtomicInteger maxUnscanned = new AtomicInteger();
+    private final Set<Thread> scanThreads =
+        Collections.synchronizedSet(new HashSet<Thread>());
+    private final List<TestRepository> repositories =
+        new ArrayList<TestRepository>();
+
+    /** Lets the scans begin, once all of the monitors are scheduled. */
+    void release() {
+      released.countDown();
+    }
+
+    void awaitRelease() {
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /** Called as a repository returns a document. */
+    void next(TestRepository repository, int served, int sliceDocuments) {
+      scanThreads.add(Thread.currentThread());
+      int active = activeScans.incrementAndGet();
+      updateMax(maxActiveScans, active);
+      if (served == 2 * sliceDocuments) {
+        // This repository is starting its third slice, so every other
+        // repository should have had a turn, unless it is running now.
+        int unscanned = 0;
+        for (TestRepository other : repositories) {
+          if (other.served.get() == 0) {
+            unscanned++;
+          }
+        }
+        updateMax(maxUnscanned, unscanned);
+      }
+      Thread.yield();
+      activeScans.decrementAndGet();
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+      int current;
+      while ((current = max.get()) < value
+          && !max.compareAndSet(current, value)) {
+      }
+    }
+  }
+
+  /** An in-memory repository of {@code size} documents. */
+  private static class TestRepository
+      implements SnapshotRepository<DocumentSnapshot> {
+    private final String name;
+    private final int size;
+    private final int sliceDocuments;
+    private final ScanTracker tracker;
+    private final AtomicInteger served = new AtomicInteger();
+
+    TestRepository(String name, int size, int sliceDocuments,
+        ScanTracker tracker) {
+      this.name = name;
+      this.size = size;
+      this.sliceDocuments = sliceDocuments;
+      this.tracker = tracker;
+      tracker.repositories.add(this);
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public Iterator<DocumentSnapshot> iterator() {
+      tracker.awaitRelease();
+      return new Iterator<DocumentSnapshot>() {
+        private int next = 0;
+
+        @Override
+        public boolean hasNext() {
+          return next < size;
+        }
+
+        @Override
+        public DocumentSnapshot next() {
+          tracker.next(TestRepository.this, served.getAndIncrement(),
+              sliceDocuments);
+          return new TestDocumentSnapshot(getDocumentId(next++), "extra");
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    String getDocumentId(int k) {
+      return String.format("%s/doc%04d", name, k);
+    }
+  }
+
+  private DocumentSnapshotRepositoryMonitorManagerImpl newManager(
+      List<TestRepository> repositories, ChangeQueue changeQueue,
+      int maxConcurrentScans, int sliceDocuments) {
+    CheckpointAndChangeQueue checkpointAndChangeQueue =
+        new CheckpointAndChangeQueue(changeQueue, persistDir,
+            new DeleteDocumentHandleFactory(),
+            new MockDocumentHandleFactory());
+    DocumentSnapshotRepositoryMonitorManagerImpl manager =
+        new DocumentSnapshotRepositoryMonitorManagerImpl(repositories,
+            new MockDocumentSnapshotFactory(), snapshotDir,
+            new BasicChecksumGenerator("SHA1"), changeQueue,
+            checkpointAndChangeQueue);
+    manager.setMaxConcurrentScans(maxConcurrentScans);
+    manager.setScanSliceDocuments(sliceDocuments);
+    // A long pause after a pass without changes, so each repository is
+    // scanned twice: once to find the documents, and again to find nothing.
+    manager.setTraversalSchedule(new MockTraversalSchedule(500, 60, false,
+        true));
+    return manager;
+  }
+
+  /**
+   * Takes {@code count} changes from the queue.
+   *
+   * @return the document IDs of the changes, in order
+   */
+  private static List<String> takeChanges(ChangeQueue changeQueue,
+      int count) {
+    List<String> documentIds = new ArrayList<String>();
+    long deadline = System.currentTimeMillis() + 120 * 1000L;
+    while (documentIds.size() < count
+        && System.currentTimeMillis() < deadline) {
+      Change change = changeQueue.getNextChange();
+      if (change != null) {
+        documentIds.add(change.getDocumentHandle().getDocumentId());
+      }
+    }
+    return documentIds;
+  }
+
+  /** Checks that the monitor threads have stopped. */
+  private static void assertStopped(
+      DocumentSnapshotRepositoryMonitorManagerImpl manager)
+      throws InterruptedException {
+    assertEquals(0, manager.getThreadCount());
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().matches(
+          "DocumentSnapshotRepositoryMonitor-[0-9]+|repository-.*")) {
+        // The pool has terminated, but the thread may still be exiting.
+        thread.join(1000L);
+        assertFalse(thread.getName(), thread.isAlive());
+      }
+    }
+  }
+
+  /**
+   * Scans many repositories at once, and checks that the number of
+   * threads is bounded, that every repository has a turn, and that every
+   * document is found.
+   */
+  public void testManyRepositories() throws Exception {
+    final int repositoryCount = 500;
+    final int size = 40;
+    final int maxConcurrentScans = 4;
+    final int sliceDocuments = 5;
+
+    ScanTracker tracker = new ScanTracker();
+    List<TestRepository> repositories = new ArrayList<TestRepository>();
+    for (int i = 0; i < repositoryCount; i++) {
+      repositories.add(new TestRepository(String.format("repository-%03d", i),
+          size, sliceDocuments, tracker));
+    }
+    ChangeQueue changeQueue = new ChangeQueue(100, 0L,
+        new ChangeQueue.DefaultCrawlActivityLogger());
+    DocumentSnapshotRepositoryMonitorManagerImpl manager =
+        newManager(repositories, changeQueue, maxConcurrentScans,
+            sliceDocuments);
+    manager.start(null);
+    List<String> documentIds;
+    try {
+      assertEquals(repositoryCount, manager.getThreadCount());
+      tracker.release();
+      documentIds = takeChanges(changeQueue, repositoryCount * size);
+
+      // Wait for the second passes, which should find no changes.
+      for (TestRepository repository : repositories) {
+        while (repository.served.get() < 2 * size) {
+          Thread.sleep(10);
+        }
+      }
+      assertNull(changeQueue.getNextChange());
+    } finally {
+      manager.stop();
+      manager.clean();
+    }
+    assertStopped(manager);
+
+    // No changes are lost or repeated.
+    assertEquals(repositoryCount * size, documentIds.size());
+    Set<String> expected = new HashSet<String>();
+    for (TestRepository repository : repositories) {
+      for (int k = 0; k < size; k++) {
+        expected.add(repository.getDocumentId(k));
+      }
+    }
+    assertEquals(expected, new HashSet<String>(documentIds));
+
+    assertTrue(tracker.scanThreads.toString(),
+        tracker.scanThreads.size() <= maxConcurrentScans);
+    assertTrue(String.valueOf(tracker.maxActiveScans),
+        tracker.maxActiveScans.get() <= maxConcurrentScans);
+    assertTrue(String.valueOf(tracker.maxUnscanned),
+        tracker.maxUnscanned.get() < maxConcurrentScans);
+  }
+
+  /** Checks that repositories take turns in proportion to priority. */
+  public void testPriority() throws Exception {
+    final int size = 300;
+    final int sliceDocuments = 10;
+
+    ScanTracker tracker = new ScanTracker();
+    TestRepository high =
+        new TestRepository("repository-high", size, sliceDocuments, tracker);
+    TestRepository low =
+        new TestRepository("repository-low", size, sliceDocuments, tracker);
+    List<TestRepository> repositories = new ArrayList<TestRepository>();
+    repositories.add(low);
+    repositories.add(high);
+    ChangeQueue changeQueue = new ChangeQueue(10, 0L,
+        new ChangeQueue.DefaultCrawlActivityLogger());
+    DocumentSnapshotRepositoryMonitorManagerImpl manager =
+        newManager(repositories, changeQueue, 1, sliceDocuments);
+    Map<String, Integer> priorities = new HashMap<String, Integer>();
+    priorities.put(high.getName(), 3);
+    manager.setRepositoryPriorities(priorities);
+    manager.start(null);
+    try {
+      tracker.release();
+      List<String> documentIds = takeChanges(changeQueue, 2 * size);
+      int lastHigh = documentIds.lastIndexOf(high.getDocumentId(size - 1));
+      int lowBeforeLastHigh = 0;
+      for (String documentId : documentIds.subList(0, lastHigh)) {
+        if (documentId.startsWith(low.getName())) {
+          lowBeforeLastHigh++;
+        }
+      }
+      // The high priority repository gets three turns for every one that
+      // the low priority repository gets.
+      assertTrue(String.valueOf(lowBeforeLastHigh),
+          lowBeforeLastHigh >= 80 && lowBeforeLastHigh <= 120);
+    } finally {
+      manager.stop();
+      manager.clean();
+    }
+    assertStopped(manager);
+  }
+
+  /**
+   * Returns the files in {@code dir} that this process has open, as a map
+   * from file descriptor to inode, or {@code null} if the open files
+   * cannot be listed.
+   */
+  private static Map<String, String> getOpenFiles(File dir)
+      throws IOException {
+    File[] descriptors = new File("/proc/self/fd").listFiles();
+    if (descriptors == null) {
+      return null;
+    }
+    String prefix = dir.getCanonicalPath() + File.separator;
+    Map<String, String> openFiles = new HashMap<String, String>();
+    for (File descriptor : descriptors) {
+      String inode = getInode(descriptor.getName());
+      if (inode == null) {
+        continue;
+      }
+      if (descriptor.getCanonicalPath().startsWith(prefix)) {
+        openFiles.put(descriptor.getName(), inode);
+      }
+    }
+    return openFiles;
+  }
+
+  /**
+   * Returns the inode of the file open on {@code descriptor}, or
+   * {@code null} if the descriptor is closed.  Unlike the path of the
+   * descriptor, which {@link File#getCanonicalPath} caches, this is read
+   * from {@code /proc} on every call.
+   */
+  private static String getInode(String descriptor) throws IOException {
+    List<String> lines;
+    try {
+      lines = Files.readLines(new File("/proc/self/fdinfo", descriptor),
+          Charsets.UTF_8);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    for (String line : lines) {
+      if (line.startsWith("ino:")) {
+        return line.substring(4).trim();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Stops the monitors while they are in the middle of their passes, and
+   * checks that the snapshots of the monitors waiting for their next slice
+   * are closed.
+   */
+  public void testStopClosesSnapshots() throws Exception {
+    final int repositoryCount = 10;
+    final int size = 1000;
+    final int sliceDocuments = 5;
+
+    ScanTracker tracker = new ScanTracker();
+    List<TestRepository> repositories = new ArrayList<TestRepository>();
+    for (int i = 0; i < repositoryCount; i++) {
+      repositories.add(new TestRepository(String.format("repository-%03d", i),
+          size, sliceDocuments, tracker));
+    }
+    ChangeQueue changeQueue = new ChangeQueue(repositoryCount * size, 0L,
+        new ChangeQueue.DefaultCrawlActivityLogger());
+    DocumentSnapshotRepositoryMonitorManagerImpl manager =
+        newManager(repositories, changeQueue, 1, sliceDocuments);
+    manager.start(null);
+    try {
+      tracker.release();
+      // Wait until every monitor has started its pass.
+      long deadline = System.currentTimeMillis() + 120 * 1000L;
+      for (TestRepository repository : repositories) {
+        while (repository.served.get() == 0
+            && System.currentTimeMillis() < deadline) {
+          Thread.sleep(10);
+        }
+        assertTrue(repository.getName(), repository.served.get() > 0);
+      }
+      Map<String, String> openFiles = getOpenFiles(snapshotDir);
+      if (openFiles != null) {
+        assertFalse(openFiles.isEmpty());
+      }
+
+      manager.stop();
+      assertStopped(manager);
+      for (TestRepository repository : repositories) {
+        assertTrue(repository.getName(), repository.served.get() < size);
+      }
+      if (openFiles != null) {
+        for (Map.Entry<String, String> entry : openFiles.entrySet()) {
+          assertFalse("Descriptor " + entry.getKey() + " is still open",
+              entry.getValue().equals(getInode(entry.getKey())));
+        }
+      }
+    } finally {
+      manager.stop();
+      manager.clean();
+    }
+    assertFalse(snapshotDir.exists());
+  }
+
+  public void testInvalidSettings() {
+    DocumentSnapshotRepositoryMonitorManagerImpl manager =
+        new DocumentSnapshotRepositoryMonitorManagerImpl(
+            new ArrayList<SnapshotRepository<? extends DocumentSnapshot>>(),
+            null, null, null, null, null);
+    try {
+      manager.setMaxConcurrentScans(0);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      manager.setScanSliceDocuments(0);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      manager.setRepositoryPriorities(Collections.singletonMap("name", 0));
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
 }
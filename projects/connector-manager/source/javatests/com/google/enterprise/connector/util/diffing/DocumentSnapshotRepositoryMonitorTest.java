@@ -14,11 +14,21 @@
 
 package com.google.enterprise.connector.util.diffing;
 
+import com.google.common.io.Files;
 import com.google.enterprise.connector.spi.TraversalSchedule;
 import com.google.enterprise.connector.util.diffing.DocumentSnapshotRepositoryMonitor;
+import com.google.enterprise.connector.util.diffing.testing.TestDirectoryManager;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * Tests for {@link DocumentSnapshotRepositoryMonitor}.
  */
@@ -160,4 +170,224 @@ public class DocumentSnapshotRepositoryMonitorTest extends TestCase {
           "but got NullPointerException instead.");
     }
   }
+
+  /** A document that is new, or changed if its extra field differs. */
+  private static class TestDocumentSnapshot extends MockDocumentSnapshot {
+    TestDocumentSnapshot(String documentId, String extra) {
+      super(documentId, extra);
+    }
+
+    @Override
+    public DocumentHandle getUpdate(DocumentSnapshot onGsa) {
+      if (onGsa != null && onGsa.toString().equals(toString())) {
+        return null;
+      }
+      return new MockDocumentHandle(getDocumentId(), getExtra());
+    }
+  }
+
+  /** An in-memory repository of documents with the same extra field. */
+  private static class TestRepository
+      implements SnapshotRepository<DocumentSnapshot> {
+    private final int size;
+    private volatile String extra = "v1";
+
+    TestRepository(int size) {
+      this.size = size;
+    }
+
+    @Override
+    public String getName() {
+      return "repository";
+    }
+
+    @Override
+    public Iterator<DocumentSnapshot> iterator() {
+      return new Iterator<DocumentSnapshot>() {
+        private int next = 0;
+
+        @Override
+        public boolean hasNext() {
+          return next < size;
+        }
+
+        @Override
+        public DocumentSnapshot next() {
+          return new TestDocumentSnapshot(
+              String.format("/repository/doc%04d", next++), extra);
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+  /** Returns the newest snapshot file in a directory. */
+  private static File getNewestSnapshot(File snapshotDir) {
+    File snapshot = null;
+    long newest = -1;
+    for (File file : snapshotDir.listFiles()) {
+      Matcher matcher = SNAPSHOT.matcher(file.getName());
+      if (matcher.matches() && Long.parseLong(matcher.group(1)) > newest) {
+        newest = Long.parseLong(matcher.group(1));
+        snapshot = file;
+      }
+    }
+    return snapshot;
+  }
+
+  private static final Pattern SNAPSHOT = Pattern.compile("snap\\.([0-9]+)");
+
+  /**
+   * Checks that every change is reported only after the snapshot records
+   * covered by its checkpoint are in the snapshot file, and records the
+   * lengths of the snapshot file that were seen.  The checks are skipped
+   * if the snapshot directory is {@code null}.
+   */
+  private static class SyncCheckingCallback
+      implements DocumentSnapshotRepositoryMonitor.Callback {
+    private final File snapshotDir;
+    final Set<Long> lengths = new HashSet<Long>();
+    int changeCount;
+    int passCount;
+
+    SyncCheckingCallback(File snapshotDir) {
+      this.snapshotDir = snapshotDir;
+    }
+
+    private void check(MonitorCheckpoint mcp) {
+      changeCount++;
+      if (snapshotDir == null) {
+        return;
+      }
+      byte[] contents;
+      try {
+        contents = Files.toByteArray(getNewestSnapshot(snapshotDir));
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+      int records = 0;
+      for (byte b : contents) {
+        if (b == SnapshotWriter.RECORD_DELIMITER) {
+          records++;
+        }
+      }
+      assertTrue(mcp + " in " + records + " records",
+          mcp.getOffset2() <= records);
+      lengths.add((long) contents.length);
+    }
+
+    @Override
+    public void passBegin() {}
+
+    @Override
+    public void changedDocument(DocumentHandle dh, MonitorCheckpoint mcp) {
+      check(mcp);
+    }
+
+    @Override
+    public void deletedDocument(DocumentHandle dh, MonitorCheckpoint mcp) {
+      check(mcp);
+    }
+
+    @Override
+    public void newDocument(DocumentHandle dh, MonitorCheckpoint mcp) {
+      check(mcp);
+    }
+
+    @Override
+    public void passComplete(MonitorCheckpoint mcp) {
+      passCount++;
+    }
+
+    @Override
+    public boolean hasEnqueuedAtLeastOneChangeThisPass() {
+      return changeCount > 0;
+    }
+
+    @Override
+    public void passPausing(int sleepms) {}
+  }
+
+  /**
+   * Runs passes in slices, and checks that the changes are reported in
+   * groups after the snapshot records are synced, rather than syncing the
+   * snapshot for every change.
+   */
+  public void testChangesReportedAfterGroupSync() throws Exception {
+    final int size = 1000;
+    final int syncRecords = 100;
+    final int sliceDocuments = 250;
+
+    File snapshotDir =
+        new TestDirectoryManager(this).makeDirectory("snapshots");
+    SnapshotStore store =
+        new SnapshotStore(snapshotDir, new MockDocumentSnapshotFactory());
+    store.setSyncPolicy(syncRecords, 0L);
+    TestRepository repository = new TestRepository(size);
+    SyncCheckingCallback callback = new SyncCheckingCallback(snapshotDir);
+    DocumentSnapshotRepositoryMonitor monitor =
+        new DocumentSnapshotRepositoryMonitor("monitor", repository, store,
+            callback, null, null, new MockDocumentSnapshotFactory());
+
+    // An initial crawl finds new documents, and the next pass finds that
+    // every document has changed.
+    for (String extra : new String[] { "v1", "v2" }) {
+      repository.extra = extra;
+      callback.lengths.clear();
+      runPass(monitor, callback, sliceDocuments);
+      assertEquals(extra, size, callback.changeCount);
+      // One sync for each group of records, and at the end of each slice.
+      assertTrue(extra + ": " + callback.lengths,
+          callback.lengths.size()
+          <= size / syncRecords + size / sliceDocuments);
+    }
+  }
+
+  /** Runs a pass of a monitor in slices. */
+  private static void runPass(DocumentSnapshotRepositoryMonitor monitor,
+      SyncCheckingCallback callback, int sliceDocuments)
+      throws InterruptedException {
+    callback.changeCount = 0;
+    int passCount = callback.passCount;
+    while (callback.passCount == passCount) {
+      monitor.runSlice(sliceDocuments);
+    }
+  }
+
+  /**
+   * Returns the size of the snapshot written by an initial crawl, with the
+   * default sync policy.
+   */
+  private long getSnapshotSize(String name, boolean binary)
+      throws Exception {
+    File snapshotDir = new TestDirectoryManager(this).makeDirectory(name);
+    SnapshotStore store =
+        new SnapshotStore(snapshotDir, new MockDocumentSnapshotFactory());
+    store.setBinarySnapshots(binary);
+    SyncCheckingCallback callback = new SyncCheckingCallback(null);
+    DocumentSnapshotRepositoryMonitor monitor =
+        new DocumentSnapshotRepositoryMonitor("monitor",
+            new TestRepository(5000), store, callback, null, null,
+            new MockDocumentSnapshotFactory());
+    runPass(monitor, callback, 1000);
+    assertEquals(5000, callback.changeCount);
+    File snapshot = getNewestSnapshot(snapshotDir);
+    assertEquals(binary, BinarySnapshotFormat.isBinary(snapshot));
+    return snapshot.length();
+  }
+
+  /**
+   * Checks that the binary snapshots written by a monitor, which syncs
+   * groups of records, are front coded as well as a converted snapshot.
+   */
+  public void testBinarySnapshotSize() throws Exception {
+    long textSize = getSnapshotSize("text", false);
+    long binarySize = getSnapshotSize("binary", true);
+    assertTrue(binarySize + " of " + textSize,
+        binarySize < 0.6 * textSize);
+  }
 }
@@ -0,0 +1,105 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.enterprise.connector.util.diffing.testing.TestDirectoryManager;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link RecoveryJournal}.
+ */
+public class RecoveryJournalTest extends TestCase {
+  private File journal;
+
+  @Override
+  protected void setUp() throws Exception {
+    File dir = new TestDirectoryManager(this).makeDirectory("journal");
+    journal = new File(dir, "recovery.1_2");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    journal.delete();
+  }
+
+  public void testAppendAndRead() throws Exception {
+    long length = RecoveryJournal.create(journal, "{\"Q\":[]}");
+    length += RecoveryJournal.append(journal, length, "{\"ACK\":0}");
+    length += RecoveryJournal.append(journal, length,
+        "{\"ADD\":[\"r\u00e9sum\u00e9\"]}");
+    assertEquals(journal.length(), length);
+    assertTrue(RecoveryJournal.isJournal(journal));
+
+    RecoveryJournal.Records records = RecoveryJournal.read(journal);
+    assertEquals(Arrays.asList("{\"Q\":[]}", "{\"ACK\":0}",
+        "{\"ADD\":[\"r\u00e9sum\u00e9\"]}"), records.records);
+    assertEquals(length, records.length);
+  }
+
+  public void testTornRecord() throws Exception {
+    long length = RecoveryJournal.create(journal, "{\"Q\":[]}");
+    long full = length + RecoveryJournal.append(journal, length, "{\"ACK\":1}");
+    for (long torn = length; torn < full; torn++) {
+      RandomAccessFile file = new RandomAccessFile(journal, "rw");
+      file.setLength(torn);
+      file.close();
+      RecoveryJournal.Records records = RecoveryJournal.read(journal);
+      assertEquals(Arrays.asList("{\"Q\":[]}"), records.records);
+      assertEquals(length, records.length);
+    }
+  }
+
+  public void testBadChecksum() throws Exception {
+    long length = RecoveryJournal.create(journal, "{\"Q\":[]}");
+    RecoveryJournal.append(journal, length, "{\"ACK\":1}");
+    RecoveryJournal.append(journal, journal.length(), "{\"ACK\":2}");
+    byte[] bytes = Files.toByteArray(journal);
+    // Change the second record, ACK 1 to ACK 7.
+    bytes[(int) length + 16] = '7';
+    Files.write(bytes, journal);
+
+    RecoveryJournal.Records records = RecoveryJournal.read(journal);
+    assertEquals(Arrays.asList("{\"Q\":[]}"), records.records);
+    assertEquals(length, records.length);
+  }
+
+  public void testCopy() throws Exception {
+    long length = RecoveryJournal.create(journal, "{\"Q\":[]}");
+    long end = length + RecoveryJournal.append(journal, length, "{\"ACK\":1}");
+    File copy = new File(journal.getParentFile(), "recovery.3_4");
+    try {
+      RecoveryJournal.create(copy, "{\"Q\":[1]}");
+      RecoveryJournal.copy(journal, length, end, copy);
+      assertEquals(Arrays.asList("{\"Q\":[1]}", "{\"ACK\":1}"),
+          RecoveryJournal.read(copy).records);
+    } finally {
+      copy.delete();
+    }
+  }
+
+  public void testIsJournal() throws Exception {
+    Files.write("{\"Q\":[]}SENTINAL", journal, Charsets.UTF_8);
+    assertFalse(RecoveryJournal.isJournal(journal));
+    Files.write("", journal, Charsets.UTF_8);
+    assertFalse(RecoveryJournal.isJournal(journal));
+  }
+}
@@ -0,0 +1,199 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.enterprise.connector.util.diffing.SnapshotReaderTest.StringDocumentSnapshot;
+import com.google.enterprise.connector.util.diffing.SnapshotReaderTest.StringDocumentSnapshotFactory;
+import com.google.enterprise.connector.util.diffing.testing.TestDirectoryManager;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Tests converting snapshots between the text and binary formats.
+ */
+public class SnapshotConverterTest extends TestCase {
+  private static final Logger LOGGER =
+      Logger.getLogger(SnapshotConverterTest.class.getName());
+
+  private File snapshotDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    snapshotDir = new TestDirectoryManager(this).makeDirectory("snapshots");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (File file : snapshotDir.listFiles()) {
+      file.delete();
+    }
+  }
+
+  /**
+   * Returns the string form of a record, like those of a file system
+   * connector: sorted paths, followed by a time stamp and a checksum.
+   */
+  private static String getStringForm(int k, Random random) {
+    return String.format("{\"path\":\"/share/engineering/projects/"
+        + "r\u00e9sum\u00e9s/dir%04d/file%05d.txt\",\"lastModified\":%d,"
+        + "\"checksum\":\"%016x%016x\"}", k / 100, k,
+        1400000000000L + random.nextInt(1000000000),
+        random.nextLong(), random.nextLong());
+  }
+
+  /** Writes a snapshot of {@code count} records. */
+  private File writeSnapshot(String name, int count, boolean binary)
+      throws Exception {
+    File snapshotFile = new File(snapshotDir, name);
+    SnapshotWriter writer = SnapshotStore.getSnapshotWriter(snapshotFile,
+        Integer.MAX_VALUE, 0L, binary);
+    Random random = new Random(count);
+    for (int k = 0; k < count; k++) {
+      writer.write(new StringDocumentSnapshot(getStringForm(k, random)));
+    }
+    writer.close();
+    return snapshotFile;
+  }
+
+  /** Checks that two snapshots hold the same records. */
+  private static void assertSameRecords(File expected, File actual)
+      throws Exception {
+    SnapshotReader expectedReader = SnapshotReader.open(expected, 0,
+        new StringDocumentSnapshotFactory());
+    SnapshotReader actualReader = SnapshotReader.open(actual, 0,
+        new StringDocumentSnapshotFactory());
+    try {
+      DocumentSnapshot record;
+      while ((record = expectedReader.read()) != null) {
+        assertEquals(record.toString(), actualReader.read().toString());
+      }
+      assertNull(actualReader.read());
+    } finally {
+      expectedReader.close();
+      actualReader.close();
+    }
+  }
+
+  /** Reads all the records in a snapshot, and returns the elapsed time. */
+  private static long timeRead(File snapshotFile, int count)
+      throws Exception {
+    long start = System.nanoTime();
+    SnapshotReader reader = SnapshotReader.open(snapshotFile, 0,
+        new StringDocumentSnapshotFactory());
+    try {
+      int records = 0;
+      while (reader.read() != null) {
+        records++;
+      }
+      assertEquals(count, records);
+    } finally {
+      reader.close();
+    }
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  /** Text to binary to text must reproduce the original file. */
+  public void testRoundTrip() throws Exception {
+    File text = writeSnapshot("snap.1", 10000, false);
+    File binary = new File(snapshotDir, "snap.2");
+    File roundTrip = new File(snapshotDir, "snap.3");
+    assertEquals(10000, SnapshotConverter.convert(text, binary, true));
+    assertTrue(BinarySnapshotFormat.isBinary(binary));
+    assertSameRecords(text, binary);
+
+    assertEquals(10000, SnapshotConverter.convert(binary, roundTrip, false));
+    assertFalse(BinarySnapshotFormat.isBinary(roundTrip));
+    assertTrue(Arrays.equals(Files.toByteArray(text),
+        Files.toByteArray(roundTrip)));
+
+    // The binary format is written the same way every time.
+    File binaryAgain = new File(snapshotDir, "snap.4");
+    SnapshotConverter.convert(roundTrip, binaryAgain, true);
+    assertTrue(Arrays.equals(Files.toByteArray(binary),
+        Files.toByteArray(binaryAgain)));
+    assertTrue(Arrays.equals(
+        Files.toByteArray(SnapshotIndex.getIndexFile(binary)),
+        Files.toByteArray(SnapshotIndex.getIndexFile(binaryAgain))));
+  }
+
+  /** Snapshots in the old JSON line format can be converted. */
+  public void testConvertJsonSnapshot() throws Exception {
+    File json = new File(snapshotDir, "snap.1");
+    StringBuilder contents = new StringBuilder();
+    for (int k = 0; k < 100; k++) {
+      contents.append(new MockDocumentSnapshot(Integer.toString(k),
+          "extra." + k)).append(SnapshotWriter.RECORD_DELIMITER);
+    }
+    Files.write(contents, json, Charsets.UTF_8);
+
+    File binary = new File(snapshotDir, "snap.2");
+    assertEquals(100, SnapshotConverter.convert(json, binary, true));
+    SnapshotReader reader =
+        SnapshotReader.open(binary, 2, new MockDocumentSnapshotFactory());
+    try {
+      for (int k = 0; k < 100; k++) {
+        assertEquals(new MockDocumentSnapshot(Integer.toString(k),
+            "extra." + k), reader.read());
+      }
+      assertNull(reader.read());
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Compares the size and read time of a large snapshot in the text and
+   * binary formats.
+   */
+  public void testSizeAndThroughput() throws Exception {
+    final int count = 200000;
+    File text = writeSnapshot("snap.1", count, false);
+    File binary = new File(snapshotDir, "snap.2");
+    SnapshotConverter.convert(text, binary, true);
+
+    // Front coding stores the prefix that a path shares with the previous
+    // path only once per block.
+    assertTrue(binary.length() + " >= " + text.length() + " * 0.6",
+        binary.length() < text.length() * 0.6);
+
+    // Warm up, then time reading each format.
+    timeRead(text, count);
+    timeRead(binary, count);
+    long textMillis = timeRead(text, count);
+    long binaryMillis = timeRead(binary, count);
+    LOGGER.info("Read " + count + " records: text " + text.length()
+        + " bytes in " + textMillis + " ms, binary " + binary.length()
+        + " bytes in " + binaryMillis + " ms");
+  }
+
+  public void testSameFile() throws Exception {
+    File text = writeSnapshot("snap.1", 10, false);
+    try {
+      SnapshotConverter.convert(text,
+          new File(snapshotDir, "../snapshots/snap.1"), true);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(10, SnapshotConverter.convert(text,
+        new File(snapshotDir, "snap.2"), true));
+  }
+}
@@ -14,16 +14,24 @@
 
 package com.google.enterprise.connector.util.diffing;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.enterprise.connector.util.diffing.testing.TestDirectoryManager;
+
 import junit.framework.TestCase;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FilterReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 /**
  */
@@ -306,6 +314,328 @@ public class SnapshotReaderTest extends TestCase {
     assertEquals("0", dss.getDocumentId());
   }
 
+  /**
+   * Writes a snapshot of {@code count} records with a SnapshotStore,
+   * which also writes the sparse index of the snapshot.
+   *
+   * @return the snapshot file
+   */
+  private File writeIndexedSnapshot(int count) throws Exception {
+    return writeIndexedSnapshot(count, false);
+  }
+
+  private File writeIndexedSnapshot(int count, boolean binary)
+      throws Exception {
+    File snapshotDir =
+        new TestDirectoryManager(this).makeDirectory("snapshots");
+    SnapshotStore store =
+        new SnapshotStore(snapshotDir, new StringDocumentSnapshotFactory());
+    store.setSyncPolicy(Integer.MAX_VALUE, 0L);
+    store.setBinarySnapshots(binary);
+    SnapshotWriter writer = store.openNewSnapshotWriter();
+    for (int k = 0; k < count; k++) {
+      writer.write(new StringDocumentSnapshot(getDocumentId(k)));
+    }
+    store.close(null, writer);
+    File snapshotFile = new File(snapshotDir, "snap.1");
+    assertTrue(SnapshotIndex.getIndexFile(snapshotFile).exists());
+    return snapshotFile;
+  }
+
+  /**
+   * Returns the document ID of record {@code k}.  The records vary in
+   * length, and in the length of their UTF-8 encoding.
+   */
+  private static String getDocumentId(int k) {
+    return ((k % 3 == 0) ? "caf\u00e9/" : "docs/") + k
+        + ((k % 7 == 0) ? "/\ud83d\ude00" : "");
+  }
+
+  private static SnapshotReader openSnapshot(File snapshotFile)
+      throws Exception {
+    return SnapshotReader.open(snapshotFile, 1,
+        new StringDocumentSnapshotFactory());
+  }
+
+  /** Skips to {@code target} in a new reader, and checks the record. */
+  private static void assertSkip(File snapshotFile, int target)
+      throws Exception {
+    SnapshotReader reader = openSnapshot(snapshotFile);
+    try {
+      reader.skipRecords(target);
+      assertEquals(getDocumentId(target), reader.read().getDocumentId());
+    } finally {
+      reader.close();
+    }
+  }
+
+  /** Seeks to random records in a snapshot of millions of records. */
+  public void testSkipRecordsLargeSnapshot() throws Exception {
+    final int count = 2000000;
+    File snapshotFile = writeIndexedSnapshot(count);
+    try {
+      SnapshotIndex index = SnapshotIndex.read(snapshotFile);
+      assertEquals(count / SnapshotIndex.DEFAULT_INTERVAL, index.size());
+      checkSkipRecords(snapshotFile, count, new Random(21));
+    } finally {
+      assertTrue(SnapshotIndex.delete(snapshotFile));
+      assertTrue(snapshotFile.delete());
+    }
+  }
+
+  /** Seeks to random records in a binary snapshot. */
+  public void testSkipRecordsBinarySnapshot() throws Exception {
+    final int count = 500000;
+    File snapshotFile = writeIndexedSnapshot(count, true);
+    try {
+      // The index entries are at the ends of blocks.
+      SnapshotIndex index = SnapshotIndex.read(snapshotFile);
+      assertTrue(index.size() > 0);
+      assertTrue(String.valueOf(index.size()),
+          index.size() <= count / SnapshotIndex.DEFAULT_INTERVAL);
+      checkSkipRecords(snapshotFile, count, new Random(22));
+    } finally {
+      assertTrue(SnapshotIndex.delete(snapshotFile));
+      assertTrue(snapshotFile.delete());
+    }
+  }
+
+  /**
+   * Skips to random records of a snapshot written by
+   * {@link #writeIndexedSnapshot}.
+   */
+  private void checkSkipRecords(File snapshotFile, int count, Random random)
+      throws Exception {
+    for (int i = 0; i < 100; i++) {
+      assertSkip(snapshotFile, random.nextInt(count));
+    }
+    assertSkip(snapshotFile, 0);
+    assertSkip(snapshotFile, SnapshotIndex.DEFAULT_INTERVAL);
+    assertSkip(snapshotFile, count - 1);
+
+    // Skips are relative to the records already read.
+    SnapshotReader reader = openSnapshot(snapshotFile);
+    try {
+      int next = 0;
+      while (next < count - 10) {
+        int skip = random.nextInt(count / 10);
+        if (next + skip >= count) {
+          break;
+        }
+        reader.skipRecords(skip);
+        next += skip;
+        for (int k = 0; k < 3 && next < count; k++) {
+          assertEquals(getDocumentId(next++),
+              reader.read().getDocumentId());
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /** The records before an indexed record are not read at all. */
+  public void testSkipRecordsUsesIndex() throws Exception {
+    File snapshotFile = writeIndexedSnapshot(5000);
+
+    // Break the length of the second record.
+    String contents = Files.toString(snapshotFile, Charsets.UTF_8);
+    int second = contents.indexOf('\n') + 1;
+    RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+    try {
+      file.seek(contents.substring(0, second).getBytes("UTF-8").length);
+      file.write('x');
+    } finally {
+      file.close();
+    }
+
+    assertSkip(snapshotFile, 3333);
+
+    // Without the index, the broken record is read.
+    assertTrue(SnapshotIndex.delete(snapshotFile));
+    try {
+      assertSkip(snapshotFile, 3333);
+      fail("Expected a SnapshotReaderException");
+    } catch (SnapshotReaderException expected) {
+      assertTrue(expected.getMessage(),
+          expected.getMessage().contains("invalid length"));
+    }
+  }
+
+  /** Snapshots written before the index was added are read linearly. */
+  public void testSkipRecordsWithoutIndex() throws Exception {
+    File snapshotFile = writeIndexedSnapshot(5000);
+    assertTrue(SnapshotIndex.delete(snapshotFile));
+    assertNull(SnapshotIndex.read(snapshotFile));
+
+    Random random = new Random(22);
+    for (int i = 0; i < 20; i++) {
+      assertSkip(snapshotFile, random.nextInt(5000));
+    }
+    SnapshotReader reader = openSnapshot(snapshotFile);
+    try {
+      reader.skipRecords(5001);
+      fail("skipped too many records");
+    } catch (SnapshotReaderException expected) {
+      assertTrue(expected.getMessage().contains("snapshot contains only"));
+    } finally {
+      reader.close();
+    }
+  }
+
+  /** An index entry that does not start a record is ignored. */
+  public void testSkipRecordsStaleIndex() throws Exception {
+    File snapshotFile = writeIndexedSnapshot(5000);
+    Files.write("1000 17\n", SnapshotIndex.getIndexFile(snapshotFile),
+        Charsets.UTF_8);
+    assertEquals(1, SnapshotIndex.read(snapshotFile).size());
+    assertSkip(snapshotFile, 1500);
+
+    // Torn and out of range entries end the index.
+    Files.write("1000 17\n2000 1\n", SnapshotIndex.getIndexFile(snapshotFile),
+        Charsets.UTF_8);
+    assertEquals(1, SnapshotIndex.read(snapshotFile).size());
+    Files.write("1000 1" + snapshotFile.length() + "\n",
+        SnapshotIndex.getIndexFile(snapshotFile), Charsets.UTF_8);
+    assertNull(SnapshotIndex.read(snapshotFile));
+    Files.write("10", SnapshotIndex.getIndexFile(snapshotFile),
+        Charsets.UTF_8);
+    assertNull(SnapshotIndex.read(snapshotFile));
+  }
+
+  /** Records that are hard to front code are read back unchanged. */
+  public void testBinaryRecords() throws Exception {
+    String[] records = { "a", "a\n", "a\nb", "\n", "caf\u00e9",
+        "caf\u00e9s", "x\ud83d\ude00", "x\ud83d\ude01", "x\ud83d\ude01y",
+        "x\ud83d", "x\ud83dz", "", "#1#" };
+    // An unpaired surrogate cannot be encoded in UTF-8.
+    String[] expected = records.clone();
+    expected[9] = "x?";
+    expected[10] = "x?z";
+    File snapshotDir =
+        new TestDirectoryManager(this).makeDirectory("snapshots");
+    File snapshotFile = new File(snapshotDir, "snap.1");
+    SnapshotWriter writer = SnapshotStore.getSnapshotWriter(snapshotFile,
+        Integer.MAX_VALUE, 0L, true);
+    for (String record : records) {
+      writer.write(new StringDocumentSnapshot(record));
+    }
+    writer.close();
+
+    SnapshotReader reader = openSnapshot(snapshotFile);
+    try {
+      assertTrue(reader.isBinary());
+      for (String record : expected) {
+        assertEquals(record, reader.read().getDocumentId());
+      }
+      assertNull(reader.read());
+    } finally {
+      reader.close();
+    }
+  }
+
+  /** A corrupt block is detected by its checksum. */
+  public void testBinaryCorruptBlock() throws Exception {
+    File snapshotFile = writeIndexedSnapshot(5000, true);
+    byte[] contents = Files.toByteArray(snapshotFile);
+    // Change a byte in the payload of the first block.
+    contents[BinarySnapshotFormat.HEADER_LENGTH + 100] ^= 0x20;
+    Files.write(contents, snapshotFile);
+    assertSnapshotReaderException(snapshotFile, "bad block checksum");
+  }
+
+  /** A torn block at the end of the snapshot is detected. */
+  public void testBinaryTornBlock() throws Exception {
+    File snapshotFile = writeIndexedSnapshot(5000, true);
+    byte[] contents = Files.toByteArray(snapshotFile);
+    Files.write(Arrays.copyOf(contents, contents.length - 100), snapshotFile);
+    assertSnapshotReaderException(snapshotFile, "incomplete block");
+  }
+
+  /** Reads all the records in a snapshot, expecting an exception. */
+  private void assertSnapshotReaderException(File snapshotFile,
+      String message) throws Exception {
+    SnapshotReader reader = openSnapshot(snapshotFile);
+    try {
+      while (reader.read() != null) {
+        continue;
+      }
+      fail("Expected a SnapshotReaderException");
+    } catch (SnapshotReaderException expected) {
+      assertTrue(expected.getMessage(),
+          expected.getMessage().contains(message));
+    } finally {
+      reader.close();
+    }
+  }
+
+  /** An index entry that does not start a block is ignored. */
+  public void testBinaryStaleIndex() throws Exception {
+    File snapshotFile = writeIndexedSnapshot(5000, true);
+    SnapshotIndex index = SnapshotIndex.read(snapshotFile);
+    Files.write(index.getRecordCount(0) + " " + (index.getOffset(0) + 3)
+        + "\n", SnapshotIndex.getIndexFile(snapshotFile), Charsets.UTF_8);
+    for (int target : new int[] { 10, 1500, 4999 }) {
+      assertSkip(snapshotFile, target);
+    }
+
+    // Skips within the current block work after a failed seek.
+    SnapshotReader reader = openSnapshot(snapshotFile);
+    try {
+      assertEquals(getDocumentId(0), reader.read().getDocumentId());
+      reader.skipRecords(1999);
+      assertEquals(getDocumentId(2000), reader.read().getDocumentId());
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testBinaryUnsupportedVersion() throws Exception {
+    File snapshotFile = writeIndexedSnapshot(5000, true);
+    byte[] contents = Files.toByteArray(snapshotFile);
+    contents[BinarySnapshotFormat.MAGIC.length] = 2;
+    Files.write(contents, snapshotFile);
+    try {
+      openSnapshot(snapshotFile);
+      fail("Expected a SnapshotReaderException");
+    } catch (SnapshotReaderException expected) {
+      assertTrue(expected.getMessage(),
+          expected.getMessage().contains("unsupported snapshot format"));
+    }
+  }
+
+  /** The index is not used for snapshots in the JSON line format. */
+  public void testSkipRecordsJsonSnapshot() throws Exception {
+    List<MockDocumentSnapshot> snapshots =
+        new ArrayList<MockDocumentSnapshot>();
+    for (int k = 0; k < 3000; k++) {
+      snapshots.add(new MockDocumentSnapshot(Integer.toString(k),
+          "extra." + k));
+    }
+    BufferedReader br = mkReaderWithJsonTypeSnapshot(
+        snapshots.toArray(new MockDocumentSnapshot[snapshots.size()]));
+    File snapshotDir =
+        new TestDirectoryManager(this).makeDirectory("snapshots");
+    File snapshotFile = new File(snapshotDir, "snap.1");
+    StringBuilder contents = new StringBuilder();
+    String line;
+    while ((line = br.readLine()) != null) {
+      contents.append(line).append(SnapshotWriter.RECORD_DELIMITER);
+    }
+    Files.write(contents, snapshotFile, Charsets.UTF_8);
+    Files.write("1000 64\n2000 128\n",
+        SnapshotIndex.getIndexFile(snapshotFile), Charsets.UTF_8);
+
+    SnapshotReader reader = SnapshotReader.open(snapshotFile, 1,
+        new MockDocumentSnapshotFactory());
+    try {
+      reader.skipRecords(2500);
+      assertEquals("2500", reader.read().getDocumentId());
+    } finally {
+      reader.close();
+    }
+  }
+
   private BufferedReader mkReader(DocumentSnapshot...  snapshots)
       throws IOException {
     Writer writer = new StringWriter();
@@ -15,13 +15,20 @@
 package com.google.enterprise.connector.util.diffing;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 import com.google.enterprise.connector.util.diffing.testing.TestDirectoryManager;
 
 import junit.framework.TestCase;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 public class SnapshotStoreTest extends TestCase {
@@ -55,6 +62,8 @@ public class SnapshotStoreTest extends TestCase {
 
     MockDocumentSnapshot before = new MockDocumentSnapshot("0", "extra.0");
     out.write(before);
+    // The records are buffered until they are synced.
+    out.sync();
 
     SnapshotReader in = store.openMostRecentSnapshot();
     DocumentSnapshot after = in.read();
@@ -74,6 +83,7 @@ public class SnapshotStoreTest extends TestCase {
       DocumentSnapshot before = new MockDocumentSnapshot(Integer.toString(k),
           "extra." + k);
       out.write(before);
+      out.sync();
 
       SnapshotReader in = store.openMostRecentSnapshot();
       DocumentSnapshot after = in.read();
@@ -115,6 +125,29 @@ public class SnapshotStoreTest extends TestCase {
     assertSnapshotDirContains(ImmutableSet.of("snap.2", "snap.3"));
   }
 
+  /**
+   * Make sure that the sparse index of a snapshot is deleted along with
+   * the snapshot.
+   */
+  public void testIndexGarbageCollection() throws Exception {
+    SnapshotWriter out = store.openNewSnapshotWriter();
+    for (int k = 0; k < SnapshotIndex.DEFAULT_INTERVAL; ++k) {
+      out.write(new MockDocumentSnapshot(Integer.toString(k), "extra." + k));
+    }
+    store.close(null, out);
+    for (int k = 0; k < 3; ++k) {
+      out = store.openNewSnapshotWriter();
+      store.close(null, out);
+    }
+    assertSnapshotDirContains(
+        ImmutableSet.of("snap.1", "snap.1.idx", "snap.2", "snap.3", "snap.4"));
+
+    MonitorCheckpoint cp = new MonitorCheckpoint("foo", 10, 2, 1);
+    store.acceptGuarantee(cp);
+    store.deleteOldSnapshots();
+    assertSnapshotDirContains(ImmutableSet.of("snap.3", "snap.4"));
+  }
+
   private void assertSnapshotDirContains(Set<String> expected) {
     Set<String> filenames = Sets.newHashSet();
     for (File f : snapshotDir.listFiles()) {
@@ -212,6 +245,236 @@ public class SnapshotStoreTest extends TestCase {
     }
   }
 
+  /**
+   * Simulates crashes while writing a snapshot with group commit, by
+   * truncating the snapshot at random offsets beyond the last checkpoint,
+   * and makes sure that recovery never loses a checkpointed record.
+   */
+  public void testStitchAfterCrash() throws Exception {
+    checkStitchAfterCrash(false);
+  }
+
+  /**
+   * Make sure that stitch recovers binary snapshots, which are written
+   * in blocks, and keeps the binary format.
+   */
+  public void testStitchAfterCrashBinary() throws Exception {
+    checkStitchAfterCrash(true);
+  }
+
+  private void checkStitchAfterCrash(boolean binary) throws Exception {
+    store.setSyncPolicy(16, 0L);
+    store.setBinarySnapshots(binary);
+    SnapshotWriter ss1 = store.openNewSnapshotWriter();
+    writeRecords(ss1, "12345");
+    store.close(null, ss1);
+
+    // Write the second snapshot, taking checkpoints at random intervals.
+    // A checkpoint syncs the records, so the file is at least as long as
+    // it was at the time of the checkpoint.
+    Random random = new Random(8);
+    List<long[]> checkpoints = Lists.newArrayList();
+    File snap2 = new File(snapshotDir, "snap.2");
+    SnapshotWriter ss2 = store.openNewSnapshotWriter();
+    for (int k = 0; k < 100; ++k) {
+      ss2.write(new MockDocumentSnapshot(k + ".23456", "extra." + "k"));
+      if (random.nextInt(8) == 0) {
+        ss2.sync();
+        assertEquals(k + 1, ss2.getSyncedRecordCount());
+        checkpoints.add(new long[] { k + 1, snap2.length() });
+      }
+    }
+    assertTrue(ss2.getSyncedRecordCount() < ss2.getRecordCount());
+    store.close(null, ss2);
+    assertFalse(checkpoints.isEmpty());
+    byte[] contents = Files.toByteArray(snap2);
+
+    for (int trial = 0; trial < 50; ++trial) {
+      long[] checkpoint = checkpoints.get(random.nextInt(checkpoints.size()));
+      long offset = checkpoint[0];
+      long durableLength = checkpoint[1];
+      long tornLength = durableLength
+          + random.nextInt((int) (contents.length - durableLength) + 1);
+      Files.write(Arrays.copyOf(contents, (int) tornLength), snap2);
+
+      MonitorCheckpoint cp = new MonitorCheckpoint("foo", 1, offset, offset);
+      SnapshotStore.stitch(snapshotDir, cp, new MockDocumentSnapshotFactory());
+      assertStitched("length " + tornLength, offset);
+      assertEquals(binary,
+          BinarySnapshotFormat.isBinary(new File(snapshotDir, "snap.3")));
+    }
+  }
+
+  /**
+   * Make sure that stitch ignores a torn record after the records covered
+   * by the checkpoint.
+   */
+  public void testStitchTornRecord() throws Exception {
+    File snap2 = writeTwoSnapshots();
+    tearRecord(snap2, 7);
+
+    MonitorCheckpoint cp = new MonitorCheckpoint("foo", 1, 7, 7);
+    SnapshotStore.stitch(snapshotDir, cp, new MockDocumentSnapshotFactory());
+    assertStitched("torn record 8", 7);
+  }
+
+  /**
+   * Make sure that stitch truncates the records from the newer snapshot
+   * at the last good record, if a record covered by the checkpoint is
+   * torn.
+   */
+  public void testStitchTornCheckpointedRecord() throws Exception {
+    File snap2 = writeTwoSnapshots();
+    tearRecord(snap2, 7);
+
+    MonitorCheckpoint cp = new MonitorCheckpoint("foo", 1, 10, 10);
+    SnapshotStore.stitch(snapshotDir, cp, new MockDocumentSnapshotFactory());
+    assertStitched("torn record 8", 7, 10);
+  }
+
+  /**
+   * Make sure that stitch truncates the records from the newer snapshot
+   * at the last good record, if a record covered by the checkpoint is
+   * corrupt.
+   */
+  public void testStitchCorruptCheckpointedRecord() throws Exception {
+    File snap2 = writeTwoSnapshots();
+    byte[] contents = Files.toByteArray(snap2);
+    int offset = getLength(3);
+    while (contents[offset] != '{') {
+      offset++;
+    }
+    contents[offset] = 'X';
+    Files.write(contents, snap2);
+
+    // The corrupt record is not needed for an earlier checkpoint.
+    MonitorCheckpoint cp = new MonitorCheckpoint("foo", 1, 3, 3);
+    SnapshotStore.stitch(snapshotDir, cp, new MockDocumentSnapshotFactory());
+    assertStitched("corrupt record 4", 3);
+
+    cp = new MonitorCheckpoint("foo", 1, 10, 10);
+    SnapshotStore.stitch(snapshotDir, cp, new MockDocumentSnapshotFactory());
+    assertStitched("corrupt record 4", 3, 10);
+  }
+
+  /**
+   * Make sure that stitch truncates the records from the newer snapshot
+   * if it is shorter than the checkpoint.
+   */
+  public void testStitchShortSnapshot() throws Exception {
+    writeTwoSnapshots();
+
+    MonitorCheckpoint cp = new MonitorCheckpoint("foo", 1, 100, 150);
+    SnapshotStore.stitch(snapshotDir, cp, new MockDocumentSnapshotFactory());
+    assertStitched("short snapshot", 100, 100);
+  }
+
+  /** Writes snapshots 1 and 2, and returns the file of snapshot 2. */
+  private File writeTwoSnapshots() throws Exception {
+    SnapshotWriter ss1 = store.openNewSnapshotWriter();
+    writeRecords(ss1, "12345");
+    store.close(null, ss1);
+    SnapshotWriter ss2 = store.openNewSnapshotWriter();
+    writeRecords(ss2, "23456");
+    store.close(null, ss2);
+    return new File(snapshotDir, "snap.2");
+  }
+
+  /** Returns the length of the first records of snapshot 2, as text. */
+  private static int getLength(int records) throws Exception {
+    StringWriter complete = new StringWriter();
+    for (int k = 0; k < records; ++k) {
+      SnapshotWriter.write(
+          new MockDocumentSnapshot(k + ".23456", "extra." + "k"), complete);
+    }
+    return complete.toString().length();
+  }
+
+  /** Tears the record after the first {@code records} complete records. */
+  private static void tearRecord(File snapshot, int records)
+      throws Exception {
+    RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+    try {
+      file.setLength(getLength(records) + 5);
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Checks that the stitched snapshot contains the first {@code offset}
+   * records from snapshot 2, followed by the rest of snapshot 1.
+   */
+  private void assertStitched(String message, long offset) throws Exception {
+    assertStitched(message, offset, offset);
+  }
+
+  /**
+   * Checks that the stitched snapshot contains the first {@code good}
+   * records from snapshot 2, followed by snapshot 1 from record
+   * {@code offset}.
+   */
+  private void assertStitched(String message, long good, long offset)
+      throws Exception {
+    SnapshotReader reader = new SnapshotStore(snapshotDir,
+        new MockDocumentSnapshotFactory()).openMostRecentSnapshot();
+    try {
+      assertEquals(message, 3, reader.getSnapshotNumber());
+      for (int k = 0; k < 100; ++k) {
+        if (k >= good && k < offset) {
+          continue;
+        }
+        DocumentSnapshot rec = reader.read();
+        assertNotNull(message, rec);
+        String suffix = (k < good) ? ".23456" : ".12345";
+        assertEquals(message, k + suffix, rec.getDocumentId());
+      }
+      assertNull(message, reader.read());
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Make sure that binary snapshots can be written and read, and that
+   * text snapshots can still be read by a store that writes binary ones.
+   */
+  public void testBinaryWriteRead() throws Exception {
+    SnapshotWriter text = store.openNewSnapshotWriter();
+    writeRecords(text, "12345");
+    store.close(null, text);
+
+    store.setBinarySnapshots(true);
+    SnapshotReader in = store.openMostRecentSnapshot();
+    assertFalse(in.isBinary());
+    SnapshotWriter out = store.openNewSnapshotWriter();
+    DocumentSnapshot rec;
+    while ((rec = in.read()) != null) {
+      out.write(rec);
+    }
+    store.close(in, out);
+
+    File snap2 = new File(snapshotDir, "snap.2");
+    assertTrue(BinarySnapshotFormat.isBinary(snap2));
+    assertTrue(snap2.length() < new File(snapshotDir, "snap.1").length());
+    in = store.openMostRecentSnapshot();
+    assertTrue(in.isBinary());
+    for (int k = 0; k < 100; ++k) {
+      assertEquals(k + ".12345", in.read().getDocumentId());
+    }
+    assertNull(in.read());
+    store.close(in, null);
+  }
+
+  /** The empty initial snapshot is written in the binary format, too. */
+  public void testBinaryEmptyDir() throws Exception {
+    store.setBinarySnapshots(true);
+    SnapshotReader in = store.openMostRecentSnapshot();
+    assertTrue(in.isBinary());
+    assertNull(in.read());
+    in.close();
+  }
+
   public void testTwoWriters() throws SnapshotStoreException {
     store.openNewSnapshotWriter();
     try {
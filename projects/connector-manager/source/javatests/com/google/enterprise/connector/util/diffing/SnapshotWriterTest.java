@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.util.diffing;
 
+import com.google.enterprise.connector.util.Clock;
 import com.google.enterprise.connector.util.diffing.DocumentSnapshot;
 import com.google.enterprise.connector.util.diffing.SnapshotReader;
 import com.google.enterprise.connector.util.diffing.SnapshotStoreException;
@@ -145,4 +146,99 @@ public class SnapshotWriterTest extends TestCase {
     }
     assertEquals(100, writer.getRecordCount());
   }
+
+  public void testSyncEveryRecord() throws SnapshotStoreException {
+    for (int k = 0; k < 10; ++k) {
+      writer.write(new MockDocumentSnapshot(Integer.toString(k), "extra." + k));
+      assertEquals(k + 1, writer.getSyncedRecordCount());
+    }
+    writer.close();
+  }
+
+  public void testGroupSyncByRecords() throws SnapshotStoreException {
+    writer = new SnapshotWriter(sw, null, "string", 10, 0L);
+    for (int k = 0; k < 25; ++k) {
+      writer.write(new MockDocumentSnapshot(Integer.toString(k), "extra." + k));
+      assertEquals(((k + 1) / 10) * 10, writer.getSyncedRecordCount());
+    }
+    writer.sync();
+    assertEquals(25, writer.getSyncedRecordCount());
+    writer.sync();
+    assertEquals(25, writer.getSyncedRecordCount());
+    writer.write(new MockDocumentSnapshot("25", "extra.25"));
+    assertEquals(25, writer.getSyncedRecordCount());
+    writer.close();
+    assertEquals(26, writer.getSyncedRecordCount());
+  }
+
+  /** A clock that only moves when told to, unlike AdjustableClock. */
+  private static class FrozenClock implements Clock {
+    private long time = 0L;
+
+    void adjustTime(long adjustment) {
+      time += adjustment;
+    }
+
+    @Override
+    public long getTimeMillis() {
+      return time;
+    }
+  }
+
+  public void testGroupSyncByTime() throws SnapshotStoreException {
+    FrozenClock clock = new FrozenClock();
+    writer = new SnapshotWriter(sw, null, "string", 1000, 500L, clock);
+    writer.write(new MockDocumentSnapshot("0", "extra.0"));
+    clock.adjustTime(499L);
+    writer.write(new MockDocumentSnapshot("1", "extra.1"));
+    assertEquals(0, writer.getSyncedRecordCount());
+    clock.adjustTime(1L);
+    writer.write(new MockDocumentSnapshot("2", "extra.2"));
+    assertEquals(3, writer.getSyncedRecordCount());
+    clock.adjustTime(100L);
+    writer.write(new MockDocumentSnapshot("3", "extra.3"));
+    assertEquals(3, writer.getSyncedRecordCount());
+    writer.close();
+  }
+
+  /** Synced records must be visible in the underlying output. */
+  public void testSyncFlushes() throws SnapshotStoreException {
+    writer = new SnapshotWriter(sw, null, "string", 1000, 0L);
+    MockDocumentSnapshot before = new MockDocumentSnapshot("0", "0.extra");
+    writer.write(before);
+    writer.sync();
+
+    SnapshotReader reader =
+        new SnapshotReader(new BufferedReader(new StringReader(sw.toString())),
+            "test", 8, new MockDocumentSnapshotFactory());
+    assertEquals(before, reader.read());
+    assertNull(reader.read());
+    writer.close();
+  }
+
+  public void testInvalidSyncPolicy() throws SnapshotStoreException {
+    try {
+      new SnapshotWriter(sw, null, "string", 0, 0L);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new SnapshotWriter(sw, null, "string", 1, -1L);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /** The index offsets must match the UTF-8 encoded snapshot file. */
+  public void testEncodedLength() throws Exception {
+    String[] records = { "", "ascii", "caf\u00e9", "\u65e5\u672c",
+        "smile \ud83d\ude00", "unpaired \ud83d end", "\ude00 low" };
+    for (String record : records) {
+      StringWriter out = new StringWriter();
+      SnapshotWriter.write(
+          new SnapshotReaderTest.StringDocumentSnapshot(record), out);
+      assertEquals(record, out.toString().getBytes("UTF-8").length,
+          SnapshotWriter.getEncodedLength(record));
+    }
+  }
 }
@@ -14,12 +14,22 @@
 
 package com.google.enterprise.connector.util.filter;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SimpleDocument;
+import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.util.InputStreamFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Tests DocumentFilterChain.
@@ -83,4 +93,136 @@ public class DocumentFilterChainTest extends DocumentFilterTest {
         newFactory(PROP1, "foobar", SPACE), newFactory(PROP3, "xyzzy", SPACE)));
     checkDocument(chain.newDocumentFilter(createDocument()), createProperties());
   }
+
+  /** Returns a list of Add, Copy, Move, Delete, and Modify filters. */
+  private List<DocumentFilterFactory> mixedFactories() {
+    AddPropertyFilter add = new AddPropertyFilter();
+    add.setPropertyName(PROP2);
+    add.setPropertyValue(TEST_EXTRA_STRING);
+
+    CopyPropertyFilter copy = new CopyPropertyFilter();
+    copy.setPropertyNameMap(ImmutableMap.of(PROP2, "copy", PROP1, PROP7));
+
+    MovePropertyFilter move = new MovePropertyFilter();
+    move.setPropertyNameMap(ImmutableMap.of(PROP3, "moved"));
+
+    DeletePropertyFilter delete = new DeletePropertyFilter();
+    delete.setPropertyNames(ImmutableSet.of(PROP4, PROP5));
+
+    ModifyPropertyFilter modify = new ModifyPropertyFilter();
+    modify.setPropertyNames(ImmutableSet.of("copy", PROP6, PROP7));
+    modify.setPattern(PATTERN);
+    modify.setReplacement(SPACE);
+    modify.setOverwrite(true);
+
+    return factoryList(add, copy, move, delete, modify);
+  }
+
+  /** Links the filters without the chain, and so without memoization. */
+  private Document uncachedChain(List<DocumentFilterFactory> factories,
+      Document source) throws Exception {
+    for (DocumentFilterFactory factory : factories) {
+      source = factory.newDocumentFilter(source);
+    }
+    return source;
+  }
+
+  /** Test that the memoized chain matches the uncached filters. */
+  public void testMemoizedChainMatchesUncached() throws Exception {
+    List<DocumentFilterFactory> factories = mixedFactories();
+    Document uncached = uncachedChain(factories, createDocument());
+    Document memoized =
+        new DocumentFilterChain(factories).newDocumentFilter(createDocument());
+
+    Set<String> names = uncached.getPropertyNames();
+    assertEquals(names, memoized.getPropertyNames());
+    assertTrue(names.contains("moved"));
+    assertFalse(names.contains(PROP3));
+    assertFalse(names.contains(PROP4));
+
+    // Look up each property twice, and some that do not exist.
+    for (int i = 0; i < 2; i++) {
+      for (String name : ImmutableSet.<String>builder().addAll(names)
+               .add(PROP3, PROP4, "nonexistent").build()) {
+        assertEquals(name, getValues(uncached.findProperty(name)),
+                     getValues(memoized.findProperty(name)));
+      }
+    }
+  }
+
+  private static List<String> getValues(Property property) throws Exception {
+    if (property == null) {
+      return null;
+    }
+    List<String> values = new LinkedList<String>();
+    Value value;
+    while ((value = property.nextValue()) != null) {
+      values.add(value.toString());
+    }
+    return values;
+  }
+
+  /** A filter that counts the lookups that reach it. */
+  private static class CountingFilter extends AbstractDocumentFilter {
+    int findCount = 0;
+    int namesCount = 0;
+
+    @Override
+    public Property findProperty(Document source, String name)
+        throws RepositoryException {
+      findCount++;
+      return source.findProperty(name);
+    }
+
+    @Override
+    public Set<String> getPropertyNames(Document source)
+        throws RepositoryException {
+      namesCount++;
+      return source.getPropertyNames();
+    }
+  }
+
+  /** Test that each property is resolved through the chain only once. */
+  public void testPropertyResolvedOnce() throws Exception {
+    CountingFilter counter = new CountingFilter();
+    List<DocumentFilterFactory> factories = mixedFactories();
+    factories.add(counter);
+    Document document =
+        new DocumentFilterChain(factories).newDocumentFilter(createDocument());
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals(CLEAN_STRING,
+                   document.findProperty(PROP2).nextValue().toString());
+      assertNull(document.findProperty("nonexistent"));
+      document.getPropertyNames();
+    }
+    assertEquals(2, counter.findCount);
+    assertEquals(1, counter.namesCount);
+  }
+
+  /** Test that binary content is not read by the memoization. */
+  public void testBinaryContentConsumedOnce() throws Exception {
+    final int[] opened = { 0 };
+    Value content = Value.getBinaryValue(new InputStreamFactory() {
+        public InputStream getInputStream() {
+          opened[0]++;
+          return new ByteArrayInputStream(TEST_STRING.getBytes());
+        }
+      });
+    Map<String, List<Value>> props = createProperties();
+    List<Value> contentList = new LinkedList<Value>();
+    contentList.add(content);
+    props.put(SpiConstants.PROPNAME_CONTENT, contentList);
+    Document document = new DocumentFilterChain(mixedFactories())
+        .newDocumentFilter(new SimpleDocument(props));
+
+    Value first =
+        document.findProperty(SpiConstants.PROPNAME_CONTENT).nextValue();
+    Value second =
+        document.findProperty(SpiConstants.PROPNAME_CONTENT).nextValue();
+    assertSame(first, second);
+    assertEquals(0, opened[0]);
+    assertEquals(TEST_STRING, getStringFromBinaryValue(second));
+    assertEquals(1, opened[0]);
+  }
 }